@@ -0,0 +1,219 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import net.sf.ehcache.CacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * <p>
+ * Benchmarks the <code>CachingResolver</code> with the caches of the <code>CacheType</code> enumeration on top of a
+ * <code>StubResolver</code> with a configurable latency. The domains are looked up with a Zipf distributed popularity
+ * and the cache is prepared for the path under test:
+ * </p>
+ * <ul>
+ * <li><code>HIT</code>: every domain is cached.</li>
+ * <li><code>MISS</code>: every thread looks up its own domains in turn, more domains than the cache holds, so every
+ * lookup misses, asks the stub resolver and evicts an entry (the popularity does not apply).</li>
+ * <li><code>EXPIRY</code>: every domain is cached but the entries expire after a millisecond, so most lookups clear the
+ * entry and refresh it.</li>
+ * <li><code>NEGATIVE_HIT</code>: every domain is cached as not found.</li>
+ * </ul>
+ * <p>
+ * The benchmarks report the throughput and the latency distribution (with its 99th percentile). The allocations per
+ * lookup are reported by the GC profiler (<code>gc.alloc.rate.norm</code>), i.e.
+ * <code>java -jar benchmarks/target/jaev-benchmarks.jar CachingResolverBenchmark -prof gc</code>. The contended
+ * variant runs a thread per processor on a single cache, so lock contention shows up in the comparison to the single
+ * threaded run; other thread counts are run with the <code>-t</code> option.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CachingResolverBenchmark {
+
+	/** The number of lookups a thread repeats */
+	private static final int SEQUENCE_LENGTH = 1 << 16;
+
+	/**
+	 * The cache paths under test
+	 */
+	public enum Path {
+		HIT, MISS, EXPIRY, NEGATIVE_HIT
+	}
+
+	/**
+	 * The benchmarked caches
+	 */
+	public enum CacheType {
+
+		EHCACHE {
+
+			@Override
+			Cache create(int capacity) {
+				net.sf.ehcache.Cache cache = new net.sf.ehcache.Cache(NAME, capacity, false, true, 0, 0);
+				CacheManager.create().addCache(cache);
+
+				return new DnsEhCache(cache);
+			}
+
+			@Override
+			void destroy() {
+				CacheManager.create().removeCache(NAME);
+			}
+		};
+
+		private static final String NAME = "benchmark";
+
+		abstract Cache create(int capacity);
+
+		abstract void destroy();
+	}
+
+	@Param
+	public CacheType cacheType;
+
+	@Param
+	public Path path;
+
+	/** The latency of the stub resolver in microseconds */
+	@Param( { "0", "100" })
+	public int latency;
+
+	/** The number of domains, the cache holds all of them (but less than a sequence of lookups) */
+	@Param( { "10000" })
+	public int domains;
+
+	/** The exponent of the Zipf distribution */
+	@Param( { "1.0" })
+	public double exponent;
+
+	private String[] domainNames;
+
+	private Resolver resolver;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.domainNames = new String[this.domains];
+		for (int i = 0; i < this.domains; ++i) {
+			this.domainNames[i] = "domain" + i + ".example.com";
+		}
+
+		Cache cache = this.cacheType.create(this.domains);
+		StubResolver stubResolver = new StubResolver(this.latency, MICROSECONDS, this.path == Path.NEGATIVE_HIT);
+		if (this.path != Path.MISS) {
+			for (String domainName : this.domainNames) {
+				if (this.path == Path.NEGATIVE_HIT) {
+					cache.notFound(domainName);
+				}
+				else {
+					cache.put(domainName, ResouceRecord.Type.MX, stubResolver.getRecords());
+				}
+			}
+		}
+
+		this.resolver = this.path == Path.EXPIRY ? new CachingResolver(stubResolver, cache, 1, MILLISECONDS)
+				: new CachingResolver(stubResolver, cache, 30, MINUTES);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.cacheType.destroy();
+	}
+
+	@Benchmark
+	public Object resolve(Lookups lookups) {
+		return resolve(lookups.next());
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Object resolveContended(Lookups lookups) {
+		return resolve(lookups.next());
+	}
+
+	private Object resolve(String domainName) {
+		try {
+			return this.resolver.resolve(domainName, ResouceRecord.Type.MX);
+		}
+		catch (ResolverException e) {
+			return e.getResultCode();
+		}
+	}
+
+	/**
+	 * The domains a thread looks up in turn, they are sampled in advance so
+	 * the sampling is not measured.
+	 */
+	@State(Scope.Thread)
+	public static class Lookups {
+
+		private final String[] domainNames = new String[SEQUENCE_LENGTH];
+
+		private int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(CachingResolverBenchmark benchmark, ThreadParams threadParams) {
+			int thread = threadParams.getThreadIndex();
+			if (benchmark.path == Path.MISS) {
+				for (int i = 0; i < SEQUENCE_LENGTH; ++i) {
+					this.domainNames[i] = "domain" + i + ".thread" + thread + ".example.com";
+				}
+			}
+			else {
+				ZipfDistribution distribution = new ZipfDistribution(benchmark.domains, benchmark.exponent);
+				Random random = new Random(thread);
+				for (int i = 0; i < SEQUENCE_LENGTH; ++i) {
+					this.domainNames[i] = benchmark.domainNames[distribution.sample(random)];
+				}
+			}
+		}
+
+		String next() {
+			String domainName = this.domainNames[this.next];
+			this.next = (this.next + 1) & (SEQUENCE_LENGTH - 1);
+
+			return domainName;
+		}
+	}
+}
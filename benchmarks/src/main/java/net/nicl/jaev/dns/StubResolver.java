@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.dns.DnsResultCode.DOMAIN_NAME_NOT_FOUND;
+
+/**
+ * <p>
+ * The stub resolver answers every lookup after a fixed latency, either with the same record or as not found. The
+ * resolver does not allocate for a lookup, so the allocations of a benchmark are those of the layers on top of it. The
+ * latency is waited for with <code>LockSupport.parkNanos()</code> (i.e. the thread blocks as it would on a socket),
+ * so latencies below the resolution of the timer of the system are rounded up.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class StubResolver implements Resolver {
+
+	/** The records of every lookup */
+	private final List<ResouceRecord> records;
+
+	/** The latency of a lookup in nanoseconds */
+	private final long latency;
+
+	/** Every domain is not found */
+	private final boolean notFound;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param latency
+	 *            The latency of a lookup, <code>0</code> to answer at once
+	 * @param unit
+	 *            The time unit of the latency
+	 * @param notFound
+	 *            <code>true</code> if every domain is not found
+	 */
+	public StubResolver(long latency, TimeUnit unit, boolean notFound) {
+		this.latency = notNull(unit, "unit").toNanos(latency);
+		this.notFound = notFound;
+		this.records = Collections.<ResouceRecord> singletonList(new StubRecord("mx.example.com"));
+	}
+
+	@Override
+	public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType) throws ResolverException {
+		if (this.latency > 0) {
+			LockSupport.parkNanos(this.latency);
+		}
+		if (this.notFound) {
+			throw new ResolverException(DOMAIN_NAME_NOT_FOUND, null, domainName, recordType);
+		}
+
+		return this.records;
+	}
+
+	/**
+	 * Returns the records the stub resolver answers with.
+	 * 
+	 * @return The records
+	 */
+	public List<ResouceRecord> getRecords() {
+		return this.records;
+	}
+
+	/**
+	 * The record of the stub resolver
+	 */
+	private static final class StubRecord implements ResouceRecord {
+
+		private static final long serialVersionUID = 6372515430128947520L;
+
+		private final String value;
+
+		private StubRecord(String value) {
+			this.value = value;
+		}
+
+		public Type getType() {
+			return Type.MX;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+	}
+}
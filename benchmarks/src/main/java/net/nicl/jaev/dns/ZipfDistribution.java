@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>
+ * The Zipf distribution models the popularity of domains: the domain of rank <i>k</i> is looked up with a probability
+ * proportional to <i>1/k<sup>s</sup></i>, so a few mail providers make up most of the lookups and the long tail is
+ * looked up rarely.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class ZipfDistribution {
+
+	/** The cumulative probabilities of the ranks */
+	private final double[] cumulative;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param size
+	 *            The number of ranks
+	 * @param exponent
+	 *            The exponent <i>s</i> of the distribution, <code>0</code> for
+	 *            a uniform distribution
+	 */
+	public ZipfDistribution(int size, double exponent) {
+		if (size < 1) {
+			throw new IllegalArgumentException("The size must be positive.");
+		}
+		if (exponent < 0) {
+			throw new IllegalArgumentException("The exponent must not be negative.");
+		}
+
+		this.cumulative = new double[size];
+		double sum = 0;
+		for (int rank = 1; rank <= size; ++rank) {
+			sum += 1 / Math.pow(rank, exponent);
+			this.cumulative[rank - 1] = sum;
+		}
+		for (int i = 0; i < size; ++i) {
+			this.cumulative[i] /= sum;
+		}
+	}
+
+	/**
+	 * Samples an index of the distribution, the index <code>0</code> is the
+	 * most frequent.
+	 * 
+	 * @param random
+	 *            The source of randomness
+	 * @return The index of the sampled rank
+	 */
+	public int sample(Random random) {
+		int index = Arrays.binarySearch(this.cumulative, random.nextDouble());
+
+		return Math.min(index >= 0 ? index : -index - 1, this.cumulative.length - 1);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.mail;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.CodingErrorAction.REPORT;
+
+/**
+ * <p>
+ * Benchmarks the ASCII check of the address factories with concurrent threads. A <code>CharsetEncoder</code> is not
+ * thread safe, so the encoder of each thread (as in <code>Utilites</code>) is compared to a shared encoder behind a
+ * lock and to a new encoder for every check.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class AsciiCheckBenchmark {
+
+	private final String[] mailAddresses = MailAddressCorpus.VALID.getMailAddresses();
+
+	private final CharsetEncoder sharedEncoder = createEncoder();
+
+	@Benchmark
+	public boolean threadLocalEncoder(MailAddressFactoryBenchmark.Cursor cursor) {
+		return Utilites.isAscii(this.mailAddresses[cursor.next(this.mailAddresses.length)]);
+	}
+
+	@Benchmark
+	public boolean sharedEncoder(MailAddressFactoryBenchmark.Cursor cursor) {
+		String mailAddress = this.mailAddresses[cursor.next(this.mailAddresses.length)];
+		synchronized (this.sharedEncoder) {
+			return this.sharedEncoder.canEncode(mailAddress);
+		}
+	}
+
+	@Benchmark
+	public boolean newEncoder(MailAddressFactoryBenchmark.Cursor cursor) {
+		return createEncoder().canEncode(this.mailAddresses[cursor.next(this.mailAddresses.length)]);
+	}
+
+	private static CharsetEncoder createEncoder() {
+		CharsetEncoder asciiEncoder = Charset.forName("ASCII").newEncoder();
+
+		asciiEncoder.onMalformedInput(REPORT);
+		asciiEncoder.onUnmappableCharacter(REPORT);
+
+		return asciiEncoder;
+	}
+}
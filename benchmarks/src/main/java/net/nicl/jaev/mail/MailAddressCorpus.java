@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.mail;
+
+/**
+ * <p>
+ * The corpora of mail addresses the address factories are benchmarked with. The valid and invalid corpora resemble the
+ * addresses entered into a web form, the other corpora the inputs which drive the regular expressions and the parser
+ * into backtracking.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public enum MailAddressCorpus {
+
+	/** Addresses as they are entered usually */
+	VALID("john.doe@example.com", "jane_doe@mail.example.org", "tom.o'reilly@sourceforge.net",
+			"john-doe+newsletter@example.net", "info@sub.domain.example.co.uk", "a@example.de",
+			"firstname.middlename.lastname@example.info", "x123@mx-01.example.com"),
+
+	/** Addresses with typing errors and illegal characters */
+	INVALID("john.doe.example.com", "john.doe@", "@example.com", "john,doe@example.com", "joe(@example.com",
+			"john_doe@example.bla", "john doe@example.com", "john_doe@-example.com", "john_d\u00f6e@example.com",
+			"john..doe@example.com"),
+
+	/** Quoted local parts up to the length of a local part and beyond */
+	LONG_QUOTED(quoted(16), quoted(32), quoted(64), quoted(128), quoted(256)),
+
+	/** Domain literals with valid and invalid addresses */
+	IP_LITERAL("root@[192.168.0.1]", "john.doe@[10.0.0.1]", "postmaster@[127.0.0.1]", "john_doe@[256.0.0.1]",
+			"john_doe@[10.0.1]", "john_doe@[10.0.0.-1]"),
+
+	/** Group syntax and addresses with phrases and routes */
+	GROUP("Friends: john.doe@example.com;", "Friends: john.doe@example.com, jane.doe@example.com;", "name:;",
+			"John Doe <john.doe@example.com>", "\"Doe, John\" <john.doe@example.com>",
+			"John<@a,@b,@c:john.doe@example.com>");
+
+	private final String[] mailAddresses;
+
+	private MailAddressCorpus(String... mailAddresses) {
+		this.mailAddresses = mailAddresses;
+	}
+
+	/**
+	 * Returns the mail addresses of the corpus.
+	 * 
+	 * @return A copy of the mail addresses
+	 */
+	public String[] getMailAddresses() {
+		return this.mailAddresses.clone();
+	}
+
+	/**
+	 * Creates an address with a quoted local part of the length, the local
+	 * part contains the characters which are special outside of quotes.
+	 */
+	private static String quoted(int length) {
+		StringBuilder builder = new StringBuilder(length + 12).append('"');
+		for (int i = 0; builder.length() < length - 1; ++i) {
+			builder.append(i % 2 == 0 ? " .,:;<>@()[]".charAt(i / 2 % 12) : (char) ('a' + i % 26));
+		}
+
+		return builder.append("\"@example.com").toString();
+	}
+}
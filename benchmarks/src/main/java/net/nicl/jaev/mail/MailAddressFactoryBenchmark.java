@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.mail;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Benchmarks the <code>create()</code> method of the mail address factories with the corpora of the
+ * <code>MailAddressCorpus</code>. Every thread iterates through the addresses of the corpus, a rejected address is
+ * part of the measurement as the validation of user input rejects addresses regularly.
+ * </p>
+ * <p>
+ * The benchmarks report the throughput and the latency distribution (with its percentiles). The allocations per call
+ * are reported by the GC profiler (<code>gc.alloc.rate.norm</code>), i.e.
+ * <code>java -jar benchmarks/target/jaev-benchmarks.jar MailAddressFactoryBenchmark -prof gc</code>. The contended
+ * variant runs four threads on a single factory, so the costs of the thread local lexers and parsers of the
+ * <code>ParserMailAddressFactory</code> and the ASCII encoders show up in the comparison to the single threaded run.
+ * </p>
+ * <p>
+ * A new factory is benchmarked by adding it to the <code>Factory</code> enumeration.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MailAddressFactoryBenchmark {
+
+	/**
+	 * The benchmarked factories
+	 */
+	public enum Factory {
+
+		SIMPLE {
+
+			@Override
+			MailAddressFactory create() {
+				return new SimpleMailAddressFactory();
+			}
+		},
+
+		PARSER {
+
+			@Override
+			MailAddressFactory create() {
+				return new ParserMailAddressFactory();
+			}
+		};
+
+		abstract MailAddressFactory create();
+	}
+
+	@Param
+	public Factory factory;
+
+	@Param
+	public MailAddressCorpus corpus;
+
+	private MailAddressFactory mailAddressFactory;
+
+	private String[] mailAddresses;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.mailAddressFactory = this.factory.create();
+		this.mailAddresses = this.corpus.getMailAddresses();
+	}
+
+	@Benchmark
+	public Object create(Cursor cursor) {
+		return create(this.mailAddresses[cursor.next(this.mailAddresses.length)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object createContended(Cursor cursor) {
+		return create(this.mailAddresses[cursor.next(this.mailAddresses.length)]);
+	}
+
+	private Object create(String mailAddress) {
+		try {
+			return this.mailAddressFactory.create(mailAddress);
+		}
+		catch (MailParseException e) {
+			return e.getResultCode();
+		}
+	}
+
+	/**
+	 * The position of a thread in the corpus
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int next = 0;
+
+		int next(int length) {
+			int current = this.next;
+			this.next = current + 1 < length ? current + 1 : 0;
+
+			return current;
+		}
+	}
+}
@@ -24,11 +24,12 @@ import static net.nicl.jaev.Validity.INVALID;
 
 /**
  * The abstract validator service implementation provides basic implementation
- * for various methods
+ * for various methods. The asynchronous validation is performed synchronously
+ * by the calling thread unless it is overridden.
  * 
  * @author Niclas Meier
  */
-public abstract class AbstractValidator implements Validator {
+public abstract class AbstractValidator implements AsyncValidator {
 
 	/**
 	 * Mail address factory instance. Due to the fact, that the creation of the
@@ -59,6 +60,28 @@ public abstract class AbstractValidator implements Validator {
 
 	public abstract Result validate(MailAddress mailAddress);
 
+	@Override
+	public ResultFuture validateAsync(String mailAddressString) {
+		try {
+			return validateAsync(this.mailAddressFactory.create(mailAddressString));
+		}
+		catch (MailParseException mpe) {
+			return ResultFuture.completed(Result.create(mpe.getResultCode(), INVALID, null, mpe.getItems()));
+		}
+	}
+
+	@Override
+	public ResultFuture validateAsync(MailAddress mailAddress) {
+		try {
+			return ResultFuture.completed(validate(mailAddress));
+		}
+		catch (RuntimeException e) {
+			ResultFuture future = new ResultFuture();
+			future.fail(e);
+			return future;
+		}
+	}
+
 	@Override
 	public MailAddressFactory getMailAddressFactory() {
 		return this.mailAddressFactory;
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+/**
+ * <p>
+ * The asynchronous validator returns a <code>ResultFuture</code> instead of blocking the calling thread until the
+ * validation is finished. Callers may register callbacks at the future or wait for the result.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public interface AsyncValidator extends Validator {
+
+	/**
+	 * Starts the validation of the specified e-mail address.
+	 * 
+	 * @param mailAddress
+	 *            The e-mail address to check
+	 * @return The future of the validation result
+	 */
+	ResultFuture validateAsync(String mailAddress);
+
+	/**
+	 * Starts the validation of the specified e-mail address.
+	 * 
+	 * @param mailAddress
+	 *            The e-mail address to check
+	 * @return The future of the validation result
+	 */
+	ResultFuture validateAsync(MailAddress mailAddress);
+
+}
@@ -21,16 +21,18 @@ import net.nicl.jaev.dns.ResolverException;
 import net.nicl.jaev.dns.ResouceRecord;
 import net.nicl.jaev.mail.MailAddressFactory;
 import net.nicl.jaev.mail.MailParseException;
+import net.nicl.jaev.smtp.AccountQueries;
 import net.nicl.jaev.smtp.AccountQuery;
 import net.nicl.jaev.smtp.BasicAccountQuery;
+import net.nicl.jaev.smtp.MxHealthTable;
 import net.nicl.jaev.smtp.NonQuery;
+import net.nicl.jaev.smtp.ProviderPolicyTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
 import static net.nicl.jaev.ValidatorResultCode.*;
@@ -52,6 +54,19 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  * with <code>ADDRESS_VALID</code> at the proper position in the validation process. The maximum reachable validity will
  * be granted to the result.
  * </p>
+ * <p>
+ * If the <code>AccountQuery</code> is a <code>MxListAccountQuery</code> (e.g. a <code>HedgingAccountQuery</code>) the
+ * whole list of MTAs is passed to it, so slow MTAs may be hedged with the next one.
+ * </p>
+ * <p>
+ * With a <code>MxHealthTable</code> the MTAs are not queried in DNS order but ordered by their observed health, and
+ * the outcome of every query is recorded in the table.
+ * </p>
+ * <p>
+ * A <code>ProviderPolicyTable</code> is consulted before the MX records are resolved and again before the first MTA
+ * is queried. If the policy of the domain or of its MTAs skips the validation or restricts it to the DNS, the address
+ * is granted the validity of the policy with <code>ADDRESS_VALID</code> and no connection is opened.
+ * </p>
  * 
  * @author Niclas Meier
  */
@@ -65,6 +80,10 @@ public final class BasicValidator extends AbstractValidator {
 
     private final AccountQuery addressQuery;
 
+    private final MxHealthTable mxHealthTable;
+
+    private final ProviderPolicyTable providerPolicies;
+
     public BasicValidator(MailAddressFactory mailAddressFactory, Resolver resolver, String fromAddress)
             throws MailParseException {
         this(mailAddressFactory, resolver, new BasicAccountQuery(10, SECONDS), fromAddress);
@@ -77,10 +96,22 @@ public final class BasicValidator extends AbstractValidator {
 
     public BasicValidator(MailAddressFactory mailAddressFactory, Resolver resolver, AccountQuery addressQuery,
             MailAddress fromAddress) {
+        this(mailAddressFactory, resolver, addressQuery, fromAddress, null);
+    }
+
+    public BasicValidator(MailAddressFactory mailAddressFactory, Resolver resolver, AccountQuery addressQuery,
+            MailAddress fromAddress, MxHealthTable mxHealthTable) {
+        this(mailAddressFactory, resolver, addressQuery, fromAddress, mxHealthTable, null);
+    }
+
+    public BasicValidator(MailAddressFactory mailAddressFactory, Resolver resolver, AccountQuery addressQuery,
+            MailAddress fromAddress, MxHealthTable mxHealthTable, ProviderPolicyTable providerPolicies) {
         super(mailAddressFactory);
         this.resolver = resolver;
         this.fromAddress = fromAddress;
         this.addressQuery = addressQuery != null ? addressQuery : NonQuery.getInstance();
+        this.mxHealthTable = mxHealthTable;
+        this.providerPolicies = providerPolicies;
     }
 
     /**
@@ -138,11 +169,37 @@ public final class BasicValidator extends AbstractValidator {
 
     @Override
     public Result validate(MailAddress mailAddress) {
+        List<InetAddress> mxRecords = new java.util.ArrayList<InetAddress>();
+        Result result = resolve(mailAddress, mxRecords);
+
+        return result != null ? result : query(mailAddress, mxRecords);
+    }
+
+    /**
+     * Discovers the MTAs of a mail address and checks the provider policies.
+     * 
+     * @param mailAddress
+     *            The mail address to validate
+     * @param mxAddresses
+     *            The list to receive the MTAs to query, in the order they
+     *            should be queried
+     * @return The result if the validation is completed without a query,
+     *         <code>null</code> otherwise
+     */
+    Result resolve(MailAddress mailAddress, List<InetAddress> mxAddresses) {
         List<InetAddress> mxRecords;
         // discover the the list of records to check depending on the domain
         // format
         switch (mailAddress.getDomainFormat()) {
         case NAME:
+            if (providerPolicies != null) {
+                // known providers may be skipped without asking the DNS
+                ProviderPolicyTable.Policy policy = providerPolicies.getPolicy(mailAddress.getDomain());
+                if (policy != null && policy.getAction() == ProviderPolicyTable.Action.SKIP) {
+                    return Result.create(ADDRESS_VALID, policy.getValidity(), mailAddress);
+                }
+            }
+
             // try to use the resolver
             if (resolver == null) {
                 // if we have no resolver, the validation will be aborted
@@ -194,18 +251,36 @@ public final class BasicValidator extends AbstractValidator {
                     + "' valid values are IP or NAME.");
         }
 
-        // get an iterator of iteration over each MX record
-        Iterator<InetAddress> mxAddressIterator = mxRecords.iterator();
-        Result result = null;
-
-        while (mxAddressIterator.hasNext() && (result == null || !ADDRESS_VALID.equals(result.getResultCode()))) {
-            // while we have more MX entries and there is no result or the
-            // result does not meet the requirements
-            InetAddress mxAddress = mxAddressIterator.next();
+        if (providerPolicies != null) {
+            // do not open a connection to providers which are not worth it
+            ProviderPolicyTable.Policy policy = providerPolicies.getPolicy(mailAddress.getDomain(), mxRecords);
+            if (policy != null && policy.getAction() != ProviderPolicyTable.Action.PROBE) {
+                return Result.create(ADDRESS_VALID, policy.getValidity(), mailAddress);
+            }
+        }
 
-            // query the address and fetch a "better" result.
-            result = addressQuery.query(mailAddress, fromAddress, mxAddress);
+        if (mxHealthTable != null) {
+            // try the healthy and fast MTAs first
+            mxRecords = mxHealthTable.order(mailAddress.getDomain(), mxRecords);
         }
+        mxAddresses.addAll(mxRecords);
+
+        return null;
+    }
+
+    /**
+     * Queries the MTAs for a mail address.
+     * 
+     * @param mailAddress
+     *            The mail address to validate
+     * @param mxRecords
+     *            The MTAs to query in order
+     * @return The result
+     */
+    Result query(MailAddress mailAddress, List<InetAddress> mxRecords) {
+        // a MX list query (e.g. hedging) iterates over the MX records itself,
+        // the health table records the outcome of every MTA either way
+        Result result = AccountQueries.query(addressQuery, mailAddress, fromAddress, mxRecords, mxHealthTable);
 
         // finally create a result
         if (result == null) {
@@ -221,6 +296,10 @@ public final class BasicValidator extends AbstractValidator {
         }
     }
 
+    MailAddress getFromAddress() {
+        return fromAddress;
+    }
+
     @Override
     public Resolver getResolver() {
         return resolver;
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.smtp.AccountQueries;
+import net.nicl.jaev.smtp.AccountQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ResultCode.Type.TECHNICAL;
+import static net.nicl.jaev.ValidatorResultCode.GENERAL_VALIDATION_ERROR;
+import static net.nicl.jaev.Validity.SYNTAX;
+
+/**
+ * <p>
+ * The bulk validator validates lists of mail addresses with as few SMTP sessions as possible. Many domains share the
+ * same MTAs (i.e. hosted mail services), so the MX records of all mail addresses are resolved first and the mail
+ * addresses are grouped by the MTA to query across their domains. Each group is queried as a batch, which a
+ * <code>BasicAccountQuery</code> sends with a single session in transactions within the recipient limit of the MTA.
+ * </p>
+ * <p>
+ * The batches are passed through the account query of the validator (or another chain of account queries), so its
+ * proxies (e.g. circuit breaking, throttling, catch all detection and timeouts) apply to them as well. An account query
+ * which is not a <code>BatchAccountQuery</code> is asked address by address.
+ * </p>
+ * <p>
+ * The MTAs are discovered by the <code>BasicValidator</code>, so provider policies and the MX health table apply as
+ * for a single validation. Mail addresses whose group query failed technically are validated one by one with the
+ * remaining MTAs of their domain.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class BulkValidator {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(BulkValidator.class);
+
+	/** The validator to discover the MTAs */
+	private final BasicValidator validator;
+
+	/** The query to perform the batches */
+	private final AccountQuery accountQuery;
+
+	/** The executor to run the sessions */
+	private final Executor executor;
+
+	/** The maximum number of recipients per transaction */
+	private final int recipientLimit;
+
+	/** The maximum number of recipients per session */
+	private final int sessionLimit;
+
+	/** The number of sessions opened */
+	private final AtomicLong sessions = new AtomicLong();
+
+	/** The number of recipients queried in sessions */
+	private final AtomicLong recipients = new AtomicLong();
+
+	/**
+	 * Convenience constructor which performs the batches with the account
+	 * query of the validator, sends up to 100 recipients per transaction (the
+	 * minimum an MTA must accept) and up to 1000 per session.
+	 * 
+	 * @param validator
+	 *            The validator to discover the MTAs
+	 * @param executor
+	 *            The executor to run the sessions
+	 */
+	public BulkValidator(BasicValidator validator, Executor executor) {
+		this(validator, notNull(validator, "validator").getAccountQuery(), executor);
+	}
+
+	/**
+	 * Convenience constructor which sends up to 100 recipients per transaction
+	 * (the minimum an MTA must accept) and up to 1000 per session.
+	 * 
+	 * @param validator
+	 *            The validator to discover the MTAs
+	 * @param accountQuery
+	 *            The query to perform the batches
+	 * @param executor
+	 *            The executor to run the sessions
+	 */
+	public BulkValidator(BasicValidator validator, AccountQuery accountQuery, Executor executor) {
+		this(validator, accountQuery, executor, 100, 1000);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param validator
+	 *            The validator to discover the MTAs
+	 * @param accountQuery
+	 *            The query to perform the batches
+	 * @param executor
+	 *            The executor to run the sessions
+	 * @param recipientLimit
+	 *            The maximum number of recipients per transaction
+	 * @param sessionLimit
+	 *            The maximum number of recipients per session, larger groups
+	 *            are queried with several sessions in parallel
+	 */
+	public BulkValidator(BasicValidator validator, AccountQuery accountQuery, Executor executor, int recipientLimit,
+			int sessionLimit) {
+		if (recipientLimit < 1 || sessionLimit < 1) {
+			throw new IllegalArgumentException("The recipient and session limits must be positive.");
+		}
+		this.validator = notNull(validator, "validator");
+		this.accountQuery = notNull(accountQuery, "accountQuery");
+		this.executor = notNull(executor, "executor");
+		this.recipientLimit = recipientLimit;
+		this.sessionLimit = sessionLimit;
+	}
+
+	/**
+	 * Validates a list of mail addresses.
+	 * 
+	 * @param mailAddresses
+	 *            The mail addresses
+	 * @return The results in the order of the mail addresses
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the sessions,
+	 *             the sessions which did not start yet are skipped
+	 */
+	public List<Result> validate(List<MailAddress> mailAddresses) throws InterruptedException {
+		Result[] results = new Result[notNull(mailAddresses, "mailAddresses").size()];
+		Map<String, List<InetAddress>> domains = new HashMap<String, List<InetAddress>>();
+		Map<String, Result> resolved = new HashMap<String, Result>();
+		Map<InetAddress, List<Integer>> groups = new LinkedHashMap<InetAddress, List<Integer>>();
+		List<List<InetAddress>> mxRecords = new ArrayList<List<InetAddress>>(results.length);
+
+		// resolve the MTAs of each domain once
+		for (int i = 0; i < results.length; ++i) {
+			MailAddress mailAddress = mailAddresses.get(i);
+			String domain = mailAddress.getDomain().toLowerCase();
+			List<InetAddress> mxAddresses = domains.get(domain);
+			Result result = resolved.get(domain);
+
+			if (result != null) {
+				// the domain was already decided without a query
+				results[i] = Result.create(result.getResultCode(), result.getValidity(), mailAddress, result
+						.getObjects());
+			}
+			else if (mxAddresses == null) {
+				mxAddresses = new ArrayList<InetAddress>();
+				results[i] = this.validator.resolve(mailAddress, mxAddresses);
+				if (results[i] == null) {
+					domains.put(domain, mxAddresses);
+				}
+				else {
+					resolved.put(domain, results[i]);
+				}
+			}
+			mxRecords.add(mxAddresses);
+
+			if (results[i] == null) {
+				List<Integer> group = groups.get(mxAddresses.get(0));
+				if (group == null) {
+					group = new ArrayList<Integer>();
+					groups.put(mxAddresses.get(0), group);
+				}
+				group.add(i);
+			}
+		}
+
+		int sessions = 0;
+		for (List<Integer> indices : groups.values()) {
+			sessions += (indices.size() + this.sessionLimit - 1) / this.sessionLimit;
+		}
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Validating " + results.length + " mail addresses of " + domains.size() + " domains with "
+					+ sessions + " sessions to " + groups.size() + " MTAs.");
+		}
+
+		// query each group across its domains
+		CountDownLatch completed = new CountDownLatch(sessions);
+		AtomicBoolean cancelled = new AtomicBoolean();
+		for (Map.Entry<InetAddress, List<Integer>> group : groups.entrySet()) {
+			List<Integer> indices = group.getValue();
+			for (int from = 0; from < indices.size(); from += this.sessionLimit) {
+				Batch batch = new Batch(group.getKey(), indices.subList(from, Math.min(indices.size(), from
+						+ this.sessionLimit)), mailAddresses, mxRecords, results, completed, cancelled);
+				try {
+					this.executor.execute(batch);
+				}
+				catch (RejectedExecutionException e) {
+					// the batch is run by the calling thread instead
+					LOG.debug("The executor rejected the batch for MTA '{}'.", group.getKey());
+					batch.run();
+				}
+			}
+		}
+		try {
+			completed.await();
+		}
+		catch (InterruptedException e) {
+			// the batches which did not start yet are skipped
+			cancelled.set(true);
+			throw e;
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Returns the number of sessions opened for the batches.
+	 * 
+	 * @return The number of sessions
+	 */
+	public long getSessionCount() {
+		return this.sessions.get();
+	}
+
+	/**
+	 * Returns the number of recipients queried in the batches.
+	 * 
+	 * @return The number of recipients
+	 */
+	public long getRecipientCount() {
+		return this.recipients.get();
+	}
+
+	/**
+	 * The mail addresses queried with one session
+	 */
+	private final class Batch implements Runnable {
+
+		private final InetAddress mxAddress;
+
+		private final List<Integer> indices;
+
+		private final List<MailAddress> mailAddresses;
+
+		private final List<List<InetAddress>> mxRecords;
+
+		private final Result[] results;
+
+		private final CountDownLatch completed;
+
+		/** The validation was abandoned by the caller */
+		private final AtomicBoolean cancelled;
+
+		private Batch(InetAddress mxAddress, List<Integer> indices, List<MailAddress> mailAddresses,
+				List<List<InetAddress>> mxRecords, Result[] results, CountDownLatch completed,
+				AtomicBoolean cancelled) {
+			this.mxAddress = mxAddress;
+			this.indices = indices;
+			this.mailAddresses = mailAddresses;
+			this.mxRecords = mxRecords;
+			this.results = results;
+			this.completed = completed;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (this.cancelled.get()) {
+					return;
+				}
+				List<MailAddress> batch = new ArrayList<MailAddress>(this.indices.size());
+				for (int index : this.indices) {
+					batch.add(this.mailAddresses.get(index));
+				}
+
+				List<Result> batchResults = AccountQueries.query(BulkValidator.this.accountQuery, batch,
+						BulkValidator.this.validator.getFromAddress(), this.mxAddress,
+						BulkValidator.this.recipientLimit);
+				BulkValidator.this.sessions.incrementAndGet();
+				BulkValidator.this.recipients.addAndGet(batch.size());
+
+				for (int i = 0; i < batch.size(); ++i) {
+					Result result = batchResults.get(i);
+					List<InetAddress> mxAddresses = this.mxRecords.get(this.indices.get(i));
+
+					if (TECHNICAL.equals(result.getResultCode().getType()) && mxAddresses.size() > 1) {
+						// try the other MTAs of the domain one by one
+						result = BulkValidator.this.validator.query(batch.get(i), mxAddresses.subList(1, mxAddresses
+								.size()));
+					}
+					this.results[this.indices.get(i)] = result;
+				}
+			}
+			catch (RuntimeException e) {
+				LOG.warn("An error occured while validating a batch with MTA '" + this.mxAddress + "'.", e);
+				for (int index : this.indices) {
+					if (this.results[index] == null) {
+						this.results[index] = Result.create(GENERAL_VALIDATION_ERROR, SYNTAX, this.mailAddresses
+								.get(index));
+					}
+				}
+			}
+			finally {
+				this.completed.countDown();
+			}
+		}
+	}
+}
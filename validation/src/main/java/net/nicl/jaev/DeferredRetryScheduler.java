@@ -0,0 +1,430 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_RATE_LIMITED;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_THROTTLED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * <p>
+ * The deferred retry scheduler validates mail addresses in bulk and retries validations which failed temporarily (e.g.
+ * a greylisting MTA replied <code>450</code> to the recipient). Temporarily failed probes are parked in a time ordered
+ * <code>DelayQueue</code> and do not hold a thread while waiting; a single dispatcher thread hands them back to the
+ * executor when they are due.
+ * </p>
+ * <p>
+ * The delay before a retry is computed per domain: every temporary failure of a domain doubles the delay for this
+ * domain (starting with the initial delay, bounded by the maximum delay), any other result resets it.
+ * </p>
+ * <p>
+ * Each submitted mail address is completed exactly once with an <code>Outcome</code>. It contains the final result or,
+ * if the maximum number of retries is exhausted (or the scheduler is shut down), the last temporary result marked as
+ * deferred.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class DeferredRetryScheduler {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(DeferredRetryScheduler.class);
+
+	/** The maximum number of domains with a backoff state */
+	private static final int CAPACITY = 10000;
+
+	/**
+	 * Callback to receive the outcome of a submitted validation
+	 */
+	public interface Callback {
+
+		/**
+		 * Called once the validation of a mail address is completed.
+		 * 
+		 * @param outcome
+		 *            The outcome of the validation
+		 */
+		void completed(Outcome outcome);
+	}
+
+	/**
+	 * The outcome of a (possibly retried) validation
+	 */
+	public static final class Outcome {
+
+		private final Result result;
+
+		private final int retries;
+
+		private final boolean deferred;
+
+		private Outcome(Result result, int retries, boolean deferred) {
+			this.result = result;
+			this.retries = retries;
+			this.deferred = deferred;
+		}
+
+		/**
+		 * The result of the last validation attempt
+		 * 
+		 * @return The result
+		 */
+		public Result getResult() {
+			return this.result;
+		}
+
+		/**
+		 * The number of retries performed after the first attempt
+		 * 
+		 * @return The number of retries
+		 */
+		public int getRetries() {
+			return this.retries;
+		}
+
+		/**
+		 * Checks if the validation is still failing temporarily, i.e. the
+		 * result is not final.
+		 * 
+		 * @return <code>true</code> if the result is not final
+		 */
+		public boolean isDeferred() {
+			return this.deferred;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + (this.deferred ? "deferred" : "final") + " after " + this.retries + " retries: " + this.result
+					+ "]";
+		}
+	}
+
+	/** The validator to perform the validations */
+	private final Validator validator;
+
+	/** The executor to run the validations */
+	private final Executor executor;
+
+	/** The result codes which indicate a temporary failure */
+	private final Set<ResultCode> temporaryResultCodes;
+
+	/** The maximum number of retries per mail address */
+	private final int maxRetries;
+
+	/** The initial retry delay in milliseconds */
+	private final long initialDelay;
+
+	/** The maximum retry delay in milliseconds */
+	private final long maxDelay;
+
+	/** The parked probes */
+	private final DelayQueue<Probe> deferred = new DelayQueue<Probe>();
+
+	/** The backoff state per domain */
+	private final ConcurrentMap<String, Backoff> backoffs = new LruMap<String, Backoff>(CAPACITY);
+
+	/** The dispatcher thread, started with the first submission */
+	private Thread dispatcher = null;
+
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Convenience constructor which retries <code>MTA_DEFERS_RECIPIENT</code>,
+	 * <code>MTA_RATE_LIMITED</code> and <code>MTA_THROTTLED</code> results up
+	 * to five times, starting with a delay of one minute up to a
+	 * delay of thirty minutes.
+	 * 
+	 * @param validator
+	 *            The validator to perform the validations
+	 * @param executor
+	 *            The executor to run the validations
+	 */
+	public DeferredRetryScheduler(Validator validator, Executor executor) {
+		this(validator, executor, new HashSet<ResultCode>(Arrays.<ResultCode> asList(
+				MTA_DEFERS_RECIPIENT, MTA_RATE_LIMITED, MTA_THROTTLED)), 5, 1, 30, MINUTES);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param validator
+	 *            The validator to perform the validations
+	 * @param executor
+	 *            The executor to run the validations
+	 * @param temporaryResultCodes
+	 *            The result codes which indicate a temporary failure
+	 * @param maxRetries
+	 *            The maximum number of retries per mail address
+	 * @param initialDelay
+	 *            The delay after the first temporary failure of a domain
+	 * @param maxDelay
+	 *            The maximum delay
+	 * @param delayUnit
+	 *            The time unit of the delays
+	 */
+	public DeferredRetryScheduler(Validator validator, Executor executor, Set<ResultCode> temporaryResultCodes,
+			int maxRetries, long initialDelay, long maxDelay, TimeUnit delayUnit) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("The maximum number of retries must not be negative.");
+		}
+		this.validator = notNull(validator, "validator");
+		this.executor = notNull(executor, "executor");
+		this.temporaryResultCodes = new HashSet<ResultCode>(notNull(temporaryResultCodes, "temporaryResultCodes"));
+		this.maxRetries = maxRetries;
+		this.initialDelay = notNull(delayUnit, "delayUnit").toMillis(initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, delayUnit.toMillis(maxDelay));
+	}
+
+	/**
+	 * Submits a mail address for validation. The callback is called from an
+	 * executor thread once the validation is completed.
+	 * 
+	 * @param mailAddress
+	 *            The mail address to validate
+	 * @param callback
+	 *            The callback to receive the outcome
+	 */
+	public void submit(MailAddress mailAddress, Callback callback) {
+		if (this.shutdown) {
+			throw new IllegalStateException("The deferred retry scheduler is shut down.");
+		}
+		startDispatcher();
+
+		this.executor.execute(new Probe(notNull(mailAddress, "mailAddress"), notNull(callback, "callback")));
+	}
+
+	/**
+	 * Returns the number of probes currently waiting for a retry.
+	 * 
+	 * @return The number of deferred probes
+	 */
+	public int getDeferredCount() {
+		return this.deferred.size();
+	}
+
+	/**
+	 * Returns the delay which will be applied to the next temporary failure of
+	 * a domain.
+	 * 
+	 * @param domain
+	 *            The domain
+	 * @param unit
+	 *            The time unit of the returned delay
+	 * @return The delay
+	 */
+	public long getDelay(String domain, TimeUnit unit) {
+		Backoff backoff = this.backoffs.get(notNull(domain, "domain").toLowerCase());
+
+		return unit.convert(backoff == null ? this.initialDelay : backoff.getDelay(), MILLISECONDS);
+	}
+
+	/**
+	 * Stops the dispatcher. All parked probes are completed as deferred
+	 * without a further retry.
+	 */
+	public void shutdown() {
+		this.shutdown = true;
+
+		synchronized (this) {
+			if (this.dispatcher != null) {
+				this.dispatcher.interrupt();
+			}
+		}
+
+		// drainTo(..) would only remove the expired probes
+		for (Probe probe : this.deferred.toArray(new Probe[0])) {
+			if (this.deferred.remove(probe)) {
+				probe.complete(true);
+			}
+		}
+	}
+
+	private synchronized void startDispatcher() {
+		if (this.dispatcher != null) {
+			return;
+		}
+
+		this.dispatcher = new Thread("jaev-deferred-retry") {
+
+			@Override
+			public void run() {
+				try {
+					while (!DeferredRetryScheduler.this.shutdown) {
+						// blocks until the next probe is due
+						Probe probe = DeferredRetryScheduler.this.deferred.take();
+						try {
+							DeferredRetryScheduler.this.executor.execute(probe);
+						}
+						catch (RuntimeException e) {
+							// i.e. a RejectedExecutionException, the dispatcher keeps running
+							LOG.warn("Unable to retry '" + probe.mailAddress + "'.", e);
+							probe.complete(true);
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					LOG.debug("The deferred retry dispatcher was interrupted.");
+				}
+			}
+		};
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	private Backoff getBackoff(String domain) {
+		String key = domain.toLowerCase();
+		Backoff backoff = this.backoffs.get(key);
+		if (backoff == null) {
+			Backoff newBackoff = new Backoff();
+			backoff = this.backoffs.putIfAbsent(key, newBackoff);
+			if (backoff == null) {
+				backoff = newBackoff;
+			}
+		}
+
+		return backoff;
+	}
+
+	/**
+	 * A mail address to validate, parked in the delay queue between retries
+	 */
+	private final class Probe implements Runnable, Delayed {
+
+		private final MailAddress mailAddress;
+
+		private final Callback callback;
+
+		private int retries = 0;
+
+		private long dueTime = 0;
+
+		private Result result = null;
+
+		private Probe(MailAddress mailAddress, Callback callback) {
+			this.mailAddress = mailAddress;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.result = DeferredRetryScheduler.this.validator.validate(this.mailAddress);
+			}
+			catch (RuntimeException e) {
+				LOG.debug("An error occured while validating '" + this.mailAddress + "'.", e);
+				this.result = Result.create(ValidatorResultCode.GENERAL_VALIDATION_ERROR, Validity.SYNTAX,
+						this.mailAddress);
+			}
+
+			Backoff backoff = getBackoff(this.mailAddress.getDomain());
+
+			if (!DeferredRetryScheduler.this.temporaryResultCodes.contains(this.result.getResultCode())) {
+				backoff.reset();
+				complete(false);
+			}
+			else if (this.retries >= DeferredRetryScheduler.this.maxRetries || DeferredRetryScheduler.this.shutdown) {
+				complete(true);
+			}
+			else {
+				long delay = backoff.next();
+				++this.retries;
+				this.dueTime = System.currentTimeMillis() + delay;
+
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Deferring '" + this.mailAddress + "' for " + delay + " ms (retry " + this.retries
+							+ ").");
+				}
+				DeferredRetryScheduler.this.deferred.put(this);
+
+				// shutdown() may have drained the queue before the put, whoever
+				// removes the probe completes it
+				if (DeferredRetryScheduler.this.shutdown && DeferredRetryScheduler.this.deferred.remove(this)) {
+					complete(true);
+				}
+			}
+		}
+
+		private void complete(boolean deferred) {
+			try {
+				this.callback.completed(new Outcome(this.result, this.retries, deferred));
+			}
+			catch (RuntimeException e) {
+				LOG.warn("The callback for '" + this.mailAddress + "' failed.", e);
+			}
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.dueTime - System.currentTimeMillis(), MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long difference = this.dueTime - ((Probe) other).dueTime;
+
+			return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+		}
+	}
+
+	/**
+	 * The exponential backoff of a single domain
+	 */
+	private final class Backoff {
+
+		private int failures = 0;
+
+		/**
+		 * Records a temporary failure.
+		 * 
+		 * @return The delay before the next retry
+		 */
+		private synchronized long next() {
+			long delay = getDelay();
+			++this.failures;
+
+			return delay;
+		}
+
+		private synchronized long getDelay() {
+			long delay = DeferredRetryScheduler.this.initialDelay;
+			for (int i = 0; i < this.failures && delay < DeferredRetryScheduler.this.maxDelay; ++i) {
+				delay *= 2;
+			}
+
+			return Math.min(delay, DeferredRetryScheduler.this.maxDelay);
+		}
+
+		private synchronized void reset() {
+			this.failures = 0;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * <p>
+ * The hashed wheel timer expires a large number of deadlines with constant costs. A deadline is registered by
+ * appending it to a lock-free queue; a single worker thread advances a wheel of buckets once per tick, moves the new
+ * deadlines into the bucket of their tick and runs the tasks of the deadlines in the current bucket. Deadlines more
+ * than one revolution ahead wait in their bucket for the remaining rounds. A cancelled deadline stays in its bucket
+ * until the wheel passes it.
+ * </p>
+ * <p>
+ * The precision of the timer is the tick duration, so it suits timeouts (which are rarely reached and need no exact
+ * timing), not scheduling. The tasks run on the worker thread and should therefore be short, e.g. complete a
+ * <code>ResultFuture</code> or interrupt a thread.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class HashedWheelTimer {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	/** The states of the timer and of a timeout */
+	private static final int INIT = 0, STARTED = 1, STOPPED = 2;
+
+	/** The maximum number of new timeouts moved into the wheel per tick */
+	private static final int MAX_TRANSFERS = 100000;
+
+	/** The duration of a tick in nanoseconds */
+	private final long tickDuration;
+
+	/** The buckets of the wheel, only accessed by the worker */
+	private final Timeout[] wheel;
+
+	/** Mask to map a tick to a bucket */
+	private final int mask;
+
+	/** The timeouts not yet moved into the wheel */
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+	private final AtomicInteger state = new AtomicInteger(INIT);
+
+	private final Thread worker;
+
+	/** The start of the first tick as returned by <code>System.nanoTime()</code> */
+	private volatile long startTime;
+
+	/**
+	 * Convenience constructor with a tick of ten milliseconds and 512
+	 * buckets.
+	 * 
+	 * @param name
+	 *            The name of the worker thread
+	 */
+	public HashedWheelTimer(String name) {
+		this(name, 10, TimeUnit.MILLISECONDS, 512);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param name
+	 *            The name of the (daemon) worker thread
+	 * @param tickDuration
+	 *            The duration of a tick
+	 * @param unit
+	 *            The time unit of the tick duration
+	 * @param buckets
+	 *            The number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int buckets) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("The tick duration must be positive.");
+		}
+		if (buckets < 1 || buckets > 1 << 30) {
+			throw new IllegalArgumentException("The number of buckets must be between 1 and 2^30.");
+		}
+		int size = Integer.highestOneBit(buckets);
+		size = size < buckets ? size << 1 : size;
+
+		this.tickDuration = notNull(unit, "unit").toNanos(tickDuration);
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.worker = new Thread(new Worker(), notBlank(name, "name"));
+		this.worker.setDaemon(true);
+	}
+
+	/**
+	 * Schedules a task. The worker thread is started with the first task.
+	 * 
+	 * @param task
+	 *            The task to run on expiry
+	 * @param delay
+	 *            The delay of the expiry
+	 * @param unit
+	 *            The time unit of the delay
+	 * @return The handle to cancel the timeout
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		notNull(task, "task");
+		start();
+
+		Timeout timeout = new Timeout(task, System.nanoTime() + notNull(unit, "unit").toNanos(delay) - this.startTime);
+		this.pending.offer(timeout);
+
+		return timeout;
+	}
+
+	private void start() {
+		if (this.state.get() == INIT) {
+			synchronized (this) {
+				if (this.state.get() == INIT) {
+					this.startTime = System.nanoTime();
+					this.state.set(STARTED);
+					this.worker.start();
+				}
+			}
+		}
+		if (this.state.get() == STOPPED) {
+			throw new IllegalStateException("The timer is stopped.");
+		}
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts will not expire.
+	 */
+	public void stop() {
+		synchronized (this) {
+			if (this.state.getAndSet(STOPPED) != STARTED) {
+				return;
+			}
+		}
+		this.worker.interrupt();
+	}
+
+	/**
+	 * The worker advancing the wheel
+	 */
+	private final class Worker implements Runnable {
+
+		/** The current tick */
+		private long tick = 0;
+
+		@Override
+		public void run() {
+			while (HashedWheelTimer.this.state.get() == STARTED) {
+				long deadline = awaitTick();
+				if (deadline < 0) {
+					break;
+				}
+				transfer();
+				expire((int) this.tick & HashedWheelTimer.this.mask, deadline);
+				++this.tick;
+			}
+		}
+
+		/**
+		 * Sleeps until the end of the current tick.
+		 * 
+		 * @return The end of the tick relative to the start time or
+		 *         <code>-1</code> if the timer is stopped
+		 */
+		private long awaitTick() {
+			long deadline = HashedWheelTimer.this.tickDuration * (this.tick + 1);
+			while (true) {
+				long current = System.nanoTime() - HashedWheelTimer.this.startTime;
+				long sleep = (deadline - current + 999999) / 1000000;
+				if (sleep <= 0) {
+					return current;
+				}
+				try {
+					Thread.sleep(sleep);
+				}
+				catch (InterruptedException e) {
+					if (HashedWheelTimer.this.state.get() == STOPPED) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Moves the new timeouts into their buckets.
+		 */
+		private void transfer() {
+			for (int i = 0; i < MAX_TRANSFERS; ++i) {
+				Timeout timeout = HashedWheelTimer.this.pending.poll();
+				if (timeout == null) {
+					return;
+				}
+				if (timeout.state.get() != INIT) {
+					continue;
+				}
+				long ticks = timeout.deadline / HashedWheelTimer.this.tickDuration;
+				timeout.rounds = (ticks - this.tick) / HashedWheelTimer.this.wheel.length;
+
+				// expire overdue timeouts with the current tick
+				int bucket = (int) Math.max(ticks, this.tick) & HashedWheelTimer.this.mask;
+				timeout.next = HashedWheelTimer.this.wheel[bucket];
+				HashedWheelTimer.this.wheel[bucket] = timeout;
+			}
+		}
+
+		/**
+		 * Expires the due timeouts of a bucket and drops the cancelled ones.
+		 */
+		private void expire(int bucket, long deadline) {
+			Timeout remaining = null;
+			Timeout timeout = HashedWheelTimer.this.wheel[bucket];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.state.get() == INIT) {
+					if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+						timeout.expire();
+						timeout.next = null;
+					}
+					else {
+						--timeout.rounds;
+						timeout.next = remaining;
+						remaining = timeout;
+					}
+				}
+				else {
+					timeout.next = null;
+				}
+				timeout = next;
+			}
+			HashedWheelTimer.this.wheel[bucket] = remaining;
+		}
+	}
+
+	/**
+	 * The handle of a scheduled task
+	 */
+	public static final class Timeout {
+
+		private final Runnable task;
+
+		/** The deadline relative to the start time of the timer */
+		private final long deadline;
+
+		/** <code>INIT</code>, <code>STARTED</code> if expired, <code>STOPPED</code> if cancelled */
+		private final AtomicInteger state = new AtomicInteger(INIT);
+
+		/** The remaining revolutions of the wheel, only accessed by the worker */
+		private long rounds;
+
+		/** The next timeout of the bucket, only accessed by the worker */
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		private void expire() {
+			if (this.state.compareAndSet(INIT, STARTED)) {
+				try {
+					this.task.run();
+				}
+				catch (RuntimeException e) {
+					LOG.warn("A timer task failed.", e);
+				}
+			}
+		}
+
+		/**
+		 * Cancels the timeout.
+		 * 
+		 * @return <code>true</code> if the timeout was cancelled by this call,
+		 *         <code>false</code> if it already expired or was cancelled
+		 */
+		public boolean cancel() {
+			return this.state.compareAndSet(INIT, STOPPED);
+		}
+
+		/**
+		 * Checks if the task of the timeout was run.
+		 * 
+		 * @return <code>true</code> if the timeout expired
+		 */
+		public boolean isExpired() {
+			return this.state.get() == STARTED;
+		}
+
+		/**
+		 * Checks if the timeout was cancelled.
+		 * 
+		 * @return <code>true</code> if the timeout was cancelled
+		 */
+		public boolean isCancelled() {
+			return this.state.get() == STOPPED;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + NANOSECONDS.toMillis(this.deadline) + " ms, "
+					+ (isExpired() ? "expired" : isCancelled() ? "cancelled" : "pending") + "]";
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * <p>
+ * The latency tracker learns timeouts from observed latencies. It keeps a streaming percentile estimate per key (e.g.
+ * a domain or an MX host) and derives the timeout for the next operation as the percentile plus a relative margin,
+ * bounded by a minimum and a maximum timeout. Fast domains fail fast, slow but legitimate ones get room.
+ * </p>
+ * <p>
+ * The estimate is a histogram with logarithmic buckets (four per power of two, roughly 19% resolution) from one
+ * millisecond up to about one minute. The counts of a key are halved every 1000 samples, so old samples fade out and
+ * the estimate follows changes of the latency. Until a key has enough samples the maximum timeout is used.
+ * </p>
+ * <p>
+ * Timeouts should be recorded with the timeout as latency: as the margin is added to the percentile, the timeout of a
+ * key that keeps timing out grows up to the maximum.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class LatencyTracker {
+
+	/** The number of histogram buckets */
+	private static final int BUCKETS = 64;
+
+	/** The upper bounds of the buckets in milliseconds */
+	private static final long[] BOUNDS = new long[BUCKETS];
+
+	/** The number of samples which causes the histogram to decay */
+	private static final int DECAY_THRESHOLD = 1000;
+
+	/** The maximum number of tracked keys, the least recently used are forgotten */
+	private static final int CAPACITY = 10000;
+
+	static {
+		for (int i = 0; i < BUCKETS; ++i) {
+			BOUNDS[i] = (long) Math.ceil(Math.pow(2, i / 4.0));
+		}
+	}
+
+	/** The percentile to estimate */
+	private final double percentile;
+
+	/** The relative margin added to the percentile */
+	private final double margin;
+
+	/** The minimum timeout in milliseconds */
+	private final long minTimeout;
+
+	/** The maximum timeout in milliseconds */
+	private final long maxTimeout;
+
+	/** The number of samples of a key required for an estimate */
+	private final int minSamples;
+
+	/** The histograms per key */
+	private final ConcurrentMap<String, Histogram> histograms = new LruMap<String, Histogram>(CAPACITY);
+
+	/**
+	 * Convenience constructor which uses the 99th percentile plus 50% with at
+	 * least 20 samples.
+	 * 
+	 * @param minTimeout
+	 *            The minimum timeout
+	 * @param maxTimeout
+	 *            The maximum timeout, used for unknown keys
+	 * @param timeoutUnit
+	 *            The time unit of the timeouts
+	 */
+	public LatencyTracker(long minTimeout, long maxTimeout, TimeUnit timeoutUnit) {
+		this(0.99, 0.5, 20, minTimeout, maxTimeout, timeoutUnit);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param percentile
+	 *            The percentile to estimate (e.g. <code>0.99</code>)
+	 * @param margin
+	 *            The relative margin added to the percentile (e.g.
+	 *            <code>0.5</code> for 50%)
+	 * @param minSamples
+	 *            The number of samples of a key required for an estimate
+	 * @param minTimeout
+	 *            The minimum timeout
+	 * @param maxTimeout
+	 *            The maximum timeout, used for unknown keys
+	 * @param timeoutUnit
+	 *            The time unit of the timeouts
+	 */
+	public LatencyTracker(double percentile, double margin, int minSamples, long minTimeout, long maxTimeout,
+			TimeUnit timeoutUnit) {
+		if (percentile <= 0 || percentile > 1) {
+			throw new IllegalArgumentException("The percentile must be within (0, 1].");
+		}
+		if (margin < 0) {
+			throw new IllegalArgumentException("The margin must not be negative.");
+		}
+		this.percentile = percentile;
+		this.margin = margin;
+		this.minSamples = Math.max(1, minSamples);
+		this.minTimeout = notNull(timeoutUnit, "timeoutUnit").toMillis(minTimeout);
+		this.maxTimeout = timeoutUnit.toMillis(maxTimeout);
+		if (this.minTimeout > this.maxTimeout) {
+			throw new IllegalArgumentException("The minimum timeout exceeds the maximum timeout.");
+		}
+	}
+
+	/**
+	 * Records an observed latency.
+	 * 
+	 * @param key
+	 *            The key (i.e. domain or MX host)
+	 * @param latency
+	 *            The latency
+	 * @param unit
+	 *            The time unit of the latency
+	 */
+	public void record(String key, long latency, TimeUnit unit) {
+		String normalised = notBlank(key, "key").toLowerCase();
+		Histogram histogram = this.histograms.get(normalised);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = this.histograms.putIfAbsent(normalised, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(notNull(unit, "unit").toMillis(latency));
+	}
+
+	/**
+	 * Returns the timeout for the next operation. The estimate of the first
+	 * key with enough samples is used, e.g. <code>getTimeout(unit, mxHost,
+	 * domain)</code> prefers the MX host and falls back to the domain.
+	 * 
+	 * @param unit
+	 *            The time unit of the returned timeout
+	 * @param keys
+	 *            The keys in order of preference
+	 * @return The timeout, the maximum timeout if no key has enough samples
+	 */
+	public long getTimeout(TimeUnit unit, String... keys) {
+		for (String key : keys) {
+			long estimate = estimate(key);
+			if (estimate >= 0) {
+				long timeout = (long) Math.ceil(estimate * (1 + this.margin));
+
+				return unit.convert(Math.max(this.minTimeout, Math.min(this.maxTimeout, timeout)), MILLISECONDS);
+			}
+		}
+
+		return unit.convert(this.maxTimeout, MILLISECONDS);
+	}
+
+	/**
+	 * Returns the percentile estimate of a key.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param unit
+	 *            The time unit of the returned estimate
+	 * @return The estimate or <code>-1</code> if the key has not enough samples
+	 */
+	public long getPercentile(String key, TimeUnit unit) {
+		long estimate = estimate(key);
+
+		return estimate < 0 ? -1 : unit.convert(estimate, MILLISECONDS);
+	}
+
+	private long estimate(String key) {
+		Histogram histogram = key == null ? null : this.histograms.get(key.toLowerCase());
+
+		return histogram == null ? -1 : histogram.percentile(this.percentile, this.minSamples);
+	}
+
+	/**
+	 * A decaying histogram with logarithmic buckets
+	 */
+	private static final class Histogram {
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+		private final AtomicLong samples = new AtomicLong();
+
+		private void record(long latency) {
+			int bucket = 0;
+			while (bucket < BUCKETS - 1 && BOUNDS[bucket] < latency) {
+				++bucket;
+			}
+			this.counts.incrementAndGet(bucket);
+			if (this.samples.incrementAndGet() % DECAY_THRESHOLD == 0) {
+				decay();
+			}
+		}
+
+		/**
+		 * Halves the counts, so new samples outweigh the old ones.
+		 */
+		private void decay() {
+			for (int i = 0; i < BUCKETS; ++i) {
+				long count = this.counts.get(i);
+				this.counts.addAndGet(i, -(count - count / 2));
+			}
+		}
+
+		private long percentile(double percentile, int minSamples) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				snapshot[i] = this.counts.get(i);
+				total += snapshot[i];
+			}
+			if (total < minSamples || this.samples.get() < minSamples) {
+				return -1;
+			}
+
+			long rank = (long) Math.ceil(total * percentile);
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				cumulative += snapshot[i];
+				if (cumulative >= rank) {
+					return BOUNDS[i];
+				}
+			}
+
+			return BOUNDS[BUCKETS - 1];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[p" + Math.round(this.percentile * 100) + " + " + Math.round(this.margin * 100) + "%, "
+				+ this.minTimeout + " - " + this.maxTimeout + " ms, " + this.histograms.size() + " keys]";
+	}
+
+}
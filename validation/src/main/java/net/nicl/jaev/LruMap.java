@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.nicl.jaev;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * The LRU map is a thread safe map with a capacity: once it is full, adding a
+ * key evicts the least recently used one. The tables of learned per MTA,
+ * domain or host state use it, so a stream of new keys forgets the coldest
+ * entries instead of everything learned so far.
+ * </p>
+ * <p>
+ * The map is backed by an access ordered <code>LinkedHashMap</code> and every
+ * operation is synchronized, the atomic operations of
+ * <code>ConcurrentMap</code> included. The entry, key and value views are
+ * unmodifiable snapshots, so iterating them neither blocks the map nor
+ * changes the access order.
+ * </p>
+ * 
+ * @param <K>
+ *            The type of the keys
+ * @param <V>
+ *            The type of the values
+ * @author Niclas Meier
+ */
+public class LruMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+	/** The entries in access order, the least recently used first */
+	private final Map<K, V> entries;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param capacity
+	 *            The maximum number of entries
+	 */
+	public LruMap(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive.");
+		}
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = -2948365067618420342L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	@Override
+	public synchronized V get(Object key) {
+		return this.entries.get(key);
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return this.entries.containsKey(key);
+	}
+
+	@Override
+	public synchronized V put(K key, V value) {
+		return this.entries.put(key, value);
+	}
+
+	@Override
+	public synchronized V putIfAbsent(K key, V value) {
+		V previous = this.entries.get(key);
+
+		return previous != null ? previous : this.entries.put(key, value);
+	}
+
+	@Override
+	public synchronized V remove(Object key) {
+		return this.entries.remove(key);
+	}
+
+	@Override
+	public synchronized boolean remove(Object key, Object value) {
+		V current = this.entries.get(key);
+		if (current != null && current.equals(value)) {
+			this.entries.remove(key);
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public synchronized boolean replace(K key, V oldValue, V newValue) {
+		V current = this.entries.get(key);
+		if (current != null && current.equals(oldValue)) {
+			this.entries.put(key, newValue);
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public synchronized V replace(K key, V value) {
+		return this.entries.containsKey(key) ? this.entries.put(key, value) : null;
+	}
+
+	@Override
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	@Override
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+
+	@Override
+	public synchronized Set<Map.Entry<K, V>> entrySet() {
+		return Collections.unmodifiableMap(new LinkedHashMap<K, V>(this.entries)).entrySet();
+	}
+}
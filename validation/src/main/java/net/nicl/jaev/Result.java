@@ -44,6 +44,9 @@ public final class Result {
 	/** The mail address */
 	private final MailAddress mailAddress;
 
+	/** The transcript of the MTA conversation, may be <code>null</code> */
+	private final String transcript;
+
 	/** Message to provide further informations */
 	private transient String message;
 
@@ -88,12 +91,41 @@ public final class Result {
 	 *            Objects related to the result
 	 */
 	private Result(ResultCode resultCode, Validity validity, MailAddress mailAddress, Object... objects) {
+		this(resultCode, validity, mailAddress, null, objects);
+	}
+
+	private Result(ResultCode resultCode, Validity validity, MailAddress mailAddress, String transcript,
+			Object[] objects) {
 		this.code = notNull(resultCode, "resultCode");
 		this.validity = notNull(validity, "validity");
 		this.mailAddress = mailAddress;
+		this.transcript = transcript;
 		this.objects = objects;
 	}
 
+	/**
+	 * Creates a copy of this result with an attached transcript of the MTA
+	 * conversation.
+	 * 
+	 * @param transcript
+	 *            The transcript
+	 * @return A new result with the transcript
+	 */
+	public Result withTranscript(String transcript) {
+		return new Result(this.code, this.validity, this.mailAddress, transcript, this.objects);
+	}
+
+	/**
+	 * The transcript of the MTA conversation which led to this result. It is
+	 * only attached to failing results on request (see
+	 * <code>TranscriptRecorder</code>).
+	 * 
+	 * @return The transcript or <code>null</code> if no transcript is attached
+	 */
+	public String getTranscript() {
+		return this.transcript;
+	}
+
 	/**
 	 * Returns a descriptive message for this result
 	 * 
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * The result future is the handle of an asynchronous validation or account query. It is completed exactly once, either
+ * with a <code>Result</code>, with a failure or by cancellation. Registered callbacks are notified on completion by the
+ * completing thread (or immediately by the registering thread, if the future is already completed), so a caller never
+ * has to block a thread on the result.
+ * </p>
+ * <p>
+ * A future may be bound to the task which computes the result (cancelling the future interrupts the task) and may
+ * expire: if it is not completed within a timeout it is completed with a fallback result and the task is cancelled.
+ * The expiries of all futures share a <code>HashedWheelTimer</code>, so registering a timeout is cheap and no thread
+ * waits for it. The future is completed on the thread of the timer, but the callbacks of an expiry are notified by the
+ * callback executor passed to <code>expire(..)</code>, so a slow callback does not delay the other expiries. Without
+ * an executor (or if it rejects them) the callbacks run on the timer thread and have to return quickly.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class ResultFuture implements Future<Result> {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(ResultFuture.class);
+
+	/** The timer for expiring futures */
+	private static final HashedWheelTimer TIMER = new HashedWheelTimer("jaev-result-timeout");
+
+	/**
+	 * Callback to receive the completion of a future
+	 */
+	public interface Callback {
+
+		/**
+		 * Called once the future is completed with a result.
+		 * 
+		 * @param result
+		 *            The result
+		 */
+		void completed(Result result);
+
+		/**
+		 * Called once the future failed or was cancelled.
+		 * 
+		 * @param cause
+		 *            The cause of the failure, a
+		 *            <code>CancellationException</code> if the future was
+		 *            cancelled
+		 */
+		void failed(Throwable cause);
+	}
+
+	/** Signals the completion */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/** The callbacks, <code>null</code> once the future is completed */
+	private List<Callback> callbacks = new ArrayList<Callback>(2);
+
+	private volatile Result result;
+
+	private volatile Throwable failure;
+
+	private volatile boolean cancelled = false;
+
+	/** The task computing the result */
+	private volatile Future<?> task;
+
+	/** The pending expiry */
+	private volatile HashedWheelTimer.Timeout expiry;
+
+	/**
+	 * Creates a future which is already completed with a result.
+	 * 
+	 * @param result
+	 *            The result
+	 * @return A completed future
+	 */
+	public static ResultFuture completed(Result result) {
+		ResultFuture future = new ResultFuture();
+		future.complete(result);
+
+		return future;
+	}
+
+	/**
+	 * Binds the task which computes the result. The task is cancelled if the
+	 * future is cancelled or expires.
+	 * 
+	 * @param task
+	 *            The task
+	 */
+	public void setTask(Future<?> task) {
+		this.task = notNull(task, "task");
+		if (isDone()) {
+			task.cancel(true);
+		}
+	}
+
+	/**
+	 * Completes the future with a fallback result, if it is not completed
+	 * within a timeout.
+	 * 
+	 * @param timeout
+	 *            The timeout
+	 * @param timeoutUnit
+	 *            The time unit of the timeout
+	 * @param fallback
+	 *            The result to complete the future with
+	 */
+	public void expire(long timeout, TimeUnit timeoutUnit, Result fallback) {
+		expire(timeout, timeoutUnit, fallback, null);
+	}
+
+	/**
+	 * Completes the future with a fallback result, if it is not completed
+	 * within a timeout. The callbacks are notified by the callback executor
+	 * instead of the thread of the timer.
+	 * 
+	 * @param timeout
+	 *            The timeout
+	 * @param timeoutUnit
+	 *            The time unit of the timeout
+	 * @param fallback
+	 *            The result to complete the future with
+	 * @param callbackExecutor
+	 *            The executor of the callbacks, may be <code>null</code> to
+	 *            notify them on the thread of the timer
+	 */
+	public void expire(long timeout, TimeUnit timeoutUnit, final Result fallback, final Executor callbackExecutor) {
+		notNull(fallback, "fallback");
+		this.expiry = TIMER.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				List<Callback> callbacks = finish(fallback, null, false);
+				if (callbacks != null) {
+					LOG.debug("The validation of '{}' expired.", fallback.getMailAddress());
+					Future<?> task = ResultFuture.this.task;
+					if (task != null) {
+						task.cancel(true);
+					}
+					dispatch(callbacks, fallback, callbackExecutor);
+				}
+			}
+		}, timeout, notNull(timeoutUnit, "timeoutUnit"));
+		if (isDone()) {
+			this.expiry.cancel();
+		}
+	}
+
+	/**
+	 * Completes the future with a result.
+	 * 
+	 * @param result
+	 *            The result
+	 * @return <code>true</code> if the future was completed by this call
+	 */
+	public boolean complete(Result result) {
+		notNull(result, "result");
+		List<Callback> callbacks = finish(result, null, false);
+		if (callbacks == null) {
+			return false;
+		}
+		for (Callback callback : callbacks) {
+			notify(callback, result);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Completes the future with a failure.
+	 * 
+	 * @param cause
+	 *            The cause of the failure
+	 * @return <code>true</code> if the future was completed by this call
+	 */
+	public boolean fail(Throwable cause) {
+		List<Callback> callbacks = finish(null, notNull(cause, "cause"), false);
+		if (callbacks == null) {
+			return false;
+		}
+		for (Callback callback : callbacks) {
+			notify(callback, cause);
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		CancellationException cause = new CancellationException("The future was cancelled.");
+		List<Callback> callbacks = finish(null, cause, true);
+		if (callbacks == null) {
+			return false;
+		}
+		Future<?> task = this.task;
+		if (task != null) {
+			task.cancel(mayInterruptIfRunning);
+		}
+		for (Callback callback : callbacks) {
+			notify(callback, cause);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets the outcome of the future.
+	 * 
+	 * @return The callbacks to notify or <code>null</code> if the future was
+	 *         already completed
+	 */
+	private List<Callback> finish(Result result, Throwable failure, boolean cancelled) {
+		List<Callback> callbacks;
+		synchronized (this) {
+			if (this.callbacks == null) {
+				return null;
+			}
+			callbacks = this.callbacks;
+			this.callbacks = null;
+			this.result = result;
+			this.failure = failure;
+			this.cancelled = cancelled;
+		}
+		this.done.countDown();
+
+		HashedWheelTimer.Timeout expiry = this.expiry;
+		if (expiry != null) {
+			expiry.cancel();
+		}
+
+		return callbacks;
+	}
+
+	/**
+	 * Registers a callback. If the future is already completed the callback
+	 * is notified immediately.
+	 * 
+	 * @param callback
+	 *            The callback
+	 */
+	public void addCallback(Callback callback) {
+		notNull(callback, "callback");
+		synchronized (this) {
+			if (this.callbacks != null) {
+				this.callbacks.add(callback);
+				return;
+			}
+		}
+
+		if (this.result != null) {
+			notify(callback, this.result);
+		}
+		else {
+			notify(callback, this.failure);
+		}
+	}
+
+	/**
+	 * Notifies the callbacks of an expiry by the callback executor.
+	 */
+	private static void dispatch(final List<Callback> callbacks, final Result result, Executor callbackExecutor) {
+		if (callbackExecutor != null && !callbacks.isEmpty()) {
+			try {
+				callbackExecutor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						for (Callback callback : callbacks) {
+							ResultFuture.notify(callback, result);
+						}
+					}
+				});
+				return;
+			}
+			catch (RejectedExecutionException e) {
+				LOG.debug("The callback executor rejected the callbacks of '{}'.", result.getMailAddress());
+			}
+		}
+		for (Callback callback : callbacks) {
+			notify(callback, result);
+		}
+	}
+
+	private static void notify(Callback callback, Result result) {
+		try {
+			callback.completed(result);
+		}
+		catch (RuntimeException e) {
+			LOG.warn("A result callback failed.", e);
+		}
+	}
+
+	private static void notify(Callback callback, Throwable cause) {
+		try {
+			callback.failed(cause);
+		}
+		catch (RuntimeException e) {
+			LOG.warn("A result callback failed.", e);
+		}
+	}
+
+	@Override
+	public Result get() throws InterruptedException, ExecutionException {
+		this.done.await();
+
+		return outcome();
+	}
+
+	@Override
+	public Result get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!this.done.await(timeout, unit)) {
+			throw new TimeoutException("The result is not available within " + timeout + " " + unit + ".");
+		}
+
+		return outcome();
+	}
+
+	private Result outcome() throws ExecutionException {
+		if (this.cancelled) {
+			throw new CancellationException("The future was cancelled.");
+		}
+		if (this.failure != null) {
+			throw new ExecutionException(this.failure);
+		}
+
+		return this.result;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return this.done.getCount() == 0;
+	}
+
+}
@@ -44,6 +44,13 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * The <code>TimeoutValidatorService</code> offers the possiblity to define a time out interval for the validation call.
  * It clamps the DNS lookup and the account query.
  * </p>
+ * <p>
+ * The validation is executed by the executor service. <code>validateAsync(..)</code> returns immediately with a
+ * <code>ResultFuture</code> which expires with <code>VALIDATION_TIMED_OUT</code>, so the calling thread is not blocked;
+ * <code>validate(..)</code> waits for the future. The expiries are tracked by a shared <code>HashedWheelTimer</code>
+ * and interrupt the validating thread, which ends a pending conversation with the MTA. The callbacks of an expired
+ * future are notified by the executor service, so a slow callback does not delay the timer.
+ * </p>
  * 
  * @author Niclas Meier
  */
@@ -67,15 +74,6 @@ public final class TimeoutCapableValidator extends AbstractValidator {
 	/** The inner instance */
 	private final Validator validatorService;
 
-	private final ThreadLocal<Execution> executionCache = new ThreadLocal<Execution>() {
-
-		@Override
-		protected Execution initialValue() {
-			return new Execution();
-		}
-
-	};
-
 	/**
 	 * Constructor for a <code>TimeoutValidatorService</code> with an executor
 	 * service with core capacity of one and a max capacity of ten threads.
@@ -175,65 +173,74 @@ public final class TimeoutCapableValidator extends AbstractValidator {
 
 	@Override
 	public Result validate(MailAddress mailAddress) {
-		// get execution instance form cache an initialise it.
-		Execution execution = this.executionCache.get();
-		execution.init(notNull(mailAddress, "mailAddress"));
+		ResultFuture futureResult = validateAsync(mailAddress);
+
 		try {
-			Future<Result> futureResult;
-			try {
-				// submit it to the executor service.
-				futureResult = this.executorService.submit(execution);
+			// the future expires, so there is no need for a timed wait
+			return futureResult.get();
+		}
+		catch (InterruptedException e) {
+			// the caller gave up, so the validation is cancelled and the
+			// interrupt status is restored
+			futureResult.cancel(true);
+			Thread.currentThread().interrupt();
+			return Result.create(GENERAL_VALIDATION_ERROR, SYNTAX, mailAddress);
+		}
+		catch (CancellationException e) {
+			// FIXME: get a better result to return
+			return Result.create(GENERAL_VALIDATION_ERROR, SYNTAX, mailAddress);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
-			catch (RejectedExecutionException ree) {
-				// if the execution is rejected, threat is as time out
-				return Result.create(VALIDATION_TIMED_OUT, SYNTAX, mailAddress);
+			else {
+				throw new IllegalStateException("An unexpected exception" + " occured during validation.", e);
 			}
+		}
+	}
 
-			// try to get the result three times
-			for (int i = 0; i < 3; ++i) {
-				try {
-					return futureResult.get(this.timeout, this.timeoutUnit);
-				}
-				catch (InterruptedException e) {
-					// if the result is canceled
-					if (futureResult.isCancelled()) {
-						// return a general error
-						// FIXME: get a better result to return
-						return Result.create(GENERAL_VALIDATION_ERROR, SYNTAX, mailAddress);
-					}
-				}
-				catch (ExecutionException e) {
-					Throwable cause = e.getCause();
-					if (cause instanceof RuntimeException) {
-						throw (RuntimeException) cause;
-					}
-					else if (cause instanceof Error) {
-						throw (Error) cause;
+	@Override
+	public ResultFuture validateAsync(final MailAddress mailAddress) {
+		notNull(mailAddress, "mailAddress");
+		final ResultFuture futureResult = new ResultFuture();
+
+		try {
+			// submit it to the executor service.
+			futureResult.setTask(this.executorService.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						futureResult.complete(TimeoutCapableValidator.this.validatorService.validate(mailAddress));
 					}
-					else {
-						throw new IllegalStateException("An unexpected exception" + " occured during validation.", e);
+					catch (RuntimeException e) {
+						futureResult.fail(e);
 					}
-
-				}
-				catch (TimeoutException e) {
-					// cancel the execution
-					if (futureResult.cancel(true)) {
-						LOG.warn("Cancelling the validation '{}' failed", mailAddress);
+					catch (Error e) {
+						futureResult.fail(e);
+						throw e;
 					}
-
-					// return time out result and assume SEMANTIC validity
-					return Result.create(VALIDATION_TIMED_OUT, SYNTAX, mailAddress);
 				}
-			}
-
-			// the thread seems to be interrupted three times, so
-			// we return a general error.
-			return Result.create(GENERAL_VALIDATION_ERROR, SYNTAX, mailAddress);
+			}));
 		}
-		finally {
-			// finally clear the execution
-			execution.clear();
+		catch (RejectedExecutionException ree) {
+			// if the execution is rejected, threat is as time out
+			LOG.debug("The validation of '{}' was rejected by the executor service.", mailAddress);
+			futureResult.complete(Result.create(VALIDATION_TIMED_OUT, SYNTAX, mailAddress));
+			return futureResult;
 		}
+
+		// expire with a time out result and assume SEMANTIC validity
+		// the callbacks of the expiry run on the executor service, not on the timer
+		futureResult.expire(this.timeout, this.timeoutUnit, Result.create(VALIDATION_TIMED_OUT, SYNTAX, mailAddress),
+				this.executorService);
+
+		return futureResult;
 	}
 
 	@Override
@@ -246,28 +253,6 @@ public final class TimeoutCapableValidator extends AbstractValidator {
 		return this.validatorService.getResolver();
 	}
 
-	/**
-	 * A simple callable to encapsulate the paramter
-	 */
-	private class Execution implements Callable<Result> {
-
-		private MailAddress mailAddress;
-
-		private void init(MailAddress mailAddress) {
-			this.mailAddress = mailAddress;
-		}
-
-		private void clear() {
-			init(null);
-		}
-
-		@Override
-		public Result call() {
-			return TimeoutCapableValidator.this.validatorService.validate(this.mailAddress);
-		}
-
-	}
-
 	static class Factory implements ValidatorFactory {
 
 		private transient final Validator validatorService;
@@ -194,7 +194,8 @@ public class DnsEhCache implements Cache {
 
 		@Override
 		public long getLastModified() {
-			return this.element.getLastUpdateTime();
+			// the update time of an element is 0 until it is updated
+			return Math.max(this.element.getCreationTime(), this.element.getLastUpdateTime());
 		}
 
 		@Override
@@ -223,7 +224,7 @@ public class DnsEhCache implements Cache {
 		public boolean isRecordTypeCached(Type type) {
 			Map<Type, ResouceRecord[]> recordMap = getData().getRecords();
 
-			return recordMap.get(type) == null;
+			return recordMap.get(type) != null;
 		}
 
 		public Data getData() {
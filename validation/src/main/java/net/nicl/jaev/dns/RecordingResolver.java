@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * The recording resolver decorates a resolver and records every lookup with its records (or its failure) and its
+ * latency into a stream, so the traffic can be served back by a <code>ReplayResolver</code> later on, i.e. to
+ * benchmark changes offline against the lookups of a production day.
+ * </p>
+ * <p>
+ * The recording is a compact binary stream of lookups. The stream may be compressed by the caller (i.e. with a
+ * <code>GZIPOutputStream</code>). A lookup is written with a single write once it completed, so the recorder may be
+ * shared by concurrent threads; a failing stream is logged and does not affect the lookups.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class RecordingResolver implements Resolver {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(RecordingResolver.class);
+
+	/** The magic number at the beginning of a recording */
+	static final int MAGIC = 0x4a645231;
+
+	/** A lookup with records */
+	static final byte RECORDS = 0;
+
+	/** A failed lookup */
+	static final byte FAILURE = 1;
+
+	/** The decorated resolver */
+	private final Resolver resolver;
+
+	/** The stream of the recording */
+	private final DataOutputStream out;
+
+	/** The stream failed and does not record any more */
+	private boolean failed = false;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param resolver
+	 *            The decorated resolver
+	 * @param out
+	 *            The stream of the recording
+	 * @throws IOException
+	 *             If the header of the recording could not be written
+	 */
+	public RecordingResolver(Resolver resolver, OutputStream out) throws IOException {
+		this.resolver = notNull(resolver, "resolver");
+		this.out = new DataOutputStream(new BufferedOutputStream(notNull(out, "out")));
+		this.out.writeInt(MAGIC);
+	}
+
+	@Override
+	public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType) throws ResolverException {
+		long start = System.nanoTime();
+		try {
+			List<ResouceRecord> records = this.resolver.resolve(domainName, recordType);
+			record(domainName, recordType, System.nanoTime() - start, records, null);
+
+			return records;
+		}
+		catch (ResolverException re) {
+			record(domainName, recordType, System.nanoTime() - start, null, re);
+			throw re;
+		}
+	}
+
+	/**
+	 * Writes the buffered lookups to the stream.
+	 */
+	public synchronized void flush() {
+		try {
+			this.out.flush();
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Writes the buffered lookups and closes the stream.
+	 */
+	public synchronized void close() {
+		try {
+			this.out.close();
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void record(String domainName, ResouceRecord.Type recordType, long latency, List<ResouceRecord> records,
+			ResolverException re) {
+		try {
+			// encode outside of the lock
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream lookup = new DataOutputStream(bytes);
+			lookup.writeByte(records != null ? RECORDS : FAILURE);
+			lookup.writeUTF(domainName);
+			lookup.writeUTF(recordType.name());
+			lookup.writeInt((int) Math.min(Integer.MAX_VALUE, latency / 1000));
+			if (records != null) {
+				lookup.writeShort(records.size());
+				for (ResouceRecord record : records) {
+					lookup.writeUTF(record.getValue());
+				}
+			}
+			else {
+				lookup.writeUTF(re.getResultCode().name());
+			}
+
+			synchronized (this) {
+				if (!this.failed) {
+					bytes.writeTo(this.out);
+				}
+			}
+		}
+		catch (IOException e) {
+			synchronized (this) {
+				fail(e);
+			}
+		}
+	}
+
+	private void fail(IOException e) {
+		if (!this.failed) {
+			LOG.warn("Unable to record the lookups, the recording stops.", e);
+			this.failed = true;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.dns.DnsResultCode.DNS_TIMEOUT;
+import static net.nicl.jaev.dns.DnsResultCode.GENERAL_DNS_ERROR;
+
+/**
+ * <p>
+ * The replay resolver serves the lookups of a recording of the <code>RecordingResolver</code> without a DNS. The
+ * lookups of a domain and record type are served in the order of the recording and start over when they are used up,
+ * so a replay is deterministic and can be repeated. A lookup which was not recorded fails with
+ * <code>GENERAL_DNS_ERROR</code> and is counted as a miss.
+ * </p>
+ * <p>
+ * The recorded latencies are scaled by the time scale of the replay: <code>0</code> serves the lookups at once,
+ * <code>1</code> with the original timings.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class ReplayResolver implements Resolver {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(ReplayResolver.class);
+
+	/** The recorded lookups by domain and record type */
+	private final Map<String, Lookups> lookups;
+
+	/** The factor of the recorded latencies */
+	private final double timeScale;
+
+	/** The number of lookups which were not recorded */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Convenience constructor which serves the lookups at once.
+	 * 
+	 * @param in
+	 *            The stream of the recording, it is read completely but not
+	 *            closed
+	 * @throws IOException
+	 *             If the recording could not be read
+	 */
+	public ReplayResolver(InputStream in) throws IOException {
+		this(in, 0);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param in
+	 *            The stream of the recording, it is read completely but not
+	 *            closed
+	 * @param timeScale
+	 *            The factor of the recorded latencies, <code>0</code> for no
+	 *            delays and <code>1</code> for the original timings
+	 * @throws IOException
+	 *             If the recording could not be read
+	 */
+	public ReplayResolver(InputStream in, double timeScale) throws IOException {
+		if (timeScale < 0) {
+			throw new IllegalArgumentException("The time scale must not be negative.");
+		}
+		this.lookups = read(new DataInputStream(new BufferedInputStream(notNull(in, "in"))));
+		this.timeScale = timeScale;
+	}
+
+	@Override
+	public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType) throws ResolverException {
+		Lookups recorded = this.lookups.get(key(domainName, recordType));
+		if (recorded == null) {
+			this.misses.incrementAndGet();
+			LOG.debug("The lookup of {} records for '{}' is not recorded.", recordType, domainName);
+			throw new ResolverException(GENERAL_DNS_ERROR, domainName, recordType);
+		}
+
+		Lookup lookup = recorded.next();
+		if (this.timeScale > 0) {
+			long micros = (long) (lookup.latency * this.timeScale);
+			try {
+				Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ResolverException(DNS_TIMEOUT, e, domainName, recordType);
+			}
+		}
+
+		if (lookup.failure != null) {
+			throw new ResolverException(lookup.failure, domainName, recordType);
+		}
+		return lookup.records;
+	}
+
+	/**
+	 * Returns the number of lookups which were not recorded.
+	 * 
+	 * @return The number of misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	private static String key(String domainName, ResouceRecord.Type recordType) {
+		return recordType.name() + ' ' + domainName.toLowerCase();
+	}
+
+	private static Map<String, Lookups> read(DataInputStream in) throws IOException {
+		if (in.readInt() != RecordingResolver.MAGIC) {
+			throw new IOException("The stream is not a recording of lookups.");
+		}
+
+		Map<String, List<Lookup>> recorded = new HashMap<String, List<Lookup>>();
+		int kind;
+		while ((kind = in.read()) >= 0) {
+			String domainName = in.readUTF();
+			ResouceRecord.Type recordType = ResouceRecord.Type.valueOf(in.readUTF());
+			int latency = in.readInt();
+
+			Lookup lookup;
+			if (kind == RecordingResolver.RECORDS) {
+				List<ResouceRecord> records = new ArrayList<ResouceRecord>();
+				for (int i = in.readUnsignedShort(); i > 0; --i) {
+					records.add(new ReplayedRecord(recordType, in.readUTF()));
+				}
+				lookup = new Lookup(latency, Collections.unmodifiableList(records), null);
+			}
+			else if (kind == RecordingResolver.FAILURE) {
+				lookup = new Lookup(latency, null, DnsResultCode.valueOf(in.readUTF()));
+			}
+			else {
+				throw new IOException("The recording contains an unknown lookup " + kind + ".");
+			}
+
+			String key = key(domainName, recordType);
+			List<Lookup> list = recorded.get(key);
+			if (list == null) {
+				list = new ArrayList<Lookup>(1);
+				recorded.put(key, list);
+			}
+			list.add(lookup);
+		}
+
+		Map<String, Lookups> lookups = new HashMap<String, Lookups>(recorded.size() * 4 / 3 + 1);
+		for (Map.Entry<String, List<Lookup>> entry : recorded.entrySet()) {
+			lookups.put(entry.getKey(), new Lookups(entry.getValue().toArray(new Lookup[entry.getValue().size()])));
+		}
+		return lookups;
+	}
+
+	/**
+	 * The recorded lookups of a domain and record type
+	 */
+	private static final class Lookups {
+
+		private final Lookup[] lookups;
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		private Lookups(Lookup[] lookups) {
+			this.lookups = lookups;
+		}
+
+		private Lookup next() {
+			return this.lookups[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.lookups.length];
+		}
+	}
+
+	/**
+	 * A recorded lookup
+	 */
+	private static final class Lookup {
+
+		/** The latency in microseconds */
+		private final int latency;
+
+		private final List<ResouceRecord> records;
+
+		private final DnsResultCode failure;
+
+		private Lookup(int latency, List<ResouceRecord> records, DnsResultCode failure) {
+			this.latency = latency;
+			this.records = records;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * A recorded resource record
+	 */
+	private static final class ReplayedRecord implements ResouceRecord {
+
+		private static final long serialVersionUID = -2749180364921635127L;
+
+		private final Type type;
+
+		private final String value;
+
+		private ReplayedRecord(Type type, String value) {
+			this.type = type;
+			this.value = value;
+		}
+
+		public Type getType() {
+			return this.type;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+
+		@Override
+		public String toString() {
+			return this.type + ":" + this.value;
+		}
+	}
+}
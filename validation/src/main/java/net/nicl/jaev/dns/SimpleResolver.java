@@ -13,6 +13,7 @@
 
 package net.nicl.jaev.dns;
 
+import net.nicl.jaev.LatencyTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +25,7 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.util.Hashtable;
 import java.util.List;
@@ -42,6 +44,10 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  * <p>
  * <i>Note: </i> This class has not been tested with alternate JREs so far.
  * </p>
+ * <p>
+ * With a <code>LatencyTracker</code> the timeout of a lookup is learned per domain from the latencies of the previous
+ * lookups instead of being fixed.
+ * </p>
  * 
  * @author Niclas Meier
  */
@@ -55,6 +61,12 @@ public class SimpleResolver implements Resolver {
 	/** The number of retries */
 	private final int retries;
 
+	/** The tracker for adaptive timeouts, may be <code>null</code> */
+	private final LatencyTracker latencyTracker;
+
+	/** The URL of the name servers, <code>null</code> for the name servers of the platform */
+	private final String providerUrl;
+
 	/**
 	 * Default constructor, creates a resolver with 3 retires and 2 second timeout.
 	 */
@@ -82,18 +94,93 @@ public class SimpleResolver implements Resolver {
 	public SimpleResolver(int retries, long timeout, TimeUnit timeUnit) {
 		this.retries = retries;
 		this.timeout = notNull(timeUnit, "timeUnit").toMillis(timeout);
+		this.latencyTracker = null;
+		this.providerUrl = null;
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Initialized with timeout of " + timeout + " " + timeUnit + " with " + retries + " retries.");
 		}
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Argument constructor for particular name servers instead of the name
+	 * servers configured for the platform (i.e. a local caching name server).
+	 * 
+	 * @param retries Number of retries
+	 * @param timeout The timeout
+	 * @param timeUnit The time unit (SECONDS, MILLISECONDS, etc.)
+	 * @param nameServers The name servers in the order of preference
+	 */
+	public SimpleResolver(int retries, long timeout, TimeUnit timeUnit, List<InetSocketAddress> nameServers) {
+		this.retries = retries;
+		this.timeout = notNull(timeUnit, "timeUnit").toMillis(timeout);
+		this.latencyTracker = null;
+		if (notNull(nameServers, "nameServers").isEmpty()) {
+			throw new IllegalArgumentException("At least one name server is required.");
+		}
+
+		StringBuilder providerUrl = new StringBuilder();
+		for (InetSocketAddress nameServer : nameServers) {
+			String host = nameServer.getAddress() != null ? nameServer.getAddress().getHostAddress() : nameServer
+					.getHostName();
+			providerUrl.append(providerUrl.length() > 0 ? " dns://" : "dns://");
+			providerUrl.append(host.indexOf(':') >= 0 ? "[" + host + "]" : host).append(':').append(
+					nameServer.getPort());
+		}
+		this.providerUrl = providerUrl.toString();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Initialized with timeout of " + timeout + " " + timeUnit + " with " + retries
+					+ " retries for name servers " + this.providerUrl + ".");
+		}
+	}
+
+	/**
+	 * Argument constructor for adaptive timeouts
+	 * 
+	 * @param retries Number of retries
+	 * @param latencyTracker The tracker of the lookup latencies per domain
+	 */
+	public SimpleResolver(int retries, LatencyTracker latencyTracker) {
+		this.retries = retries;
+		this.latencyTracker = notNull(latencyTracker, "latencyTracker");
+		this.timeout = latencyTracker.getTimeout(MILLISECONDS);
+		this.providerUrl = null;
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Initialized with adaptive timeout " + latencyTracker + " with " + retries + " retries.");
+		}
+	}
+
 	@Override
 	public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType) throws ResolverException {
+		if (this.latencyTracker == null) {
+			return resolve(domainName, recordType, this.timeout);
+		}
+
+		long timeout = this.latencyTracker.getTimeout(MILLISECONDS, domainName);
+		long start = System.currentTimeMillis();
+		try {
+			List<ResouceRecord> result = resolve(domainName, recordType, timeout);
+			this.latencyTracker.record(domainName, System.currentTimeMillis() - start, MILLISECONDS);
+
+			return result;
+		}
+		catch (ResolverException re) {
+			if (re.getResultCode() == DNS_TIMEOUT) {
+				this.latencyTracker.record(domainName, timeout, MILLISECONDS);
+			}
+			else if (re.getResultCode() == DOMAIN_NAME_NOT_FOUND) {
+				this.latencyTracker.record(domainName, System.currentTimeMillis() - start, MILLISECONDS);
+			}
+			throw re;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType, long timeout)
+			throws ResolverException {
 		DirContext directory = null;
 		try {
 			// create directory
-			directory = createDirectory();
+			directory = createDirectory(timeout);
 
 			// perform lookup
 			Attributes attrs = directory.getAttributes(domainName, new String[] { recordType.name() });
@@ -111,6 +198,12 @@ public class SimpleResolver implements Resolver {
 					if (pos > 0) {
 						value = value.substring(pos).trim();
 					}
+					if ((recordType == ResouceRecord.Type.MX || recordType == ResouceRecord.Type.CNAME)
+							&& value.endsWith(".")) {
+						// strip the root label of the host name, so IP literals and
+						// host names of the hosts file are resolvable
+						value = value.substring(0, value.length() - 1);
+					}
 
 					ResouceRecord record = new SimpleResouceRecord(recordType, value);
 					result.add(record);
@@ -150,17 +243,21 @@ public class SimpleResolver implements Resolver {
 	/**
 	 * Creates a fresh directory context for DNS lookup
 	 * 
+	 * @param timeout The timeout of the lookup in milliseconds
 	 * @return A newly created an initialized directory context.
 	 * @throws NamingException If a problem occurs with context creation.
 	 */
-	private DirContext createDirectory() throws NamingException {
+	private DirContext createDirectory(long timeout) throws NamingException {
 		Hashtable<String, String> env = new Hashtable<String, String>();
 		env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
 		env.put("com.sun.jndi.dns.recursion", "true");
 		env.put(Context.AUTHORITATIVE, "false");
 
-		env.put("com.sun.jndi.dns.timeout.initial", String.valueOf(this.timeout / this.retries));
+		env.put("com.sun.jndi.dns.timeout.initial", String.valueOf(Math.max(1, timeout / this.retries)));
 		env.put("com.sun.jndi.dns.timeout.retries", String.valueOf(this.retries));
+		if (this.providerUrl != null) {
+			env.put(Context.PROVIDER_URL, this.providerUrl);
+		}
 
 		return new InitialDirContext(env);
 
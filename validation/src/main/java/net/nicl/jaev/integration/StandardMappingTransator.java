@@ -75,6 +75,11 @@ public final class StandardMappingTransator extends MappingTranslator {
 		add(MTA_DOES_NOT_ACCEPT_FROM_ADDRESS, "failed", translationTable);
 		add(MTA_DOES_NOT_ACCEPT_RECIEPIENT, "failed", translationTable);
 		add(MTA_SUSPECTS_SPAM, "failed", translationTable);
+		add(MTA_ACCEPTS_ANY_RECIPIENT, "catch_all", translationTable);
+		add(MTA_DEFERS_RECIPIENT, "deferred", translationTable);
+		add(MTA_THROTTLED, "deferred", translationTable);
+		add(MTA_RATE_LIMITED, "deferred", translationTable);
+		add(MTA_POLICY_REJECTION, "failed", translationTable);
 	}
 
 	private void add(ResultCode resultCode, String code, Map<ResultCode, String> translationTable) {
@@ -33,22 +33,25 @@ import static java.nio.charset.CodingErrorAction.REPORT;
  */
 class Utilites {
 
-	private static final CharsetEncoder ASCII_ENCODER = initEncoder();
+	/** Encoders are not thread safe, so each thread uses its own */
+	private static final ThreadLocal<CharsetEncoder> ASCII_ENCODER = new ThreadLocal<CharsetEncoder>() {
 
-	private static CharsetEncoder initEncoder() {
-		CharsetEncoder asciiEncoder = Charset.forName("ASCII").newEncoder();
+		@Override
+		protected CharsetEncoder initialValue() {
+			CharsetEncoder asciiEncoder = Charset.forName("ASCII").newEncoder();
 
-		asciiEncoder.onMalformedInput(REPORT);
-		asciiEncoder.onUnmappableCharacter(REPORT);
+			asciiEncoder.onMalformedInput(REPORT);
+			asciiEncoder.onUnmappableCharacter(REPORT);
 
-		return asciiEncoder;
-	}
+			return asciiEncoder;
+		}
+	};
 
 	private static final Pattern IPV4_PATTERN = Pattern
 			.compile("^\\[(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\]$");
 
 	public static boolean isAscii(String string) {
-		return ASCII_ENCODER.canEncode(string);
+		return ASCII_ENCODER.get().canEncode(string);
 	}
 
 	/**
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The account queries class provides static methods to query a list of MTAs
+ * or a batch of mail addresses with any <code>AccountQuery</code>.
+ * 
+ * @author Niclas Meier
+ */
+public final class AccountQueries {
+
+	private AccountQueries() {
+		// static methods only
+	}
+
+	/**
+	 * Queries a list of MTAs. A <code>MxListAccountQuery</code> is passed the
+	 * whole list, any other account query is asked MTA by MTA.
+	 * 
+	 * @param accountQuery
+	 *            The account query to use
+	 * @param mailAddress
+	 *            The mail address to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddresses
+	 *            The network addresses of the mail servers in preference
+	 *            order.
+	 * @param listener
+	 *            The listener for the outcome of each MTA, may be
+	 *            <code>null</code>
+	 * @return The result of the query, <code>null</code> if no MTA answered.
+	 */
+	public static Result query(AccountQuery accountQuery, MailAddress mailAddress, MailAddress fromAddress,
+			List<InetAddress> mxAddresses, MxListAccountQuery.Listener listener) {
+		if (notNull(accountQuery, "accountQuery") instanceof MxListAccountQuery) {
+			return ((MxListAccountQuery) accountQuery).query(mailAddress, fromAddress, mxAddresses, listener);
+		}
+		else {
+			return queryInOrder(accountQuery, mailAddress, fromAddress, mxAddresses, listener);
+		}
+	}
+
+	/**
+	 * Queries a list of MTAs one after another until an MTA validates the
+	 * address.
+	 * 
+	 * @param accountQuery
+	 *            The account query to ask for each MTA
+	 * @param mailAddress
+	 *            The mail address to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddresses
+	 *            The network addresses of the mail servers in preference
+	 *            order.
+	 * @param listener
+	 *            The listener for the outcome of each MTA, may be
+	 *            <code>null</code>
+	 * @return The <code>ADDRESS_VALID</code> result or the result of the last
+	 *         MTA, <code>null</code> if the list is empty.
+	 */
+	public static Result queryInOrder(AccountQuery accountQuery, MailAddress mailAddress, MailAddress fromAddress,
+			List<InetAddress> mxAddresses, MxListAccountQuery.Listener listener) {
+		notNull(accountQuery, "accountQuery");
+		Iterator<InetAddress> mxAddressIterator = notNull(mxAddresses, "mxAddresses").iterator();
+		Result result = null;
+
+		while (mxAddressIterator.hasNext() && (result == null || !ADDRESS_VALID.equals(result.getResultCode()))) {
+			// while we have more MX entries and there is no result or the
+			// result does not meet the requirements
+			InetAddress mxAddress = mxAddressIterator.next();
+
+			// query the address and fetch a "better" result.
+			long start = System.currentTimeMillis();
+			result = accountQuery.query(mailAddress, fromAddress, mxAddress);
+
+			if (listener != null && result != null) {
+				listener.queried(mailAddress, mxAddress, result, System.currentTimeMillis() - start, MILLISECONDS);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Queries a batch of mail addresses served by the same MTA. A
+	 * <code>BatchAccountQuery</code> is passed the whole batch, any other
+	 * account query is asked address by address.
+	 * 
+	 * @param accountQuery
+	 *            The account query to use
+	 * @param mailAddresses
+	 *            The mail addresses to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddress
+	 *            The network address of the target mail server.
+	 * @param recipientLimit
+	 *            The maximum number of recipients per transaction
+	 * @return The results in the order of the mail addresses.
+	 */
+	public static List<Result> query(AccountQuery accountQuery, List<MailAddress> mailAddresses,
+			MailAddress fromAddress, InetAddress mxAddress, int recipientLimit) {
+		if (notNull(accountQuery, "accountQuery") instanceof BatchAccountQuery) {
+			return ((BatchAccountQuery) accountQuery).query(mailAddresses, fromAddress, mxAddress, recipientLimit);
+		}
+		else {
+			return queryEach(accountQuery, mailAddresses, fromAddress, mxAddress);
+		}
+	}
+
+	/**
+	 * Queries a batch of mail addresses address by address.
+	 * 
+	 * @param accountQuery
+	 *            The account query to ask for each address
+	 * @param mailAddresses
+	 *            The mail addresses to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddress
+	 *            The network address of the target mail server.
+	 * @return The results in the order of the mail addresses.
+	 */
+	public static List<Result> queryEach(AccountQuery accountQuery, List<MailAddress> mailAddresses,
+			MailAddress fromAddress, InetAddress mxAddress) {
+		notNull(accountQuery, "accountQuery");
+		List<Result> results = new ArrayList<Result>(notNull(mailAddresses, "mailAddresses").size());
+		for (MailAddress mailAddress : mailAddresses) {
+			results.add(accountQuery.query(mailAddress, fromAddress, mxAddress));
+		}
+
+		return results;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * <p>
+ * The address family preferences control the connection racing (&quot;Happy Eyeballs&quot;, RFC 8305) of the
+ * <code>SocketChannelConversation</code> for MTAs with IPv6 and IPv4 addresses. The connection to the preferred address
+ * family is started first, the connection to the other family after the attempt delay. The family of the first
+ * successful connection is remembered per host and preferred for the next conversation.
+ * </p>
+ * <p>
+ * The preferences also cache the addresses of the hosts. A connection is only raced if the addresses of both families
+ * are known, either because the MX resolution already returned them or because an earlier lookup finished. The cache
+ * is filled with <code>resolved(String, InetAddress...)</code>.
+ * </p>
+ * <p>
+ * An instance is thread safe and usually shared by all conversations of a <code>SocketChannelConversation.Factory</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class AddressFamilyPreferences {
+
+	/** The maximum number of hosts with a preference */
+	private static final int CAPACITY = 10000;
+
+	/** The delay before the connection to the other family in milliseconds */
+	private final long attemptDelay;
+
+	/** Prefer IPv6 for unknown hosts */
+	private final boolean preferIpv6;
+
+	/** The preferred family per host, <code>true</code> for IPv6 */
+	private final ConcurrentMap<String, Boolean> preferences = new LruMap<String, Boolean>(CAPACITY);
+
+	/** The known addresses per host, empty while the lookup is pending or if the host is unknown */
+	private final ConcurrentMap<String, InetAddress[]> addresses = new LruMap<String, InetAddress[]>(CAPACITY);
+
+	/**
+	 * Convenience constructor which prefers IPv6 and starts the IPv4
+	 * connection after 250 milliseconds (as recommended by RFC 8305).
+	 */
+	public AddressFamilyPreferences() {
+		this(true, 250, MILLISECONDS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param preferIpv6
+	 *            Prefer IPv6 for hosts without a remembered preference
+	 * @param attemptDelay
+	 *            The delay before the connection to the other family is
+	 *            started
+	 * @param attemptDelayUnit
+	 *            The time unit of the attempt delay
+	 */
+	public AddressFamilyPreferences(boolean preferIpv6, long attemptDelay, TimeUnit attemptDelayUnit) {
+		this.preferIpv6 = preferIpv6;
+		this.attemptDelay = notNull(attemptDelayUnit, "attemptDelayUnit").toMillis(attemptDelay);
+	}
+
+	/**
+	 * Checks if IPv6 is the preferred family for a host.
+	 * 
+	 * @param host
+	 *            The host name
+	 * @return <code>true</code> if IPv6 should be tried first.
+	 */
+	public boolean prefersIpv6(String host) {
+		Boolean preference = this.preferences.get(notBlank(host, "host").toLowerCase());
+
+		return preference == null ? this.preferIpv6 : preference.booleanValue();
+	}
+
+	/**
+	 * Remembers the family of a successful connection.
+	 * 
+	 * @param host
+	 *            The host name
+	 * @param address
+	 *            The connected address
+	 */
+	public void connected(String host, InetAddress address) {
+		this.preferences.put(notBlank(host, "host").toLowerCase(), notNull(address, "address") instanceof Inet6Address);
+	}
+
+	/**
+	 * Remembers the addresses of a host, usually the result of the MX
+	 * resolution or of a lookup.
+	 * 
+	 * @param host
+	 *            The host name
+	 * @param addresses
+	 *            The addresses of the host
+	 */
+	public void resolved(String host, InetAddress... addresses) {
+		this.addresses.put(notBlank(host, "host").toLowerCase(), notNull(addresses, "addresses").clone());
+	}
+
+	/**
+	 * Claims the lookup of the addresses of a host. Only the first caller for
+	 * a host which is not known yet gets the claim, so every host is looked
+	 * up once.
+	 * 
+	 * @param host
+	 *            The host name
+	 * @return <code>true</code> if the caller should look up the addresses
+	 *         and report them with <code>resolved(String, InetAddress...)</code>
+	 */
+	public boolean claimLookup(String host) {
+		return this.addresses.putIfAbsent(notBlank(host, "host").toLowerCase(), new InetAddress[0]) == null;
+	}
+
+	/**
+	 * Returns the first known address of a host of the other family.
+	 * 
+	 * @param host
+	 *            The host name
+	 * @param address
+	 *            The address of the host to find an alternative for
+	 * @return The address of the other family or <code>null</code> if none is
+	 *         known
+	 */
+	public InetAddress getAlternative(String host, InetAddress address) {
+		InetAddress[] known = this.addresses.get(notBlank(host, "host").toLowerCase());
+		boolean ipv6 = notNull(address, "address") instanceof Inet6Address;
+		if (known != null) {
+			for (InetAddress alternative : known) {
+				if (alternative instanceof Inet6Address != ipv6) {
+					return alternative;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the delay before the connection to the other family is started.
+	 * 
+	 * @param unit
+	 *            The time unit of the returned delay
+	 * @return The attempt delay
+	 */
+	public long getAttemptDelay(TimeUnit unit) {
+		return unit.convert(this.attemptDelay, MILLISECONDS);
+	}
+}
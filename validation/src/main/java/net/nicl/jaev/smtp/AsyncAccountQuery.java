@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.ResultFuture;
+
+import java.net.InetAddress;
+
+/**
+ * The asynchronous account query returns a <code>ResultFuture</code> instead
+ * of blocking the calling thread until the MTA answered.
+ * 
+ * @author Niclas Meier
+ */
+public interface AsyncAccountQuery extends AccountQuery {
+
+	/**
+	 * Starts the query
+	 * 
+	 * @param mailAddress
+	 *            The mail address to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddress
+	 *            The network address of the target mail server.
+	 * @return The future of the query result.
+	 */
+	public ResultFuture queryAsync(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress);
+
+}
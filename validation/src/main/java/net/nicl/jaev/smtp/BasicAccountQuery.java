@@ -22,27 +22,62 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ResultCode.Type.LOGICAL;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
 import static net.nicl.jaev.ValidatorResultCode.GENERAL_VALIDATION_ERROR;
 import static net.nicl.jaev.Validity.DOMAIN;
 import static net.nicl.jaev.smtp.Idiom.*;
 import static net.nicl.jaev.smtp.SmtpResultCode.IO_ERROR_DURING_MTA_CONVERSATION;
 import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_RATE_LIMITED;
+import static net.nicl.jaev.smtp.SmtpResultCode.TIMEOUT_DURING_MTA_CONVERSATION;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * This basic account query implementation performs the query to an SMTP mail
- * server. The timeout for this implementation is set on the socket, so the
- * overall timeout is round about four times the specified timeout.
+ * server. The timeout for this implementation is used as deadline for the whole
+ * conversation with the MTA (connect, banner and all commands).
+ * <p>
+ * A query may be cancelled by interrupting the querying thread. The
+ * conversation is then ended with <code>QUIT</code> (if it was already started)
+ * and the interrupt status of the thread is restored.
+ * </p>
+ * <p>
+ * If the conversation is <code>Transcribed</code>, its transcript is attached
+ * to every result which is not <code>ADDRESS_VALID</code>.
+ * </p>
+ * <p>
+ * With <code>VerifyCapabilities</code> the address is verified with
+ * <code>VRFY</code> right after the banner. The <code>VRFY</code> answer of a
+ * trusted MTA is the result of the query; for other MTAs the query continues
+ * with the <code>RCPT TO</code> sequence on the same connection and the
+ * answers are compared to learn the capability of the MTA.
+ * </p>
+ * <p>
+ * With a <code>SessionPool</code> the greeted session is kept after a query
+ * with a logical result, so the next query to the same MTA borrows it and
+ * starts directly with <code>MAIL FROM</code>.
+ * </p>
+ * <p>
+ * A batch of mail addresses (possibly of different domains) served by the same
+ * MTA may be queried with a single session: one <code>MAIL FROM</code> is
+ * followed by up to the recipient limit <code>RCPT TO</code> commands, then
+ * the transaction is reset and the next one started.
+ * </p>
  * 
  * @author Niclas Meier
  */
-public class BasicAccountQuery implements AccountQuery {
+public class BasicAccountQuery implements BatchAccountQuery {
 
 	/** Logger */
 	private static final Logger LOG = LoggerFactory.getLogger(BasicAccountQuery.class);
@@ -50,9 +85,24 @@ public class BasicAccountQuery implements AccountQuery {
 	/** List of idioms for the SMTP server communication */
 	private static final Idiom[] IDIOMS = new Idiom[] { START, HELO, MAIL, RECIPIENT_TO };
 
+	/** List of idioms for a session borrowed from the pool */
+	private static final Idiom[] POOLED_IDIOMS = new Idiom[] { MAIL, RECIPIENT_TO };
+
+	/** List of idioms to open the first transaction of a batch */
+	private static final Idiom[] BATCH_IDIOMS = new Idiom[] { START, HELO, MAIL };
+
+	/** List of idioms to open a transaction of a greeted session */
+	private static final Idiom[] TRANSACTION_IDIOMS = new Idiom[] { MAIL };
+
 	/** The socket timeout for the server socket */
 	private final ConversationFactory conversationFactory;
 
+	/** The learned <code>VRFY</code> capabilities, may be <code>null</code> */
+	private final VerifyCapabilities verifyCapabilities;
+
+	/** The pool of greeted sessions, may be <code>null</code> */
+	private final SessionPool sessionPool;
+
 	/**
 	 * A very simple cache for <code>Conversation</code> instances to prevent to
 	 * much instantiations. Due to the high possibility, that the basic account
@@ -68,7 +118,7 @@ public class BasicAccountQuery implements AccountQuery {
 	};
 
 	/**
-	 * Default constructor with a five seconds socket time out.
+	 * Default constructor with a five seconds conversation time out.
 	 */
 	public BasicAccountQuery() {
 		this(5, SECONDS);
@@ -78,7 +128,7 @@ public class BasicAccountQuery implements AccountQuery {
 	 * Default constructor
 	 * 
 	 * @param socketTimeoutMillis
-	 *            The time out to use for the socket.
+	 *            The time out of the conversation with the MTA.
 	 */
 	public BasicAccountQuery(long socketTimeoutMillis) {
 		this(socketTimeoutMillis, MILLISECONDS);
@@ -89,7 +139,7 @@ public class BasicAccountQuery implements AccountQuery {
 	 * timeouts for communication.
 	 * 
 	 * @param socketTimeout
-	 *            The time out to use for the socket.
+	 *            The time out of the conversation with the MTA.
 	 * @param socketTimeoutUnit
 	 *            The time unit to use for timeout
 	 */
@@ -105,19 +155,233 @@ public class BasicAccountQuery implements AccountQuery {
 	 *            The factory instance for conversations
 	 */
 	public BasicAccountQuery(ConversationFactory conversationFactory) {
-		this.conversationFactory = conversationFactory;
+		this(conversationFactory, null);
+	}
 
+	/**
+	 * Constructor for queries which probe with <code>VRFY</code> where the MTA
+	 * supports it.
+	 * 
+	 * @param conversationFactory
+	 *            The factory instance for conversations
+	 * @param verifyCapabilities
+	 *            The learned <code>VRFY</code> capabilities of the MTAs, may be
+	 *            <code>null</code> to probe with <code>RCPT TO</code> only
+	 */
+	public BasicAccountQuery(ConversationFactory conversationFactory, VerifyCapabilities verifyCapabilities) {
+		this(conversationFactory, verifyCapabilities, null);
+	}
+
+	/**
+	 * Constructor for queries which reuse greeted sessions.
+	 * 
+	 * @param conversationFactory
+	 *            The factory instance for conversations
+	 * @param verifyCapabilities
+	 *            The learned <code>VRFY</code> capabilities of the MTAs, may be
+	 *            <code>null</code> to probe with <code>RCPT TO</code> only
+	 * @param sessionPool
+	 *            The pool of greeted sessions, may be <code>null</code> to
+	 *            end every conversation after the query
+	 */
+	public BasicAccountQuery(ConversationFactory conversationFactory, VerifyCapabilities verifyCapabilities,
+			SessionPool sessionPool) {
+		this.conversationFactory = conversationFactory;
+		this.verifyCapabilities = verifyCapabilities;
+		this.sessionPool = sessionPool;
 	}
 
 	@Override
 	public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+		if (this.sessionPool != null) {
+			return queryPooled(mailAddress, fromAddress, mxAddress);
+		}
+
 		// get a conversation from the cache
 		Conversation conversation = createConversation();
+		Result result = converse(conversation, IDIOMS, mailAddress, fromAddress, mxAddress);
+
+		return attachTranscript(conversation, result);
+	}
+
+	private Result queryPooled(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+		String heloDomain = notNull(fromAddress, "fromAddress").getDomain();
+		PooledConversation session = this.sessionPool.borrow(notNull(mxAddress, "mxAddress"), heloDomain);
+		Result result;
+
+		if (session != null) {
+			result = converse(session, POOLED_IDIOMS, mailAddress, fromAddress, mxAddress);
+		}
+		else {
+			// pooled sessions outlive the query, so they are not taken from the cache
+			session = this.sessionPool.create(this.conversationFactory.createConversation(), mxAddress, heloDomain);
+			result = converse(session, IDIOMS, mailAddress, fromAddress, mxAddress);
+		}
+		result = attachTranscript(session, result);
+		this.sessionPool.restore(session, LOGICAL.equals(result.getResultCode().getType()));
+
+		return result;
+	}
+
+	/**
+	 * Queries a batch of mail addresses with a single session to a MTA. The
+	 * recipients are sent in transactions of at most the recipient limit; if
+	 * the MTA refuses a recipient because of too many recipients, the
+	 * transaction is reset and the recipient is sent again in the next one
+	 * with a lower limit. The deadline of the conversation applies to each
+	 * command.
+	 * <p>
+	 * If the session fails (i.e. the MTA does not respond, rejects the sender
+	 * or closes the connection), the mail addresses without an answer get the
+	 * result of the failure. <code>VerifyCapabilities</code> are not used for
+	 * batches.
+	 * </p>
+	 * 
+	 * @param mailAddresses
+	 *            The mail addresses to query
+	 * @param fromAddress
+	 *            The mail address of the sender
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @param recipientLimit
+	 *            The maximum number of recipients per transaction
+	 * @return The results in the order of the mail addresses
+	 */
+	@Override
+	public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+			int recipientLimit) {
+		notNull(mailAddresses, "mailAddresses");
+		String heloDomain = notNull(fromAddress, "fromAddress").getDomain();
+		notNull(mxAddress, "mxAddress");
+		if (recipientLimit < 1) {
+			throw new IllegalArgumentException("The recipient limit must be positive.");
+		}
+
+		Result[] results = new Result[mailAddresses.size()];
+		if (results.length == 0) {
+			return Arrays.asList(results);
+		}
+
+		PooledConversation session = this.sessionPool != null ? this.sessionPool.borrow(mxAddress, heloDomain) : null;
+		if (session == null && this.sessionPool != null) {
+			session = this.sessionPool.create(this.conversationFactory.createConversation(), mxAddress, heloDomain);
+		}
+		else if (session == null) {
+			// the wrapper keeps the session open between the recipients
+			session = new PooledConversation(createConversation(), null);
+		}
+
+		int next = 0;
+		int limit = recipientLimit;
+		Result failure;
+
+		try {
+			session.init(mxAddress, 25);
+			failure = open(session, session.isGreeted() ? TRANSACTION_IDIOMS : BATCH_IDIOMS, mailAddresses.get(0),
+					fromAddress);
+
+			while (failure == null && next < results.length) {
+				int recipients = 0;
+
+				while (next < results.length && recipients < limit) {
+					MailAddress mailAddress = mailAddresses.get(next);
+					session.renew();
+					Result result = RECIPIENT_TO.phrase(session, mailAddress, fromAddress);
+
+					if (recipients > 0 && MTA_RATE_LIMITED.equals(result.getResultCode()) && !session.isBroken()) {
+						// i.e. 452 too many recipients, retry in the next transaction
+						limit = recipients;
+						break;
+					}
+					results[next++] = attachTranscript(session, result);
+					++recipients;
+
+					if (session.isBroken()) {
+						failure = result;
+						break;
+					}
+				}
+
+				if (failure == null && next < results.length) {
+					failure = session.check(Command.RESET) ? open(session, TRANSACTION_IDIOMS, mailAddresses.get(next),
+							fromAddress) : Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, null, mxAddress);
+				}
+			}
+		}
+		catch (IOException e) {
+			failure = ioFailure(e, mxAddress);
+		}
+		finally {
+			if (this.sessionPool != null) {
+				this.sessionPool.restore(session, !session.isBroken());
+			}
+			else {
+				session.close();
+			}
+		}
+
+		for (int i = next; i < results.length; ++i) {
+			// the mail addresses without an answer share the failure
+			results[i] = Result.create(failure.getResultCode(), failure.getValidity(), mailAddresses.get(i), failure
+					.getObjects());
+		}
+
+		return Arrays.asList(results);
+	}
+
+	private Result open(PooledConversation session, Idiom[] idioms, MailAddress mailAddress, MailAddress fromAddress)
+			throws IOException {
+		for (Idiom idiom : idioms) {
+			session.renew();
+			Result result = idiom.phrase(session, mailAddress, fromAddress);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		return null;
+	}
+
+	private Result ioFailure(IOException e, InetAddress mxAddress) {
+		if (e instanceof ConnectException) {
+			LOG.debug("Unable to connect to MTA '{}'.", mxAddress);
+			return Result.create(MTA_NOT_RESPONDING, DOMAIN, null, mxAddress);
+		}
+		else if (e instanceof SocketTimeoutException) {
+			LOG.debug("The conversation with MTA '{}' timed out.", mxAddress);
+			return Result.create(TIMEOUT_DURING_MTA_CONVERSATION, DOMAIN, null, mxAddress);
+		}
+		else if (e instanceof InterruptedIOException) {
+			LOG.debug("The conversation with MTA '{}' was cancelled.", mxAddress);
+			Thread.currentThread().interrupt();
+			return Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, null, mxAddress);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("An IO error occured during MTA conversation " + "with '" + mxAddress + "'.", e);
+		}
+
+		return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, null, mxAddress);
+	}
+
+	private Result attachTranscript(Conversation conversation, Result result) {
+		if (conversation instanceof Transcribed && !ADDRESS_VALID.equals(result.getResultCode())) {
+			String transcript = ((Transcribed) conversation).getTranscript();
+			if (transcript != null) {
+				result = result.withTranscript(transcript);
+			}
+		}
+
+		return result;
+	}
+
+	private Result converse(Conversation conversation, Idiom[] idioms, MailAddress mailAddress,
+			MailAddress fromAddress, InetAddress mxAddress) {
 		conversation.init(notNull(mxAddress, "mxAddress"), 25);
 		Result result;
+		Result verified = null;
 
 		try {
-			for (Idiom idiom : IDIOMS) {
+			for (Idiom idiom : idioms) {
 				// iterate through the idioms
 				try {
 					// phrase the idiom
@@ -129,9 +393,29 @@ public class BasicAccountQuery implements AccountQuery {
 					// e-mail
 					// account
 					if (result != null) {
+						if (verified != null && LOGICAL.equals(result.getResultCode().getType())) {
+							// learn if the MTA answers VRFY truthfully
+							this.verifyCapabilities.compared(mxAddress, verified.getResultCode().equals(
+									result.getResultCode()));
+						}
 						// return it
 						return result;
 					}
+
+					if (idiom == START && this.verifyCapabilities != null) {
+						VerifyCapabilities.Capability capability = this.verifyCapabilities.getCapability(mxAddress);
+						if (capability != VerifyCapabilities.Capability.UNSUPPORTED) {
+							verified = VERIFY.phrase(conversation, mailAddress, fromAddress);
+							if (verified == null) {
+								// fall back to RCPT TO
+								this.verifyCapabilities.unsupported(mxAddress);
+							}
+							else if (capability == VerifyCapabilities.Capability.TRUSTED || !conversation.isActive()) {
+								quit(conversation);
+								return verified;
+							}
+						}
+					}
 				}
 				catch (ConnectException e) {
 					if (LOG.isDebugEnabled()) {
@@ -139,6 +423,17 @@ public class BasicAccountQuery implements AccountQuery {
 					}
 					return Result.create(MTA_NOT_RESPONDING, DOMAIN, mailAddress, mxAddress);
 				}
+				catch (SocketTimeoutException e) {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("The conversation with MTA '" + mxAddress + "' timed out.", e);
+					}
+					return Result.create(TIMEOUT_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
+				}
+				catch (InterruptedIOException e) {
+					LOG.debug("The conversation with MTA '{}' was cancelled.", mxAddress);
+					cancel(conversation);
+					return Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, mailAddress, mxAddress);
+				}
 				catch (IOException e) {
 					if (LOG.isDebugEnabled()) {
 						LOG.debug("An IO error occured during MTA conversation " + "with '" + mxAddress + "'.", e);
@@ -160,6 +455,32 @@ public class BasicAccountQuery implements AccountQuery {
 		return Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, mailAddress, mxAddress);
 	}
 
+	private void quit(Conversation conversation) {
+		try {
+			if (conversation.isActive()) {
+				conversation.say(Command.QUIT);
+			}
+		}
+		catch (IOException e) {
+			LOG.trace("An error occured while saying QUIT to a verified conversation.", e);
+		}
+	}
+
+	private void cancel(Conversation conversation) {
+		try {
+			if (conversation.isActive()) {
+				conversation.say(Command.QUIT);
+			}
+		}
+		catch (IOException e) {
+			LOG.trace("An error occured while saying QUIT to a cancelled conversation.", e);
+		}
+		finally {
+			conversation.end();
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	/**
 	 * Factory method of a conversation
 	 * 
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * <p>
+ * The batch account query queries a batch of mail addresses (possibly of different domains) served by the same MTA at
+ * once, e.g. with a single SMTP session. The proxy implementations pass a batch on to their inner query, so the
+ * <code>BulkValidator</code> may use the same chain of queries as the <code>BasicValidator</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public interface BatchAccountQuery extends AccountQuery {
+
+	/**
+	 * Performs the query
+	 * 
+	 * @param mailAddresses
+	 *            The mail addresses to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddress
+	 *            The network address of the target mail server.
+	 * @param recipientLimit
+	 *            The maximum number of recipients per transaction
+	 * @return The results in the order of the mail addresses.
+	 */
+	public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+			int recipientLimit);
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.AbstractMailAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.smtp.SmtpResultCode.*;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+/**
+ * <p>
+ * This <code>AccountQuery</code> proxy implementation detects domains with a catch all MTA configuration. Before the
+ * first query for a domain the MTA is asked for a random (and surely not existing) account. If the MTA accepts this
+ * account, the domain will be marked as catch all domain and every further query for this domain returns
+ * <code>MTA_ACCEPTS_ANY_RECIPIENT</code> with <code>DOMAIN</code> validity without talking to the MTA again.
+ * </p>
+ * <p>
+ * A list of MTAs is passed on to an inner <code>MxListAccountQuery</code> for the probe and for the query, any other
+ * inner query is asked MTA by MTA.
+ * </p>
+ * <p>
+ * A batch of mail addresses is passed on to an inner <code>BatchAccountQuery</code> without the addresses of the
+ * known catch all domains; a probe is sent ahead of the first address of each domain without a verdict. Any other
+ * inner query is asked address by address.
+ * </p>
+ * <p>
+ * <i>Note:</i> The verdicts are cached for a defined time to live. Two concurrent first queries for the same domain
+ * may both probe the domain, which is harmless.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class CatchAllDetectingAccountQuery implements MxListAccountQuery, BatchAccountQuery {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(CatchAllDetectingAccountQuery.class);
+
+	/** Prefix of the random local part used for probing */
+	private static final String PROBE_PREFIX = "jaev-probe-";
+
+	/** The maximum number of cached verdicts */
+	private static final int CAPACITY = 10000;
+
+	/** Random number generator for the probe local parts */
+	private static final Random RANDOM = new Random();
+
+	/** Inner <code>AccountQuery</code> instance to use for the queries */
+	private final AccountQuery accountQuery;
+
+	/** The time to live of a verdict in milliseconds */
+	private final long timeToLive;
+
+	/** The verdicts per (lower case) domain */
+	private final ConcurrentMap<String, Verdict> verdicts = new LruMap<String, Verdict>(CAPACITY);
+
+	/**
+	 * Convenience constructor which caches the verdicts for one hour.
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 */
+	public CatchAllDetectingAccountQuery(AccountQuery accountQuery) {
+		this(accountQuery, 1, HOURS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 * @param timeToLive
+	 *            The time to live of a catch all verdict
+	 * @param timeToLiveUnit
+	 *            The time unit of the time to live
+	 */
+	public CatchAllDetectingAccountQuery(AccountQuery accountQuery, long timeToLive, TimeUnit timeToLiveUnit) {
+		this.accountQuery = notNull(accountQuery, "accountQuery");
+		this.timeToLive = notNull(timeToLiveUnit, "timeToLiveUnit").toMillis(timeToLive);
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+		String domain = notNull(mailAddress, "mailAddress").getDomain().toLowerCase();
+		long now = System.currentTimeMillis();
+
+		Verdict verdict = this.verdicts.get(domain);
+		if (verdict == null || verdict.isExpired(now)) {
+			// ask the MTA for an account which should not exist
+			Result probeResult = this.accountQuery.query(new ProbeAddress(mailAddress), fromAddress, mxAddress);
+			ResultCode probeCode = probeResult.getResultCode();
+
+			if (ADDRESS_VALID.equals(probeCode)) {
+				verdict = remember(domain, true, now);
+			}
+			else if (ADDRESS_UNKNOWN.equals(probeCode)) {
+				verdict = remember(domain, false, now);
+			}
+			else if (MTA_NOT_RESPONDING.equals(probeCode) || IO_ERROR_DURING_MTA_CONVERSATION.equals(probeCode)
+					|| TIMEOUT_DURING_MTA_CONVERSATION.equals(probeCode)) {
+				// the MTA is not reachable at all, so there is no need to try
+				// it again with the real address.
+				return Result.create(probeCode, probeResult.getValidity(), mailAddress, mxAddress);
+			}
+			else {
+				// no verdict possible, perform the query as usual
+				return this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+			}
+		}
+
+		if (verdict.isCatchAll()) {
+			return Result.create(MTA_ACCEPTS_ANY_RECIPIENT, DOMAIN, mailAddress, mailAddress.getDomain(), mxAddress);
+		}
+		else {
+			return this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+		}
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, List<InetAddress> mxAddresses,
+			Listener listener) {
+		if (!(this.accountQuery instanceof MxListAccountQuery)) {
+			return AccountQueries.queryInOrder(this, mailAddress, fromAddress, mxAddresses, listener);
+		}
+
+		MxListAccountQuery listQuery = (MxListAccountQuery) this.accountQuery;
+		String domain = notNull(mailAddress, "mailAddress").getDomain().toLowerCase();
+		long now = System.currentTimeMillis();
+
+		Verdict verdict = this.verdicts.get(domain);
+		if (verdict == null || verdict.isExpired(now)) {
+			// ask the MTAs for an account which should not exist
+			Result probeResult = listQuery.query(new ProbeAddress(mailAddress), fromAddress, mxAddresses, null);
+			ResultCode probeCode = probeResult == null ? null : probeResult.getResultCode();
+
+			if (ADDRESS_VALID.equals(probeCode)) {
+				verdict = remember(domain, true, now);
+			}
+			else if (ADDRESS_UNKNOWN.equals(probeCode)) {
+				verdict = remember(domain, false, now);
+			}
+			else if (MTA_NOT_RESPONDING.equals(probeCode) || IO_ERROR_DURING_MTA_CONVERSATION.equals(probeCode)
+					|| TIMEOUT_DURING_MTA_CONVERSATION.equals(probeCode)) {
+				// no MTA is reachable at all
+				return Result.create(probeCode, probeResult.getValidity(), mailAddress, mailAddress.getDomain());
+			}
+			else {
+				// no verdict possible, perform the query as usual
+				return listQuery.query(mailAddress, fromAddress, mxAddresses, listener);
+			}
+		}
+
+		if (verdict.isCatchAll()) {
+			return Result.create(MTA_ACCEPTS_ANY_RECIPIENT, DOMAIN, mailAddress, mailAddress.getDomain());
+		}
+		else {
+			return listQuery.query(mailAddress, fromAddress, mxAddresses, listener);
+		}
+	}
+
+	@Override
+	public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+			int recipientLimit) {
+		if (!(this.accountQuery instanceof BatchAccountQuery)) {
+			return AccountQueries.queryEach(this, mailAddresses, fromAddress, mxAddress);
+		}
+
+		long now = System.currentTimeMillis();
+		Result[] results = new Result[notNull(mailAddresses, "mailAddresses").size()];
+		int[] positions = new int[results.length];
+		List<MailAddress> batch = new ArrayList<MailAddress>(results.length);
+		Map<String, Integer> probes = new HashMap<String, Integer>();
+
+		for (int i = 0; i < results.length; ++i) {
+			MailAddress mailAddress = mailAddresses.get(i);
+			String domain = mailAddress.getDomain().toLowerCase();
+
+			Verdict verdict = this.verdicts.get(domain);
+			if (verdict == null || verdict.isExpired(now)) {
+				if (!probes.containsKey(domain)) {
+					// ask the MTA for an account which should not exist first
+					probes.put(domain, batch.size());
+					batch.add(new ProbeAddress(mailAddress));
+				}
+			}
+			else if (verdict.isCatchAll()) {
+				results[i] = Result.create(MTA_ACCEPTS_ANY_RECIPIENT, DOMAIN, mailAddress, mailAddress.getDomain(),
+						mxAddress);
+				continue;
+			}
+			positions[i] = batch.size();
+			batch.add(mailAddress);
+		}
+
+		if (batch.isEmpty()) {
+			return Arrays.asList(results);
+		}
+		List<Result> batchResults = ((BatchAccountQuery) this.accountQuery).query(batch, fromAddress, mxAddress,
+				recipientLimit);
+
+		for (Map.Entry<String, Integer> probe : probes.entrySet()) {
+			ResultCode probeCode = batchResults.get(probe.getValue()).getResultCode();
+			if (ADDRESS_VALID.equals(probeCode)) {
+				remember(probe.getKey(), true, now);
+			}
+			else if (ADDRESS_UNKNOWN.equals(probeCode)) {
+				remember(probe.getKey(), false, now);
+			}
+		}
+
+		for (int i = 0; i < results.length; ++i) {
+			if (results[i] == null) {
+				MailAddress mailAddress = mailAddresses.get(i);
+				Integer probe = probes.get(mailAddress.getDomain().toLowerCase());
+				if (probe != null && ADDRESS_VALID.equals(batchResults.get(probe).getResultCode())) {
+					results[i] = Result.create(MTA_ACCEPTS_ANY_RECIPIENT, DOMAIN, mailAddress,
+							mailAddress.getDomain(), mxAddress);
+				}
+				else {
+					results[i] = batchResults.get(positions[i]);
+				}
+			}
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Checks if the specified domain is currently known as catch all domain.
+	 * 
+	 * @param domain
+	 *            The domain to check
+	 * @return <code>true</code> if a valid catch all verdict exists for the domain
+	 */
+	public boolean isCatchAll(String domain) {
+		Verdict verdict = this.verdicts.get(notNull(domain, "domain").toLowerCase());
+
+		return verdict != null && !verdict.isExpired(System.currentTimeMillis()) && verdict.isCatchAll();
+	}
+
+	/**
+	 * Removes all cached verdicts.
+	 */
+	public void clear() {
+		this.verdicts.clear();
+	}
+
+	private Verdict remember(String domain, boolean catchAll, long now) {
+		if (catchAll) {
+			LOG.debug("Detected catch all configuration for domain '{}'.", domain);
+		}
+
+		Verdict verdict = new Verdict(catchAll, now + this.timeToLive);
+		this.verdicts.put(domain, verdict);
+		return verdict;
+	}
+
+	/**
+	 * The cached verdict for a domain
+	 */
+	private static final class Verdict {
+
+		private final boolean catchAll;
+
+		private final long expires;
+
+		private Verdict(boolean catchAll, long expires) {
+			this.catchAll = catchAll;
+			this.expires = expires;
+		}
+
+		private boolean isCatchAll() {
+			return this.catchAll;
+		}
+
+		private boolean isExpired(long now) {
+			return now >= this.expires;
+		}
+	}
+
+	/**
+	 * The mail address with the random local part used for probing
+	 */
+	private static final class ProbeAddress extends AbstractMailAddress {
+
+		private final String domain;
+
+		private ProbeAddress(MailAddress mailAddress) {
+			this(PROBE_PREFIX + Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE), mailAddress.getDomain(),
+					mailAddress.getDomainFormat());
+		}
+
+		private ProbeAddress(String localPart, String domain, DomainFormat domainFormat) {
+			super(localPart, domainFormat, localPart + "@" + domain);
+			this.domain = domain;
+		}
+
+		@Override
+		public String getDomain() {
+			return this.domain;
+		}
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.smtp.SmtpResultCode.*;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>
+ * This <code>AccountQuery</code> proxy implementation maintains a circuit breaker for each MTA address. After a
+ * defined number of consecutive connection failures (<code>MTA_NOT_RESPONDING</code>,
+ * <code>IO_ERROR_DURING_MTA_CONVERSATION</code> or <code>TIMEOUT_DURING_MTA_CONVERSATION</code>) the breaker opens
+ * and every further query to this MTA fails fast with the last failure result code. After the cool down period a
+ * single query is let through (half open); its outcome closes or re-opens the breaker.
+ * </p>
+ * <p>
+ * A list of MTAs is passed on to an inner <code>MxListAccountQuery</code> without the MTAs whose breaker is open; the
+ * outcomes reported by the inner query move the breakers. Any other inner query is asked MTA by MTA.
+ * </p>
+ * <p>
+ * A batch of mail addresses is passed on to an inner <code>BatchAccountQuery</code> as a single query: an open breaker
+ * fails the whole batch fast, and the result of the last mail address (which carries the failure of a broken session)
+ * moves the breaker. Any other inner query is asked address by address.
+ * </p>
+ * <p>
+ * The state of the breakers may be observed with <code>getState(..)</code> and <code>getStates()</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class CircuitBreakingAccountQuery implements MxListAccountQuery, BatchAccountQuery {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakingAccountQuery.class);
+
+	/** The maximum number of MTAs with a breaker */
+	private static final int CAPACITY = 10000;
+
+	/**
+	 * The states of a circuit breaker
+	 */
+	public enum State {
+		/** The MTA is queried as usual */
+		CLOSED,
+		/** The MTA failed repeatedly, queries fail fast */
+		OPEN,
+		/** A single query is let through to check if the MTA has recovered */
+		HALF_OPEN
+	}
+
+	/** Inner <code>AccountQuery</code> instance to use for the queries */
+	private final AccountQuery accountQuery;
+
+	/** Number of consecutive failures which open the breaker */
+	private final int failureThreshold;
+
+	/** The cool down period in milliseconds */
+	private final long coolDown;
+
+	/** The breakers per MTA address */
+	private final ConcurrentMap<InetAddress, Breaker> breakers = new LruMap<InetAddress, Breaker>(CAPACITY);
+
+	/**
+	 * Convenience constructor which opens the breaker after three consecutive
+	 * failures for thirty seconds.
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 */
+	public CircuitBreakingAccountQuery(AccountQuery accountQuery) {
+		this(accountQuery, 3, 30, SECONDS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 * @param failureThreshold
+	 *            Number of consecutive failures which open the breaker
+	 * @param coolDown
+	 *            The time an open breaker fails fast
+	 * @param coolDownUnit
+	 *            The time unit of the cool down
+	 */
+	public CircuitBreakingAccountQuery(AccountQuery accountQuery, int failureThreshold, long coolDown,
+			TimeUnit coolDownUnit) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("The failure threshold must be positive.");
+		}
+		this.accountQuery = notNull(accountQuery, "accountQuery");
+		this.failureThreshold = failureThreshold;
+		this.coolDown = notNull(coolDownUnit, "coolDownUnit").toMillis(coolDown);
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+		Breaker breaker = getBreaker(notNull(mxAddress, "mxAddress"));
+
+		ResultCode rejection = breaker.acquire(System.currentTimeMillis());
+		if (rejection != null) {
+			LOG.trace("Circuit breaker for MTA '{}' is open, failing fast.", mxAddress);
+
+			return Result.create(rejection, DOMAIN, mailAddress, mxAddress);
+		}
+
+		Result result = null;
+		try {
+			result = this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+			return result;
+		}
+		finally {
+			record(breaker, result);
+		}
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, List<InetAddress> mxAddresses,
+			Listener listener) {
+		if (!(this.accountQuery instanceof MxListAccountQuery)) {
+			return AccountQueries.queryInOrder(this, mailAddress, fromAddress, mxAddresses, listener);
+		}
+
+		long now = System.currentTimeMillis();
+		List<InetAddress> passed = new ArrayList<InetAddress>(notNull(mxAddresses, "mxAddresses").size());
+		ConcurrentMap<InetAddress, Breaker> acquired = new ConcurrentHashMap<InetAddress, Breaker>();
+		Result rejected = null;
+		for (InetAddress mxAddress : mxAddresses) {
+			Breaker breaker = getBreaker(notNull(mxAddress, "mxAddress"));
+			ResultCode rejection = breaker.acquire(now);
+			if (rejection == null) {
+				passed.add(mxAddress);
+				acquired.put(mxAddress, breaker);
+			}
+			else if (rejected == null) {
+				LOG.trace("Circuit breaker for MTA '{}' is open, failing fast.", mxAddress);
+				rejected = Result.create(rejection, DOMAIN, mailAddress, mxAddress);
+			}
+		}
+		if (passed.isEmpty()) {
+			return rejected;
+		}
+
+		try {
+			Result result = ((MxListAccountQuery) this.accountQuery).query(mailAddress, fromAddress, passed,
+					new BreakerListener(acquired, listener));
+			return result == null ? rejected : result;
+		}
+		finally {
+			// the MTAs which were not queried keep their state
+			for (Breaker breaker : acquired.values()) {
+				breaker.release();
+			}
+		}
+	}
+
+	@Override
+	public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+			int recipientLimit) {
+		if (!(this.accountQuery instanceof BatchAccountQuery) || notNull(mailAddresses, "mailAddresses").isEmpty()) {
+			return AccountQueries.queryEach(this, mailAddresses, fromAddress, mxAddress);
+		}
+
+		Breaker breaker = getBreaker(notNull(mxAddress, "mxAddress"));
+
+		ResultCode rejection = breaker.acquire(System.currentTimeMillis());
+		if (rejection != null) {
+			LOG.trace("Circuit breaker for MTA '{}' is open, failing fast.", mxAddress);
+
+			List<Result> results = new ArrayList<Result>(mailAddresses.size());
+			for (MailAddress mailAddress : mailAddresses) {
+				results.add(Result.create(rejection, DOMAIN, mailAddress, mxAddress));
+			}
+			return results;
+		}
+
+		List<Result> results = null;
+		try {
+			results = ((BatchAccountQuery) this.accountQuery).query(mailAddresses, fromAddress, mxAddress,
+					recipientLimit);
+			return results;
+		}
+		finally {
+			record(breaker, results == null ? null : results.get(results.size() - 1));
+		}
+	}
+
+	/**
+	 * Returns the current state of the breaker for an MTA address.
+	 * 
+	 * @param mxAddress
+	 *            The MTA address
+	 * @return The state, <code>CLOSED</code> if the MTA is unknown.
+	 */
+	public State getState(InetAddress mxAddress) {
+		Breaker breaker = this.breakers.get(notNull(mxAddress, "mxAddress"));
+
+		return breaker == null ? State.CLOSED : breaker.getState();
+	}
+
+	/**
+	 * Returns a snapshot of the states of all known breakers.
+	 * 
+	 * @return Map of MTA addresses to breaker states
+	 */
+	public Map<InetAddress, State> getStates() {
+		Map<InetAddress, State> states = new java.util.HashMap<InetAddress, State>();
+		for (Map.Entry<InetAddress, Breaker> entry : this.breakers.entrySet()) {
+			states.put(entry.getKey(), entry.getValue().getState());
+		}
+
+		return Collections.unmodifiableMap(states);
+	}
+
+	/**
+	 * Resets the breaker of an MTA address to <code>CLOSED</code>.
+	 * 
+	 * @param mxAddress
+	 *            The MTA address
+	 */
+	public void reset(InetAddress mxAddress) {
+		this.breakers.remove(notNull(mxAddress, "mxAddress"));
+	}
+
+	private Breaker getBreaker(InetAddress mxAddress) {
+		Breaker breaker = this.breakers.get(mxAddress);
+		if (breaker == null) {
+			Breaker newBreaker = new Breaker(mxAddress);
+			breaker = this.breakers.putIfAbsent(mxAddress, newBreaker);
+			if (breaker == null) {
+				breaker = newBreaker;
+			}
+		}
+
+		return breaker;
+	}
+
+	private static void record(Breaker breaker, Result result) {
+		if (result == null || isConnectionFailure(result.getResultCode())) {
+			breaker.failure(result == null ? IO_ERROR_DURING_MTA_CONVERSATION : result.getResultCode(), System
+					.currentTimeMillis());
+		}
+		else {
+			breaker.success();
+		}
+	}
+
+	private static boolean isConnectionFailure(ResultCode resultCode) {
+		return MTA_NOT_RESPONDING.equals(resultCode) || IO_ERROR_DURING_MTA_CONVERSATION.equals(resultCode)
+				|| TIMEOUT_DURING_MTA_CONVERSATION.equals(resultCode);
+	}
+
+	/**
+	 * The circuit breaker for a single MTA
+	 */
+	private final class Breaker {
+
+		private final InetAddress mxAddress;
+
+		private State state = State.CLOSED;
+
+		private int failures = 0;
+
+		private long openedAt = 0;
+
+		private ResultCode lastFailure = MTA_NOT_RESPONDING;
+
+		private Breaker(InetAddress mxAddress) {
+			this.mxAddress = mxAddress;
+		}
+
+		/**
+		 * Acquires the permission to query the MTA.
+		 * 
+		 * @param now
+		 *            The current time
+		 * @return <code>null</code> if the query may be performed, otherwise
+		 *         the result code to fail with.
+		 */
+		private synchronized ResultCode acquire(long now) {
+			switch (this.state) {
+			case CLOSED:
+				return null;
+			case OPEN:
+				if (now - this.openedAt >= CircuitBreakingAccountQuery.this.coolDown) {
+					// let this single query through
+					this.state = State.HALF_OPEN;
+					LOG.debug("Circuit breaker for MTA '{}' is half open.", this.mxAddress);
+					return null;
+				}
+				return this.lastFailure;
+			case HALF_OPEN:
+				// another query is already checking the MTA
+				return this.lastFailure;
+			default:
+				throw new AssertionError("Unknown circuit breaker state '" + this.state + "'.");
+			}
+		}
+
+		/**
+		 * Returns the permission of a query which was not performed.
+		 */
+		private synchronized void release() {
+			if (this.state == State.HALF_OPEN) {
+				// let the next query check the MTA
+				this.state = State.OPEN;
+			}
+		}
+
+		private synchronized void success() {
+			if (this.state != State.CLOSED) {
+				LOG.debug("Circuit breaker for MTA '{}' is closed.", this.mxAddress);
+			}
+			this.state = State.CLOSED;
+			this.failures = 0;
+		}
+
+		private synchronized void failure(ResultCode resultCode, long now) {
+			this.lastFailure = resultCode;
+			++this.failures;
+
+			if (this.state == State.HALF_OPEN || this.failures >= CircuitBreakingAccountQuery.this.failureThreshold) {
+				if (this.state != State.OPEN && LOG.isDebugEnabled()) {
+					LOG.debug("Circuit breaker for MTA '" + this.mxAddress + "' is open after " + this.failures
+							+ " consecutive failures.");
+				}
+				this.state = State.OPEN;
+				this.openedAt = now;
+			}
+		}
+
+		private synchronized State getState() {
+			return this.state;
+		}
+	}
+
+	/**
+	 * Moves the breakers of the MTAs queried by an inner MX list query
+	 */
+	private final class BreakerListener implements Listener {
+
+		private final ConcurrentMap<InetAddress, Breaker> acquired;
+
+		private final Listener listener;
+
+		private BreakerListener(ConcurrentMap<InetAddress, Breaker> acquired, Listener listener) {
+			this.acquired = acquired;
+			this.listener = listener;
+		}
+
+		@Override
+		public void queried(MailAddress mailAddress, InetAddress mxAddress, Result result, long latency,
+				TimeUnit unit) {
+			Breaker breaker = this.acquired.remove(mxAddress);
+			if (breaker != null) {
+				record(breaker, result);
+			}
+			if (this.listener != null) {
+				this.listener.queried(mailAddress, mxAddress, result, latency, unit);
+			}
+		}
+	}
+}
@@ -16,8 +16,8 @@
 
 package net.nicl.jaev.smtp;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import static net.nicl.jaev.Check.notBlank;
 import static net.nicl.jaev.Check.notNull;
@@ -28,22 +28,31 @@ import static net.nicl.jaev.Check.notNull;
  * command string to send to the mail server (using the <code>brief()</code> method. Furthermore the
  * <code>Command</code> class provides prototype
  * commands for all relevant SMTP commands.
+ * <p>
+ * Every command carries its fixed parts (e.g. <code>MAIL FROM:&lt;</code> and <code>&gt;\r\n</code>) pre-encoded as
+ * read-only byte buffers, so a conversation may send a prototype together with its parameter (
+ * <code>Conversation.say(Command, String)</code>) without particularising it first.
+ * </p>
  * 
  * @author Niclas Meier
  */
 public abstract class Command {
 
-	private static final Logger LOG = LoggerFactory.getLogger(Command.class);
+	/** Character set for US-ASCII */
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+	/** The line terminator of a command */
+	private static final String CRLF = "\r\n";
 
 	/**
 	 * The HELO command prototype
 	 */
-	public static final Command HELO = new Command("HELO ") {
+	public static final Command HELO = new Command("HELO ", "") {
 
 		@Override
 		public Command particularise(String... strings) {
 
-			return new ParticularCommand(this.verb, notBlank(strings[0], "senderDomain"));
+			return new ParticularCommand(this, notBlank(strings[0], "senderDomain"));
 		}
 
 	};
@@ -51,12 +60,12 @@ public abstract class Command {
 	/**
 	 * The MAIL (from) command prototype
 	 */
-	public static final Command MAIL = new Command("MAIL FROM:") {
+	public static final Command MAIL = new Command("MAIL FROM:<", ">") {
 
 		@Override
 		public Command particularise(String... strings) {
 
-			return new ParticularCommand(this.verb, "<" + notBlank(strings[0], "sender") + ">");
+			return new ParticularCommand(this, notBlank(strings[0], "sender"));
 		}
 
 	};
@@ -64,12 +73,12 @@ public abstract class Command {
 	/**
 	 * The RCPT (recipient to) command prototype
 	 */
-	public static final Command RECIPIENT_TO = new Command("RCPT TO:") {
+	public static final Command RECIPIENT_TO = new Command("RCPT TO:<", ">") {
 
 		@Override
 		public Command particularise(String... strings) {
 
-			return new ParticularCommand(this.verb, "<" + notBlank(strings[0], "recipient") + ">");
+			return new ParticularCommand(this, notBlank(strings[0], "recipient"));
 		}
 
 	};
@@ -77,12 +86,12 @@ public abstract class Command {
 	/**
 	 * The VRFY (verify) command prototype
 	 */
-	public static final Command VERIFY = new Command("VRFY: ") {
+	public static final Command VERIFY = new Command("VRFY ", "") {
 
 		@Override
 		public Command particularise(String... strings) {
 
-			return new ParticularCommand(this.verb, notBlank(strings[0], "mail"));
+			return new ParticularCommand(this, notBlank(strings[0], "mail"));
 		}
 
 	};
@@ -90,7 +99,17 @@ public abstract class Command {
 	/**
 	 * The QUIT command prototype
 	 */
-	public static final Command QUIT = new ParticularCommand("QUIT", null);
+	public static final Command QUIT = new ParticularCommand("QUIT", null, "");
+
+	/**
+	 * The RSET (reset) command prototype
+	 */
+	public static final Command RESET = new ParticularCommand("RSET", null, "");
+
+	/**
+	 * The NOOP command prototype
+	 */
+	public static final Command NOOP = new ParticularCommand("NOOP", null, "");
 
 	/**
 	 * The verb to send to the SMTP MTA
@@ -102,6 +121,21 @@ public abstract class Command {
 	 */
 	protected String parameter = null;
 
+	/**
+	 * Text to send after the parameter (without the line terminator)
+	 */
+	private final String suffix;
+
+	/**
+	 * The pre-encoded verb
+	 */
+	private final ByteBuffer encodedVerb;
+
+	/**
+	 * The pre-encoded suffix including the line terminator
+	 */
+	private final ByteBuffer encodedSuffix;
+
 	/**
 	 * Default constructor for command
 	 * 
@@ -109,7 +143,26 @@ public abstract class Command {
 	 *            The verb related to a particular command.
 	 */
 	protected Command(String verb) {
-		this.verb = notNull(verb, "verb");
+		this(verb, "");
+	}
+
+	/**
+	 * Constructor for a command with a suffix after the parameter
+	 * 
+	 * @param verb
+	 *            The verb related to a particular command.
+	 * @param suffix
+	 *            Text to send after the parameter
+	 */
+	Command(String verb, String suffix) {
+		this(verb, suffix, encode(notNull(verb, "verb")), encode(notNull(suffix, "suffix") + CRLF));
+	}
+
+	private Command(String verb, String suffix, ByteBuffer encodedVerb, ByteBuffer encodedSuffix) {
+		this.verb = verb;
+		this.suffix = suffix;
+		this.encodedVerb = encodedVerb;
+		this.encodedSuffix = encodedSuffix;
 	}
 
 	/**
@@ -130,6 +183,49 @@ public abstract class Command {
 		throw new IllegalStateException("A not particularised command cannot " + "perform a briefing.");
 	}
 
+	/**
+	 * Checks if the command is particular, i.e. it may be sent without a
+	 * further parameter.
+	 * 
+	 * @return <code>true</code> if the command is particular.
+	 */
+	boolean isParticular() {
+		return false;
+	}
+
+	/**
+	 * Returns the text sent after the parameter.
+	 * 
+	 * @return The suffix without the line terminator
+	 */
+	String getSuffix() {
+		return this.suffix;
+	}
+
+	/**
+	 * Returns the pre-encoded verb. The buffer is shared, callers must use a
+	 * duplicate to change its position.
+	 * 
+	 * @return A read-only buffer
+	 */
+	ByteBuffer getEncodedVerb() {
+		return this.encodedVerb;
+	}
+
+	/**
+	 * Returns the pre-encoded suffix including the line terminator. The buffer
+	 * is shared, callers must use a duplicate to change its position.
+	 * 
+	 * @return A read-only buffer
+	 */
+	ByteBuffer getEncodedSuffix() {
+		return this.encodedSuffix;
+	}
+
+	private static ByteBuffer encode(String string) {
+		return ByteBuffer.wrap(string.getBytes(CHARSET)).asReadOnlyBuffer();
+	}
+
 	/**
 	 * An already particular command
 	 */
@@ -137,6 +233,20 @@ public abstract class Command {
 
 		private final String briefing;
 
+		/**
+		 * Constructor for a particularised prototype
+		 * 
+		 * @param prototype
+		 *            The prototype command
+		 * @param parameter
+		 *            The parameter for this command
+		 */
+		private ParticularCommand(Command prototype, String parameter) {
+			super(prototype.verb, prototype.suffix, prototype.encodedVerb, prototype.encodedSuffix);
+			this.parameter = parameter;
+			this.briefing = this.verb + this.parameter + prototype.suffix;
+		}
+
 		/**
 		 * Default constructor
 		 * 
@@ -144,11 +254,13 @@ public abstract class Command {
 		 *            The verb related to a particular command.
 		 * @param parameter
 		 *            The parameter for this command
+		 * @param suffix
+		 *            Text to send after the parameter
 		 */
-		private ParticularCommand(String verb, String parameter) {
-			super(verb);
+		private ParticularCommand(String verb, String parameter, String suffix) {
+			super(verb, suffix);
 			this.parameter = parameter;
-			this.briefing = this.parameter == null ? this.verb : this.verb + this.parameter;
+			this.briefing = this.parameter == null ? this.verb : this.verb + this.parameter + suffix;
 		}
 
 		@Override
@@ -158,11 +270,14 @@ public abstract class Command {
 
 		@Override
 		public String brief() {
-			LOG.debug("Command: {}", this.briefing);
-
 			return this.briefing;
 		}
 
+		@Override
+		boolean isParticular() {
+			return true;
+		}
+
 		@Override
 		public String toString() {
 			return "[" + getClass().getSimpleName() + ": " + brief() + "]";
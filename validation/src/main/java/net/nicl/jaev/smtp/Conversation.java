@@ -39,6 +39,20 @@ public interface Conversation {
 
 	public void say(Command command) throws IOException;
 
+	/**
+	 * Transmits a command prototype with a parameter to the MTA. This is
+	 * equivalent to <code>say(command.particularise(parameter))</code> but
+	 * does not require a particular command instance.
+	 * 
+	 * @param command
+	 *            The command prototype
+	 * @param parameter
+	 *            The parameter of the command
+	 * @throws IOException
+	 *             if the command cannot be transmitted
+	 */
+	public void say(Command command, String parameter) throws IOException;
+
 	public Reply listen() throws IOException;
 
 	public void end();
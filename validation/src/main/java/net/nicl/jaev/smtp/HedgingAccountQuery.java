@@ -0,0 +1,281 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ResultCode.Type.LOGICAL;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.smtp.SmtpResultCode.IO_ERROR_DURING_MTA_CONVERSATION;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * <p>
+ * This <code>AccountQuery</code> proxy implementation queries a list of MTAs with hedged requests. The MTAs are
+ * queried in order, but if the current MTA has not answered within the hedging threshold, a second query to the next
+ * MTA is started while the first one keeps running. The first authoritative answer (a result with a logical result
+ * code, e.g. <code>ADDRESS_VALID</code> or <code>ADDRESS_UNKNOWN</code>) wins; all other running queries are cancelled
+ * by interrupting them, which makes the <code>BasicAccountQuery</code> end its conversation with <code>QUIT</code>.
+ * </p>
+ * <p>
+ * The threshold adapts to the observed latency of the authoritative answers (smoothed latency plus four times the
+ * smoothed deviation, like a TCP retransmission timeout) and is bounded by the minimum and maximum threshold.
+ * </p>
+ * <p>
+ * The <code>BasicValidator</code> passes the whole MX list to this query (also through the proxy implementations
+ * wrapping it), a single MTA is queried without hedging. The outcome of each MTA which answered before the winner is
+ * reported to the listener, the cancelled queries are not. A batch of mail addresses is queried with a single MTA, so
+ * it is passed on to the inner query without hedging.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class HedgingAccountQuery implements MxListAccountQuery, BatchAccountQuery {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(HedgingAccountQuery.class);
+
+	/** Inner <code>AccountQuery</code> instance to use for the queries */
+	private final AccountQuery accountQuery;
+
+	/** Executor service for the query execution */
+	private final ExecutorService executorService;
+
+	/** The minimum threshold in milliseconds */
+	private final long minThreshold;
+
+	/** The maximum threshold in milliseconds */
+	private final long maxThreshold;
+
+	/** The smoothed latency in milliseconds, negative if no latency is known */
+	private double latency = -1;
+
+	/** The smoothed latency deviation in milliseconds */
+	private double deviation = 0;
+
+	/**
+	 * Convenience constructor with a threshold between 500 milliseconds and
+	 * five seconds.
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 * @param executorService
+	 *            The executor service instance to use
+	 */
+	public HedgingAccountQuery(AccountQuery accountQuery, ExecutorService executorService) {
+		this(accountQuery, executorService, 500, 5000, MILLISECONDS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 * @param executorService
+	 *            The executor service instance to use
+	 * @param minThreshold
+	 *            The minimum hedging threshold
+	 * @param maxThreshold
+	 *            The maximum hedging threshold, used until a latency is known
+	 * @param thresholdUnit
+	 *            The time unit of the thresholds
+	 */
+	public HedgingAccountQuery(AccountQuery accountQuery, ExecutorService executorService, long minThreshold,
+			long maxThreshold, TimeUnit thresholdUnit) {
+		this.accountQuery = notNull(accountQuery, "accountQuery");
+		this.executorService = notNull(executorService, "executorService");
+		this.minThreshold = notNull(thresholdUnit, "thresholdUnit").toMillis(minThreshold);
+		this.maxThreshold = Math.max(this.minThreshold, thresholdUnit.toMillis(maxThreshold));
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+		return this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+	}
+
+	@Override
+	public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+			int recipientLimit) {
+		return AccountQueries.query(this.accountQuery, mailAddresses, fromAddress, mxAddress, recipientLimit);
+	}
+
+	/**
+	 * Performs hedged queries to the specified MTAs.
+	 * 
+	 * @param mailAddress
+	 *            The mail address to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddresses
+	 *            The network addresses of the mail servers in preference
+	 *            order.
+	 * @return The first authoritative result or the result of the last MTA.
+	 */
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, List<InetAddress> mxAddresses) {
+		return query(mailAddress, fromAddress, mxAddresses, null);
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, List<InetAddress> mxAddresses,
+			Listener listener) {
+		if (notNull(mxAddresses, "mxAddresses").size() == 1) {
+			return AccountQueries.queryInOrder(this.accountQuery, mailAddress, fromAddress, mxAddresses, listener);
+		}
+
+		CompletionService<Result> completionService = new ExecutorCompletionService<Result>(this.executorService);
+		Map<Future<Result>, Hedge> running = new IdentityHashMap<Future<Result>, Hedge>();
+		Iterator<InetAddress> mxAddressIterator = mxAddresses.iterator();
+		Result result = null;
+
+		try {
+			if (mxAddressIterator.hasNext()) {
+				submit(completionService, running, mailAddress, fromAddress, mxAddressIterator.next());
+			}
+
+			while (!running.isEmpty()) {
+				Future<Result> completed;
+				if (mxAddressIterator.hasNext()) {
+					completed = completionService.poll(getThreshold(MILLISECONDS), MILLISECONDS);
+					if (completed == null) {
+						InetAddress mxAddress = mxAddressIterator.next();
+						LOG.debug("Hedging the query for '{}' with MTA '{}'.", mailAddress, mxAddress);
+						submit(completionService, running, mailAddress, fromAddress, mxAddress);
+						continue;
+					}
+				}
+				else {
+					completed = completionService.take();
+				}
+
+				Hedge hedge = running.remove(completed);
+				result = get(completed, mailAddress);
+				long latency = System.currentTimeMillis() - hedge.started;
+				if (listener != null) {
+					listener.queried(mailAddress, hedge.mxAddress, result, latency, MILLISECONDS);
+				}
+
+				if (LOGICAL.equals(result.getResultCode().getType())) {
+					sample(latency);
+					return result;
+				}
+
+				if (running.isEmpty() && mxAddressIterator.hasNext()) {
+					// the query failed before the threshold, go on with the next MTA
+					submit(completionService, running, mailAddress, fromAddress, mxAddressIterator.next());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (RejectedExecutionException e) {
+			LOG.debug("A hedged query for '{}' was rejected.", mailAddress);
+		}
+		finally {
+			// cancel the losers
+			for (Future<Result> future : running.keySet()) {
+				future.cancel(true);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the current hedging threshold.
+	 * 
+	 * @param unit
+	 *            The time unit of the returned threshold
+	 * @return The threshold
+	 */
+	public synchronized long getThreshold(TimeUnit unit) {
+		long threshold = this.latency < 0 ? this.maxThreshold : (long) (this.latency + 4 * this.deviation);
+
+		return unit.convert(Math.max(this.minThreshold, Math.min(this.maxThreshold, threshold)), MILLISECONDS);
+	}
+
+	private synchronized void sample(long millis) {
+		if (this.latency < 0) {
+			this.latency = millis;
+			this.deviation = millis / 2.0;
+		}
+		else {
+			this.deviation += (Math.abs(millis - this.latency) - this.deviation) / 4;
+			this.latency += (millis - this.latency) / 8;
+		}
+	}
+
+	private void submit(CompletionService<Result> completionService, Map<Future<Result>, Hedge> running,
+			final MailAddress mailAddress, final MailAddress fromAddress, final InetAddress mxAddress) {
+		Future<Result> future = completionService.submit(new Callable<Result>() {
+
+			@Override
+			public Result call() {
+				try {
+					return HedgingAccountQuery.this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+				}
+				catch (RuntimeException e) {
+					LOG.debug("A hedged query to MTA '" + mxAddress + "' failed.", e);
+					return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
+				}
+			}
+		});
+		running.put(future, new Hedge(mxAddress));
+	}
+
+	private static Result get(Future<Result> future, MailAddress mailAddress) throws InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			LOG.debug("A hedged query for '" + mailAddress + "' failed.", e.getCause());
+			return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mailAddress.getDomain());
+		}
+	}
+
+	/**
+	 * A running query
+	 */
+	private static final class Hedge {
+
+		private final InetAddress mxAddress;
+
+		private final long started = System.currentTimeMillis();
+
+		private Hedge(InetAddress mxAddress) {
+			this.mxAddress = mxAddress;
+		}
+	}
+}
@@ -31,7 +31,7 @@ import java.util.EnumSet;
 import java.util.Map;
 
 import static java.util.EnumSet.of;
-import static net.nicl.jaev.Utilities.isNotEmpty;
+import static net.nicl.jaev.ResultCode.Type.LOGICAL;
 import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
 import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
 import static net.nicl.jaev.Validity.ACCESSIBLE;
@@ -72,8 +72,14 @@ public abstract class Idiom {
 			return success(conversation, mailAddress, fromAddress);
 		}
 		else {
-			if (isSpamSuspected(reply)) {
-				return endConversation(conversation, MTA_SUSPECTS_SPAM, DOMAIN, mailAddress, mailAddress.getDomain(),
+			ReplyClassifier.Signal signal = ReplyClassifier.getDefault().classify(reply, preferred(reply.getCode()));
+			ResultCode signalled = signal == null ? null : signalled(signal, reply.getCode());
+
+			if (signalled != null && LOGICAL.equals(signalled.getType())) {
+				return failure(conversation, mailAddress, fromAddress, signalled);
+			}
+			else if (signalled != null) {
+				return endConversation(conversation, signalled, DOMAIN, mailAddress, mailAddress.getDomain(),
 						conversation.getMxAddress());
 			}
 			else if (this.invalidReplies.containsKey(reply.getCode())) {
@@ -86,11 +92,49 @@ public abstract class Idiom {
 
 	}
 
-	private boolean isSpamSuspected(Reply reply) {
-		String message = reply.getMessage();
+	/**
+	 * Maps the signal of a reply, which is not a valid reply, to a result code.
+	 * 
+	 * @param signal
+	 *            The signal recognised by the <code>ReplyClassifier</code>
+	 * @param code
+	 *            The code of the reply
+	 * @return The result code or <code>null</code> to map the reply by its
+	 *         code
+	 */
+	protected ResultCode signalled(ReplyClassifier.Signal signal, Code code) {
+		switch (signal) {
+		case SPAM:
+			return MTA_SUSPECTS_SPAM;
+		case RATE_LIMITED:
+			return MTA_RATE_LIMITED;
+		case POLICY:
+			return MTA_POLICY_REJECTION;
+		case GREYLISTED:
+			return isTransient(code) ? MTA_DEFERS_RECIPIENT : null;
+		default:
+			return null;
+		}
+	}
 
-		return isNotEmpty(message) && message.toLowerCase().contains("spamhaus");
+	/**
+	 * Returns the signal which wins over the others if the reply matches it.
+	 * 
+	 * @param code
+	 *            The code of the reply
+	 * @return The preferred signal or <code>null</code> for the precedence of
+	 *         the <code>Signal</code> declaration
+	 */
+	protected ReplyClassifier.Signal preferred(Code code) {
+		return null;
+	}
 
+	static boolean isTransient(Code code) {
+		return code.getValue() >= 400 && code.getValue() < 500;
+	}
+
+	static boolean isPermanent(Code code) {
+		return code.getValue() >= 500 && code.getValue() < 600;
 	}
 
 	protected abstract void speak(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress)
@@ -163,7 +207,7 @@ public abstract class Idiom {
 		@Override
 		protected void speak(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress)
 				throws IOException {
-			conversation.say(Command.HELO.particularise(fromAddress.getDomain()));
+			conversation.say(Command.HELO, fromAddress.getDomain());
 		}
 
 		@Override
@@ -194,7 +238,7 @@ public abstract class Idiom {
 		@Override
 		protected void speak(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress)
 				throws IOException {
-			conversation.say(Command.MAIL.particularise(fromAddress.toString()));
+			conversation.say(Command.MAIL, fromAddress.toString());
 		}
 
 		@Override
@@ -224,7 +268,7 @@ public abstract class Idiom {
 		@Override
 		protected void speak(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress)
 				throws IOException {
-			conversation.say(Command.RECIPIENT_TO.particularise(mailAddress.toString()));
+			conversation.say(Command.RECIPIENT_TO, mailAddress.toString());
 		}
 
 		@Override
@@ -234,7 +278,82 @@ public abstract class Idiom {
 
 		@Override
 		protected void initInvalid(Map<Code, ResultCode> invalid) {
-			invalid.put(MAILBOX_UNAVAILABE, ADDRESS_UNKNOWN);
+			invalid.put(MAILBOX_NOT_AVAIABLE, ADDRESS_UNKNOWN);
+
+			// temporary failures (i.e. greylisting) may be retried later
+			invalid.put(SERVICE_NOT_AVAILABLE, MTA_DEFERS_RECIPIENT);
+			invalid.put(MAILBOX_UNAVAILABE, MTA_DEFERS_RECIPIENT);
+			invalid.put(LOCAL_ERROR_IN_PROCESSING, MTA_DEFERS_RECIPIENT);
+			invalid.put(INSUFFICENT_SYSTEM_STORAGE, MTA_DEFERS_RECIPIENT);
+		}
+
+		@Override
+		protected ReplyClassifier.Signal preferred(Code code) {
+			// a permanent failure naming the user is about the user, not the sender
+			return isPermanent(code) ? ReplyClassifier.Signal.UNKNOWN_USER : null;
+		}
+
+		@Override
+		protected ResultCode signalled(ReplyClassifier.Signal signal, Code code) {
+			// i.e. 554 5.1.1 or 553 user unknown
+			if (signal == ReplyClassifier.Signal.UNKNOWN_USER && isPermanent(code)) {
+				return ADDRESS_UNKNOWN;
+			}
+
+			return super.signalled(signal, code);
+		}
+	};
+
+	/**
+	 * Verifies the recipient address with <code>VRFY</code>. Unlike the other
+	 * idioms the conversation is not ended, so it may be continued with
+	 * <code>HELO</code>, <code>MAIL</code> and <code>RECIPIENT_TO</code>. If the
+	 * MTA cannot verify the address (e.g. <code>252</code> or <code>502</code>)
+	 * <code>null</code> is returned.
+	 */
+	public static final Idiom VERIFY = new Idiom(of(REQUESTED_MAIL_ACTION_OKAY, USER_NOT_LOCAL_FORWARD)) {
+
+		@Override
+		protected Result technical(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress) {
+			return null;
+		}
+
+		@Override
+		protected void speak(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress)
+				throws IOException {
+			conversation.say(Command.VERIFY, mailAddress.toString());
+		}
+
+		@Override
+		protected Result success(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress) {
+			return Result.create(ADDRESS_VALID, ACCESSIBLE, null, mailAddress, conversation.getMxAddress());
+		}
+
+		@Override
+		protected Result failure(Conversation conversation, MailAddress mailAddress, MailAddress fromAddress,
+				ResultCode suggested) {
+			return Result.create(suggested, DOMAIN, null, mailAddress, mailAddress.getDomain(), conversation
+					.getMxAddress());
+		}
+
+		@Override
+		protected void initInvalid(Map<Code, ResultCode> invalid) {
+			invalid.put(MAILBOX_NOT_AVAIABLE, ADDRESS_UNKNOWN);
+			invalid.put(MAILBOX_NAME_NOT_ALLOWED, ADDRESS_UNKNOWN);
+		}
+
+		@Override
+		protected ResultCode signalled(ReplyClassifier.Signal signal, Code code) {
+			switch (signal) {
+			case SPAM:
+			case RATE_LIMITED:
+				return super.signalled(signal, code);
+			case UNKNOWN_USER:
+				return isPermanent(code) ? ADDRESS_UNKNOWN : null;
+			default:
+				// a policy rejecting VRFY does not concern the address
+				return null;
+			}
 		}
 	};
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ResultCode.Type.LOGICAL;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * <p>
+ * The MX health table keeps the observed health of the MTAs: the success rate and the latency (both as exponentially
+ * weighted moving averages) and the last error. A query is successful if the MTA gave a logical answer, i.e.
+ * <code>ADDRESS_VALID</code> or <code>ADDRESS_UNKNOWN</code>. The <code>BasicValidator</code> uses the table to order
+ * the MTAs of a domain, so healthy and fast MTAs are tried first instead of walking the MX records in DNS order.
+ * </p>
+ * <p>
+ * The MTA that gave the last logical answer for a domain is sticky and tried first as long as it stays healthy. MTAs
+ * without observations (or whose observations expired) keep their DNS order behind the healthy MTAs, but are tried
+ * before the unhealthy ones, so a recovered MTA gets a chance again.
+ * </p>
+ * <p>
+ * As a listener of a <code>MxListAccountQuery</code> the table records the outcome of every MTA the query asked.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class MxHealthTable implements MxListAccountQuery.Listener {
+
+	/** The maximum number of MTAs and of domains in the table */
+	private static final int CAPACITY = 10000;
+
+	/** The weight of a new observation */
+	private static final double ALPHA = 0.2;
+
+	/** The success rate below which an MTA is unhealthy and not sticky */
+	private static final double HEALTHY_THRESHOLD = 0.5;
+
+	/** The latency which halves the score of an MTA in milliseconds */
+	private static final double LATENCY_SCALE = 2000;
+
+	/** The period observations are kept in milliseconds */
+	private final long expiry;
+
+	/** The health per MTA */
+	private final ConcurrentMap<InetAddress, Health> health = new LruMap<InetAddress, Health>(CAPACITY);
+
+	/** The MTA of the last logical answer per domain */
+	private final ConcurrentMap<String, InetAddress> authoritative = new LruMap<String, InetAddress>(CAPACITY);
+
+	/**
+	 * Convenience constructor which keeps observations for one hour.
+	 */
+	public MxHealthTable() {
+		this(60, MINUTES);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param expiry
+	 *            The period the observations of an MTA are kept after its last
+	 *            query
+	 * @param expiryUnit
+	 *            The time unit of the expiry
+	 */
+	public MxHealthTable(long expiry, TimeUnit expiryUnit) {
+		this.expiry = notNull(expiryUnit, "expiryUnit").toMillis(expiry);
+	}
+
+	/**
+	 * Records the outcome of a query.
+	 * 
+	 * @param domain
+	 *            The domain of the queried mail address
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @param result
+	 *            The result of the query
+	 * @param latency
+	 *            The duration of the query
+	 * @param unit
+	 *            The time unit of the latency
+	 */
+	public void record(String domain, InetAddress mxAddress, Result result, long latency, TimeUnit unit) {
+		notNull(mxAddress, "mxAddress");
+		ResultCode resultCode = notNull(result, "result").getResultCode();
+		boolean success = LOGICAL.equals(resultCode.getType());
+		long now = System.currentTimeMillis();
+
+		Health previous;
+		Health next;
+		do {
+			previous = this.health.get(mxAddress);
+			next = (previous == null || previous.isExpired(now, this.expiry) ? Health.INITIAL : previous).next(
+					success, notNull(unit, "unit").toMillis(latency), success ? null : resultCode, now);
+		}
+		while (previous == null ? this.health.putIfAbsent(mxAddress, next) != null : !this.health.replace(mxAddress,
+				previous, next));
+
+		String key = notBlank(domain, "domain").toLowerCase();
+		if (success) {
+			this.authoritative.put(key, mxAddress);
+		}
+	}
+
+	@Override
+	public void queried(MailAddress mailAddress, InetAddress mxAddress, Result result, long latency, TimeUnit unit) {
+		record(notNull(mailAddress, "mailAddress").getDomain(), mxAddress, result, latency, unit);
+	}
+
+	/**
+	 * Orders the MTAs of a domain: the sticky MTA of the domain first (if
+	 * healthy), then the healthy MTAs by their score, then the MTAs without
+	 * observations in the given order and finally the unhealthy MTAs by their
+	 * score.
+	 * 
+	 * @param domain
+	 *            The domain
+	 * @param mxAddresses
+	 *            The MTAs of the domain in DNS order
+	 * @return The ordered MTAs
+	 */
+	public List<InetAddress> order(String domain, List<InetAddress> mxAddresses) {
+		if (mxAddresses.size() < 2) {
+			return mxAddresses;
+		}
+		final long now = System.currentTimeMillis();
+		final Map<InetAddress, Health> known = new HashMap<InetAddress, Health>();
+		for (InetAddress mxAddress : mxAddresses) {
+			known.put(mxAddress, getHealth(mxAddress, now));
+		}
+
+		List<InetAddress> ordered = new ArrayList<InetAddress>(mxAddresses);
+		// a stable sort keeps the DNS order of the unknown MTAs
+		Collections.sort(ordered, new Comparator<InetAddress>() {
+
+			@Override
+			public int compare(InetAddress a, InetAddress b) {
+				Health first = known.get(a);
+				Health second = known.get(b);
+				int tier = tier(first) - tier(second);
+				if (tier != 0 || first == null) {
+					return tier;
+				}
+
+				return Double.compare(second.getScore(), first.getScore());
+			}
+		});
+
+		InetAddress sticky = domain == null ? null : this.authoritative.get(domain.toLowerCase());
+		if (sticky != null) {
+			Health health = getHealth(sticky, now);
+			if ((health == null || health.getSuccessRate() >= HEALTHY_THRESHOLD) && ordered.remove(sticky)) {
+				ordered.add(0, sticky);
+			}
+		}
+
+		return ordered;
+	}
+
+	/**
+	 * Returns the tier of an MTA: <code>0</code> if it is healthy,
+	 * <code>1</code> without observations and <code>2</code> if it is
+	 * unhealthy.
+	 */
+	private static int tier(Health health) {
+		if (health == null) {
+			return 1;
+		}
+
+		return health.getSuccessRate() >= HEALTHY_THRESHOLD ? 0 : 2;
+	}
+
+	/**
+	 * Returns the health of an MTA.
+	 * 
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @return The health or <code>null</code> if the MTA has no (recent)
+	 *         observations
+	 */
+	public Health getHealth(InetAddress mxAddress) {
+		return getHealth(notNull(mxAddress, "mxAddress"), System.currentTimeMillis());
+	}
+
+	private Health getHealth(InetAddress mxAddress, long now) {
+		Health health = this.health.get(mxAddress);
+		if (health != null && health.isExpired(now, this.expiry)) {
+			this.health.remove(mxAddress, health);
+			return null;
+		}
+
+		return health;
+	}
+
+	/**
+	 * Returns the health of all MTAs with recent observations.
+	 * 
+	 * @return An unmodifiable map of the health per MTA
+	 */
+	public Map<InetAddress, Health> getHealthTable() {
+		long now = System.currentTimeMillis();
+		Map<InetAddress, Health> table = new HashMap<InetAddress, Health>();
+		for (Map.Entry<InetAddress, Health> entry : this.health.entrySet()) {
+			if (!entry.getValue().isExpired(now, this.expiry)) {
+				table.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return Collections.unmodifiableMap(table);
+	}
+
+	/**
+	 * Returns the MTA that gave the last logical answer for a domain.
+	 * 
+	 * @param domain
+	 *            The domain
+	 * @return The MTA or <code>null</code> if unknown
+	 */
+	public InetAddress getAuthoritative(String domain) {
+		return this.authoritative.get(notBlank(domain, "domain").toLowerCase());
+	}
+
+	/**
+	 * The immutable health of an MTA
+	 */
+	public static final class Health {
+
+		/** The health before the first observation */
+		private static final Health INITIAL = new Health(1, -1, 0, null, 0, 0);
+
+		private final double successRate;
+
+		/** The latency in milliseconds, <code>-1</code> before the first observation */
+		private final double latency;
+
+		private final long samples;
+
+		private final ResultCode lastError;
+
+		private final long lastErrorTime;
+
+		private final long lastUpdate;
+
+		private Health(double successRate, double latency, long samples, ResultCode lastError, long lastErrorTime,
+				long lastUpdate) {
+			this.successRate = successRate;
+			this.latency = latency;
+			this.samples = samples;
+			this.lastError = lastError;
+			this.lastErrorTime = lastErrorTime;
+			this.lastUpdate = lastUpdate;
+		}
+
+		private Health next(boolean success, long latency, ResultCode error, long now) {
+			double rate = this.samples == 0 ? (success ? 1 : 0) : this.successRate + ALPHA
+					* ((success ? 1 : 0) - this.successRate);
+			double average = this.latency < 0 ? latency : this.latency + ALPHA * (latency - this.latency);
+
+			return new Health(rate, average, this.samples + 1, error != null ? error : this.lastError,
+					error != null ? now : this.lastErrorTime, now);
+		}
+
+		private boolean isExpired(long now, long expiry) {
+			return now - this.lastUpdate > expiry;
+		}
+
+		/**
+		 * Returns the score of the MTA, the success rate reduced by the
+		 * latency.
+		 * 
+		 * @return The score between <code>0</code> and <code>1</code>
+		 */
+		public double getScore() {
+			return this.successRate * LATENCY_SCALE / (LATENCY_SCALE + this.latency);
+		}
+
+		/**
+		 * Returns the moving average of the success rate.
+		 * 
+		 * @return The success rate between <code>0</code> and <code>1</code>
+		 */
+		public double getSuccessRate() {
+			return this.successRate;
+		}
+
+		/**
+		 * Returns the moving average of the latency.
+		 * 
+		 * @param unit
+		 *            The time unit of the returned latency
+		 * @return The latency
+		 */
+		public long getLatency(TimeUnit unit) {
+			return unit.convert(Math.round(this.latency), MILLISECONDS);
+		}
+
+		/**
+		 * Returns the number of observations.
+		 * 
+		 * @return The number of observations
+		 */
+		public long getSamples() {
+			return this.samples;
+		}
+
+		/**
+		 * Returns the result code of the last failed query.
+		 * 
+		 * @return The result code or <code>null</code> if no query failed
+		 */
+		public ResultCode getLastError() {
+			return this.lastError;
+		}
+
+		/**
+		 * Returns the time of the last failed query.
+		 * 
+		 * @return The time in milliseconds since the epoch or <code>0</code>
+		 */
+		public long getLastErrorTime() {
+			return this.lastErrorTime;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + Math.round(this.successRate * 100) + "% success, " + Math.round(this.latency) + " ms, "
+					+ this.samples + " samples, last error " + this.lastError + "]";
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The MX list account query queries the whole list of MTAs of a domain itself instead of being asked MTA by MTA, e.g.
+ * to hedge a slow MTA with the next one. The <code>BasicValidator</code> passes the MX list to every account query
+ * implementing this interface; the proxy implementations pass it on to their inner query.
+ * </p>
+ * <p>
+ * The outcome of each MTA which answered is reported to an optional <code>Listener</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public interface MxListAccountQuery extends AccountQuery {
+
+	/**
+	 * Performs the query
+	 * 
+	 * @param mailAddress
+	 *            The mail address to verify
+	 * @param fromAddress
+	 *            The from address for authentication at the MTA
+	 * @param mxAddresses
+	 *            The network addresses of the mail servers in preference
+	 *            order.
+	 * @param listener
+	 *            The listener for the outcome of each MTA, may be
+	 *            <code>null</code>
+	 * @return The result of the query, <code>null</code> if no MTA answered.
+	 */
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, List<InetAddress> mxAddresses,
+			Listener listener);
+
+	/**
+	 * The listener is told the outcome of each MTA queried for a mail address.
+	 * It may be called from the threads performing the queries.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when an MTA answered.
+		 * 
+		 * @param mailAddress
+		 *            The queried mail address
+		 * @param mxAddress
+		 *            The network address of the MTA
+		 * @param result
+		 *            The result of the MTA
+		 * @param latency
+		 *            The duration of the query
+		 * @param unit
+		 *            The time unit of the latency
+		 */
+		public void queried(MailAddress mailAddress, InetAddress mxAddress, Result result, long latency, TimeUnit unit);
+	}
+}
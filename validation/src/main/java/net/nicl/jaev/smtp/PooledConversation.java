@@ -0,0 +1,225 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static net.nicl.jaev.smtp.Reply.Code.EMPTY;
+import static net.nicl.jaev.smtp.Reply.Code.REQUESTED_MAIL_ACTION_OKAY;
+import static net.nicl.jaev.smtp.Reply.Code.SERVICE_NOT_AVAILABLE;
+
+/**
+ * <p>
+ * A conversation of the <code>SessionPool</code>. It wraps the conversation which holds the connection and defers
+ * <code>QUIT</code> and <code>end()</code> until the pool decides to keep or close the session. A session is broken
+ * (and closed instead of kept) after an <code>IOException</code>, a <code>421</code> reply or a closed connection.
+ * Only a session whose <code>HELO</code> was accepted may be kept, as the next borrower starts with
+ * <code>MAIL FROM</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+final class PooledConversation implements Conversation, Transcribed {
+
+	/** The conversation holding the connection */
+	private final Conversation conversation;
+
+	/** The key of the session within the pool */
+	private final String key;
+
+	/** The conversation was started */
+	private boolean started = false;
+
+	/** The last command was <code>HELO</code> */
+	private boolean greeting = false;
+
+	/** The MTA accepted the <code>HELO</code> */
+	private boolean greeted = false;
+
+	/** The borrower ended the conversation */
+	private boolean ended = false;
+
+	/** The session may not be reused */
+	private boolean broken = false;
+
+	/** The time the session was returned to the pool */
+	private long idleSince = 0;
+
+	PooledConversation(Conversation conversation, String key) {
+		this.conversation = conversation;
+		this.key = key;
+	}
+
+	public void init(InetAddress mxAddress, int port) {
+		if (!this.started) {
+			this.conversation.init(mxAddress, port);
+		}
+	}
+
+	public void start() throws IOException {
+		try {
+			this.conversation.start();
+			this.started = true;
+		}
+		catch (IOException e) {
+			this.broken = true;
+			throw e;
+		}
+	}
+
+	public void say(Command command) throws IOException {
+		if (command == Command.QUIT) {
+			// deferred until the pool closes the session
+			return;
+		}
+		try {
+			this.conversation.say(command);
+		}
+		catch (IOException e) {
+			this.broken = true;
+			throw e;
+		}
+	}
+
+	public void say(Command command, String parameter) throws IOException {
+		this.greeting = command == Command.HELO;
+		try {
+			this.conversation.say(command, parameter);
+		}
+		catch (IOException e) {
+			this.broken = true;
+			throw e;
+		}
+	}
+
+	public Reply listen() throws IOException {
+		try {
+			Reply reply = this.conversation.listen();
+			if (this.greeting) {
+				this.greeted = reply.getCode() == REQUESTED_MAIL_ACTION_OKAY;
+				this.greeting = false;
+			}
+			if (reply.getCode() == SERVICE_NOT_AVAILABLE || reply.getCode() == EMPTY) {
+				// the server is about to close the connection
+				this.broken = true;
+			}
+			return reply;
+		}
+		catch (IOException e) {
+			this.broken = true;
+			throw e;
+		}
+	}
+
+	public void end() {
+		this.ended = true;
+	}
+
+	public InetAddress getMxAddress() {
+		return this.conversation.getMxAddress();
+	}
+
+	public boolean isActive() {
+		return !this.ended && this.conversation.isActive();
+	}
+
+	@Override
+	public String getTranscript() {
+		return this.conversation instanceof Transcribed ? ((Transcribed) this.conversation).getTranscript() : null;
+	}
+
+	/**
+	 * Prepares the session for the next borrower, who gets a transcript of
+	 * its own.
+	 */
+	void borrowed() {
+		renew();
+		if (this.conversation instanceof SocketChannelConversation) {
+			((SocketChannelConversation) this.conversation).continueTranscript();
+		}
+	}
+
+	/**
+	 * Continues an ended conversation with a new deadline, i.e. for the next
+	 * recipient of a batch.
+	 */
+	void renew() {
+		this.ended = false;
+		if (this.conversation instanceof SocketChannelConversation) {
+			((SocketChannelConversation) this.conversation).renew();
+		}
+	}
+
+	/**
+	 * Sends a command on behalf of the pool and checks the reply.
+	 * 
+	 * @return <code>true</code> if the MTA replied <code>250</code>
+	 */
+	boolean check(Command command) {
+		if (this.broken || !this.conversation.isActive()) {
+			return false;
+		}
+		try {
+			this.conversation.say(command);
+
+			return listen().getCode() == REQUESTED_MAIL_ACTION_OKAY;
+		}
+		catch (IOException e) {
+			this.broken = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Says <code>QUIT</code> and ends the conversation holding the
+	 * connection.
+	 */
+	void close() {
+		try {
+			if (!this.broken && this.conversation.isActive()) {
+				this.conversation.say(Command.QUIT);
+			}
+		}
+		catch (IOException e) {
+			// the session is closed anyway
+		}
+		finally {
+			this.conversation.end();
+		}
+	}
+
+	String getKey() {
+		return this.key;
+	}
+
+	boolean isGreeted() {
+		return this.greeted;
+	}
+
+	boolean isBroken() {
+		return this.broken;
+	}
+
+	long getIdleSince() {
+		return this.idleSince;
+	}
+
+	void setIdleSince(long idleSince) {
+		this.idleSince = idleSince;
+	}
+}
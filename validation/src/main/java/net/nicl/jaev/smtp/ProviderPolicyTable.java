@@ -0,0 +1,486 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.Validity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.ACCOUNT;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.Validity.INVALID;
+import static net.nicl.jaev.Validity.SYNTAX;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>
+ * The provider policy table tells the <code>BasicValidator</code> how to treat the mail domains of known providers.
+ * Large consumer providers either accept any recipient or block probing, so a SMTP conversation with them costs a
+ * connection without telling anything. For those domains the table may skip the SMTP stage with a fixed validity or
+ * restrict the validation to the syntax and DNS checks.
+ * </p>
+ * <p>
+ * A policy is either keyed by the mail domain or by the host name of a MTA; a key starting with <code>*.</code>
+ * matches every sub domain, i.e. <code>*.google.com</code> matches <code>aspmx.l.google.com</code>. Domain policies
+ * are looked up before the MX records are resolved and take precedence over the policies of the MTAs, which are
+ * looked up afterwards, but before any <code>AccountQuery</code> is called.
+ * </p>
+ * <p>
+ * If the table is loaded from a URL it is reloaded when the source was modified, checked at most once per check
+ * interval. The check is triggered by a lookup, but runs on a background thread, so a lookup never waits for the
+ * source; the policies are published as an immutable snapshot and the lookups use the previous one until the reload
+ * is finished. A source without a modification date (<code>0</code>) is read on every check and the policies are
+ * replaced if its content changed. Each line of the source consists of the key type (<code>domain</code> or
+ * <code>mx</code>), the key, the action and for <code>SKIP</code> the validity granted, separated by white space:
+ * </p>
+ * 
+ * <pre>
+ * domain  example.com    SKIP      ACCESSIBLE
+ * mx      *.outlook.com  DNS_ONLY
+ * </pre>
+ * 
+ * @author Niclas Meier
+ */
+public class ProviderPolicyTable {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(ProviderPolicyTable.class);
+
+	/** The thread which reloads the policies of all tables */
+	private static final ExecutorService RELOADER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "jaev-policy-reload");
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
+
+	/** The validities by name */
+	private static final Map<String, Validity> VALIDITIES = new HashMap<String, Validity>();
+
+	static {
+		for (Validity validity : new Validity[] { INVALID, SYNTAX, DOMAIN, ACCOUNT, ACCESSIBLE }) {
+			VALIDITIES.put(validity.name(), validity);
+		}
+	}
+
+	/**
+	 * The action of a policy
+	 */
+	public enum Action {
+		/** Query the MTAs as usual */
+		PROBE,
+		/** Skip the validation with a fixed validity */
+		SKIP,
+		/** Check the syntax and the DNS, but do not query the MTAs */
+		DNS_ONLY
+	}
+
+	/**
+	 * The policy for a domain or a MTA
+	 */
+	public static final class Policy {
+
+		/** The policy to query the MTAs */
+		public static final Policy PROBE = new Policy(Action.PROBE, null);
+
+		/** The policy to check the syntax and the DNS only */
+		public static final Policy DNS_ONLY = new Policy(Action.DNS_ONLY, DOMAIN);
+
+		private final Action action;
+
+		private final Validity validity;
+
+		private Policy(Action action, Validity validity) {
+			this.action = action;
+			this.validity = validity;
+		}
+
+		/**
+		 * Creates a policy to skip the validation.
+		 * 
+		 * @param validity
+		 *            The validity granted without validation
+		 * @return The policy
+		 */
+		public static Policy skip(Validity validity) {
+			if (INVALID.equals(notNull(validity, "validity"))) {
+				throw new IllegalArgumentException("A skipped validation can not grant the validity INVALID.");
+			}
+
+			return new Policy(Action.SKIP, validity);
+		}
+
+		public Action getAction() {
+			return this.action;
+		}
+
+		/**
+		 * Returns the validity granted by the policy.
+		 * 
+		 * @return The validity or <code>null</code> if the MTAs are queried
+		 */
+		public Validity getValidity() {
+			return this.validity;
+		}
+
+		@Override
+		public String toString() {
+			return this.validity == null ? this.action.name() : this.action.name() + " " + this.validity;
+		}
+	}
+
+	/** The source URL of the policies, <code>null</code> for a fixed table */
+	private final URL sourceUrl;
+
+	/** The interval the source is checked for modifications in milliseconds */
+	private final long checkInterval;
+
+	/** Last modified date of the source */
+	private long lastModified = -1l;
+
+	/** The lines of the source, to detect changes of a source without a modification date */
+	private List<String> lines = null;
+
+	/** The time of the next modification check, <code>Long.MAX_VALUE</code> while a check is pending */
+	private final AtomicLong nextCheck = new AtomicLong();
+
+	/** The current policies */
+	private volatile Policies policies = new Policies(Collections.<String, Policy> emptyMap(), Collections
+			.<String, Policy> emptyMap());
+
+	/**
+	 * Convenience constructor which loads the default policies, which are not
+	 * reloaded.
+	 */
+	public ProviderPolicyTable() {
+		this(ProviderPolicyTable.class.getClassLoader().getResource("net/nicl/jaev/smtp/provider-policies.txt"), 0,
+				SECONDS);
+	}
+
+	/**
+	 * Convenience constructor which checks the source for modifications once
+	 * a minute.
+	 * 
+	 * @param sourceUrl
+	 *            The URL of the policy file
+	 */
+	public ProviderPolicyTable(URL sourceUrl) {
+		this(sourceUrl, 60, SECONDS);
+	}
+
+	/**
+	 * Constructor which loads the policies from a URL.
+	 * 
+	 * @param sourceUrl
+	 *            The URL of the policy file
+	 * @param checkInterval
+	 *            The interval the source is checked for modifications, 0 to
+	 *            load it once
+	 * @param unit
+	 *            The time unit of the interval
+	 */
+	public ProviderPolicyTable(URL sourceUrl, long checkInterval, TimeUnit unit) {
+		this.sourceUrl = notNull(sourceUrl, "sourceUrl");
+		this.checkInterval = notNull(unit, "unit").toMillis(checkInterval);
+		reload();
+	}
+
+	/**
+	 * Constructor for a fixed table.
+	 * 
+	 * @param domainPolicies
+	 *            The policies keyed by domain
+	 * @param mxPolicies
+	 *            The policies keyed by MTA host name
+	 */
+	public ProviderPolicyTable(Map<String, Policy> domainPolicies, Map<String, Policy> mxPolicies) {
+		this.sourceUrl = null;
+		this.checkInterval = 0;
+		this.policies = new Policies(normalise(notNull(domainPolicies, "domainPolicies")), normalise(notNull(
+				mxPolicies, "mxPolicies")));
+	}
+
+	/**
+	 * Returns the policy for a domain.
+	 * 
+	 * @param domain
+	 *            The domain of the mail address
+	 * @return The policy or <code>null</code> if the domain is unknown
+	 */
+	public Policy getPolicy(String domain) {
+		return lookup(current().domains, notNull(domain, "domain"));
+	}
+
+	/**
+	 * Returns the policy for a domain and its MTAs. The policy of the domain
+	 * precedes the policies of the MTAs, which are looked up in the order of
+	 * the list.
+	 * 
+	 * @param domain
+	 *            The domain of the mail address
+	 * @param mxAddresses
+	 *            The addresses of the MTAs of the domain
+	 * @return The policy or <code>null</code> if neither the domain nor a MTA
+	 *         is known
+	 */
+	public Policy getPolicy(String domain, List<InetAddress> mxAddresses) {
+		Policies policies = current();
+		Policy policy = lookup(policies.domains, notNull(domain, "domain"));
+		Map<String, Policy> mxPolicies = policies.mxs;
+
+		if (mxPolicies.isEmpty()) {
+			return policy;
+		}
+
+		for (int i = 0; policy == null && i < mxAddresses.size(); ++i) {
+			String hostName = hostName(mxAddresses.get(i));
+			if (hostName != null) {
+				policy = lookup(mxPolicies, hostName);
+			}
+		}
+
+		return policy;
+	}
+
+	/**
+	 * Reloads the policies if the source was modified. The policies of a
+	 * source without a modification date are reloaded if its content
+	 * changed.
+	 * 
+	 * @return <code>true</code> if new policies were loaded
+	 */
+	public synchronized boolean reload() {
+		if (this.sourceUrl == null) {
+			return false;
+		}
+
+		this.nextCheck.set(this.checkInterval > 0 ? System.currentTimeMillis() + this.checkInterval : Long.MAX_VALUE);
+
+		Map<String, Policy> domains = new HashMap<String, Policy>();
+		Map<String, Policy> mxs = new HashMap<String, Policy>();
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = null;
+		try {
+			URLConnection urlConnection = this.sourceUrl.openConnection();
+			long modificationDate = urlConnection.getLastModified();
+
+			if (modificationDate != 0 && this.lastModified >= 0 && this.lastModified >= modificationDate) {
+				return false;
+			}
+
+			reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), "US-ASCII"));
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				lines.add(line);
+			}
+
+			if (modificationDate == 0 && lines.equals(this.lines)) {
+				// the source has no modification date and did not change
+				return false;
+			}
+			for (String policyLine : lines) {
+				parse(policyLine, domains, mxs);
+			}
+
+			this.lastModified = modificationDate;
+			this.lines = lines;
+		}
+		catch (IOException e) {
+			LOG.error("Unable to read the provider policies due to an IO error.", e);
+			return false;
+		}
+		catch (IllegalArgumentException e) {
+			// keep the current policies
+			LOG.error("Unable to read the provider policies from '" + this.sourceUrl + "'.", e);
+			return false;
+		}
+		finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+			catch (IOException e) {
+				LOG.trace("An error occured while closing the reader.", e);
+			}
+		}
+
+		this.policies = new Policies(domains, mxs);
+
+		LOG.debug("Loaded {} domain and {} MTA policies.", domains.size(), mxs.size());
+
+		return true;
+	}
+
+	public Map<String, Policy> getDomainPolicies() {
+		return current().domains;
+	}
+
+	public Map<String, Policy> getMxPolicies() {
+		return current().mxs;
+	}
+
+	/**
+	 * Returns the current policies and triggers a background reload if the
+	 * source is due for a modification check.
+	 */
+	private Policies current() {
+		long nextCheck = this.nextCheck.get();
+		if (this.sourceUrl != null && System.currentTimeMillis() >= nextCheck
+				&& this.nextCheck.compareAndSet(nextCheck, Long.MAX_VALUE)) {
+			try {
+				RELOADER.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						reload();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				LOG.warn("Unable to schedule the reload of the provider policies.", e);
+				this.nextCheck.set(nextCheck);
+			}
+		}
+
+		return this.policies;
+	}
+
+	/**
+	 * Looks up the policy of a name, the name itself first and then the
+	 * wildcards of its parent domains.
+	 */
+	private static Policy lookup(Map<String, Policy> policies, String name) {
+		if (policies.isEmpty()) {
+			return null;
+		}
+
+		name = name.toLowerCase();
+		if (name.endsWith(".")) {
+			name = name.substring(0, name.length() - 1);
+		}
+
+		Policy policy = policies.get(name);
+		for (int i = name.indexOf('.'); policy == null && i >= 0; i = name.indexOf('.', i + 1)) {
+			policy = policies.get("*" + name.substring(i));
+		}
+
+		return policy;
+	}
+
+	/**
+	 * Returns the host name an address was resolved for without a reverse
+	 * lookup.
+	 */
+	private static String hostName(InetAddress address) {
+		// InetAddress.toString() yields "hostname/literal" and does not query
+		// the DNS unlike getHostName()
+		String string = address.toString();
+		int separator = string.indexOf('/');
+
+		return separator > 0 ? string.substring(0, separator) : null;
+	}
+
+	private static void parse(String line, Map<String, Policy> domains, Map<String, Policy> mxs) {
+		String[] parts = line.split("\\s+");
+		if (parts.length < 3 || parts.length > 4) {
+			throw new IllegalArgumentException("The provider policy '" + line + "' is malformed.");
+		}
+
+		Action action = Action.valueOf(parts[2].toUpperCase());
+		Policy policy;
+		switch (action) {
+		case SKIP:
+			Validity validity = parts.length == 4 ? VALIDITIES.get(parts[3].toUpperCase()) : DOMAIN;
+			if (validity == null) {
+				throw new IllegalArgumentException("The provider policy '" + line + "' has an unknown validity.");
+			}
+			policy = Policy.skip(validity);
+			break;
+		case DNS_ONLY:
+			policy = Policy.DNS_ONLY;
+			break;
+		default:
+			policy = Policy.PROBE;
+		}
+
+		if ("domain".equalsIgnoreCase(parts[0])) {
+			domains.put(parts[1].toLowerCase(), policy);
+		}
+		else if ("mx".equalsIgnoreCase(parts[0])) {
+			mxs.put(parts[1].toLowerCase(), policy);
+		}
+		else {
+			throw new IllegalArgumentException("The provider policy '" + line + "' has an unknown key type.");
+		}
+	}
+
+	private static Map<String, Policy> normalise(Map<String, Policy> policies) {
+		Map<String, Policy> result = new HashMap<String, Policy>();
+		for (Map.Entry<String, Policy> entry : policies.entrySet()) {
+			result.put(entry.getKey().toLowerCase(), notNull(entry.getValue(), "policy"));
+		}
+
+		return result;
+	}
+
+	/**
+	 * The immutable snapshot of the policies
+	 */
+	private static final class Policies {
+
+		/** The policies keyed by domain */
+		private final Map<String, Policy> domains;
+
+		/** The policies keyed by MTA host name */
+		private final Map<String, Policy> mxs;
+
+		private Policies(Map<String, Policy> domains, Map<String, Policy> mxs) {
+			this.domains = Collections.unmodifiableMap(domains);
+			this.mxs = Collections.unmodifiableMap(mxs);
+		}
+	}
+}
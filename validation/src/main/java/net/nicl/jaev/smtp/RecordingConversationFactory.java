@@ -0,0 +1,296 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * The recording conversation factory decorates the conversations of another factory and records every conversation
+ * with its commands, replies, failures and latencies into a stream, so the traffic can be served back by a
+ * <code>ReplayConversationFactory</code> later on, i.e. to benchmark changes of the SMTP engine offline against the
+ * conversations of a production day. In contrast to the <code>TranscriptRecorder</code>, which keeps the last records
+ * for diagnosis, the recording keeps everything.
+ * </p>
+ * <p>
+ * The recording is a compact binary stream of conversations. The stream may be compressed by the caller (i.e. with a
+ * <code>GZIPOutputStream</code>). A conversation is written with a single write when it ends (or is initialised
+ * again), so the recorder may be shared by concurrent threads; a failing stream is logged and does not affect the
+ * conversations.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class RecordingConversationFactory implements ConversationFactory {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(RecordingConversationFactory.class);
+
+	/** The magic number at the beginning of a recording */
+	static final int MAGIC = 0x4a635231;
+
+	/** The kinds of events */
+	static final byte START = 0, SAY = 1, LISTEN = 2, END = 3;
+
+	/** The outcomes of events */
+	static final byte SUCCESS = 0, FAILURE = 1;
+
+	/** The maximum number of characters recorded of a reply */
+	private static final int MAX_MESSAGE_LENGTH = 4096;
+
+	/** The factory of the decorated conversations */
+	private final ConversationFactory conversationFactory;
+
+	/** The stream of the recording */
+	private final DataOutputStream out;
+
+	/** The stream failed and does not record any more */
+	private boolean failed = false;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param conversationFactory
+	 *            The factory of the decorated conversations
+	 * @param out
+	 *            The stream of the recording
+	 * @throws IOException
+	 *             If the header of the recording could not be written
+	 */
+	public RecordingConversationFactory(ConversationFactory conversationFactory, OutputStream out) throws IOException {
+		this.conversationFactory = notNull(conversationFactory, "conversationFactory");
+		this.out = new DataOutputStream(new BufferedOutputStream(notNull(out, "out")));
+		this.out.writeInt(MAGIC);
+	}
+
+	@Override
+	public Conversation createConversation() {
+		return new RecordingConversation(this.conversationFactory.createConversation());
+	}
+
+	/**
+	 * Writes the buffered conversations to the stream.
+	 */
+	public synchronized void flush() {
+		try {
+			this.out.flush();
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Writes the buffered conversations and closes the stream.
+	 */
+	public synchronized void close() {
+		try {
+			this.out.close();
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void write(ByteArrayOutputStream conversation) {
+		synchronized (this) {
+			if (!this.failed) {
+				try {
+					conversation.writeTo(this.out);
+				}
+				catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+	}
+
+	private void fail(IOException e) {
+		if (!this.failed) {
+			LOG.warn("Unable to record the conversations, the recording stops.", e);
+			this.failed = true;
+		}
+	}
+
+	/**
+	 * The conversation recording its events into a buffer
+	 */
+	private final class RecordingConversation implements Conversation {
+
+		private final Conversation conversation;
+
+		private ByteArrayOutputStream bytes = null;
+
+		private DataOutputStream events = null;
+
+		private RecordingConversation(Conversation conversation) {
+			this.conversation = conversation;
+		}
+
+		public void init(InetAddress mxAddress, int port) {
+			complete();
+			this.conversation.init(mxAddress, port);
+
+			this.bytes = new ByteArrayOutputStream(256);
+			this.events = new DataOutputStream(this.bytes);
+			try {
+				this.events.writeUTF(mxAddress.getHostAddress());
+			}
+			catch (IOException e) {
+				// a ByteArrayOutputStream does not fail
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void start() throws IOException {
+			long start = System.nanoTime();
+			try {
+				this.conversation.start();
+				event(START, start, null);
+			}
+			catch (IOException e) {
+				event(START, start, e);
+				failed();
+				throw e;
+			}
+		}
+
+		public void say(Command command) throws IOException {
+			say(command, null);
+		}
+
+		public void say(Command command, String parameter) throws IOException {
+			long start = System.nanoTime();
+			try {
+				if (parameter == null) {
+					this.conversation.say(command);
+				}
+				else {
+					this.conversation.say(command, parameter);
+				}
+				event(SAY, start, null);
+				command(command, parameter);
+			}
+			catch (IOException e) {
+				event(SAY, start, e);
+				command(command, parameter);
+				failed();
+				throw e;
+			}
+		}
+
+		public Reply listen() throws IOException {
+			long start = System.nanoTime();
+			try {
+				Reply reply = this.conversation.listen();
+				event(LISTEN, start, null);
+				if (this.events != null) {
+					String message = reply.getMessage();
+					this.events.writeShort(reply.getCode().getValue());
+					this.events.writeBoolean(message != null);
+					if (message != null) {
+						this.events.writeUTF(message.length() > MAX_MESSAGE_LENGTH ? message.substring(0,
+								MAX_MESSAGE_LENGTH) : message);
+					}
+				}
+				return reply;
+			}
+			catch (IOException e) {
+				event(LISTEN, start, e);
+				failed();
+				throw e;
+			}
+		}
+
+		public void end() {
+			this.conversation.end();
+			complete();
+		}
+
+		public InetAddress getMxAddress() {
+			return this.conversation.getMxAddress();
+		}
+
+		public boolean isActive() {
+			return this.conversation.isActive();
+		}
+
+		/**
+		 * Records an event, the successful events are followed by their data.
+		 */
+		private void event(byte kind, long start, IOException failure) throws IOException {
+			if (this.events == null) {
+				return;
+			}
+			this.events.writeByte(kind);
+			this.events.writeInt((int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - start) / 1000));
+			this.events.writeByte(failure == null ? SUCCESS : FAILURE);
+			if (failure != null) {
+				this.events.writeUTF(failure.getClass().getName());
+				this.events.writeUTF(failure.getMessage() != null ? failure.getMessage() : "");
+			}
+		}
+
+		/**
+		 * Records the command of a said event.
+		 */
+		private void command(Command command, String parameter) throws IOException {
+			if (this.events != null) {
+				this.events.writeUTF(command.verb);
+				this.events.writeUTF(parameter != null ? parameter : command.parameter != null ? command.parameter : "");
+			}
+		}
+
+		/**
+		 * Completes the conversation after a failure which closed it, the
+		 * closed conversations are not ended by the account query.
+		 */
+		private void failed() {
+			if (!this.conversation.isActive()) {
+				complete();
+			}
+		}
+
+		/**
+		 * Writes the events of the conversation to the recording.
+		 */
+		private void complete() {
+			if (this.events != null) {
+				try {
+					this.events.writeByte(END);
+				}
+				catch (IOException e) {
+					// a ByteArrayOutputStream does not fail
+					throw new IllegalStateException(e);
+				}
+				write(this.bytes);
+				this.bytes = null;
+				this.events = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.smtp.RecordingConversationFactory.END;
+import static net.nicl.jaev.smtp.RecordingConversationFactory.FAILURE;
+import static net.nicl.jaev.smtp.RecordingConversationFactory.LISTEN;
+import static net.nicl.jaev.smtp.RecordingConversationFactory.MAGIC;
+import static net.nicl.jaev.smtp.RecordingConversationFactory.SAY;
+import static net.nicl.jaev.smtp.RecordingConversationFactory.START;
+
+/**
+ * <p>
+ * The replay conversation factory serves the conversations of a recording of the
+ * <code>RecordingConversationFactory</code> without a network. A conversation with an MTA replays the recorded
+ * conversations with the same MTA in the order of the recording and starts over when they are used up, so a replay is
+ * deterministic and can be repeated.
+ * </p>
+ * <p>
+ * The replies are served by command: a command is matched to the next recorded command with the same verb, the
+ * following listen returns the reply recorded for it. Recipients (and verified mail addresses) are matched by their
+ * parameter, so a recipient gets the replies recorded for it even if concurrent conversations are replayed in another
+ * order. The failures are replayed with the recorded type of the exception, so timeouts and refused connections map to
+ * the same results. A conversation with an MTA which was not recorded is refused and a command which was not recorded
+ * fails with an <code>IOException</code>; both are counted as misses.
+ * </p>
+ * <p>
+ * The recorded latencies are scaled by the time scale of the replay: <code>0</code> serves the replies at once,
+ * <code>1</code> with the original timings.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class ReplayConversationFactory implements ConversationFactory {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(ReplayConversationFactory.class);
+
+	/** The recorded conversations by the address of the MTA */
+	private final Map<String, RoundRobin<Transcript>> transcripts = new HashMap<String, RoundRobin<Transcript>>();
+
+	/** The recorded recipients by the address of the MTA, verb and parameter */
+	private final Map<String, RoundRobin<Position>> recipients = new HashMap<String, RoundRobin<Position>>();
+
+	/** The factor of the recorded latencies */
+	private final double timeScale;
+
+	/** The number of conversations and commands which were not recorded */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Convenience constructor which serves the replies at once.
+	 * 
+	 * @param in
+	 *            The stream of the recording, it is read completely but not
+	 *            closed
+	 * @throws IOException
+	 *             If the recording could not be read
+	 */
+	public ReplayConversationFactory(InputStream in) throws IOException {
+		this(in, 0);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param in
+	 *            The stream of the recording, it is read completely but not
+	 *            closed
+	 * @param timeScale
+	 *            The factor of the recorded latencies, <code>0</code> for no
+	 *            delays and <code>1</code> for the original timings
+	 * @throws IOException
+	 *             If the recording could not be read
+	 */
+	public ReplayConversationFactory(InputStream in, double timeScale) throws IOException {
+		if (timeScale < 0) {
+			throw new IllegalArgumentException("The time scale must not be negative.");
+		}
+		read(new DataInputStream(new BufferedInputStream(notNull(in, "in"))));
+		this.timeScale = timeScale;
+	}
+
+	@Override
+	public Conversation createConversation() {
+		return new ReplayConversation();
+	}
+
+	/**
+	 * Returns the number of conversations and commands which were not
+	 * recorded.
+	 * 
+	 * @return The number of misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	private static String key(String mxAddress, String verb, String parameter) {
+		return mxAddress + ' ' + verb + parameter.toLowerCase();
+	}
+
+	private static boolean isRecipient(String verb) {
+		return Command.RECIPIENT_TO.verb.equals(verb) || Command.VERIFY.verb.equals(verb);
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("The stream is not a recording of conversations.");
+		}
+
+		Map<String, List<Transcript>> transcripts = new HashMap<String, List<Transcript>>();
+		Map<String, List<Position>> recipients = new HashMap<String, List<Position>>();
+		int first;
+		while ((first = in.read()) >= 0) {
+			// the address is written with writeUTF, so the first byte is the high byte of its length
+			String mxAddress = readUTF(in, first);
+			List<Event> events = new ArrayList<Event>();
+			Transcript transcript = new Transcript(mxAddress, events);
+
+			for (byte kind = in.readByte(); kind != END; kind = in.readByte()) {
+				Event event = new Event(kind, in.readInt());
+				if (in.readByte() == FAILURE) {
+					event.failureType = in.readUTF();
+					event.failureMessage = in.readUTF();
+				}
+				if (kind == SAY) {
+					event.verb = in.readUTF();
+					event.parameter = in.readUTF();
+					if (isRecipient(event.verb)) {
+						add(recipients, key(mxAddress, event.verb, event.parameter), new Position(transcript, events
+								.size()));
+					}
+				}
+				else if (kind == LISTEN && event.failureType == null) {
+					Reply.Code code = Reply.Code.valueOf(in.readUnsignedShort());
+					event.reply = new Reply(code, in.readBoolean() ? in.readUTF() : null);
+				}
+				else if (kind != START) {
+					throw new IOException("The recording contains an unknown event " + kind + ".");
+				}
+				events.add(event);
+			}
+			add(transcripts, mxAddress, transcript);
+		}
+
+		for (Map.Entry<String, List<Transcript>> entry : transcripts.entrySet()) {
+			this.transcripts.put(entry.getKey(), new RoundRobin<Transcript>(entry.getValue()));
+		}
+		for (Map.Entry<String, List<Position>> entry : recipients.entrySet()) {
+			this.recipients.put(entry.getKey(), new RoundRobin<Position>(entry.getValue()));
+		}
+	}
+
+	private static String readUTF(DataInputStream in, int first) throws IOException {
+		byte[] bytes = new byte[(first << 8) | in.readUnsignedByte()];
+		in.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
+
+	private static <T> void add(Map<String, List<T>> map, String key, T value) {
+		List<T> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<T>();
+			map.put(key, list);
+		}
+		list.add(value);
+	}
+
+	/**
+	 * Items served in turn
+	 */
+	private static final class RoundRobin<T> {
+
+		private final List<T> items;
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		private RoundRobin(List<T> items) {
+			this.items = items;
+		}
+
+		private T next() {
+			return this.items.get((this.next.getAndIncrement() & Integer.MAX_VALUE) % this.items.size());
+		}
+	}
+
+	/**
+	 * A recorded conversation
+	 */
+	private static final class Transcript {
+
+		private final String mxAddress;
+
+		private final List<Event> events;
+
+		private Transcript(String mxAddress, List<Event> events) {
+			this.mxAddress = mxAddress;
+			this.events = events;
+		}
+	}
+
+	/**
+	 * The position of an event within a recorded conversation
+	 */
+	private static final class Position {
+
+		private final Transcript transcript;
+
+		private final int index;
+
+		private Position(Transcript transcript, int index) {
+			this.transcript = transcript;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * A recorded event
+	 */
+	private static final class Event {
+
+		private final byte kind;
+
+		/** The latency in microseconds */
+		private final int latency;
+
+		private String failureType;
+
+		private String failureMessage;
+
+		private String verb;
+
+		private String parameter;
+
+		private Reply reply;
+
+		private Event(byte kind, int latency) {
+			this.kind = kind;
+			this.latency = latency;
+		}
+	}
+
+	/**
+	 * The conversation replaying a recorded conversation
+	 */
+	private final class ReplayConversation implements Conversation {
+
+		private InetAddress mxAddress;
+
+		private Transcript transcript;
+
+		/** The index of the next event */
+		private int next = 0;
+
+		private boolean active = false;
+
+		public void init(InetAddress mxAddress, int port) {
+			RoundRobin<Transcript> recorded = ReplayConversationFactory.this.transcripts.get(notNull(mxAddress,
+					"mxAddress").getHostAddress());
+			this.mxAddress = mxAddress;
+			this.transcript = recorded != null ? recorded.next() : null;
+			this.next = 0;
+			this.active = false;
+		}
+
+		public void start() throws IOException {
+			if (this.transcript == null) {
+				ReplayConversationFactory.this.misses.incrementAndGet();
+				LOG.debug("The conversation with {} is not recorded.", this.mxAddress);
+				throw new ConnectException("No conversation with " + this.mxAddress + " is recorded.");
+			}
+			if (this.next < this.transcript.events.size() && this.transcript.events.get(this.next).kind == START) {
+				replay(this.transcript.events.get(this.next++));
+			}
+			this.active = true;
+		}
+
+		public void say(Command command) throws IOException {
+			say(command, command.parameter != null ? command.parameter : "");
+		}
+
+		public void say(Command command, String parameter) throws IOException {
+			checkActive();
+			String verb = notNull(command, "command").verb;
+
+			if (isRecipient(verb)) {
+				// serve the replies recorded for the recipient
+				RoundRobin<Position> positions = ReplayConversationFactory.this.recipients.get(key(
+						this.transcript.mxAddress, verb, parameter));
+				if (positions != null) {
+					Position position = positions.next();
+					this.transcript = position.transcript;
+					this.next = position.index + 1;
+					replay(position.transcript.events.get(position.index));
+					return;
+				}
+			}
+			else {
+				for (int i = this.next; i < this.transcript.events.size(); ++i) {
+					Event event = this.transcript.events.get(i);
+					if (event.kind == SAY && event.verb.equals(verb)) {
+						this.next = i + 1;
+						replay(event);
+						return;
+					}
+				}
+			}
+			ReplayConversationFactory.this.misses.incrementAndGet();
+			LOG.debug("The command '{}' to {} is not recorded.", verb + parameter, this.mxAddress);
+			throw new IOException("The command '" + verb + parameter + "' to " + this.mxAddress + " is not recorded.");
+		}
+
+		public Reply listen() throws IOException {
+			checkActive();
+			for (int i = this.next; i < this.transcript.events.size(); ++i) {
+				Event event = this.transcript.events.get(i);
+				if (event.kind == LISTEN) {
+					this.next = i + 1;
+					replay(event);
+					return event.reply;
+				}
+			}
+			// the server closed the connection
+			return Reply.EMPTY;
+		}
+
+		public void end() {
+			this.active = false;
+		}
+
+		public InetAddress getMxAddress() {
+			return this.mxAddress;
+		}
+
+		public boolean isActive() {
+			return this.active;
+		}
+
+		private void checkActive() throws IOException {
+			if (!this.active) {
+				throw new IOException("The conversation is not started.");
+			}
+		}
+
+		/**
+		 * Waits for the scaled latency of an event and throws its failure.
+		 */
+		private void replay(Event event) throws IOException {
+			double timeScale = ReplayConversationFactory.this.timeScale;
+			if (timeScale > 0) {
+				long micros = (long) (event.latency * timeScale);
+				try {
+					Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("The replay was interrupted.");
+				}
+			}
+
+			if (event.failureType != null) {
+				this.active = false;
+				throw createFailure(event.failureType, event.failureMessage);
+			}
+		}
+
+		private IOException createFailure(String type, String message) {
+			try {
+				Class<?> failureClass = Class.forName(type);
+				if (IOException.class.isAssignableFrom(failureClass)) {
+					return (IOException) failureClass.getConstructor(String.class).newInstance(message);
+				}
+			}
+			catch (Exception e) {
+				LOG.debug("Unable to create a recorded " + type + ".", e);
+			}
+			return new IOException(message);
+		}
+	}
+}
@@ -19,10 +19,17 @@ package net.nicl.jaev.smtp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.nio.charset.Charset;
 
 /**
+ * <p>
  * The reply class contains the response from the mail server.
+ * </p>
+ * <p>
+ * Replies read from the network keep the raw text of the reply lines and
+ * create the message string only when it is requested. The lines of a
+ * multi-line reply are separated by a line feed.
+ * </p>
  * 
  * @author Niclas Meier
  */
@@ -42,10 +49,32 @@ public class Reply {
 
 		private final int value;
 
+		/** Lookup table of the codes by their value */
+		private static final Code[] VALUES = new Code[600];
+
+		static {
+			for (Code code : values()) {
+				VALUES[code.value] = code;
+			}
+		}
+
 		Code(int value) {
 			this.value = value;
 		}
 
+		/**
+		 * Looks up the code for a numeric reply value.
+		 * 
+		 * @param value
+		 *            The three digit value of the reply
+		 * @return The code or <code>UNRECOGNIZED</code> if the value is unknown
+		 */
+		public static Code valueOf(int value) {
+			Code code = value >= 0 && value < VALUES.length ? VALUES[value] : null;
+
+			return code == null ? UNRECOGNIZED : code;
+		}
+
 		public int getValue() {
 			return this.value;
 		}
@@ -57,27 +86,49 @@ public class Reply {
 
 	}
 
+	/** Character set of the reply text */
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+
 	private final Code code;
 
-	private final String message;
+	/** The message, created lazily from the text (a racy but benign cache) */
+	private String message;
 
-	private static final Map<String, Code> CODE_MAP = new java.util.HashMap<String, Code>();
+	/** The raw text of the reply, <code>null</code> if created from a message */
+	private final byte[] text;
 
-	static {
-		for (Code code : Code.values()) {
-			CODE_MAP.put(String.valueOf(code.getValue()), code);
-		}
+	protected Reply(Code code, String message) {
+		this(code, message, null);
 	}
 
-	protected Reply(Code code, String message) {
-		this.message = message;
+	private Reply(Code code, String message, byte[] text) {
 		this.code = code;
+		this.message = message;
+		this.text = text;
+	}
+
+	/**
+	 * Creates a reply with a lazily created message
+	 * 
+	 * @param code
+	 *            The reply code
+	 * @param text
+	 *            The raw (US-ASCII) text of the reply
+	 * @return The reply
+	 */
+	static Reply create(Code code, byte[] text) {
+		return new Reply(code, null, text);
 	}
 
 	public static Reply create(String codeString, String message) {
-		Code code = CODE_MAP.get(codeString);
-		if (code == null) {
-			code = Code.UNRECOGNIZED;
+		Code code = Code.UNRECOGNIZED;
+		if (codeString != null && codeString.length() == 3) {
+			int value = 0;
+			for (int i = 0; i < 3 && value >= 0; ++i) {
+				int digit = codeString.charAt(i) - '0';
+				value = digit >= 0 && digit <= 9 ? value * 10 + digit : -1;
+			}
+			code = Code.valueOf(value);
 		}
 
 		if (LOG.isDebugEnabled()) {
@@ -91,8 +142,29 @@ public class Reply {
 		return this.code;
 	}
 
+	/**
+	 * Returns the raw text of the reply without creating the message.
+	 * 
+	 * @return The US-ASCII text of the reply
+	 */
+	byte[] getText() {
+		if (this.text != null) {
+			return this.text;
+		}
+
+		return this.message == null ? new byte[0] : this.message.getBytes(CHARSET);
+	}
+
 	public String getMessage() {
-		return this.message;
+		// replies are shared between threads: read the cache once and keep the
+		// text, concurrent threads create equal messages at worst
+		String message = this.message;
+		if (message == null && this.text != null) {
+			message = new String(this.text, CHARSET);
+			this.message = message;
+		}
+
+		return message;
 	}
 
 	@Override
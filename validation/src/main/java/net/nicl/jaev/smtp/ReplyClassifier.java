@@ -0,0 +1,420 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * The reply classifier recognises signals in the text of SMTP replies, e.g. block lists, greylisting, rate limits,
+ * unknown user phrasings and enhanced status codes like <code>5.1.1</code>. The patterns are compiled into a
+ * case-insensitive Aho-Corasick automaton, so a reply is classified by a single pass over its bytes regardless of the
+ * number of patterns and without creating a string.
+ * </p>
+ * <p>
+ * A pattern which starts or ends with <code>\b</code> only matches at a boundary on that side: next to a digit of
+ * the pattern there must be no digit or dot in the text (so <code>\b5.1.1\b</code> neither matches
+ * <code>5.1.10</code> nor the IP literal <code>[45.1.1.23]</code>), next to a letter there must be no letter or
+ * digit.
+ * </p>
+ * <p>
+ * If a reply matches patterns of several signals, the preferred signal of the caller wins if it is among them,
+ * otherwise the signal declared first in <code>Signal</code>. The default patterns are loaded from
+ * <code>net/nicl/jaev/smtp/reply-patterns.txt</code>, a file with one <code>SIGNAL pattern</code> per line. The
+ * classifier used by the <code>Idiom</code>s may be replaced with <code>setDefault(..)</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class ReplyClassifier {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(ReplyClassifier.class);
+
+	/** The classifier used by the idioms */
+	private static volatile ReplyClassifier defaultClassifier;
+
+	/**
+	 * The signals of a reply, in order of precedence
+	 */
+	public enum Signal {
+		/** The sender is listed on a block list (i.e. spamhaus) */
+		SPAM,
+		/** The MTA limits the rate of connections or commands */
+		RATE_LIMITED,
+		/** The MTA rejects the sender or the connection due to a policy */
+		POLICY,
+		/** The MTA temporarily defers the recipient (i.e. greylisting) */
+		GREYLISTED,
+		/** The MTA does not know the recipient */
+		UNKNOWN_USER
+	}
+
+	/** The marker of a boundary at the start or end of a pattern */
+	private static final String BOUNDARY = "\\b";
+
+	/** The number of byte classes */
+	private final int classes;
+
+	/** Maps a byte (folded to lower case) to its class, 0 for bytes not in any pattern */
+	private final int[] byteClasses = new int[256];
+
+	/** The transitions of the automaton, <code>state * classes + class</code> */
+	private final int[] transitions;
+
+	/** The signals (bit of the ordinal) of the unanchored patterns of each state */
+	private final byte[] outputs;
+
+	/** The anchored patterns of each state, <code>null</code> if none */
+	private final Anchored[][] anchored;
+
+	/**
+	 * Convenience constructor which loads the default patterns.
+	 */
+	public ReplyClassifier() {
+		this(ReplyClassifier.class.getClassLoader().getResource("net/nicl/jaev/smtp/reply-patterns.txt"));
+	}
+
+	/**
+	 * Constructor which loads the patterns from a URL. Each line of the file
+	 * consists of the name of the signal and the pattern separated by white
+	 * space; empty lines and lines starting with <code>#</code> are ignored.
+	 * 
+	 * @param sourceUrl
+	 *            The URL of the pattern file
+	 */
+	public ReplyClassifier(URL sourceUrl) {
+		this(load(notNull(sourceUrl, "sourceUrl")));
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param patterns
+	 *            The signal of each pattern, the patterns are matched case
+	 *            insensitive
+	 */
+	public ReplyClassifier(Map<String, Signal> patterns) {
+		notNull(patterns, "patterns");
+
+		// compress the alphabet to the bytes of the patterns
+		int classes = 1;
+		for (String pattern : patterns.keySet()) {
+			for (byte b : bytes(pattern)) {
+				if (this.byteClasses[b & 0xff] == 0) {
+					this.byteClasses[b & 0xff] = classes++;
+				}
+			}
+		}
+		for (int b = 'A'; b <= 'Z'; ++b) {
+			this.byteClasses[b] = this.byteClasses[b + ('a' - 'A')];
+		}
+		this.classes = classes;
+
+		// build the trie
+		List<int[]> trie = new ArrayList<int[]>();
+		List<Integer> signals = new ArrayList<Integer>();
+		List<List<Anchored>> anchored = new ArrayList<List<Anchored>>();
+		trie.add(new int[classes]);
+		signals.add(0);
+		anchored.add(new ArrayList<Anchored>());
+		for (Map.Entry<String, Signal> entry : patterns.entrySet()) {
+			int state = 0;
+			byte[] bytes = bytes(entry.getKey());
+			for (byte b : bytes) {
+				int byteClass = this.byteClasses[b & 0xff];
+				if (trie.get(state)[byteClass] == 0) {
+					trie.get(state)[byteClass] = trie.size();
+					trie.add(new int[classes]);
+					signals.add(0);
+					anchored.add(new ArrayList<Anchored>());
+				}
+				state = trie.get(state)[byteClass];
+			}
+			int signal = 1 << notNull(entry.getValue(), "signal").ordinal();
+			boolean start = entry.getKey().startsWith(BOUNDARY);
+			boolean end = bytes.length + (start ? BOUNDARY.length() : 0) < entry.getKey().length();
+			if (start || end) {
+				anchored.get(state).add(new Anchored(signal, bytes, start, end));
+			}
+			else {
+				signals.set(state, signals.get(state) | signal);
+			}
+		}
+
+		// resolve the failure links breadth first into a complete automaton
+		int states = trie.size();
+		this.transitions = new int[states * classes];
+		this.outputs = new byte[states];
+		this.anchored = new Anchored[states][];
+		int[] failure = new int[states];
+		int[] queue = new int[states];
+		int head = 0, tail = 0;
+
+		for (int c = 1; c < classes; ++c) {
+			int next = trie.get(0)[c];
+			this.transitions[c] = next;
+			if (next != 0) {
+				queue[tail++] = next;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			this.outputs[state] = (byte) (signals.get(state) | this.outputs[failure[state]]);
+			if (this.anchored[failure[state]] != null) {
+				anchored.get(state).addAll(Arrays.asList(this.anchored[failure[state]]));
+			}
+			if (!anchored.get(state).isEmpty()) {
+				this.anchored[state] = anchored.get(state).toArray(new Anchored[anchored.get(state).size()]);
+			}
+			for (int c = 1; c < classes; ++c) {
+				int next = trie.get(state)[c];
+				if (next != 0) {
+					failure[next] = this.transitions[failure[state] * classes + c];
+					this.transitions[state * classes + c] = next;
+					queue[tail++] = next;
+				}
+				else {
+					this.transitions[state * classes + c] = this.transitions[failure[state] * classes + c];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the classifier used by the idioms.
+	 * 
+	 * @return The default classifier
+	 */
+	public static ReplyClassifier getDefault() {
+		ReplyClassifier classifier = defaultClassifier;
+		if (classifier == null) {
+			classifier = new ReplyClassifier();
+			defaultClassifier = classifier;
+		}
+
+		return classifier;
+	}
+
+	/**
+	 * Replaces the classifier used by the idioms.
+	 * 
+	 * @param classifier
+	 *            The classifier
+	 */
+	public static void setDefault(ReplyClassifier classifier) {
+		defaultClassifier = notNull(classifier, "classifier");
+	}
+
+	/**
+	 * Classifies a reply.
+	 * 
+	 * @param reply
+	 *            The reply
+	 * @return The signal of the reply or <code>null</code> if no pattern
+	 *         matched
+	 */
+	public Signal classify(Reply reply) {
+		return classify(notNull(reply, "reply").getText());
+	}
+
+	/**
+	 * Classifies a reply with a preferred signal.
+	 * 
+	 * @param reply
+	 *            The reply
+	 * @param preferred
+	 *            The signal which wins over the others if it matches, may be
+	 *            <code>null</code> for the declared precedence
+	 * @return The signal of the reply or <code>null</code> if no pattern
+	 *         matched
+	 */
+	public Signal classify(Reply reply, Signal preferred) {
+		return classify(notNull(reply, "reply").getText(), preferred);
+	}
+
+	/**
+	 * Classifies the text of a reply.
+	 * 
+	 * @param text
+	 *            The text of the reply
+	 * @return The signal of the text or <code>null</code> if no pattern
+	 *         matched
+	 */
+	public Signal classify(byte[] text) {
+		return classify(text, null);
+	}
+
+	/**
+	 * Classifies the text of a reply with a preferred signal.
+	 * 
+	 * @param text
+	 *            The text of the reply
+	 * @param preferred
+	 *            The signal which wins over the others if it matches, may be
+	 *            <code>null</code> for the declared precedence
+	 * @return The signal of the text or <code>null</code> if no pattern
+	 *         matched
+	 */
+	public Signal classify(byte[] text, Signal preferred) {
+		// nothing precedes the preferred or else the first signal
+		int decisive = preferred == null ? 1 : 1 << preferred.ordinal();
+		int state = 0;
+		int signals = 0;
+		for (int i = 0; i < text.length; ++i) {
+			state = this.transitions[state * this.classes + this.byteClasses[text[i] & 0xff]];
+			signals |= this.outputs[state];
+			if (this.anchored[state] != null) {
+				for (Anchored pattern : this.anchored[state]) {
+					if (pattern.matches(text, i)) {
+						signals |= pattern.signal;
+					}
+				}
+			}
+			if ((signals & decisive) != 0) {
+				break;
+			}
+		}
+
+		if (signals == 0) {
+			return null;
+		}
+
+		return Signal.values()[Integer.numberOfTrailingZeros((signals & decisive) != 0 ? decisive : signals)];
+	}
+
+	private static byte[] bytes(String pattern) {
+		int start = pattern.startsWith(BOUNDARY) ? BOUNDARY.length() : 0;
+		int end = pattern.endsWith(BOUNDARY) && pattern.length() > start + BOUNDARY.length() ? pattern.length()
+				- BOUNDARY.length() : pattern.length();
+		if (end <= start) {
+			throw new IllegalArgumentException("The pattern '" + pattern + "' is empty.");
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; ++i) {
+			char c = Character.toLowerCase(pattern.charAt(start + i));
+			if (c > 0x7f) {
+				throw new IllegalArgumentException("The pattern '" + pattern + "' is not ASCII.");
+			}
+			bytes[i] = (byte) c;
+		}
+
+		return bytes;
+	}
+
+	private static Map<String, Signal> load(URL sourceUrl) {
+		Map<String, Signal> patterns = new LinkedHashMap<String, Signal>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(sourceUrl.openStream(), "US-ASCII"));
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+", 2);
+				if (parts.length < 2) {
+					throw new IllegalArgumentException("The reply pattern '" + line + "' has no signal.");
+				}
+				patterns.put(parts[1], Signal.valueOf(parts[0]));
+			}
+		}
+		catch (IOException e) {
+			LOG.error("Unable to read the reply patterns due to an IO error.", e);
+		}
+		finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+			catch (IOException e) {
+				LOG.trace("An error occured while closing the reader.", e);
+			}
+		}
+
+		return patterns;
+	}
+
+	/**
+	 * A pattern which only matches at a boundary
+	 */
+	private static final class Anchored {
+
+		/** The signal (bit of the ordinal) of the pattern */
+		private final int signal;
+
+		/** The length of the pattern */
+		private final int length;
+
+		/** The first byte of the pattern, <code>0</code> if unanchored */
+		private final byte start;
+
+		/** The last byte of the pattern, <code>0</code> if unanchored */
+		private final byte end;
+
+		private Anchored(int signal, byte[] bytes, boolean start, boolean end) {
+			this.signal = signal;
+			this.length = bytes.length;
+			this.start = start ? bytes[0] : 0;
+			this.end = end ? bytes[bytes.length - 1] : 0;
+		}
+
+		/**
+		 * Checks the boundaries of an occurrence of the pattern which ends
+		 * at an index of the text.
+		 */
+		boolean matches(byte[] text, int index) {
+			int before = index - this.length;
+			int after = index + 1;
+
+			return (this.start == 0 || before < 0 || isBoundary(this.start, text[before]))
+					&& (this.end == 0 || after >= text.length || isBoundary(this.end, text[after]));
+		}
+
+		private static boolean isBoundary(byte edge, byte neighbour) {
+			if (isDigit(edge)) {
+				return !isDigit(neighbour) && neighbour != '.';
+			}
+
+			return !isDigit(neighbour) && !isLetter(neighbour);
+		}
+
+		private static boolean isDigit(byte b) {
+			return b >= '0' && b <= '9';
+		}
+
+		private static boolean isLetter(byte b) {
+			return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+		}
+	}
+}
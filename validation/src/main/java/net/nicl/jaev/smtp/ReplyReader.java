@@ -0,0 +1,216 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.smtp.Reply.Code;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The reply reader parses SMTP replies directly from the bytes received from
+ * the MTA. The lines of a reply are framed by CRLF (a bare LF is accepted as
+ * well) and multi-line replies (<code>250-...</code>) are read up to the last
+ * line (<code>250 ...</code>). The three digit code is decoded arithmetically.
+ * </p>
+ * <p>
+ * <i>Note:</i> A reply reader is not thread safe, every conversation owns its
+ * own instance.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+final class ReplyReader {
+
+	/** The maximum size of the receive buffer */
+	private static final int MAX_CAPACITY = 64 * 1024;
+
+	/** The receive buffer, always in "fill" mode */
+	private ByteBuffer buffer;
+
+	/** Reusable buffer for the text of the current reply */
+	private byte[] text = new byte[256];
+
+	/** Length of the text of the current reply */
+	private int textLength = 0;
+
+	/** Start of the current line in the receive buffer */
+	private int lineStart = 0;
+
+	/** Position up to which the receive buffer has been scanned */
+	private int scanPosition = 0;
+
+	/** The code of the current reply, -1 if no line is read so far */
+	private int replyCode = -1;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param capacity
+	 *            The initial capacity of the receive buffer
+	 */
+	ReplyReader(int capacity) {
+		this.buffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Discards all received bytes and the state of a partially read reply.
+	 */
+	void reset() {
+		this.buffer.clear();
+		this.textLength = 0;
+		this.lineStart = 0;
+		this.scanPosition = 0;
+		this.replyCode = -1;
+	}
+
+	/**
+	 * Returns the buffer to receive bytes into. The returned buffer has at
+	 * least one byte remaining.
+	 * 
+	 * @return The receive buffer
+	 * @throws IOException
+	 *             if a single reply line exceeds the maximum buffer size
+	 */
+	ByteBuffer getReceiveBuffer() throws IOException {
+		if (!this.buffer.hasRemaining()) {
+			if (this.lineStart > 0) {
+				// drop the lines which are already copied to the text
+				compact(this.lineStart);
+			}
+			else {
+				grow();
+			}
+		}
+
+		return this.buffer;
+	}
+
+	/**
+	 * Checks if bytes of an incomplete reply were received.
+	 * 
+	 * @return <code>true</code> if a partial reply is buffered
+	 */
+	boolean hasPartialReply() {
+		return this.buffer.position() > 0 || this.replyCode >= 0;
+	}
+
+	/**
+	 * Parses the received bytes.
+	 * 
+	 * @return The next complete reply or <code>null</code> if more bytes have
+	 *         to be received
+	 * @throws IOException
+	 *             if the received bytes are not a valid SMTP reply
+	 */
+	Reply poll() throws IOException {
+		int limit = this.buffer.position();
+
+		for (int i = this.scanPosition; i < limit; ++i) {
+			if (this.buffer.get(i) == '\n') {
+				int end = i > this.lineStart && this.buffer.get(i - 1) == '\r' ? i - 1 : i;
+				boolean last = parseLine(this.lineStart, end);
+				this.lineStart = i + 1;
+
+				if (last) {
+					Reply reply = Reply.create(Code.valueOf(this.replyCode), Arrays.copyOf(this.text, this.textLength));
+					this.textLength = 0;
+					this.replyCode = -1;
+					compact(this.lineStart);
+
+					return reply;
+				}
+			}
+		}
+
+		this.scanPosition = limit;
+
+		return null;
+	}
+
+	/**
+	 * Parses a single reply line and appends its text to the reply text.
+	 * 
+	 * @return <code>true</code> if the line is the last line of the reply
+	 */
+	private boolean parseLine(int start, int end) throws IOException {
+		if (end - start < 3) {
+			throw new IOException("Unable to parse server response line of " + (end - start) + " bytes.");
+		}
+
+		int code = digit(start) * 100 + digit(start + 1) * 10 + digit(start + 2);
+		if (this.replyCode < 0) {
+			this.replyCode = code;
+		}
+		else if (this.replyCode != code) {
+			throw new IOException("Inconsistent codes " + this.replyCode + " and " + code + " in multi-line reply.");
+		}
+
+		if (this.textLength > 0) {
+			appendText((byte) '\n');
+		}
+		for (int i = start + 4; i < end; ++i) {
+			appendText(this.buffer.get(i));
+		}
+
+		return end - start == 3 || this.buffer.get(start + 3) != '-';
+	}
+
+	private int digit(int index) throws IOException {
+		int digit = this.buffer.get(index) - '0';
+		if (digit < 0 || digit > 9) {
+			throw new IOException("Unable to parse server response code, found '" + (char) this.buffer.get(index)
+					+ "'.");
+		}
+
+		return digit;
+	}
+
+	private void appendText(byte b) {
+		if (this.textLength == this.text.length) {
+			this.text = Arrays.copyOf(this.text, this.text.length * 2);
+		}
+		this.text[this.textLength++] = b;
+	}
+
+	/**
+	 * Moves the bytes from the specified position to the beginning of the
+	 * receive buffer.
+	 */
+	private void compact(int from) {
+		this.buffer.limit(this.buffer.position());
+		this.buffer.position(from);
+		this.buffer.compact();
+
+		this.scanPosition -= Math.min(from, this.scanPosition);
+		this.lineStart -= from;
+	}
+
+	private void grow() throws IOException {
+		int capacity = this.buffer.capacity() * 2;
+		if (capacity > MAX_CAPACITY) {
+			throw new IOException("The server response exceeds " + MAX_CAPACITY + " bytes without a line break.");
+		}
+
+		ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+		this.buffer.flip();
+		grown.put(this.buffer);
+		this.buffer = grown;
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>
+ * The session pool keeps idle, already greeted SMTP sessions per MTA (and <code>HELO</code> domain) for a short time,
+ * so a <code>BasicAccountQuery</code> to the same MTA may start directly with <code>MAIL FROM</code> instead of paying
+ * the connect, the banner and <code>HELO</code> again.
+ * </p>
+ * <p>
+ * A session is reset with <code>RSET</code> when it is returned and checked with <code>NOOP</code> when it is borrowed
+ * after being idle longer than the health check interval. Sessions which failed (I/O errors, <code>421</code> replies,
+ * technical results) or were never greeted (i.e. a query answered by <code>VRFY</code> right after the banner) are
+ * closed instead of being returned, idle sessions are closed after the idle timeout and surplus sessions beyond the
+ * maximum per MTA are closed right away.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class SessionPool {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(SessionPool.class);
+
+	/** The maximum number of idle sessions per MTA */
+	private final int maxIdle;
+
+	/** The idle timeout in milliseconds */
+	private final long idleTimeout;
+
+	/** The idle time which causes a health check in milliseconds */
+	private final long healthCheckInterval;
+
+	/** The idle sessions per key */
+	private final ConcurrentMap<String, Queue<PooledConversation>> idle =
+			new ConcurrentHashMap<String, Queue<PooledConversation>>();
+
+	/** The time of the last sweep for expired sessions */
+	private final AtomicLong lastSweep = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Convenience constructor which keeps up to four sessions per MTA for 30
+	 * seconds and checks sessions idle for more than five seconds.
+	 */
+	public SessionPool() {
+		this(4, 30, 5, SECONDS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param maxIdle
+	 *            The maximum number of idle sessions per MTA
+	 * @param idleTimeout
+	 *            The time an idle session is kept
+	 * @param healthCheckInterval
+	 *            The idle time after which a session is checked with
+	 *            <code>NOOP</code> before it is reused
+	 * @param unit
+	 *            The time unit of the idle timeout and health check interval
+	 */
+	public SessionPool(int maxIdle, long idleTimeout, long healthCheckInterval, TimeUnit unit) {
+		if (maxIdle < 1) {
+			throw new IllegalArgumentException("The pool must keep at least one session per MTA.");
+		}
+		this.maxIdle = maxIdle;
+		this.idleTimeout = notNull(unit, "unit").toMillis(idleTimeout);
+		this.healthCheckInterval = unit.toMillis(healthCheckInterval);
+	}
+
+	/**
+	 * Borrows an idle session to an MTA.
+	 * 
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @param heloDomain
+	 *            The domain the session was greeted with
+	 * @return A started and greeted session or <code>null</code> if no
+	 *         healthy session is idle
+	 */
+	PooledConversation borrow(InetAddress mxAddress, String heloDomain) {
+		sweep();
+
+		Queue<PooledConversation> sessions = this.idle.get(key(mxAddress, heloDomain));
+		PooledConversation session;
+
+		while (sessions != null && (session = sessions.poll()) != null) {
+			long idleTime = System.currentTimeMillis() - session.getIdleSince();
+			session.borrowed();
+			if (idleTime > this.idleTimeout || (idleTime > this.healthCheckInterval && !session.check(Command.NOOP))) {
+				evict(session);
+				continue;
+			}
+			this.hits.incrementAndGet();
+
+			return session;
+		}
+		this.misses.incrementAndGet();
+
+		return null;
+	}
+
+	/**
+	 * Creates a new session for a conversation which is not started yet.
+	 * 
+	 * @param conversation
+	 *            The conversation which will hold the connection
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @param heloDomain
+	 *            The domain the session will be greeted with
+	 * @return The session
+	 */
+	PooledConversation create(Conversation conversation, InetAddress mxAddress, String heloDomain) {
+		return new PooledConversation(notNull(conversation, "conversation"), key(mxAddress, heloDomain));
+	}
+
+	/**
+	 * Returns a session to the pool after a query. A reusable session is reset
+	 * with <code>RSET</code> and kept, all other sessions are closed.
+	 * 
+	 * @param session
+	 *            The session
+	 * @param reusable
+	 *            <code>false</code> if the query ended in a state which does
+	 *            not allow to reuse the session
+	 */
+	void restore(PooledConversation session, boolean reusable) {
+		sweep();
+
+		if (!reusable || !session.isGreeted()) {
+			session.close();
+			return;
+		}
+
+		session.renew();
+		if (!session.check(Command.RESET)) {
+			evict(session);
+			return;
+		}
+
+		Queue<PooledConversation> sessions = this.idle.get(session.getKey());
+		if (sessions == null) {
+			Queue<PooledConversation> created = new ConcurrentLinkedQueue<PooledConversation>();
+			sessions = this.idle.putIfAbsent(session.getKey(), created);
+			if (sessions == null) {
+				sessions = created;
+			}
+		}
+		if (sessions.size() >= this.maxIdle) {
+			session.close();
+			return;
+		}
+		session.setIdleSince(System.currentTimeMillis());
+		sessions.offer(session);
+
+		// a concurrent sweep may have dropped the queue in the meantime
+		if (this.idle.get(session.getKey()) != sessions && sessions.remove(session)) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Closes the idle sessions which exceeded the idle timeout and drops the
+	 * empty queues. The sweep is performed when a session is borrowed or
+	 * returned, at most once per second (or per idle timeout if it is
+	 * shorter).
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		long last = this.lastSweep.get();
+		if (now - last < Math.min(1000, this.idleTimeout) || !this.lastSweep.compareAndSet(last, now)) {
+			return;
+		}
+
+		for (Map.Entry<String, Queue<PooledConversation>> entry : this.idle.entrySet()) {
+			Queue<PooledConversation> sessions = entry.getValue();
+			for (PooledConversation session : sessions) {
+				if (now - session.getIdleSince() > this.idleTimeout && sessions.remove(session)) {
+					evict(session);
+				}
+			}
+			if (sessions.isEmpty() && this.idle.remove(entry.getKey(), sessions)) {
+				// a session returned concurrently would be lost with the queue
+				PooledConversation session;
+				while ((session = sessions.poll()) != null) {
+					session.close();
+				}
+			}
+		}
+	}
+
+	private void evict(PooledConversation session) {
+		LOG.trace("Evicting the SMTP session '{}'.", session.getKey());
+		this.evictions.incrementAndGet();
+		session.close();
+	}
+
+	/**
+	 * Closes all idle sessions.
+	 */
+	public void close() {
+		for (Queue<PooledConversation> sessions : this.idle.values()) {
+			PooledConversation session;
+			while ((session = sessions.poll()) != null) {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of idle sessions.
+	 * 
+	 * @return The number of idle sessions
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (Queue<PooledConversation> sessions : this.idle.values()) {
+			count += sessions.size();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the number of MTAs (and <code>HELO</code> domains) with a queue
+	 * of idle sessions.
+	 * 
+	 * @return The number of queues
+	 */
+	public int getQueueCount() {
+		return this.idle.size();
+	}
+
+	/**
+	 * Returns the number of queries which reused an idle session.
+	 * 
+	 * @return The number of hits
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns the number of queries which found no idle session.
+	 * 
+	 * @return The number of misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Returns the number of sessions closed because they expired or failed
+	 * the health check.
+	 * 
+	 * @return The number of evictions
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * Returns the idle timeout.
+	 * 
+	 * @param unit
+	 *            The time unit of the returned timeout
+	 * @return The idle timeout
+	 */
+	public long getIdleTimeout(TimeUnit unit) {
+		return unit.convert(this.idleTimeout, MILLISECONDS);
+	}
+
+	private static String key(InetAddress mxAddress, String heloDomain) {
+		return notNull(mxAddress, "mxAddress").getHostAddress() + "|"
+				+ notBlank(heloDomain, "heloDomain").toLowerCase();
+	}
+}
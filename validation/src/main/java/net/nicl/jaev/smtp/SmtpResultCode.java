@@ -58,7 +58,32 @@ public enum SmtpResultCode implements ResultCode {
 	 * The mail transfer agent (MTA) does not accept our request and suspects
 	 * spam
 	 */
-	MTA_SUSPECTS_SPAM(6, TECHNICAL);
+	MTA_SUSPECTS_SPAM(6, TECHNICAL),
+	/**
+	 * The mail transfer agent (MTA) accepts any recipient of the domain (catch
+	 * all), so the existence of an account cannot be verified
+	 */
+	MTA_ACCEPTS_ANY_RECIPIENT(7, TECHNICAL),
+	/**
+	 * The mail transfer agent (MTA) temporarily deferred the recipient (4xx
+	 * reply, i.e. greylisting), a later retry may succeed
+	 */
+	MTA_DEFERS_RECIPIENT(8, TECHNICAL),
+	/**
+	 * The queries to the mail transfer agent (MTA) are throttled, because it
+	 * signalled spam suspicion or policy rejections, a later retry may succeed
+	 */
+	MTA_THROTTLED(9, TECHNICAL),
+	/**
+	 * The mail transfer agent (MTA) limits the rate of connections or
+	 * commands (i.e. too many connections), a later retry may succeed
+	 */
+	MTA_RATE_LIMITED(10, TECHNICAL),
+	/**
+	 * The mail transfer agent (MTA) rejects the query due to a policy (i.e.
+	 * relaying denied, SPF or reverse DNS checks)
+	 */
+	MTA_POLICY_REJECTION(11, TECHNICAL);
 
 	private final int code;
 
@@ -16,47 +16,130 @@
 
 package net.nicl.jaev.smtp;
 
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.dns.ResolverException;
+import net.nicl.jaev.dns.ResouceRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
+ * <p>
  * The socket channel conversation implements a conversation to a SMTP server
  * via a socket channel.
+ * </p>
+ * <p>
+ * The timeout is an absolute deadline for the whole conversation: it starts with
+ * <code>start()</code> and covers the connect as well as every read and write.
+ * The channel is used in non-blocking mode, so a black holed MTA cannot block a
+ * thread longer than the deadline.
+ * </p>
+ * <p>
+ * If the MTA address carries a host name and the
+ * <code>AddressFamilyPreferences</code> know IPv6 and IPv4 addresses of the
+ * host, the connections to both families are raced (&quot;Happy Eyeballs&quot;, RFC
+ * 8305): the preferred family is connected first, the other one after the
+ * attempt delay of the <code>AddressFamilyPreferences</code>, and the first
+ * established connection is used. A broken IPv6 route therefore costs the
+ * attempt delay instead of the whole timeout.
+ * </p>
+ * <p>
+ * The addresses of a host which is not known yet are looked up once and
+ * remembered in the preferences. The configured <code>Resolver</code> is asked
+ * for the other family (<code>AAAA</code> records for an IPv4 MTA address,
+ * <code>A</code> records for an IPv6 one). Without a resolver the system
+ * resolver is asked in the background on a small pool of daemon lookup
+ * threads; the conversation does not wait for it and connects to the MTA
+ * address only, the following conversations with the host are raced.
+ * </p>
+ * <p>
+ * With a <code>SourceAddressPool</code> every connection is bound to a local
+ * address of the pool; <code>421</code> replies are reported to the pool as
+ * throttling of this source address by the provider of the MTA.
+ * </p>
+ * <p>
+ * With a <code>TranscriptRecorder</code> the commands, replies and timeouts of
+ * every conversation are recorded as raw bytes into the shared ring of the
+ * recorder. Unlike the trace logging this is cheap enough for production.
+ * </p>
  * 
  * @author Niclas Meier
  */
-public class SocketChannelConversation implements Conversation {
+public class SocketChannelConversation implements Conversation, Transcribed {
 
 	/** Logger */
 	private static final Logger LOG = LoggerFactory.getLogger(SocketChannelConversation.class);
 
-	/** Character set for US-ASCII */
-	private static final Charset CHARSET = Charset.forName("US-ASCII");
+	/** The maximum number of lookup threads of the system resolver */
+	private static final int LOOKUP_THREADS = 2;
 
-	/** Character set decoder */
-	private static final CharsetDecoder DECODER = CHARSET.newDecoder();
+	/** The maximum number of pending lookups of the system resolver */
+	private static final int LOOKUP_QUEUE = 1000;
 
-	/** Character set encoder */
-	private static final CharsetEncoder ENCODER = CHARSET.newEncoder();
+	/** The lookup threads of the system resolver, shared by all conversations */
+	private static final ExecutorService LOOKUPS = createLookups();
 
-	/** Byte buffer for network transmission */
-	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+	/** The maximum length of a command line (RFC 5321, 4.5.3.1.4) */
+	private static final int MAX_COMMAND_LENGTH = 512;
 
-	/** The timeout to use for socket channel communication */
-	private final int timeout;
+	/** The reader for the replies of the server */
+	private final ReplyReader replyReader = new ReplyReader(1024);
+
+	/** Reusable buffer for the ASCII encoded parameter of a command */
+	private final ByteBuffer parameterBuffer = ByteBuffer.allocateDirect(MAX_COMMAND_LENGTH);
+
+	/** The buffers of a command for a gathering write */
+	private final ByteBuffer[] commandBuffers = new ByteBuffer[3];
+
+	/** Own duplicates of the shared pre-encoded command templates */
+	private final Map<ByteBuffer, ByteBuffer> templates = new IdentityHashMap<ByteBuffer, ByteBuffer>();
+
+	/** The timeout of the conversation in milliseconds */
+	private final long timeout;
+
+	/** The address family preferences for connection racing */
+	private final AddressFamilyPreferences preferences;
+
+	/** The pool of local addresses to bind to, may be <code>null</code> */
+	private final SourceAddressPool sourcePool;
+
+	/** The recorder of the transcript, may be <code>null</code> */
+	private final TranscriptRecorder recorder;
+
+	/** The resolver of the alternative addresses, may be <code>null</code> */
+	private final Resolver resolver;
+
+	/** The id of the conversation within the transcript */
+	private int transcriptId = 0;
+
+	/** The local address of the channel, <code>null</code> for the default */
+	private InetAddress sourceAddress = null;
 
 	/** The socket address of the mail server */
 	private InetSocketAddress socketAddress;
@@ -67,6 +150,12 @@ public class SocketChannelConversation implements Conversation {
 	/** The socket channel for network communication */
 	private SocketChannel channel = null;
 
+	/** The selector to wait for channel readiness */
+	private Selector selector = null;
+
+	/** The absolute deadline of the conversation in milliseconds */
+	private long deadline = 0;
+
 	private boolean active = false;
 
 	/**
@@ -76,10 +165,86 @@ public class SocketChannelConversation implements Conversation {
 	 *            Timeout in milliseconds
 	 */
 	public SocketChannelConversation(long timeout) {
-		this.timeout = (int) timeout;
+		this(timeout, new AddressFamilyPreferences());
+	}
+
+	/**
+	 * Constructor for the conversation with shared address family preferences
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds
+	 * @param preferences
+	 *            The address family preferences for connection racing
+	 */
+	public SocketChannelConversation(long timeout, AddressFamilyPreferences preferences) {
+		this(timeout, preferences, null);
+	}
+
+	/**
+	 * Constructor for the conversation with shared address family preferences
+	 * and a pool of local addresses
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds
+	 * @param preferences
+	 *            The address family preferences for connection racing
+	 * @param sourcePool
+	 *            The pool of local addresses to bind to, may be
+	 *            <code>null</code> to use the default local address
+	 */
+	public SocketChannelConversation(long timeout, AddressFamilyPreferences preferences, SourceAddressPool sourcePool) {
+		this(timeout, preferences, sourcePool, null);
+	}
+
+	/**
+	 * Constructor for the conversation with shared address family preferences,
+	 * a pool of local addresses and a transcript recorder
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds
+	 * @param preferences
+	 *            The address family preferences for connection racing
+	 * @param sourcePool
+	 *            The pool of local addresses to bind to, may be
+	 *            <code>null</code> to use the default local address
+	 * @param recorder
+	 *            The recorder of the transcript, may be <code>null</code> to
+	 *            record no transcript
+	 */
+	public SocketChannelConversation(long timeout, AddressFamilyPreferences preferences, SourceAddressPool sourcePool,
+			TranscriptRecorder recorder) {
+		this(timeout, preferences, sourcePool, recorder, null);
+	}
+
+	/**
+	 * Constructor for the conversation with shared address family preferences,
+	 * a pool of local addresses, a transcript recorder and the resolver of the
+	 * alternative addresses
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds
+	 * @param preferences
+	 *            The address family preferences for connection racing
+	 * @param sourcePool
+	 *            The pool of local addresses to bind to, may be
+	 *            <code>null</code> to use the default local address
+	 * @param recorder
+	 *            The recorder of the transcript, may be <code>null</code> to
+	 *            record no transcript
+	 * @param resolver
+	 *            The resolver of the addresses of the other family, may be
+	 *            <code>null</code> to ask the system resolver
+	 */
+	public SocketChannelConversation(long timeout, AddressFamilyPreferences preferences, SourceAddressPool sourcePool,
+			TranscriptRecorder recorder, Resolver resolver) {
+		this.timeout = timeout;
+		this.preferences = notNull(preferences, "preferences");
+		this.sourcePool = sourcePool;
+		this.recorder = recorder;
+		this.resolver = resolver;
 
 		if (LOG.isDebugEnabled()) {
-			LOG.debug("Initialized conversation with {} ms socket time out.", timeout);
+			LOG.debug("Initialized conversation with {} ms time out.", timeout);
 		}
 	}
 
@@ -89,10 +254,34 @@ public class SocketChannelConversation implements Conversation {
 	}
 
 	public void start() throws IOException {
+		this.deadline = System.currentTimeMillis() + this.timeout;
+		this.replyReader.reset();
+		if (this.recorder != null) {
+			this.transcriptId = this.recorder.nextConversation();
+		}
 		try {
-			this.channel = createAndInitialiseChannel(this.timeout);
-			this.channel.connect(this.socketAddress);
+			this.selector = Selector.open();
+
+			String host = getHostName(this.mxAddress);
+			InetAddress alternative = host == null ? null : findAlternative(host);
+
+			if (alternative == null) {
+				this.channel = createAndInitialiseChannel((int) Math.min(this.timeout, Integer.MAX_VALUE));
+				this.sourceAddress = bind(this.channel, this.mxAddress);
+
+				if (!this.channel.connect(this.socketAddress)) {
+					while (!this.channel.finishConnect()) {
+						await(SelectionKey.OP_CONNECT);
+					}
+				}
+			}
+			else {
+				race(host, new InetSocketAddress(alternative, this.socketAddress.getPort()));
+			}
 			this.active = true;
+			if (this.recorder != null) {
+				this.recorder.connected(this.transcriptId, this.socketAddress);
+			}
 
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Starting conversation with '" + this.socketAddress.getAddress().getCanonicalHostName() + ":"
@@ -100,76 +289,440 @@ public class SocketChannelConversation implements Conversation {
 			}
 		}
 		catch (IOException e) {
-			this.channel = null;
-			this.active = false;
+			if (this.recorder != null) {
+				record("connection to " + this.socketAddress + " failed: " + e);
+			}
+			close();
 			throw e;
 		}
 
 	}
 
+	/**
+	 * Returns the host name of an address without a reverse lookup.
+	 * 
+	 * @return The host name or <code>null</code> if the address was created
+	 *         from a literal
+	 */
+	private static String getHostName(InetAddress address) {
+		// toString() returns "host/literal" and does not resolve
+		String string = address.toString();
+		int slash = string.indexOf('/');
+
+		return slash > 0 ? string.substring(0, slash) : null;
+	}
+
+	private static ExecutorService createLookups() {
+		ThreadPoolExecutor lookups = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 60, SECONDS,
+				new ArrayBlockingQueue<Runnable>(LOOKUP_QUEUE), new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "jaev-address-lookup");
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+		lookups.allowCoreThreadTimeOut(true);
+
+		return lookups;
+	}
+
+	/**
+	 * Finds the first known address of a host of the other family than the
+	 * MTA address. A host which is not known yet is looked up once.
+	 */
+	private InetAddress findAlternative(String host) {
+		InetAddress alternative = this.preferences.getAlternative(host, this.mxAddress);
+		if (alternative == null && this.preferences.claimLookup(host)) {
+			if (this.resolver != null) {
+				alternative = resolveAlternative(host, this.mxAddress instanceof Inet6Address);
+				if (alternative != null) {
+					this.preferences.resolved(host, this.mxAddress, alternative);
+				}
+			}
+			else {
+				lookUp(host);
+			}
+		}
+
+		return alternative;
+	}
+
+	/**
+	 * Resolves the first address of a host of the other family with the
+	 * resolver.
+	 */
+	private InetAddress resolveAlternative(String host, boolean ipv6) {
+		try {
+			List<ResouceRecord> records = this.resolver.resolve(host, ipv6 ? ResouceRecord.Type.A
+					: ResouceRecord.Type.AAAA);
+			for (ResouceRecord record : records) {
+				// the value is a literal, so no lookup takes place
+				InetAddress address = InetAddress.getByName(record.getValue());
+				if (address instanceof Inet6Address != ipv6) {
+					return address;
+				}
+			}
+		}
+		catch (ResolverException e) {
+			LOG.trace("Unable to resolve the addresses of host '{}': {}", host, e.getResultCode());
+		}
+		catch (UnknownHostException e) {
+			LOG.trace("Ignoring the invalid address of host '{}'.", host);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Looks up the addresses of a host with the system resolver in the
+	 * background and remembers them in the preferences.
+	 */
+	private void lookUp(final String host) {
+		final AddressFamilyPreferences preferences = this.preferences;
+		try {
+			LOOKUPS.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						preferences.resolved(host, InetAddress.getAllByName(host));
+					}
+					catch (UnknownHostException e) {
+						LOG.trace("Unable to resolve the addresses of host '{}'.", host);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// the host is connected without racing until it is evicted
+			LOG.trace("Too many pending lookups, host '{}' is not looked up.", host);
+		}
+	}
+
+	/**
+	 * Races the connections to the MTA address and to the alternative address
+	 * of the other family. The first established connection becomes the
+	 * channel of the conversation, the other one is closed.
+	 */
+	private void race(String host, InetSocketAddress alternative) throws IOException {
+		InetSocketAddress[] targets;
+		if (this.preferences.prefersIpv6(host) == this.mxAddress instanceof Inet6Address) {
+			targets = new InetSocketAddress[] { this.socketAddress, alternative };
+		}
+		else {
+			targets = new InetSocketAddress[] { alternative, this.socketAddress };
+		}
+
+		SocketChannel[] channels = new SocketChannel[targets.length];
+		InetAddress[] sources = new InetAddress[targets.length];
+		long attemptDelay = this.preferences.getAttemptDelay(MILLISECONDS);
+		long nextAttempt = 0;
+		int started = 0;
+		int failed = 0;
+		IOException failure = null;
+
+		try {
+			while (this.channel == null) {
+				long now = System.currentTimeMillis();
+
+				if (started < targets.length && (now >= nextAttempt || failed == started)) {
+					// start the next connection attempt
+					int index = started++;
+					nextAttempt = now + attemptDelay;
+					try {
+						channels[index] = createAndInitialiseChannel((int) Math.min(this.timeout, Integer.MAX_VALUE));
+						sources[index] = bind(channels[index], targets[index].getAddress());
+						if (channels[index].connect(targets[index])) {
+							won(host, channels, sources, targets, index);
+						}
+						else {
+							channels[index].register(this.selector, SelectionKey.OP_CONNECT, index);
+						}
+					}
+					catch (IOException e) {
+						LOG.trace("Unable to connect to '{}'.", targets[index]);
+						closeQuietly(channels[index]);
+						channels[index] = null;
+						sources[index] = release(sources[index]);
+						failure = e;
+						++failed;
+					}
+					continue;
+				}
+
+				if (failed == targets.length) {
+					throw failure;
+				}
+
+				long remaining = this.deadline - now;
+				if (remaining <= 0) {
+					throw new SocketTimeoutException("The connection to '" + host + "' exceeded the timeout of "
+							+ this.timeout + " ms.");
+				}
+				if (started < targets.length) {
+					remaining = Math.min(remaining, Math.max(1, nextAttempt - now));
+				}
+
+				this.selector.select(remaining);
+				for (SelectionKey key : this.selector.selectedKeys()) {
+					int index = (Integer) key.attachment();
+					try {
+						if (channels[index].finishConnect()) {
+							won(host, channels, sources, targets, index);
+							break;
+						}
+					}
+					catch (IOException e) {
+						LOG.trace("Unable to connect to '{}'.", targets[index]);
+						key.cancel();
+						closeQuietly(channels[index]);
+						channels[index] = null;
+						sources[index] = release(sources[index]);
+						failure = e;
+						++failed;
+					}
+				}
+				this.selector.selectedKeys().clear();
+
+				if (Thread.interrupted()) {
+					throw new InterruptedIOException("The connection to '" + host + "' was cancelled.");
+				}
+			}
+		}
+		finally {
+			for (int i = 0; i < channels.length; ++i) {
+				if (channels[i] != this.channel) {
+					closeQuietly(channels[i]);
+					release(sources[i]);
+				}
+			}
+		}
+	}
+
+	private void won(String host, SocketChannel[] channels, InetAddress[] sources, InetSocketAddress[] targets,
+			int index) {
+		this.channel = channels[index];
+		this.sourceAddress = sources[index];
+		this.socketAddress = targets[index];
+		this.preferences.connected(host, targets[index].getAddress());
+
+		LOG.trace("Connection to '{}' won the race.", targets[index]);
+	}
+
+	/**
+	 * Binds a channel to a local address of the source address pool.
+	 * 
+	 * @return The bound local address or <code>null</code> if the channel is
+	 *         not bound
+	 */
+	private InetAddress bind(SocketChannel channel, InetAddress target) throws IOException {
+		InetAddress source = this.sourcePool == null ? null : this.sourcePool.acquire(target, this.mxAddress);
+		if (source != null) {
+			try {
+				channel.socket().bind(new InetSocketAddress(source, 0));
+			}
+			catch (BindException e) {
+				this.sourcePool.bindFailed(source);
+				release(source);
+				throw e;
+			}
+		}
+
+		return source;
+	}
+
+	/**
+	 * Releases a local address to the source address pool.
+	 * 
+	 * @return Always <code>null</code>
+	 */
+	private InetAddress release(InetAddress source) {
+		if (source != null) {
+			this.sourcePool.release(source);
+		}
+
+		return null;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				LOG.trace("An error occured while closing a socket channel.", e);
+			}
+		}
+	}
+
 	public SocketChannel createAndInitialiseChannel(int timeout) throws IOException {
 		SocketChannel channel = SocketChannel.open();
 		Socket socket = channel.socket();
 		socket.setSoTimeout(timeout);
+		channel.configureBlocking(false);
 		return channel;
 	}
 
+	/**
+	 * Waits until the channel is ready for the specified operation or the
+	 * deadline of the conversation is reached.
+	 * 
+	 * @param operation
+	 *            The <code>SelectionKey</code> operation to wait for
+	 * @throws SocketTimeoutException
+	 *             if the deadline is reached
+	 * @throws InterruptedIOException
+	 *             if the thread was interrupted while waiting
+	 * @throws IOException
+	 *             if the selection fails
+	 */
+	protected void await(int operation) throws IOException {
+		long remaining = this.deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			if (this.recorder != null) {
+				record("timeout after " + this.timeout + " ms");
+			}
+			throw new SocketTimeoutException("The conversation with '" + this.mxAddress + "' exceeded the timeout of "
+					+ this.timeout + " ms.");
+		}
+
+		this.channel.register(this.selector, operation);
+		this.selector.select(remaining);
+		this.selector.selectedKeys().clear();
+
+		// clear the interrupt, otherwise the next channel operation would close
+		// the channel and a cancelled conversation could not say QUIT
+		if (Thread.interrupted()) {
+			record("cancelled");
+			throw new InterruptedIOException("The conversation with '" + this.mxAddress + "' was cancelled.");
+		}
+	}
+
 	public void say(Command command) throws IOException {
-		sayToServer(command.brief() + "\r\n");
+		if (!notNull(command, "command").isParticular()) {
+			throw new IllegalStateException("A not particularised command cannot be sent without a parameter.");
+		}
+		sayToServer(command, command.parameter);
 	}
 
-	protected void sayToServer(String message) throws IOException {
-		notBlank(message, "message");
-		ByteBuffer messageBuffer = ENCODER.encode(CharBuffer.wrap(message));
+	public void say(Command command, String parameter) throws IOException {
+		sayToServer(notNull(command, "command"), notBlank(parameter, "parameter"));
+	}
 
-		this.channel.write(messageBuffer);
+	/**
+	 * Sends the pre-encoded verb, the parameter and the pre-encoded suffix of
+	 * a command with a single gathering write.
+	 */
+	protected void sayToServer(Command command, String parameter) throws IOException {
+		ByteBuffer[] buffers = this.commandBuffers;
+		buffers[0] = template(command.getEncodedVerb());
+		buffers[1] = encodeParameter(parameter);
+		buffers[2] = template(command.getEncodedSuffix());
+
+		while (buffers[2].hasRemaining()) {
+			if (this.channel.write(buffers) == 0) {
+				await(SelectionKey.OP_WRITE);
+			}
+		}
+		if (this.recorder != null) {
+			this.recorder.command(this.transcriptId, buffers);
+		}
 		if (LOG.isTraceEnabled()) {
-			LOG.trace(">>> " + message.replace("\r", "\\r").replace("\n", "\\n"));
+			LOG.trace(">>> " + command.verb + (parameter == null ? "" : parameter) + command.getSuffix());
 		}
 	}
 
-	public Reply listen() throws IOException {
-		String reply = listenToServer();
-
-		if (reply.isEmpty()) {
-			return Reply.EMPTY;
+	private ByteBuffer template(ByteBuffer shared) {
+		ByteBuffer template = this.templates.get(shared);
+		if (template == null) {
+			template = shared.duplicate();
+			this.templates.put(shared, template);
 		}
+		template.rewind();
 
-		try {
-			return Reply.create(reply.substring(0, 3), reply.substring(4));
-		}
-		catch (StringIndexOutOfBoundsException sioobe) {
-			throw new IOException("Unable to parse server response: " + reply, sioobe);
+		return template;
+	}
+
+	private ByteBuffer encodeParameter(String parameter) throws IOException {
+		ByteBuffer buffer = this.parameterBuffer;
+		buffer.clear();
+
+		if (parameter != null) {
+			int length = parameter.length();
+			if (length > buffer.capacity()) {
+				throw new IOException("The command parameter exceeds " + MAX_COMMAND_LENGTH + " characters.");
+			}
+			for (int i = 0; i < length; ++i) {
+				char c = parameter.charAt(i);
+				if (c > 0x7f || c == '\r' || c == '\n') {
+					throw new IOException("Unable to send the character '" + c + "' within a command parameter.");
+				}
+				buffer.put((byte) c);
+			}
 		}
+		buffer.flip();
+
+		return buffer;
 	}
 
-	protected String listenToServer() throws IOException {
-		StringBuilder result = new StringBuilder();
-		this.buffer.clear();
-		while (this.channel.read(this.buffer) > 0) {
-			this.buffer.flip();
-			CharBuffer charBuffer = DECODER.decode(this.buffer);
-			result.append(charBuffer.toString());
+	public Reply listen() throws IOException {
+		Reply reply;
+		while ((reply = this.replyReader.poll()) == null) {
+			int read = this.channel.read(this.replyReader.getReceiveBuffer());
+			if (read == 0) {
+				await(SelectionKey.OP_READ);
+			}
+			else if (read < 0) {
+				// the server closed the connection
+				if (this.replyReader.hasPartialReply()) {
+					throw new IOException("The server closed the connection within a reply.");
+				}
+				record("connection closed by the server");
+				return Reply.EMPTY;
+			}
+		}
+
+		if (this.recorder != null) {
+			this.recorder.reply(this.transcriptId, reply);
 		}
 
 		if (LOG.isTraceEnabled()) {
-			LOG.trace("<<< " + result.toString().replace("\r", "\\r").replace("\n", "\\n"));
+			LOG.trace("<<< " + reply);
+		}
+		if (this.sourceAddress != null && reply.getCode() == Reply.Code.SERVICE_NOT_AVAILABLE) {
+			this.sourcePool.throttled(this.sourceAddress, this.mxAddress);
 		}
 
-		return result.toString();
+		return reply;
 	}
 
 	public void end() {
+		if (this.channel != null && LOG.isDebugEnabled()) {
+			// a little trick: log only if a channel exists because
+			// the connection failed if no channel exists.
+			LOG.debug("Conversation to '" + this.socketAddress.getAddress().getCanonicalHostName() + "' has ended.");
+		}
+
+		try {
+			close();
+		}
+		finally {
+			this.socketAddress = null;
+			this.mxAddress = null;
+		}
+	}
+
+	private void close() {
 		try {
 			if (this.channel != null) {
-				if (LOG.isDebugEnabled()) {
-					// a little trick: log only if a channel exists because
-					// the connection failed if no channel exists.
-					LOG.debug("Conversation to '" + this.socketAddress.getAddress().getCanonicalHostName()
-							+ "' has ended.");
-				}
 				this.channel.close();
 			}
+			if (this.selector != null) {
+				this.selector.close();
+			}
 		}
 		catch (IOException e) {
 			if (LOG.isDebugEnabled()) {
@@ -177,9 +730,9 @@ public class SocketChannelConversation implements Conversation {
 			}
 		}
 		finally {
+			this.sourceAddress = release(this.sourceAddress);
 			this.channel = null;
-			this.socketAddress = null;
-			this.mxAddress = null;
+			this.selector = null;
 			this.active = false;
 		}
 	}
@@ -188,21 +741,107 @@ public class SocketChannelConversation implements Conversation {
 		return this.mxAddress;
 	}
 
+	/**
+	 * Starts a new deadline for a conversation which is continued later (i.e.
+	 * a pooled session).
+	 */
+	void renew() {
+		this.deadline = System.currentTimeMillis() + this.timeout;
+	}
+
+	/**
+	 * Starts a new transcript for a conversation which is continued by another
+	 * query (i.e. a borrowed pooled session), so the transcript of a query
+	 * does not contain the recipients of the previous ones.
+	 */
+	void continueTranscript() {
+		if (this.recorder != null && this.transcriptId != 0) {
+			this.transcriptId = this.recorder.nextConversation();
+			record("continuing the session with " + this.socketAddress);
+		}
+	}
+
+	/**
+	 * Records an event of the conversation in the transcript. Events which are
+	 * concatenated are only built if a recorder is set.
+	 */
+	private void record(String event) {
+		if (this.recorder != null) {
+			this.recorder.event(this.transcriptId, event);
+		}
+	}
+
+	@Override
+	public String getTranscript() {
+		if (this.recorder == null || !this.recorder.isAttachToFailures() || this.transcriptId == 0) {
+			return null;
+		}
+
+		return this.recorder.dump(this.transcriptId);
+	}
+
 	public static class Factory implements ConversationFactory {
 
 		private final long socketTimeout;
 
+		/** The address family preferences shared by all conversations */
+		private final AddressFamilyPreferences preferences;
+
+		/** The source address pool shared by all conversations */
+		private final SourceAddressPool sourcePool;
+
+		/** The transcript recorder shared by all conversations */
+		private final TranscriptRecorder recorder;
+
+		/** The resolver of the alternative addresses of all conversations */
+		private final Resolver resolver;
+
 		public Factory(long socketTimeout) {
+			this(socketTimeout, new AddressFamilyPreferences());
+		}
+
+		public Factory(long socketTimeout, AddressFamilyPreferences preferences) {
+			this(socketTimeout, preferences, null);
+		}
+
+		public Factory(long socketTimeout, SourceAddressPool sourcePool) {
+			this(socketTimeout, new AddressFamilyPreferences(), notNull(sourcePool, "sourcePool"));
+		}
+
+		public Factory(long socketTimeout, AddressFamilyPreferences preferences, SourceAddressPool sourcePool) {
+			this(socketTimeout, preferences, sourcePool, null);
+		}
+
+		public Factory(long socketTimeout, TranscriptRecorder recorder) {
+			this(socketTimeout, new AddressFamilyPreferences(), null, notNull(recorder, "recorder"));
+		}
+
+		public Factory(long socketTimeout, AddressFamilyPreferences preferences, SourceAddressPool sourcePool,
+				TranscriptRecorder recorder) {
+			this(socketTimeout, preferences, sourcePool, recorder, null);
+		}
+
+		public Factory(long socketTimeout, Resolver resolver) {
+			this(socketTimeout, new AddressFamilyPreferences(), null, null, notNull(resolver, "resolver"));
+		}
+
+		public Factory(long socketTimeout, AddressFamilyPreferences preferences, SourceAddressPool sourcePool,
+				TranscriptRecorder recorder, Resolver resolver) {
 			this.socketTimeout = socketTimeout;
+			this.preferences = notNull(preferences, "preferences");
+			this.sourcePool = sourcePool;
+			this.recorder = recorder;
+			this.resolver = resolver;
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Initialized socket channel conversation factory " + "with " + this.socketTimeout
-						+ " ms socket time out.");
+						+ " ms conversation time out.");
 			}
 		}
 
 		@Override
 		public Conversation createConversation() {
-			return new SocketChannelConversation(this.socketTimeout);
+			return new SocketChannelConversation(this.socketTimeout, this.preferences, this.sourcePool, this.recorder,
+					this.resolver);
 		}
 
 	}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * <p>
+ * The source address pool spreads the connections of the <code>SocketChannelConversation</code>s across several local
+ * addresses, so per IP connection limits of large providers and the ephemeral ports of a single address do not limit
+ * the throughput. The pool is shared by all conversations of a <code>SocketChannelConversation.Factory</code>.
+ * </p>
+ * <p>
+ * A source address is chosen from the addresses of the same family as the MTA address, either round-robin or by the
+ * least number of open connections (<code>LEAST_LOADED</code>). Both strategies skip addresses which were throttled
+ * (<code>421</code> reply) by an MTA of the same provider within the throttle period as long as other addresses are
+ * available. The provider of an MTA is the domain of its host name (the last two labels, three for a generic second
+ * level domain below a country code like <code>example.co.uk</code>), so the throttle of one MTA of a provider is
+ * honoured by its other MTAs, but not by the MTAs of other providers. An MTA address without a host name is a
+ * provider of its own. If no address of the family is in the pool, the connection uses the default local address.
+ * </p>
+ * <p>
+ * The usage of every source address (open connections, total connections, throttles and bind failures) may be
+ * observed with <code>getUsage()</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class SourceAddressPool {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(SourceAddressPool.class);
+
+	/**
+	 * The strategies to choose a source address
+	 */
+	public enum Strategy {
+		/** Use the addresses in turn */
+		ROUND_ROBIN,
+		/** Use the address with the least open connections */
+		LEAST_LOADED
+	}
+
+	/**
+	 * The usage statistics of a source address
+	 */
+	public static final class Usage {
+
+		private final int open;
+
+		private final long connections;
+
+		private final long throttles;
+
+		private final long bindFailures;
+
+		private Usage(Source source) {
+			this.open = source.open.get();
+			this.connections = source.connections.get();
+			this.throttles = source.throttles.get();
+			this.bindFailures = source.bindFailures.get();
+		}
+
+		/**
+		 * The number of currently open connections
+		 * 
+		 * @return The number of open connections
+		 */
+		public int getOpen() {
+			return this.open;
+		}
+
+		/**
+		 * The total number of connections
+		 * 
+		 * @return The number of connections
+		 */
+		public long getConnections() {
+			return this.connections;
+		}
+
+		/**
+		 * The number of throttling replies received on this address
+		 * 
+		 * @return The number of throttles
+		 */
+		public long getThrottles() {
+			return this.throttles;
+		}
+
+		/**
+		 * The number of failures to bind a local port (e.g. port exhaustion)
+		 * 
+		 * @return The number of bind failures
+		 */
+		public long getBindFailures() {
+			return this.bindFailures;
+		}
+
+		@Override
+		public String toString() {
+			return "[open=" + this.open + ", connections=" + this.connections + ", throttles=" + this.throttles
+					+ ", bindFailures=" + this.bindFailures + "]";
+		}
+	}
+
+	/** The strategy to choose an address */
+	private final Strategy strategy;
+
+	/** The period a throttled address is avoided in milliseconds */
+	private final long throttlePeriod;
+
+	/** The source addresses */
+	private final Source[] sources;
+
+	/** The generic second level domains below a country code, i.e. co.uk */
+	private static final Set<String> COUNTRY_SECOND_LEVELS = new HashSet<String>(Arrays.asList("ac", "co", "com",
+			"edu", "gov", "ne", "net", "or", "org"));
+
+	/** The number of providers whose throttles are kept per source address */
+	private static final int PROVIDER_CAPACITY = 1000;
+
+	/** Counter for round-robin */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Convenience constructor which avoids throttled addresses for one minute.
+	 * 
+	 * @param strategy
+	 *            The strategy to choose an address
+	 * @param addresses
+	 *            The local addresses
+	 */
+	public SourceAddressPool(Strategy strategy, InetAddress... addresses) {
+		this(strategy, 1, MINUTES, Arrays.asList(addresses));
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param strategy
+	 *            The strategy to choose an address
+	 * @param throttlePeriod
+	 *            The period a throttled address is avoided for the MTAs of
+	 *            the provider
+	 * @param throttlePeriodUnit
+	 *            The time unit of the throttle period
+	 * @param addresses
+	 *            The local addresses
+	 */
+	public SourceAddressPool(Strategy strategy, long throttlePeriod, TimeUnit throttlePeriodUnit,
+			List<InetAddress> addresses) {
+		if (notNull(addresses, "addresses").isEmpty()) {
+			throw new IllegalArgumentException("The pool needs at least one address.");
+		}
+		this.strategy = notNull(strategy, "strategy");
+		this.throttlePeriod = notNull(throttlePeriodUnit, "throttlePeriodUnit").toMillis(throttlePeriod);
+		this.sources = new Source[addresses.size()];
+		for (int i = 0; i < this.sources.length; ++i) {
+			this.sources[i] = new Source(notNull(addresses.get(i), "address"));
+		}
+	}
+
+	/**
+	 * Acquires a source address for a connection to an MTA. The address has to
+	 * be released after the connection is closed.
+	 * 
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @return The source address or <code>null</code> if the pool contains no
+	 *         address of the family of the MTA address.
+	 */
+	public InetAddress acquire(InetAddress mxAddress) {
+		return acquire(mxAddress, mxAddress);
+	}
+
+	/**
+	 * Acquires a source address for a connection to an address of an MTA,
+	 * i.e. the alternative address of the other family. The address has to be
+	 * released after the connection is closed.
+	 * 
+	 * @param target
+	 *            The address to connect to, which determines the family
+	 * @param mxAddress
+	 *            The address of the MTA, which determines the provider
+	 * @return The source address or <code>null</code> if the pool contains no
+	 *         address of the family of the target address.
+	 */
+	public InetAddress acquire(InetAddress target, InetAddress mxAddress) {
+		boolean ipv6 = notNull(target, "target") instanceof Inet6Address;
+		String provider = getProvider(notNull(mxAddress, "mxAddress"));
+		long now = System.currentTimeMillis();
+		Source chosen = null;
+
+		switch (this.strategy) {
+		case ROUND_ROBIN:
+			int start = this.next.getAndIncrement() & Integer.MAX_VALUE;
+			Source throttled = null;
+			for (int i = 0; i < this.sources.length && chosen == null; ++i) {
+				Source source = this.sources[(start + i) % this.sources.length];
+				if (source.ipv6 != ipv6) {
+					continue;
+				}
+				if (!isThrottled(source, provider, now)) {
+					chosen = source;
+				}
+				else if (throttled == null) {
+					throttled = source;
+				}
+			}
+			if (chosen == null) {
+				// every address is throttled, so use the next one anyway
+				chosen = throttled;
+			}
+			break;
+		case LEAST_LOADED:
+			long best = Long.MAX_VALUE;
+			for (Source source : this.sources) {
+				if (source.ipv6 == ipv6) {
+					long load = source.open.get();
+					if (isThrottled(source, provider, now)) {
+						// avoid recently throttled addresses
+						load += Integer.MAX_VALUE;
+					}
+					if (load < best) {
+						best = load;
+						chosen = source;
+					}
+				}
+			}
+			break;
+		default:
+			throw new AssertionError("Unknown strategy '" + this.strategy + "'.");
+		}
+
+		if (chosen == null) {
+			return null;
+		}
+		chosen.open.incrementAndGet();
+		chosen.connections.incrementAndGet();
+
+		return chosen.address;
+	}
+
+	/**
+	 * Releases a source address after the connection is closed.
+	 * 
+	 * @param address
+	 *            The source address
+	 */
+	public void release(InetAddress address) {
+		Source source = find(address);
+		if (source != null) {
+			source.open.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Records that an MTA throttled a connection from a source address. The
+	 * address is avoided for the MTAs of the same provider.
+	 * 
+	 * @param address
+	 *            The source address
+	 * @param mxAddress
+	 *            The address of the MTA
+	 */
+	public void throttled(InetAddress address, InetAddress mxAddress) {
+		Source source = find(address);
+		if (source != null) {
+			String provider = getProvider(notNull(mxAddress, "mxAddress"));
+			LOG.debug("The source address '{}' was throttled by '{}'.", address, provider);
+			source.throttles.incrementAndGet();
+			source.throttled.put(provider, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Records that no local port could be bound on a source address.
+	 * 
+	 * @param address
+	 *            The source address
+	 */
+	public void bindFailed(InetAddress address) {
+		Source source = find(address);
+		if (source != null) {
+			LOG.debug("Unable to bind a port on the source address '{}'.", address);
+			source.bindFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the usage of all source addresses.
+	 * 
+	 * @return Map of source addresses to their usage
+	 */
+	public Map<InetAddress, Usage> getUsage() {
+		Map<InetAddress, Usage> usage = new LinkedHashMap<InetAddress, Usage>();
+		for (Source source : this.sources) {
+			usage.put(source.address, new Usage(source));
+		}
+
+		return Collections.unmodifiableMap(usage);
+	}
+
+	/**
+	 * Returns the period a throttled address is avoided.
+	 * 
+	 * @param unit
+	 *            The time unit of the returned period
+	 * @return The throttle period
+	 */
+	public long getThrottlePeriod(TimeUnit unit) {
+		return unit.convert(this.throttlePeriod, MILLISECONDS);
+	}
+
+	private boolean isThrottled(Source source, String provider, long now) {
+		Long throttled = source.throttled.get(provider);
+
+		return throttled != null && now - throttled < this.throttlePeriod;
+	}
+
+	/**
+	 * Returns the provider of an MTA: the domain of its host name or the
+	 * literal if the address has no host name.
+	 */
+	static String getProvider(InetAddress mxAddress) {
+		// toString() returns "host/literal" and does not resolve
+		String string = mxAddress.toString();
+		int slash = string.indexOf('/');
+		if (slash <= 0) {
+			return mxAddress.getHostAddress();
+		}
+
+		String host = string.substring(0, slash).toLowerCase();
+		if (host.endsWith(".")) {
+			host = host.substring(0, host.length() - 1);
+		}
+		int last = host.lastIndexOf('.');
+		int second = last < 0 ? -1 : host.lastIndexOf('.', last - 1);
+		if (second >= 0 && host.length() - last - 1 == 2
+				&& COUNTRY_SECOND_LEVELS.contains(host.substring(second + 1, last))) {
+			// a second level domain of a country code, i.e. co.uk
+			second = host.lastIndexOf('.', second - 1);
+		}
+
+		return second < 0 ? host : host.substring(second + 1);
+	}
+
+	private Source find(InetAddress address) {
+		for (Source source : this.sources) {
+			if (source.address.equals(address)) {
+				return source;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * The state of a single source address
+	 */
+	private static final class Source {
+
+		private final InetAddress address;
+
+		private final boolean ipv6;
+
+		private final AtomicInteger open = new AtomicInteger();
+
+		private final AtomicLong connections = new AtomicLong();
+
+		private final AtomicLong throttles = new AtomicLong();
+
+		private final AtomicLong bindFailures = new AtomicLong();
+
+		/** The time of the last throttle per provider */
+		private final ConcurrentMap<String, Long> throttled = new LruMap<String, Long>(PROVIDER_CAPACITY);
+
+		private Source(InetAddress address) {
+			this.address = address;
+			this.ipv6 = address instanceof Inet6Address;
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.ResultCode.Type.LOGICAL;
+import static net.nicl.jaev.ValidatorResultCode.GENERAL_VALIDATION_ERROR;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.smtp.SmtpResultCode.*;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>
+ * This <code>AccountQuery</code> proxy implementation throttles the concurrent queries per MTA address and per provider
+ * (the registrable domain of the MTA host name, as for the <code>SourceAddressPool</code>) with an AIMD (additive
+ * increase, multiplicative decrease) limit. A reply which signals spam suspicion, a rate limit, a policy rejection or a
+ * temporary rejection (i.e. <code>421</code>), as recognised by the <code>ReplyClassifier</code>, cuts the limit by the
+ * decrease factor, each logical answer raises the limit by one per window of queries. The limit is cut at most once per
+ * cool down period, so the queries which were in flight during a cut do not cut it again.
+ * </p>
+ * <p>
+ * A query waits for a permit of both throttles up to the maximum wait and fails with <code>MTA_THROTTLED</code>
+ * otherwise, so bulk validations slow down instead of getting the sender blacklisted. The current limits may be
+ * observed with <code>getState(..)</code>, <code>getMxStates()</code> and <code>getProviderStates()</code>.
+ * </p>
+ * <p>
+ * A list of MTAs is passed on to an inner <code>MxListAccountQuery</code> with a permit of the provider throttle; the
+ * MTA throttles only learn from the outcomes reported by the inner query, as it picks the MTAs itself. The provider is
+ * taken from the first MTA, as the MTAs of a domain are usually run by the same provider. Any other inner query is
+ * asked MTA by MTA.
+ * </p>
+ * <p>
+ * A batch of mail addresses is passed on to an inner <code>BatchAccountQuery</code> with a single permit of the MTA
+ * throttle, as it is queried with a single session; every result of the batch adjusts the throttles of the MTA and of
+ * its provider. Any other inner query is asked address by address.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class ThrottlingAccountQuery implements MxListAccountQuery, BatchAccountQuery {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(ThrottlingAccountQuery.class);
+
+	/** The maximum number of MTA and of provider throttles */
+	private static final int CAPACITY = 10000;
+
+	/** Inner <code>AccountQuery</code> instance to use for the queries */
+	private final AccountQuery accountQuery;
+
+	/** The initial limit of concurrent queries */
+	private final int initialLimit;
+
+	/** The minimum limit of concurrent queries */
+	private final int minLimit;
+
+	/** The maximum limit of concurrent queries */
+	private final int maxLimit;
+
+	/** The factor applied to the limit on a throttle signal */
+	private final double decreaseFactor;
+
+	/** The minimum period between two cuts in milliseconds */
+	private final long coolDown;
+
+	/** The maximum wait for a permit in milliseconds */
+	private final long maxWait;
+
+	/** The throttles per MTA address */
+	private final ConcurrentMap<InetAddress, Throttle> mxThrottles = new LruMap<InetAddress, Throttle>(CAPACITY);
+
+	/** The throttles per provider */
+	private final ConcurrentMap<String, Throttle> providerThrottles = new LruMap<String, Throttle>(CAPACITY);
+
+	/**
+	 * Convenience constructor which allows eight concurrent queries initially
+	 * (between one and 32), halves the limit at most every five seconds and
+	 * waits up to ten seconds for a permit.
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 */
+	public ThrottlingAccountQuery(AccountQuery accountQuery) {
+		this(accountQuery, 8, 1, 32, 0.5, 5, 10, SECONDS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 * @param initialLimit
+	 *            The initial limit of concurrent queries per MTA and provider
+	 * @param minLimit
+	 *            The minimum limit
+	 * @param maxLimit
+	 *            The maximum limit
+	 * @param decreaseFactor
+	 *            The factor applied to the limit on a throttle signal (e.g.
+	 *            <code>0.5</code>)
+	 * @param coolDown
+	 *            The minimum period between two cuts of a limit
+	 * @param maxWait
+	 *            The maximum wait for a permit
+	 * @param unit
+	 *            The time unit of the cool down and the maximum wait
+	 */
+	public ThrottlingAccountQuery(AccountQuery accountQuery, int initialLimit, int minLimit, int maxLimit,
+			double decreaseFactor, long coolDown, long maxWait, TimeUnit unit) {
+		if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("The limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit.");
+		}
+		if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+			throw new IllegalArgumentException("The decrease factor must be within (0, 1).");
+		}
+		this.accountQuery = notNull(accountQuery, "accountQuery");
+		this.initialLimit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.decreaseFactor = decreaseFactor;
+		this.coolDown = notNull(unit, "unit").toMillis(coolDown);
+		this.maxWait = unit.toMillis(maxWait);
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+		Throttle mxThrottle = getThrottle(this.mxThrottles, notNull(mxAddress, "mxAddress"));
+		String provider = SourceAddressPool.getProvider(mxAddress);
+		Throttle providerThrottle = getThrottle(this.providerThrottles, provider);
+		Result result = null;
+
+		try {
+			long deadline = System.currentTimeMillis() + this.maxWait;
+			if (!mxThrottle.acquire(deadline)) {
+				LOG.debug("The queries to MTA '{}' are throttled.", mxAddress);
+				return Result.create(MTA_THROTTLED, DOMAIN, mailAddress, mxAddress, mailAddress.getDomain());
+			}
+			try {
+				if (!providerThrottle.acquire(deadline)) {
+					LOG.debug("The queries to provider '{}' are throttled.", provider);
+					return Result.create(MTA_THROTTLED, DOMAIN, mailAddress, mxAddress, mailAddress.getDomain());
+				}
+
+				try {
+					result = this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+					return result;
+				}
+				finally {
+					providerThrottle.release(result);
+				}
+			}
+			finally {
+				mxThrottle.release(result);
+			}
+		}
+		catch (InterruptedException e) {
+			LOG.debug("The throttled query to MTA '{}' was cancelled.", mxAddress);
+			Thread.currentThread().interrupt();
+			return Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, mailAddress, mxAddress);
+		}
+	}
+
+	@Override
+	public Result query(MailAddress mailAddress, MailAddress fromAddress, List<InetAddress> mxAddresses,
+			final Listener listener) {
+		if (!(this.accountQuery instanceof MxListAccountQuery)) {
+			return AccountQueries.queryInOrder(this, mailAddress, fromAddress, mxAddresses, listener);
+		}
+
+		if (notNull(mxAddresses, "mxAddresses").isEmpty()) {
+			return ((MxListAccountQuery) this.accountQuery).query(mailAddress, fromAddress, mxAddresses, listener);
+		}
+
+		String provider = SourceAddressPool.getProvider(mxAddresses.get(0));
+		Throttle providerThrottle = getThrottle(this.providerThrottles, provider);
+		Result result = null;
+
+		try {
+			if (!providerThrottle.acquire(System.currentTimeMillis() + this.maxWait)) {
+				LOG.debug("The queries to provider '{}' are throttled.", provider);
+				return Result.create(MTA_THROTTLED, DOMAIN, mailAddress, mxAddresses.get(0), mailAddress.getDomain());
+			}
+
+			try {
+				result = ((MxListAccountQuery) this.accountQuery).query(mailAddress, fromAddress, mxAddresses,
+						new Listener() {
+
+							@Override
+							public void queried(MailAddress mailAddress, InetAddress mxAddress, Result mxResult,
+									long latency, TimeUnit unit) {
+								getThrottle(ThrottlingAccountQuery.this.mxThrottles, mxAddress).observe(mxResult);
+								if (listener != null) {
+									listener.queried(mailAddress, mxAddress, mxResult, latency, unit);
+								}
+							}
+						});
+				return result;
+			}
+			finally {
+				providerThrottle.release(result);
+			}
+		}
+		catch (InterruptedException e) {
+			LOG.debug("The throttled query for '{}' was cancelled.", mailAddress);
+			Thread.currentThread().interrupt();
+			return Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, mailAddress, mailAddress.getDomain());
+		}
+	}
+
+	@Override
+	public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+			int recipientLimit) {
+		if (!(this.accountQuery instanceof BatchAccountQuery)) {
+			return AccountQueries.queryEach(this, mailAddresses, fromAddress, mxAddress);
+		}
+
+		Throttle mxThrottle = getThrottle(this.mxThrottles, notNull(mxAddress, "mxAddress"));
+		try {
+			if (!mxThrottle.acquire(System.currentTimeMillis() + this.maxWait)) {
+				LOG.debug("The queries to MTA '{}' are throttled.", mxAddress);
+
+				List<Result> results = new ArrayList<Result>(notNull(mailAddresses, "mailAddresses").size());
+				for (MailAddress mailAddress : mailAddresses) {
+					results.add(Result.create(MTA_THROTTLED, DOMAIN, mailAddress, mxAddress, mailAddress.getDomain()));
+				}
+				return results;
+			}
+		}
+		catch (InterruptedException e) {
+			LOG.debug("The throttled query to MTA '{}' was cancelled.", mxAddress);
+			Thread.currentThread().interrupt();
+
+			List<Result> results = new ArrayList<Result>(notNull(mailAddresses, "mailAddresses").size());
+			for (MailAddress mailAddress : mailAddresses) {
+				results.add(Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, mailAddress, mxAddress));
+			}
+			return results;
+		}
+
+		List<Result> results = null;
+		try {
+			results = ((BatchAccountQuery) this.accountQuery).query(mailAddresses, fromAddress, mxAddress,
+					recipientLimit);
+			return results;
+		}
+		finally {
+			mxThrottle.release(null);
+			if (results != null) {
+				Throttle providerThrottle = getThrottle(this.providerThrottles, SourceAddressPool
+						.getProvider(mxAddress));
+				for (Result result : results) {
+					mxThrottle.observe(result);
+					providerThrottle.observe(result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if a result signals that the MTA wants us to slow down.
+	 * 
+	 * @param resultCode
+	 *            The result code
+	 * @return <code>true</code> for spam, policy and temporary rejections
+	 */
+	protected boolean isThrottleSignal(ResultCode resultCode) {
+		return MTA_SUSPECTS_SPAM.equals(resultCode) || MTA_RATE_LIMITED.equals(resultCode)
+				|| MTA_POLICY_REJECTION.equals(resultCode) || MTA_DEFERS_RECIPIENT.equals(resultCode)
+				|| MTA_DOES_NOT_ACCEPT_FROM_ADDRESS.equals(resultCode)
+				|| MTA_DOES_NOT_ACCEPT_FROM_DOMAIN.equals(resultCode);
+	}
+
+	/**
+	 * Returns the state of the throttle for an MTA address.
+	 * 
+	 * @param mxAddress
+	 *            The MTA address
+	 * @return The state, the initial state if the MTA is unknown
+	 */
+	public State getState(InetAddress mxAddress) {
+		Throttle throttle = this.mxThrottles.get(notNull(mxAddress, "mxAddress"));
+
+		return throttle == null ? new State(this.initialLimit, 0, null) : throttle.getState();
+	}
+
+	/**
+	 * Returns the state of the throttle for a provider.
+	 * 
+	 * @param provider
+	 *            The provider, the registrable domain of the MTA host name
+	 *            or the literal of an MTA without host name
+	 * @return The state, the initial state if the provider is unknown
+	 */
+	public State getState(String provider) {
+		Throttle throttle = this.providerThrottles.get(notNull(provider, "provider").toLowerCase());
+
+		return throttle == null ? new State(this.initialLimit, 0, null) : throttle.getState();
+	}
+
+	/**
+	 * Returns a snapshot of the states of all MTA throttles.
+	 * 
+	 * @return Map of MTA addresses to throttle states
+	 */
+	public Map<InetAddress, State> getMxStates() {
+		return getStates(this.mxThrottles);
+	}
+
+	/**
+	 * Returns a snapshot of the states of all provider throttles.
+	 * 
+	 * @return Map of domains to throttle states
+	 */
+	public Map<String, State> getProviderStates() {
+		return getStates(this.providerThrottles);
+	}
+
+	private static <K> Map<K, State> getStates(ConcurrentMap<K, Throttle> throttles) {
+		Map<K, State> states = new HashMap<K, State>();
+		for (Map.Entry<K, Throttle> entry : throttles.entrySet()) {
+			states.put(entry.getKey(), entry.getValue().getState());
+		}
+
+		return Collections.unmodifiableMap(states);
+	}
+
+	private <K> Throttle getThrottle(ConcurrentMap<K, Throttle> throttles, K key) {
+		Throttle throttle = throttles.get(key);
+		if (throttle == null) {
+			Throttle newThrottle = new Throttle(String.valueOf(key));
+			throttle = throttles.putIfAbsent(key, newThrottle);
+			if (throttle == null) {
+				throttle = newThrottle;
+			}
+		}
+
+		return throttle;
+	}
+
+	/**
+	 * The immutable state of a throttle
+	 */
+	public static final class State {
+
+		private final double limit;
+
+		private final int inFlight;
+
+		private final ResultCode lastSignal;
+
+		private State(double limit, int inFlight, ResultCode lastSignal) {
+			this.limit = limit;
+			this.inFlight = inFlight;
+			this.lastSignal = lastSignal;
+		}
+
+		/**
+		 * Returns the number of concurrent queries allowed.
+		 * 
+		 * @return The limit
+		 */
+		public int getLimit() {
+			return (int) this.limit;
+		}
+
+		/**
+		 * Returns the number of queries in flight.
+		 * 
+		 * @return The number of queries in flight
+		 */
+		public int getInFlight() {
+			return this.inFlight;
+		}
+
+		/**
+		 * Returns the result code of the last throttle signal.
+		 * 
+		 * @return The result code or <code>null</code> if no signal was
+		 *         received
+		 */
+		public ResultCode getLastSignal() {
+			return this.lastSignal;
+		}
+
+		@Override
+		public String toString() {
+			return "[limit " + getLimit() + ", " + this.inFlight + " in flight, last signal " + this.lastSignal + "]";
+		}
+	}
+
+	/**
+	 * The AIMD throttle of a single MTA or provider
+	 */
+	private final class Throttle {
+
+		private final String key;
+
+		private double limit = ThrottlingAccountQuery.this.initialLimit;
+
+		private int inFlight = 0;
+
+		private long lastDecrease = 0;
+
+		private ResultCode lastSignal = null;
+
+		private Throttle(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Waits for a permit.
+		 * 
+		 * @return <code>false</code> if no permit was granted until the
+		 *         deadline
+		 */
+		private synchronized boolean acquire(long deadline) throws InterruptedException {
+			while (this.inFlight >= (int) this.limit) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				wait(wait);
+			}
+			++this.inFlight;
+
+			return true;
+		}
+
+		/**
+		 * Returns a permit and adjusts the limit to the result of the query.
+		 * 
+		 * @param result
+		 *            The result of the query, <code>null</code> to leave the
+		 *            limit unchanged
+		 */
+		private synchronized void release(Result result) {
+			--this.inFlight;
+			if (result != null) {
+				adjust(result.getResultCode());
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Adjusts the limit to the result of a query which was performed
+		 * without a permit.
+		 * 
+		 * @param result
+		 *            The result of the query
+		 */
+		private synchronized void observe(Result result) {
+			adjust(result.getResultCode());
+		}
+
+		private void adjust(ResultCode resultCode) {
+			if (isThrottleSignal(resultCode)) {
+				this.lastSignal = resultCode;
+				long now = System.currentTimeMillis();
+				if (now - this.lastDecrease >= ThrottlingAccountQuery.this.coolDown) {
+					this.lastDecrease = now;
+					this.limit = Math.max(ThrottlingAccountQuery.this.minLimit, this.limit
+							* ThrottlingAccountQuery.this.decreaseFactor);
+					LOG.debug("Throttled '{}' to {} concurrent queries.", this.key, (int) this.limit);
+				}
+			}
+			else if (LOGICAL.equals(resultCode.getType())) {
+				this.limit = Math.min(ThrottlingAccountQuery.this.maxLimit, this.limit + 1 / this.limit);
+			}
+		}
+
+		private synchronized State getState() {
+			return new State(this.limit, this.inFlight, this.lastSignal);
+		}
+	}
+}
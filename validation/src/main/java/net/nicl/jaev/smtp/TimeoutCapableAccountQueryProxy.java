@@ -16,14 +16,19 @@
 
 package net.nicl.jaev.smtp;
 
+import net.nicl.jaev.LatencyTracker;
 import net.nicl.jaev.MailAddress;
 import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.ResultFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static net.nicl.jaev.Check.notNull;
 import static net.nicl.jaev.Validity.DOMAIN;
@@ -34,10 +39,37 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 /**
  * This <code>AccountQuery</code> proxy implementation executes the query in a
  * defined time out.
+ * <p>
+ * The query is executed by the executor service. <code>queryAsync(..)</code>
+ * returns immediately with a <code>ResultFuture</code> which expires with
+ * <code>TIMEOUT_DURING_MTA_CONVERSATION</code>; <code>query(..)</code> waits
+ * for the future. On expiry the querying thread is interrupted, which ends the
+ * conversation with the MTA, and the callbacks are notified by the executor
+ * service instead of the thread of the timer.
+ * </p>
+ * <p>
+ * With a <code>LatencyTracker</code> the timeout is learned per MTA address
+ * (falling back to the domain of the mail address) from the latencies of the
+ * previous queries.
+ * </p>
+ * <p>
+ * A list of MTAs is passed on to an inner <code>MxListAccountQuery</code> in
+ * a single task, so the timeout (learned per domain) bounds the query of the
+ * whole list. Any other inner query is asked MTA by MTA, each with its own
+ * timeout.
+ * </p>
+ * <p>
+ * A batch of mail addresses is passed on to an inner
+ * <code>BatchAccountQuery</code> in a single task as well. The session
+ * expires like a single query on the shared timer, its deadline is the
+ * timeout of a query per transaction (of at most the recipient limit), while
+ * each command is bounded by the conversation itself. Any other inner query
+ * is asked address by address.
+ * </p>
  * 
  * @author Niclas Meier
  */
-public class TimeoutCapableAccountQueryProxy implements AccountQuery {
+public class TimeoutCapableAccountQueryProxy implements AsyncAccountQuery, MxListAccountQuery, BatchAccountQuery {
 
 	/**
 	 * The Logger
@@ -53,17 +85,8 @@ public class TimeoutCapableAccountQueryProxy implements AccountQuery {
 	/** Inner <code>AccountQuery</code> instance to use for proxy request */
 	private final AccountQuery accountQuery;
 
-	/**
-	 * A simple cache for <code>AccountQueryCallable</code>s to prevent <code>AccountQueryCallable</code> instantiation.
-	 */
-	private final ThreadLocal<AccountQueryCallable> queryCallableCache = new ThreadLocal<AccountQueryCallable>() {
-
-		@Override
-		protected AccountQueryCallable initialValue() {
-			return new AccountQueryCallable();
-		}
-
-	};
+	/** The tracker for adaptive timeouts, may be <code>null</code> */
+	private final LatencyTracker latencyTracker;
 
 	/**
 	 * Convenience constructor which creates a <code>BasicAccountQuery</code> as
@@ -99,20 +122,153 @@ public class TimeoutCapableAccountQueryProxy implements AccountQuery {
 		this.accountQuery = accountQuery;
 		this.executorService = executorService;
 		this.timeout = notNull(timeoutUnit, "timeoutUnit").toMillis(timeout);
+		this.latencyTracker = null;
+	}
+
+	/**
+	 * Constructor for adaptive timeouts. The maximum timeout of the tracker is
+	 * used for unknown MTAs and domains.
+	 * 
+	 * @param accountQuery
+	 *            The inner account query instance
+	 * @param executorService
+	 *            The executor service instance to use
+	 * @param latencyTracker
+	 *            The tracker of the query latencies per MTA and domain
+	 */
+	public TimeoutCapableAccountQueryProxy(AccountQuery accountQuery, ExecutorService executorService,
+			LatencyTracker latencyTracker) {
+		this.accountQuery = accountQuery;
+		this.executorService = executorService;
+		this.latencyTracker = notNull(latencyTracker, "latencyTracker");
+		this.timeout = latencyTracker.getTimeout(MILLISECONDS);
 	}
 
 	@Override
 	public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
-		// get callable from cache
-		AccountQueryCallable queryCallable = this.queryCallableCache.get();
+		return await(queryAsync(mailAddress, fromAddress, mxAddress), mailAddress, mxAddress);
+	}
+
+	@Override
+	public Result query(final MailAddress mailAddress, final MailAddress fromAddress,
+			final List<InetAddress> mxAddresses, final Listener listener) {
+		if (!(this.accountQuery instanceof MxListAccountQuery)) {
+			return AccountQueries.queryInOrder(this, mailAddress, fromAddress, mxAddresses, listener);
+		}
+
+		long timeout = this.timeout;
+		LatencyRecorder latencyRecorder = null;
+		if (this.latencyTracker != null) {
+			timeout = this.latencyTracker.getTimeout(MILLISECONDS, mailAddress.getDomain());
+			latencyRecorder = new LatencyRecorder(timeout, mailAddress.getDomain());
+		}
+
+		ResultFuture futureResult = submit(new Callable<Result>() {
+
+			@Override
+			public Result call() {
+				return ((MxListAccountQuery) TimeoutCapableAccountQueryProxy.this.accountQuery).query(mailAddress,
+						fromAddress, mxAddresses, listener);
+			}
+		}, mailAddress, mailAddress.getDomain(), timeout, latencyRecorder);
+
+		return await(futureResult, mailAddress, mailAddress.getDomain());
+	}
+
+	@Override
+	public ResultFuture queryAsync(final MailAddress mailAddress, final MailAddress fromAddress,
+			final InetAddress mxAddress) {
+		long timeout = this.timeout;
+		LatencyRecorder latencyRecorder = null;
+		if (this.latencyTracker != null) {
+			timeout = this.latencyTracker.getTimeout(MILLISECONDS, mxAddress.getHostAddress(), mailAddress.getDomain());
+			latencyRecorder = new LatencyRecorder(timeout, mxAddress.getHostAddress(), mailAddress.getDomain());
+		}
+
+		return submit(new Callable<Result>() {
+
+			@Override
+			public Result call() {
+				return TimeoutCapableAccountQueryProxy.this.accountQuery.query(mailAddress, fromAddress, mxAddress);
+			}
+		}, mailAddress, mxAddress, timeout, latencyRecorder);
+	}
+
+	@Override
+	public List<Result> query(final List<MailAddress> mailAddresses, final MailAddress fromAddress,
+			final InetAddress mxAddress, final int recipientLimit) {
+		if (!(this.accountQuery instanceof BatchAccountQuery) || notNull(mailAddresses, "mailAddresses").isEmpty()) {
+			return AccountQueries.queryEach(this, mailAddresses, fromAddress, mxAddress);
+		}
 
-		// set values
-		queryCallable.set(this.accountQuery, mxAddress, mailAddress, fromAddress);
+		// the session is granted the timeout of a query per transaction
+		long timeout = this.latencyTracker != null ? this.latencyTracker.getTimeout(MILLISECONDS, mxAddress
+				.getHostAddress()) : this.timeout;
+		int transactions = (mailAddresses.size() + Math.max(recipientLimit, 1) - 1) / Math.max(recipientLimit, 1);
+		final AtomicReference<List<Result>> batchResults = new AtomicReference<List<Result>>();
+
+		ResultFuture futureResult = submit(new Callable<Result>() {
+
+			@Override
+			public Result call() {
+				List<Result> results = ((BatchAccountQuery) TimeoutCapableAccountQueryProxy.this.accountQuery).query(
+						mailAddresses, fromAddress, mxAddress, recipientLimit);
+				batchResults.set(results);
+
+				return results.get(0);
+			}
+		}, mailAddresses.get(0), mxAddress, timeout * transactions, null);
+
+		Result result = await(futureResult, mailAddresses.get(0), mxAddress);
+		List<Result> results = batchResults.get();
+		if (results != null && results.get(0) == result) {
+			return results;
+		}
+
+		// the session expired, failed or was rejected
+		return createEach(result.getResultCode(), mailAddresses, mxAddress);
+	}
+
+	/**
+	 * Submits a query for execution.
+	 * 
+	 * @param query
+	 *            The query to execute
+	 * @param mailAddress
+	 *            The mail address to verify
+	 * @param target
+	 *            The MTA address or the domain queried
+	 * @param timeout
+	 *            The timeout in milliseconds
+	 * @param latencyRecorder
+	 *            The recorder of the latency, may be <code>null</code>
+	 * @return The future of the query result.
+	 */
+	private ResultFuture submit(final Callable<Result> query, MailAddress mailAddress, Object target, long timeout,
+			LatencyRecorder latencyRecorder) {
+		final ResultFuture futureResult = new ResultFuture();
 
-		Future<Result> futureResult;
 		try {
-			// submit callable for execution
-			futureResult = this.executorService.submit(queryCallable);
+			// submit the query for execution
+			futureResult.setTask(this.executorService.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						futureResult.complete(query.call());
+					}
+					catch (RuntimeException e) {
+						futureResult.fail(e);
+					}
+					catch (Error e) {
+						futureResult.fail(e);
+						throw e;
+					}
+					catch (Exception e) {
+						futureResult.fail(e);
+					}
+				}
+			}));
 		}
 		catch (RejectedExecutionException ree) {
 			// this is not 100% correct. The executor service rejected
@@ -120,47 +276,46 @@ public class TimeoutCapableAccountQueryProxy implements AccountQuery {
 			// does make not any difference to the validation process.
 			LOG.warn("Executor service rejected execution.", ree);
 
-			return Result.create(TIMEOUT_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
+			futureResult.complete(Result.create(TIMEOUT_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, target));
+			return futureResult;
 		}
 
-		// try three times
-		for (int i = 0; i < 3; ++i) {
-			try {
-				return futureResult.get(this.timeout, MILLISECONDS);
-			}
-
-			catch (InterruptedException e) {
-				// somebody interrupted the thread
+		if (latencyRecorder != null) {
+			// learn from the latency of the query
+			futureResult.addCallback(latencyRecorder);
+		}
 
-				// may occur if the executor is shut down and the result is
-				// canceled.
-				if (futureResult.isCancelled()) {
-					Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
-				}
+		// a timeout occurred
+		futureResult.expire(timeout, MILLISECONDS, Result.create(TIMEOUT_DURING_MTA_CONVERSATION, DOMAIN, mailAddress,
+				target), this.executorService);
 
-				// if anyone else interrupted the thread just retry
-			}
-			catch (ExecutionException e) {
-				// an exception during execution occurred
-				return interpretException(mailAddress, e, mxAddress);
-			}
-			catch (TimeoutException e) {
-				// cancel the execution
-				if (futureResult.cancel(true)) {
-					LOG.warn("Cancelling the account query to '" + mxAddress.getCanonicalHostName() + "' failed");
-				}
+		return futureResult;
+	}
 
-				// a timeout occurred
-				return Result.create(TIMEOUT_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
-			}
+	private Result await(ResultFuture futureResult, MailAddress mailAddress, Object target) {
+		try {
+			// the future expires, so there is no need for a timed wait
+			return futureResult.get();
+		}
+		catch (InterruptedException e) {
+			// the caller gave up, so the query is cancelled and the interrupt
+			// status is restored
+			futureResult.cancel(true);
+			Thread.currentThread().interrupt();
+			return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, target);
+		}
+		catch (CancellationException e) {
+			// may occur if the executor is shut down and the result is
+			// canceled.
+			return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, target);
+		}
+		catch (ExecutionException e) {
+			// an exception during execution occurred
+			return interpretException(mailAddress, e, target);
 		}
-
-		// all three attempts to query the account failed. this only can happen,
-		// if the thread is interrupted repeatedly.
-		return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
 	}
 
-	private Result interpretException(MailAddress mailAddress, ExecutionException ee, InetAddress mxAddress) {
+	private Result interpretException(MailAddress mailAddress, ExecutionException ee, Object target) {
 		Throwable cause = ee.getCause();
 		if (cause instanceof Error) {
 			throw (Error) cause;
@@ -170,39 +325,53 @@ public class TimeoutCapableAccountQueryProxy implements AccountQuery {
 		}
 		else {
 			if (LOG.isDebugEnabled()) {
-				LOG.debug("An unexpected error occured during MTA " + "conversation with '" + mxAddress + "'." + cause);
+				LOG.debug("An unexpected error occured during MTA " + "conversation with '" + target + "'." + cause);
 			}
-			return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, mxAddress);
+			return Result.create(IO_ERROR_DURING_MTA_CONVERSATION, DOMAIN, mailAddress, target);
 		}
 	}
 
-	private class AccountQueryCallable implements Callable<Result> {
+	private static List<Result> createEach(ResultCode resultCode, List<MailAddress> mailAddresses,
+			InetAddress mxAddress) {
+		List<Result> results = new ArrayList<Result>(mailAddresses.size());
+		for (MailAddress mailAddress : mailAddresses) {
+			results.add(Result.create(resultCode, DOMAIN, mailAddress, mxAddress));
+		}
 
-		private AccountQuery accountQuery;
+		return results;
+	}
 
-		private InetAddress mxAddress;
+	/**
+	 * Records the latency of a completed query at the tracker
+	 */
+	private class LatencyRecorder implements ResultFuture.Callback {
 
-		private MailAddress mailAddress;
+		private final String[] keys;
 
-		private MailAddress fromAddress;
+		private final long timeout;
 
-		public void set(AccountQuery accountQuery, InetAddress mxAddress, MailAddress mailAddress,
-				MailAddress fromAddress) {
-			this.accountQuery = accountQuery;
-			this.mxAddress = mxAddress;
-			this.mailAddress = mailAddress;
-			this.fromAddress = fromAddress;
-		}
+		private final long start = System.currentTimeMillis();
 
-		public void clear() {
-			set(null, null, null, null);
+		private LatencyRecorder(long timeout, String... keys) {
+			this.keys = keys;
+			this.timeout = timeout;
 		}
 
 		@Override
-		public Result call() throws IOException {
-			return this.accountQuery.query(this.mailAddress, this.fromAddress, this.mxAddress);
+		public void completed(Result result) {
+			long latency = System.currentTimeMillis() - this.start;
+			if (TIMEOUT_DURING_MTA_CONVERSATION.equals(result.getResultCode())) {
+				latency = this.timeout;
+			}
+			for (String key : this.keys) {
+				TimeoutCapableAccountQueryProxy.this.latencyTracker.record(key, latency, MILLISECONDS);
+			}
 		}
 
+		@Override
+		public void failed(Throwable cause) {
+			// nothing learned
+		}
 	}
 
 }
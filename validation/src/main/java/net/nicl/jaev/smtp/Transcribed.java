@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+/**
+ * <p>
+ * A <code>Conversation</code> which records a transcript of the commands and replies exchanged with the MTA. The
+ * <code>BasicAccountQuery</code> attaches the transcript to failing results.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public interface Transcribed {
+
+	/**
+	 * Returns the transcript of the last conversation, if it should be
+	 * attached to a failing result.
+	 * 
+	 * @return The transcript or <code>null</code> if transcripts are not
+	 *         attached
+	 */
+	public String getTranscript();
+
+}
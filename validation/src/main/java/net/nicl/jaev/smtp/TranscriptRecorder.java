@@ -0,0 +1,279 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * <p>
+ * The transcript recorder keeps the last commands, replies and events of the <code>SocketChannelConversation</code>s
+ * in a bounded ring buffer. The records are kept as raw bytes with a timestamp, the text of the transcript is only
+ * created by <code>dump()</code>, so the recorder may be enabled at full traffic in contrast to the trace logging of the
+ * conversation.
+ * </p>
+ * <p>
+ * The recorder is shared by all conversations of a <code>SocketChannelConversation.Factory</code> and lock-free: a
+ * record claims the next position of the ring with an atomic counter and overwrites the oldest record. Every
+ * conversation gets an id, so the transcript of a single conversation can be extracted from the ring as long as it is
+ * not overwritten. If <code>attachToFailures</code> is set, the <code>BasicAccountQuery</code> attaches the transcript
+ * of a conversation to every result which is not <code>ADDRESS_VALID</code>.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class TranscriptRecorder {
+
+	/** The maximum number of bytes kept per record */
+	private static final int MAX_RECORD_LENGTH = 512;
+
+	/** Character set of the records */
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+	/** The kinds of records */
+	private static final byte CONNECTED = 0, COMMAND = 1, REPLY = 2, EVENT = 3;
+
+	/** The ring of records */
+	private final AtomicReferenceArray<Record> ring;
+
+	/** Mask to map a sequence number to a position of the ring */
+	private final int mask;
+
+	/** The sequence number of the next record */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** The id of the next conversation */
+	private final AtomicInteger conversations = new AtomicInteger();
+
+	/** Attach the transcript to failing results */
+	private final boolean attachToFailures;
+
+	/**
+	 * Convenience constructor which keeps 4096 records and does not attach
+	 * transcripts to results.
+	 */
+	public TranscriptRecorder() {
+		this(4096, false);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param capacity
+	 *            The number of records kept, rounded up to a power of two
+	 * @param attachToFailures
+	 *            Attach the transcript of a conversation to results which are
+	 *            not <code>ADDRESS_VALID</code>
+	 */
+	public TranscriptRecorder(int capacity, boolean attachToFailures) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("The capacity must be between 1 and 2^30.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		size = size < capacity ? size << 1 : size;
+
+		this.ring = new AtomicReferenceArray<Record>(size);
+		this.mask = size - 1;
+		this.attachToFailures = attachToFailures;
+	}
+
+	/**
+	 * Creates the id for a new conversation.
+	 * 
+	 * @return The conversation id
+	 */
+	int nextConversation() {
+		return this.conversations.incrementAndGet();
+	}
+
+	/**
+	 * Records an established connection.
+	 */
+	void connected(int conversation, InetSocketAddress address) {
+		append(conversation, CONNECTED, 0, String.valueOf(address).getBytes(CHARSET));
+	}
+
+	/**
+	 * Records a command from the buffers of a gathering write. The buffers are
+	 * copied from their beginning to their limit.
+	 */
+	void command(int conversation, ByteBuffer[] buffers) {
+		int length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.limit();
+		}
+		byte[] data = new byte[Math.min(length, MAX_RECORD_LENGTH)];
+		int position = 0;
+		for (ByteBuffer buffer : buffers) {
+			for (int i = 0; i < buffer.limit() && position < data.length; ++i) {
+				data[position++] = buffer.get(i);
+			}
+		}
+		append(conversation, COMMAND, 0, data);
+	}
+
+	/**
+	 * Records a reply of the MTA.
+	 */
+	void reply(int conversation, Reply reply) {
+		byte[] text = reply.getText();
+		append(conversation, REPLY, reply.getCode().getValue(), text.length > MAX_RECORD_LENGTH ? copy(text) : text);
+	}
+
+	/**
+	 * Records an event of the conversation, i.e. a timeout.
+	 */
+	void event(int conversation, String event) {
+		append(conversation, EVENT, 0, event.getBytes(CHARSET));
+	}
+
+	private static byte[] copy(byte[] text) {
+		byte[] data = new byte[MAX_RECORD_LENGTH];
+		System.arraycopy(text, 0, data, 0, data.length);
+
+		return data;
+	}
+
+	private void append(int conversation, byte kind, int code, byte[] data) {
+		long sequence = this.sequence.getAndIncrement();
+		this.ring.set((int) sequence & this.mask, new Record(sequence, conversation, kind, code, System.nanoTime(),
+				data));
+	}
+
+	/**
+	 * Checks if the transcript of a conversation should be attached to
+	 * failing results.
+	 * 
+	 * @return <code>true</code> if transcripts should be attached
+	 */
+	public boolean isAttachToFailures() {
+		return this.attachToFailures;
+	}
+
+	/**
+	 * Returns the number of records kept by the recorder.
+	 * 
+	 * @return The capacity
+	 */
+	public int getCapacity() {
+		return this.ring.length();
+	}
+
+	/**
+	 * Creates the transcript of all records in the ring.
+	 * 
+	 * @return The transcript, one record per line
+	 */
+	public String dump() {
+		return dump(0);
+	}
+
+	/**
+	 * Creates the transcript of a single conversation.
+	 * 
+	 * @param conversation
+	 *            The id of the conversation or <code>0</code> for all
+	 *            conversations
+	 * @return The transcript, one record per line
+	 */
+	public String dump(int conversation) {
+		long end = this.sequence.get();
+		long start = Math.max(0, end - this.ring.length());
+		long origin = Long.MIN_VALUE;
+		StringBuilder builder = new StringBuilder();
+
+		for (long sequence = start; sequence < end; ++sequence) {
+			Record record = this.ring.get((int) sequence & this.mask);
+			// skip records which are overwritten or not yet published
+			if (record == null || record.sequence != sequence
+					|| (conversation != 0 && record.conversation != conversation)) {
+				continue;
+			}
+			if (origin == Long.MIN_VALUE) {
+				origin = record.time;
+			}
+			record.appendTo(builder, origin);
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * A single immutable record of the ring
+	 */
+	private static final class Record {
+
+		private final long sequence;
+
+		private final int conversation;
+
+		private final byte kind;
+
+		private final int code;
+
+		/** The time of the record in nanoseconds */
+		private final long time;
+
+		private final byte[] data;
+
+		private Record(long sequence, int conversation, byte kind, int code, long time, byte[] data) {
+			this.sequence = sequence;
+			this.conversation = conversation;
+			this.kind = kind;
+			this.code = code;
+			this.time = time;
+			this.data = data;
+		}
+
+		private void appendTo(StringBuilder builder, long origin) {
+			builder.append('#').append(this.conversation).append(" +");
+			builder.append(TimeUnit.MILLISECONDS.convert(this.time - origin, NANOSECONDS)).append("ms ");
+			switch (this.kind) {
+			case CONNECTED:
+				builder.append("--- connected to ");
+				break;
+			case COMMAND:
+				builder.append(">>> ");
+				break;
+			case REPLY:
+				builder.append("<<< ").append(this.code).append(' ');
+				break;
+			default:
+				builder.append("--- ");
+			}
+			for (byte b : this.data) {
+				if (b == '\n' && this.kind == REPLY) {
+					builder.append(" | ");
+				}
+				else if (b >= 0x20 && b < 0x7f) {
+					builder.append((char) b);
+				}
+				else if (b != '\r' && b != '\n') {
+					builder.append('?');
+				}
+			}
+			builder.append('\n');
+		}
+	}
+}
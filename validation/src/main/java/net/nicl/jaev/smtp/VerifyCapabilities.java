@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LruMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+/**
+ * <p>
+ * The verify capabilities remember per MTA if it answers <code>VRFY</code> truthfully. The
+ * <code>BasicAccountQuery</code> uses them to choose the probe: a trusted MTA is asked with <code>VRFY</code> right
+ * after the banner, which saves the <code>HELO</code> and <code>MAIL FROM</code> round-trips.
+ * </p>
+ * <p>
+ * The capability of an unknown MTA is learned: the address is verified with <code>VRFY</code> and afterwards with the
+ * usual <code>RCPT TO</code> sequence on the same connection. Once both answers agreed the required number of times the
+ * MTA is trusted; a disagreement or a reply like <code>252</code> (cannot verify) or <code>502</code> (not
+ * implemented) marks the MTA as unsupported. The capabilities expire after a while, so a changed MTA configuration is
+ * noticed.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class VerifyCapabilities {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(VerifyCapabilities.class);
+
+	/** The maximum number of MTAs with a learned capability */
+	private static final int CAPACITY = 10000;
+
+	/**
+	 * The <code>VRFY</code> capability of an MTA
+	 */
+	public enum Capability {
+		/** Not known yet, <code>VRFY</code> is compared with <code>RCPT TO</code> */
+		UNKNOWN,
+		/** <code>VRFY</code> is answered truthfully */
+		TRUSTED,
+		/** <code>VRFY</code> is not supported or not answered truthfully */
+		UNSUPPORTED
+	}
+
+	/** The number of agreements required to trust an MTA */
+	private final int requiredAgreements;
+
+	/** The period a capability is valid in milliseconds */
+	private final long expiry;
+
+	/** The state per MTA */
+	private final ConcurrentMap<InetAddress, State> states = new LruMap<InetAddress, State>(CAPACITY);
+
+	/**
+	 * Convenience constructor which trusts an MTA after three agreements for
+	 * one day.
+	 */
+	public VerifyCapabilities() {
+		this(3, 1, DAYS);
+	}
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param requiredAgreements
+	 *            The number of agreements of <code>VRFY</code> and
+	 *            <code>RCPT TO</code> required to trust an MTA
+	 * @param expiry
+	 *            The period a learned capability is valid
+	 * @param expiryUnit
+	 *            The time unit of the expiry
+	 */
+	public VerifyCapabilities(int requiredAgreements, long expiry, TimeUnit expiryUnit) {
+		if (requiredAgreements < 1) {
+			throw new IllegalArgumentException("At least one agreement is required.");
+		}
+		this.requiredAgreements = requiredAgreements;
+		this.expiry = notNull(expiryUnit, "expiryUnit").toMillis(expiry);
+	}
+
+	/**
+	 * Returns the capability of an MTA.
+	 * 
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @return The capability
+	 */
+	public Capability getCapability(InetAddress mxAddress) {
+		State state = this.states.get(notNull(mxAddress, "mxAddress"));
+		if (state == null) {
+			return Capability.UNKNOWN;
+		}
+		if (state.capability != Capability.UNKNOWN && System.currentTimeMillis() - state.since > this.expiry) {
+			// learn again
+			this.states.remove(mxAddress, state);
+			return Capability.UNKNOWN;
+		}
+
+		return state.capability;
+	}
+
+	/**
+	 * Records that an MTA is not able to verify addresses.
+	 * 
+	 * @param mxAddress
+	 *            The address of the MTA
+	 */
+	public void unsupported(InetAddress mxAddress) {
+		LOG.debug("The MTA '{}' does not support VRFY.", mxAddress);
+		put(mxAddress, new State(Capability.UNSUPPORTED, 0));
+	}
+
+	/**
+	 * Records the comparison of a <code>VRFY</code> answer with the
+	 * <code>RCPT TO</code> answer for the same address.
+	 * 
+	 * @param mxAddress
+	 *            The address of the MTA
+	 * @param agreed
+	 *            <code>true</code> if both answers agreed
+	 */
+	public void compared(InetAddress mxAddress, boolean agreed) {
+		if (!agreed) {
+			LOG.debug("The MTA '{}' does not answer VRFY truthfully.", mxAddress);
+			put(mxAddress, new State(Capability.UNSUPPORTED, 0));
+			return;
+		}
+
+		State state = this.states.get(notNull(mxAddress, "mxAddress"));
+		int agreements = (state == null || state.capability != Capability.UNKNOWN ? 0 : state.agreements) + 1;
+		if (agreements >= this.requiredAgreements) {
+			LOG.debug("The MTA '{}' answers VRFY truthfully.", mxAddress);
+			put(mxAddress, new State(Capability.TRUSTED, agreements));
+		}
+		else {
+			put(mxAddress, new State(Capability.UNKNOWN, agreements));
+		}
+	}
+
+	private void put(InetAddress mxAddress, State state) {
+		this.states.put(notNull(mxAddress, "mxAddress"), state);
+	}
+
+	/**
+	 * The immutable state of an MTA
+	 */
+	private static final class State {
+
+		private final Capability capability;
+
+		private final int agreements;
+
+		private final long since = System.currentTimeMillis();
+
+		private State(Capability capability, int agreements) {
+			this.capability = capability;
+			this.agreements = agreements;
+		}
+	}
+}
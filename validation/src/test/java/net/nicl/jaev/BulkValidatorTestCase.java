@@ -0,0 +1,343 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.dns.ResouceRecord;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.BasicAccountQuery;
+import net.nicl.jaev.smtp.CircuitBreakingAccountQuery;
+import net.nicl.jaev.smtp.Command;
+import net.nicl.jaev.smtp.Conversation;
+import net.nicl.jaev.smtp.ConversationFactory;
+import net.nicl.jaev.smtp.Reply;
+import net.nicl.jaev.smtp.ThrottlingAccountQuery;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.dns.ResouceRecord.Type.MX;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_SUSPECTS_SPAM;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public final class BulkValidatorTestCase {
+
+	private static final Executor CALLER = new Executor() {
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final Executor REJECTING = new Executor() {
+
+		@Override
+		public void execute(Runnable command) {
+			throw new RejectedExecutionException();
+		}
+	};
+
+	private final Mockery context = new JUnit4Mockery();
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void testSessionAcrossDomains() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final List<MailAddress> mailAddresses = Arrays.asList(this.addressFactory.create("x@a.example.com"),
+				this.addressFactory.create("y@b.example.com"), this.addressFactory.create("z@c.example.com"));
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final Sequence commandSequence = this.context.sequence("command");
+
+		BulkValidator validator = createValidator(fromAddress, conversation, 2);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "x@a.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "y@b.example.com");
+				inSequence(commandSequence);
+
+				// the recipient limit is reached
+				oneOf(conversation).say(Command.RESET);
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "z@c.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+
+				exactly(8).of(conversation).listen();
+				will(onConsecutiveCalls(returnValue(Reply.create("220", "")), returnValue(Reply.create("250", "")),
+						returnValue(Reply.create("250", "")), returnValue(Reply.create("250", "")), returnValue(Reply
+								.create("550", "")), returnValue(Reply.create("250", "")), returnValue(Reply.create(
+								"250", "")), returnValue(Reply.create("250", ""))));
+			}
+		});
+
+		List<Result> results = validator.validate(mailAddresses);
+		assertThat(results.get(0).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(results.get(1).getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(results.get(2).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.getSessionCount(), is(1L));
+		assertThat(validator.getRecipientCount(), is(3L));
+	}
+
+	@Test
+	public void testTooManyRecipients() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final List<MailAddress> mailAddresses = Arrays.asList(this.addressFactory.create("x@a.example.com"),
+				this.addressFactory.create("y@b.example.com"));
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final Sequence commandSequence = this.context.sequence("command");
+
+		BulkValidator validator = createValidator(fromAddress, conversation, 100);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "x@a.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "y@b.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RESET);
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				// the refused recipient is sent again
+				oneOf(conversation).say(Command.RECIPIENT_TO, "y@b.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+
+				exactly(8).of(conversation).listen();
+				will(onConsecutiveCalls(returnValue(Reply.create("220", "")), returnValue(Reply.create("250", "")),
+						returnValue(Reply.create("250", "")), returnValue(Reply.create("250", "")), returnValue(Reply
+								.create("452", "4.5.3 Too many recipients")), returnValue(Reply.create("250", "")),
+						returnValue(Reply.create("250", "")), returnValue(Reply.create("250", ""))));
+			}
+		});
+
+		List<Result> results = validator.validate(mailAddresses);
+		assertThat(results.get(0).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(results.get(1).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.getSessionCount(), is(1L));
+	}
+
+	@Test
+	public void testDecoratedQuery() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final List<MailAddress> mailAddresses = Arrays.asList(this.addressFactory.create("x@a.example.com"),
+				this.addressFactory.create("y@b.example.com"));
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final Sequence commandSequence = this.context.sequence("command");
+
+		ThrottlingAccountQuery accountQuery = new ThrottlingAccountQuery(new CircuitBreakingAccountQuery(
+				createAccountQuery(conversation)));
+		BulkValidator validator = new BulkValidator(new BasicValidator(this.addressFactory, createResolver(),
+				accountQuery, fromAddress), CALLER);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "x@a.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "y@b.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+
+				exactly(5).of(conversation).listen();
+				will(onConsecutiveCalls(returnValue(Reply.create("220", "")), returnValue(Reply.create("250", "")),
+						returnValue(Reply.create("250", "")), returnValue(Reply.create("250", "")), returnValue(Reply
+								.create("550", "Client host blocked using zen.spamhaus.org"))));
+			}
+		});
+
+		// the batch passes the proxies as a single session
+		List<Result> results = validator.validate(mailAddresses);
+		assertThat(results.get(0).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(results.get(1).getResultCode(), is((ResultCode) MTA_SUSPECTS_SPAM));
+		assertThat(validator.getSessionCount(), is(1L));
+		assertThat(accountQuery.getState("127.0.0.1").getLastSignal(), is((ResultCode) MTA_SUSPECTS_SPAM));
+		assertThat(accountQuery.getState(InetAddress.getByName("127.0.0.1")).getInFlight(), is(0));
+	}
+
+	@Test
+	public void testRejectedBatch() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final List<MailAddress> mailAddresses = Arrays.asList(this.addressFactory.create("x@a.example.com"),
+				this.addressFactory.create("y@b.example.com"));
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final Sequence commandSequence = this.context.sequence("command");
+
+		BasicAccountQuery accountQuery = createAccountQuery(conversation);
+		BulkValidator validator = new BulkValidator(new BasicValidator(this.addressFactory, createResolver(),
+				accountQuery, fromAddress), accountQuery, REJECTING, 10, 1000);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "x@a.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, "y@b.example.com");
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+
+				exactly(5).of(conversation).listen();
+				will(onConsecutiveCalls(returnValue(Reply.create("220", "")), returnValue(Reply.create("250", "")),
+						returnValue(Reply.create("250", "")), returnValue(Reply.create("250", "")), returnValue(Reply
+								.create("550", ""))));
+			}
+		});
+
+		// the rejected batch is run by the calling thread
+		List<Result> results = validator.validate(mailAddresses);
+		assertThat(results.get(0).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(results.get(1).getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(validator.getSessionCount(), is(1L));
+	}
+
+	private BulkValidator createValidator(final MailAddress fromAddress, final Conversation conversation,
+			int recipientLimit) throws Exception {
+		BasicAccountQuery accountQuery = createAccountQuery(conversation);
+		BasicValidator basicValidator = new BasicValidator(this.addressFactory, createResolver(), accountQuery,
+				fromAddress);
+
+		return new BulkValidator(basicValidator, accountQuery, CALLER, recipientLimit, 1000);
+	}
+
+	private Resolver createResolver() throws Exception {
+		final Resolver resolver = this.context.mock(Resolver.class);
+		final ResouceRecord record = this.context.mock(ResouceRecord.class);
+
+		this.context.checking(new Expectations() {
+
+			{
+				// all domains share the same MTA
+				allowing(resolver).resolve(with(any(String.class)), with(equal(MX)));
+				will(returnValue(Arrays.asList(record)));
+				allowing(record).getValue();
+				will(returnValue("127.0.0.1"));
+			}
+		});
+
+		return resolver;
+	}
+
+	private BasicAccountQuery createAccountQuery(final Conversation conversation) throws Exception {
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final InetAddress mxAddress = InetAddress.getByName("127.0.0.1");
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				allowing(conversation).isActive();
+				will(returnValue(true));
+				allowing(conversation).getMxAddress();
+				will(returnValue(mxAddress));
+				oneOf(conversation).init(mxAddress, 25);
+			}
+		});
+
+		return new BasicAccountQuery(conversationFactory);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.DeferredRetryScheduler.Callback;
+import net.nicl.jaev.DeferredRetryScheduler.Outcome;
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.AccountQuery;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public final class DeferredRetrySchedulerTestCase {
+
+	private static final Executor DIRECT = new Executor() {
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	private final BlockingQueue<Outcome> outcomes = new ArrayBlockingQueue<Outcome>(10);
+
+	private final Callback callback = new Callback() {
+
+		@Override
+		public void completed(Outcome outcome) {
+			DeferredRetrySchedulerTestCase.this.outcomes.add(outcome);
+		}
+	};
+
+	private DeferredRetryScheduler scheduler;
+
+	@After
+	public void tearDown() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		this.scheduler = create(new ScriptedValidator(MTA_DEFERS_RECIPIENT, MTA_DEFERS_RECIPIENT, ADDRESS_VALID), 3);
+		this.scheduler.submit(this.addressFactory.create("jaev@googlecode.com"), this.callback);
+
+		Outcome outcome = this.outcomes.poll(5, SECONDS);
+		assertThat(outcome.getResult().getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(outcome.getRetries(), is(2));
+		assertThat(outcome.isDeferred(), is(false));
+		assertThat(this.scheduler.getDelay("googlecode.com", MILLISECONDS), is(10L));
+	}
+
+	@Test
+	public void testDeferred() throws Exception {
+		this.scheduler = create(new ScriptedValidator(MTA_DEFERS_RECIPIENT, MTA_DEFERS_RECIPIENT, MTA_DEFERS_RECIPIENT),
+				2);
+		this.scheduler.submit(this.addressFactory.create("jaev@googlecode.com"), this.callback);
+
+		Outcome outcome = this.outcomes.poll(5, SECONDS);
+		assertThat(outcome.getResult().getResultCode(), is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertThat(outcome.getRetries(), is(2));
+		assertThat(outcome.isDeferred(), is(true));
+		assertThat(this.scheduler.getDelay("GoogleCode.com", MILLISECONDS), is(40L));
+	}
+
+	@Test
+	public void testFinal() throws Exception {
+		this.scheduler = create(new ScriptedValidator(ADDRESS_UNKNOWN), 2);
+		this.scheduler.submit(this.addressFactory.create("jaev@googlecode.com"), this.callback);
+
+		Outcome outcome = this.outcomes.poll(5, SECONDS);
+		assertThat(outcome.getResult().getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(outcome.getRetries(), is(0));
+		assertThat(this.scheduler.getDeferredCount(), is(0));
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		this.scheduler = new DeferredRetryScheduler(new ScriptedValidator(MTA_DEFERS_RECIPIENT), DIRECT, Collections
+				.<ResultCode> singleton(MTA_DEFERS_RECIPIENT), 5, 1, 1, TimeUnit.HOURS);
+		this.scheduler.submit(this.addressFactory.create("jaev@googlecode.com"), this.callback);
+		assertThat(this.scheduler.getDeferredCount(), is(1));
+
+		this.scheduler.shutdown();
+
+		Outcome outcome = this.outcomes.poll(5, SECONDS);
+		assertThat(outcome.isDeferred(), is(true));
+		assertThat(outcome.getRetries(), is(1));
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		// the executor accepts the first validation and rejects the retry
+		Executor executor = new Executor() {
+
+			private boolean accepted = false;
+
+			@Override
+			public synchronized void execute(Runnable command) {
+				if (this.accepted) {
+					throw new RejectedExecutionException("The executor is saturated.");
+				}
+				this.accepted = true;
+				command.run();
+			}
+		};
+		this.scheduler = new DeferredRetryScheduler(new ScriptedValidator(MTA_DEFERS_RECIPIENT), executor, Collections
+				.<ResultCode> singleton(MTA_DEFERS_RECIPIENT), 5, 10, 10, MILLISECONDS);
+		this.scheduler.submit(this.addressFactory.create("jaev@googlecode.com"), this.callback);
+
+		Outcome outcome = this.outcomes.poll(5, SECONDS);
+		assertThat(outcome.isDeferred(), is(true));
+		assertThat(outcome.getRetries(), is(1));
+		assertThat(this.scheduler.getDeferredCount(), is(0));
+	}
+
+	private DeferredRetryScheduler create(Validator validator, int maxRetries) {
+		return new DeferredRetryScheduler(validator, DIRECT, Collections.<ResultCode> singleton(MTA_DEFERS_RECIPIENT),
+				maxRetries, 10, 1000, MILLISECONDS);
+	}
+
+	/**
+	 * Validator stand-in which returns the scripted result codes in order
+	 */
+	private final class ScriptedValidator extends AbstractValidator {
+
+		private final Iterator<ResultCode> resultCodes;
+
+		private ScriptedValidator(ResultCode... resultCodes) {
+			super(DeferredRetrySchedulerTestCase.this.addressFactory);
+			this.resultCodes = Arrays.asList(resultCodes).iterator();
+		}
+
+		@Override
+		public synchronized Result validate(MailAddress mailAddress) {
+			ResultCode resultCode = this.resultCodes.next();
+
+			return Result.create(resultCode, ADDRESS_VALID.equals(resultCode) ? ACCESSIBLE : DOMAIN, mailAddress);
+		}
+
+		@Override
+		public Resolver getResolver() {
+			return null;
+		}
+
+		@Override
+		public AccountQuery getAccountQuery() {
+			return null;
+		}
+	}
+}
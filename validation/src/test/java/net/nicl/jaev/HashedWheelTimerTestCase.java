@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class HashedWheelTimerTestCase {
+
+	/** A small wheel, so the timeouts need several rounds */
+	private final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, MILLISECONDS, 8);
+
+	@After
+	public void stop() {
+		this.timer.stop();
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		final CountDownLatch expired = new CountDownLatch(1);
+		long start = System.nanoTime();
+
+		HashedWheelTimer.Timeout timeout = this.timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				expired.countDown();
+			}
+		}, 100, MILLISECONDS);
+
+		assertTrue("The timeout did not expire.", expired.await(5, SECONDS));
+		long elapsed = MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS);
+		assertTrue("The timeout expired after " + elapsed + " ms.", elapsed >= 95);
+		assertThat(timeout.isExpired(), is(true));
+		assertThat(timeout.cancel(), is(false));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch expired = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+
+		HashedWheelTimer.Timeout cancelled = this.timer.schedule(task, 20, MILLISECONDS);
+		assertThat(cancelled.cancel(), is(true));
+		this.timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				expired.countDown();
+			}
+		}, 60, MILLISECONDS);
+
+		assertTrue("The timeout did not expire.", expired.await(5, SECONDS));
+		assertThat(runs.get(), is(0));
+		assertThat(cancelled.isCancelled(), is(true));
+	}
+
+	@Test
+	public void testMany() throws Exception {
+		final CountDownLatch expired = new CountDownLatch(1000);
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				expired.countDown();
+			}
+		};
+
+		for (int i = 0; i < 1000; ++i) {
+			this.timer.schedule(task, i % 200, MILLISECONDS);
+		}
+
+		assertTrue("Not all timeouts expired.", expired.await(5, SECONDS));
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import java.util.Random;
+
+/**
+ * A distribution of latencies in milliseconds for the fault injecting stand-ins. Real network latencies are roughly
+ * log-normal with a heavy tail, which can be modelled as a mixture of a body and a tail distribution.
+ * 
+ * @author Niclas Meier
+ */
+public abstract class LatencyDistribution {
+
+	/** No latency at all */
+	public static final LatencyDistribution NONE = fixed(0);
+
+	/**
+	 * Draws a latency.
+	 * 
+	 * @param random
+	 *            The source of randomness
+	 * @return The latency in milliseconds
+	 */
+	public abstract long sample(Random random);
+
+	/**
+	 * A constant latency.
+	 * 
+	 * @param millis
+	 *            The latency in milliseconds
+	 * @return The distribution
+	 */
+	public static LatencyDistribution fixed(final long millis) {
+		return new LatencyDistribution() {
+
+			@Override
+			public long sample(Random random) {
+				return millis;
+			}
+
+			@Override
+			public String toString() {
+				return millis + "ms";
+			}
+		};
+	}
+
+	/**
+	 * A latency uniformly distributed between a minimum and a maximum.
+	 * 
+	 * @param min
+	 *            The minimum latency in milliseconds
+	 * @param max
+	 *            The maximum latency in milliseconds
+	 * @return The distribution
+	 */
+	public static LatencyDistribution uniform(final long min, final long max) {
+		if (max < min) {
+			throw new IllegalArgumentException("The maximum latency must not be less than the minimum.");
+		}
+
+		return new LatencyDistribution() {
+
+			@Override
+			public long sample(Random random) {
+				return min + (long) (random.nextDouble() * (max - min));
+			}
+
+			@Override
+			public String toString() {
+				return "uniform(" + min + "ms, " + max + "ms)";
+			}
+		};
+	}
+
+	/**
+	 * An exponentially distributed latency.
+	 * 
+	 * @param mean
+	 *            The mean latency in milliseconds
+	 * @return The distribution
+	 */
+	public static LatencyDistribution exponential(final double mean) {
+		return new LatencyDistribution() {
+
+			@Override
+			public long sample(Random random) {
+				return (long) (-mean * Math.log(1 - random.nextDouble()));
+			}
+
+			@Override
+			public String toString() {
+				return "exponential(" + mean + "ms)";
+			}
+		};
+	}
+
+	/**
+	 * A log-normally distributed latency.
+	 * 
+	 * @param median
+	 *            The median latency in milliseconds
+	 * @param sigma
+	 *            The standard deviation of the logarithm, i.e. 1 for a p99 of
+	 *            about ten times the median
+	 * @return The distribution
+	 */
+	public static LatencyDistribution logNormal(final double median, final double sigma) {
+		return new LatencyDistribution() {
+
+			@Override
+			public long sample(Random random) {
+				return (long) (median * Math.exp(sigma * random.nextGaussian()));
+			}
+
+			@Override
+			public String toString() {
+				return "logNormal(" + median + "ms, " + sigma + ")";
+			}
+		};
+	}
+
+	/**
+	 * A mixture which draws from the tail with a probability and from the body
+	 * otherwise.
+	 * 
+	 * @param body
+	 *            The distribution of most latencies
+	 * @param probability
+	 *            The probability of a tail latency
+	 * @param tail
+	 *            The distribution of the tail latencies
+	 * @return The distribution
+	 */
+	public static LatencyDistribution mixture(final LatencyDistribution body, final double probability,
+			final LatencyDistribution tail) {
+		return new LatencyDistribution() {
+
+			@Override
+			public long sample(Random random) {
+				return random.nextDouble() < probability ? tail.sample(random) : body.sample(random);
+			}
+
+			@Override
+			public String toString() {
+				return body + " with " + probability + " of " + tail;
+			}
+		};
+	}
+}
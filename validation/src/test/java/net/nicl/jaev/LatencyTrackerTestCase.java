@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class LatencyTrackerTestCase {
+
+	@Test
+	public void testUnknown() {
+		LatencyTracker tracker = new LatencyTracker(100, 10000, MILLISECONDS);
+
+		assertThat(tracker.getTimeout(MILLISECONDS, "example.com"), is(10000L));
+		assertThat(tracker.getPercentile("example.com", MILLISECONDS), is(-1L));
+	}
+
+	@Test
+	public void testPercentile() {
+		LatencyTracker tracker = new LatencyTracker(0.99, 0.5, 20, 100, 10000, MILLISECONDS);
+		for (int i = 0; i < 99; ++i) {
+			tracker.record("fast.example.com", 200, MILLISECONDS);
+		}
+		tracker.record("fast.example.com", 5, SECONDS);
+
+		long percentile = tracker.getPercentile("FAST.example.com", MILLISECONDS);
+		assertTrue("p99 is " + percentile, percentile >= 200 && percentile < 240);
+
+		long timeout = tracker.getTimeout(MILLISECONDS, "mx.fast.example.com", "fast.example.com");
+		assertThat(timeout, is((long) Math.ceil(percentile * 1.5)));
+	}
+
+	@Test
+	public void testBounds() {
+		LatencyTracker tracker = new LatencyTracker(0.99, 0.5, 1, 100, 1000, MILLISECONDS);
+		tracker.record("fast.example.com", 1, MILLISECONDS);
+		tracker.record("slow.example.com", 1, SECONDS);
+
+		assertThat(tracker.getTimeout(MILLISECONDS, "fast.example.com"), is(100L));
+		assertThat(tracker.getTimeout(MILLISECONDS, "slow.example.com"), is(1000L));
+	}
+
+	@Test
+	public void testDecay() {
+		LatencyTracker tracker = new LatencyTracker(0.99, 0, 20, 1, 60000, MILLISECONDS);
+		for (int i = 0; i < 1000; ++i) {
+			tracker.record("example.com", 5, SECONDS);
+		}
+		// the domain became fast, the old samples fade out
+		for (int i = 0; i < 10000; ++i) {
+			tracker.record("example.com", 100, MILLISECONDS);
+		}
+
+		assertTrue(tracker.getPercentile("example.com", MILLISECONDS) < 200);
+	}
+}
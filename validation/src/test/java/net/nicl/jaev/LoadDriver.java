@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.dns.FakeResolver;
+import net.nicl.jaev.dns.FaultInjectingResolver;
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.BasicAccountQuery;
+import net.nicl.jaev.smtp.Command;
+import net.nicl.jaev.smtp.FakeMtaConversationFactory;
+import net.nicl.jaev.smtp.FaultInjectingConversationFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.LatencyDistribution.NONE;
+import static net.nicl.jaev.LatencyDistribution.fixed;
+import static net.nicl.jaev.LatencyDistribution.logNormal;
+import static net.nicl.jaev.LatencyDistribution.mixture;
+import static net.nicl.jaev.LatencyDistribution.uniform;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>
+ * The load driver validates mail addresses with a number of concurrent threads and reports the throughput, the
+ * latency percentiles and the result codes. Run as a program it measures the <code>TimeoutCapableValidator</code> and
+ * the bare SMTP layer against a fake MTA and a fake DNS with a realistic mix of injected faults:
+ * </p>
+ * 
+ * <pre>
+ * java net.nicl.jaev.LoadDriver [validations] [threads] [seed]
+ * </pre>
+ * 
+ * @author Niclas Meier
+ */
+public class LoadDriver {
+
+	/** The validator under load */
+	private final Validator validator;
+
+	/** The number of concurrent threads */
+	private final int threads;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param validator
+	 *            The validator under load
+	 * @param threads
+	 *            The number of concurrent threads
+	 */
+	public LoadDriver(Validator validator, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is required.");
+		}
+		this.validator = notNull(validator, "validator");
+		this.threads = threads;
+	}
+
+	/**
+	 * Validates the mail addresses round robin.
+	 * 
+	 * @param mailAddresses
+	 *            The mail addresses
+	 * @param validations
+	 *            The number of validations
+	 * @return The report of the run
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the run
+	 */
+	public Report run(final List<String> mailAddresses, final int validations) throws InterruptedException {
+		final long[] latencies = new long[validations];
+		final String[] codes = new String[validations];
+		final AtomicInteger next = new AtomicInteger();
+
+		Thread[] workers = new Thread[this.threads];
+		long start = System.nanoTime();
+		for (int i = 0; i < workers.length; ++i) {
+			workers[i] = new Thread("jaev-load-" + i) {
+
+				@Override
+				public void run() {
+					int index;
+					while ((index = next.getAndIncrement()) < validations) {
+						long started = System.nanoTime();
+						try {
+							Result result = LoadDriver.this.validator.validate(mailAddresses.get(index
+									% mailAddresses.size()));
+							codes[index] = String.valueOf(result.getResultCode());
+						}
+						catch (RuntimeException e) {
+							// a validator must not throw, so report it like a result
+							codes[index] = e.getClass().getName();
+						}
+						latencies[index] = System.nanoTime() - started;
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		return new Report(latencies, codes, System.nanoTime() - start);
+	}
+
+	/**
+	 * The report of a load run
+	 */
+	public static final class Report {
+
+		/** The sorted latencies in nanoseconds */
+		private final long[] latencies;
+
+		private final Map<String, Integer> resultCodes = new TreeMap<String, Integer>();
+
+		private final long elapsed;
+
+		private Report(long[] latencies, String[] codes, long elapsed) {
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+			for (String code : codes) {
+				Integer count = this.resultCodes.get(code);
+				this.resultCodes.put(code, count == null ? 1 : count + 1);
+			}
+			this.elapsed = elapsed;
+		}
+
+		/**
+		 * Returns the number of validations per second.
+		 * 
+		 * @return The throughput
+		 */
+		public double getThroughput() {
+			return this.latencies.length * 1e9 / Math.max(1, this.elapsed);
+		}
+
+		/**
+		 * Returns a latency percentile.
+		 * 
+		 * @param percentile
+		 *            The percentile, i.e. 0.99
+		 * @param unit
+		 *            The time unit of the returned latency
+		 * @return The latency
+		 */
+		public long getPercentile(double percentile, TimeUnit unit) {
+			if (this.latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile * this.latencies.length) - 1;
+
+			return unit.convert(this.latencies[Math.max(0, Math.min(index, this.latencies.length - 1))], NANOSECONDS);
+		}
+
+		/**
+		 * Returns the number of validations per result code.
+		 * 
+		 * @return The result codes
+		 */
+		public Map<String, Integer> getResultCodes() {
+			return Collections.unmodifiableMap(this.resultCodes);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d validations in %d ms: %.1f/s, p50 %d ms, p99 %d ms, p99.9 %d ms, max %d ms%n%s",
+					this.latencies.length, MILLISECONDS.convert(this.elapsed, NANOSECONDS), getThroughput(),
+					getPercentile(0.5, MILLISECONDS), getPercentile(0.99, MILLISECONDS), getPercentile(0.999,
+							MILLISECONDS), getPercentile(1, MILLISECONDS), this.resultCodes);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int validations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+
+		// a mostly fast DNS with a slow tail, lost queries and failing servers
+		Resolver resolver = new FaultInjectingResolver(new FakeResolver("127.0.0.1"), 2, SECONDS, seed).withLatency(
+				mixture(logNormal(5, 0.5), 0.01, uniform(200, 3000))).withLosses(0.002).withFailures(0.001);
+
+		// MTAs with a heavy latency tail, tarpits, broken connections and
+		// greylisting or block list replies
+		FaultInjectingConversationFactory conversations = new FaultInjectingConversationFactory(
+				new FakeMtaConversationFactory(), 5, SECONDS, seed).withLatency(
+				mixture(logNormal(40, 0.8), 0.01, uniform(1000, 8000))).withBannerDelay(mixture(NONE, 0.02, fixed(10000)))
+				.withDrops(0.01).withResets(0.005).withPartialReplies(0.002).withReply(Command.RECIPIENT_TO, 0.03,
+						"451", "4.7.1 Greylisted, please try again later").withReply(Command.RECIPIENT_TO, 0.01, "554",
+						"5.7.1 Service unavailable; client host blocked using zen.spamhaus.org");
+
+		SimpleMailAddressFactory mailAddressFactory = new SimpleMailAddressFactory();
+		BasicValidator basicValidator = new BasicValidator(mailAddressFactory, resolver, new BasicAccountQuery(
+				conversations), "jaev@example.com");
+
+		List<String> mailAddresses = new ArrayList<String>();
+		for (int i = 0; i < 1000; ++i) {
+			mailAddresses.add((i % 10 == 0 ? "unknown" : "user") + i + "@domain" + (i % 250) + ".example.com");
+		}
+
+		System.out.println("SMTP layer (BasicValidator):");
+		System.out.println(new LoadDriver(basicValidator, threads).run(mailAddresses, validations));
+
+		BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(3 * threads);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, queue);
+		try {
+			Validator timeoutValidator = new TimeoutCapableValidator(basicValidator, queue, executor, 6, SECONDS);
+
+			System.out.println("TimeoutCapableValidator (6 s):");
+			System.out.println(new LoadDriver(timeoutValidator, threads).run(mailAddresses, validations));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		System.out.println("Injected: " + conversations.getDrops() + " drops, " + conversations.getResets()
+				+ " resets, " + conversations.getPartialReplies() + " partial replies, "
+				+ conversations.getInjectedReplies() + " replies, " + conversations.getTimeouts() + " timeouts");
+	}
+}
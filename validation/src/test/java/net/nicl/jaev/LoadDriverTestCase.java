@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.dns.FakeResolver;
+import net.nicl.jaev.dns.FaultInjectingResolver;
+import net.nicl.jaev.mail.MailParseException;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.BasicAccountQuery;
+import net.nicl.jaev.smtp.Command;
+import net.nicl.jaev.smtp.FakeMtaConversationFactory;
+import net.nicl.jaev.smtp.FaultInjectingConversationFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.dns.DnsResultCode.DNS_TIMEOUT;
+import static net.nicl.jaev.smtp.SmtpResultCode.IO_ERROR_DURING_MTA_CONVERSATION;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static net.nicl.jaev.smtp.SmtpResultCode.TIMEOUT_DURING_MTA_CONVERSATION;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public final class LoadDriverTestCase {
+
+	private final FaultInjectingConversationFactory conversations = new FaultInjectingConversationFactory(
+			new FakeMtaConversationFactory(), 200, MILLISECONDS, 42);
+
+	private final FaultInjectingResolver resolver = new FaultInjectingResolver(new FakeResolver("127.0.0.1"), 200,
+			MILLISECONDS, 42);
+
+	private final Validator validator = createValidator();
+
+	@Test
+	public void testFakeBackends() {
+		assertThat(this.validator.validate("user@example.com").getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(this.validator.validate("unknown@example.com").getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+	}
+
+	@Test
+	public void testDrop() {
+		this.conversations.withDrops(1);
+
+		assertThat(this.validator.validate("user@example.com").getResultCode(), is((ResultCode) MTA_NOT_RESPONDING));
+		assertThat(this.conversations.getDrops(), is(1L));
+	}
+
+	@Test
+	public void testReset() {
+		this.conversations.withResets(1);
+
+		assertThat(this.validator.validate("user@example.com").getResultCode(),
+				is((ResultCode) IO_ERROR_DURING_MTA_CONVERSATION));
+		assertThat(this.conversations.getResets(), is(1L));
+	}
+
+	@Test
+	public void testTarpit() {
+		this.conversations.withBannerDelay(LatencyDistribution.fixed(1000));
+
+		long start = System.currentTimeMillis();
+		assertThat(this.validator.validate("user@example.com").getResultCode(),
+				is((ResultCode) TIMEOUT_DURING_MTA_CONVERSATION));
+		assertThat(System.currentTimeMillis() - start < 1000, is(true));
+		assertThat(this.conversations.getTimeouts(), is(1L));
+	}
+
+	@Test
+	public void testInjectedReply() {
+		this.conversations.withReply(Command.RECIPIENT_TO, 1, "451", "4.7.1 Greylisted, please try again later");
+
+		assertThat(this.validator.validate("user@example.com").getResultCode(), is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertThat(this.conversations.getInjectedReplies(), is(1L));
+	}
+
+	@Test
+	public void testLostQuery() {
+		this.resolver.withLosses(1);
+
+		assertThat(this.validator.validate("user@example.com").getResultCode(), is((ResultCode) DNS_TIMEOUT));
+		assertThat(this.resolver.getTimeouts(), is(1L));
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		LoadDriver.Report report = new LoadDriver(this.validator, 4).run(Arrays.asList("user@example.com",
+				"unknown@example.com"), 50);
+
+		assertThat(report.getResultCodes().get(ADDRESS_VALID.toString()), is(25));
+		assertThat(report.getResultCodes().get(ADDRESS_UNKNOWN.toString()), is(25));
+		assertThat(report.getThroughput() > 0, is(true));
+		assertThat(report.getPercentile(0.99, TimeUnit.NANOSECONDS), greaterThan(0L));
+		assertThat(report.getPercentile(0.5, SECONDS) <= report.getPercentile(1, SECONDS), is(true));
+	}
+
+	private Validator createValidator() {
+		try {
+			return new BasicValidator(new SimpleMailAddressFactory(), this.resolver, new BasicAccountQuery(
+					this.conversations), "jaev@example.com");
+		}
+		catch (MailParseException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.dns.LoopbackNameServer;
+import net.nicl.jaev.smtp.AccountQuery;
+import net.nicl.jaev.smtp.BasicAccountQuery;
+import net.nicl.jaev.smtp.LoopbackMta;
+import net.nicl.jaev.smtp.TimeoutCapableAccountQueryProxy;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.LatencyDistribution.logNormal;
+import static net.nicl.jaev.LatencyDistribution.mixture;
+import static net.nicl.jaev.LatencyDistribution.uniform;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>
+ * The loopback harness runs the complete validation pipeline against a <code>LoopbackNameServer</code> and a
+ * <code>LoopbackMta</code>, so it can be load tested on a single box without the internet. The validators are built
+ * with <code>Validation.basic()</code>, <code>timeout()</code> and <code>overallTimeout()</code>; as the builders
+ * wire the resolver and account query given to them as they are, the harness adds the timeouts like the builders
+ * describe: per account query for the <code>timeout()</code> build and per validation for the
+ * <code>overallTimeout()</code> build.
+ * </p>
+ * <p>
+ * Besides the throughput, the latency percentiles and the result codes of the <code>LoadDriver</code> a measurement
+ * reports the connections to the MTA, the DNS queries, the peak of the open file descriptors (which includes the
+ * sockets) and the garbage collections. Run as a program the harness measures each build:
+ * </p>
+ * 
+ * <pre>
+ * java net.nicl.jaev.LoopbackHarness [validations] [threads] [timeout in seconds]
+ * </pre>
+ * 
+ * @author Niclas Meier
+ */
+public class LoopbackHarness {
+
+	/**
+	 * The builds of the <code>Validation</code> class
+	 */
+	public enum Build {
+		BASIC, TIMEOUT, OVERALL_TIMEOUT
+	}
+
+	/** The from address of the validators */
+	public static final String FROM_ADDRESS = "jaev@loopback.example.com";
+
+	private final LoopbackNameServer nameServer;
+
+	private final LoopbackMta mta;
+
+	/** The executors of the validators to shut down with the harness */
+	private final List<ExecutorService> executors = new CopyOnWriteArrayList<ExecutorService>();
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param zoneFile
+	 *            The zone file of the name server
+	 * @param seed
+	 *            The seed of the random source of the MTA
+	 * @throws IOException
+	 *             If the zone file could not be read or a socket could not be
+	 *             bound
+	 */
+	public LoopbackHarness(URL zoneFile, long seed) throws IOException {
+		this.nameServer = new LoopbackNameServer(zoneFile);
+		this.mta = new LoopbackMta(seed);
+	}
+
+	/**
+	 * Starts the name server and the MTA.
+	 * 
+	 * @return This harness
+	 */
+	public LoopbackHarness start() {
+		this.nameServer.start();
+		this.mta.start();
+		return this;
+	}
+
+	/**
+	 * Stops the name server, the MTA and the executors of the validators.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the servers
+	 */
+	public void stop() throws InterruptedException {
+		for (ExecutorService executor : this.executors) {
+			executor.shutdownNow();
+		}
+		this.mta.stop();
+		this.nameServer.stop();
+	}
+
+	public LoopbackNameServer getNameServer() {
+		return this.nameServer;
+	}
+
+	public LoopbackMta getMta() {
+		return this.mta;
+	}
+
+	/**
+	 * Creates a validator which resolves with the name server and queries the
+	 * MTA.
+	 * 
+	 * @param build
+	 *            The build
+	 * @param timeout
+	 *            The timeout of the lookups, the queries and (with an overall
+	 *            timeout) the validations
+	 * @param unit
+	 *            The time unit of the timeout
+	 * @param poolSize
+	 *            The number of threads for the timeout builds
+	 * @return The validator
+	 */
+	public Validator createValidator(Build build, long timeout, TimeUnit unit, int poolSize) {
+		ValidatorFactoryBuilder builder;
+		AccountQuery accountQuery;
+
+		if (notNull(build, "build") == Build.TIMEOUT) {
+			// a quarter of the timeout per socket operation and the timeout per query
+			accountQuery = new TimeoutCapableAccountQueryProxy(new BasicAccountQuery(this.mta
+					.createConversationFactory(unit.toMillis(timeout) / 4)), track(new ThreadPoolExecutor(poolSize,
+					poolSize, 1, MINUTES, new LinkedBlockingQueue<Runnable>())), timeout, unit);
+			builder = Validation.timeout().withTimeout(timeout, unit);
+		}
+		else {
+			accountQuery = new BasicAccountQuery(this.mta.createConversationFactory(unit.toMillis(timeout)));
+			builder = build == Build.BASIC ? Validation.basic() : Validation.overallTimeout().withTimeout(timeout, unit);
+		}
+
+		Validator validator = builder.resolver(this.nameServer.createResolver(3, timeout, unit)).accountQuery(
+				accountQuery).fromAddress(FROM_ADDRESS).buildFactory().getValidator();
+
+		if (build == Build.OVERALL_TIMEOUT) {
+			BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+			validator = new TimeoutCapableValidator(validator, queue, track(new ThreadPoolExecutor(poolSize, poolSize,
+					1, MINUTES, queue)), timeout, unit);
+		}
+
+		return validator;
+	}
+
+	/**
+	 * Measures a validator with the <code>LoadDriver</code>.
+	 * 
+	 * @param validator
+	 *            The validator
+	 * @param mailAddresses
+	 *            The mail addresses to validate round robin
+	 * @param validations
+	 *            The number of validations
+	 * @param threads
+	 *            The number of concurrent threads
+	 * @return The measurement
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the run
+	 */
+	public Measurement measure(Validator validator, List<String> mailAddresses, int validations, int threads)
+			throws InterruptedException {
+		long connections = this.mta.getConnections();
+		long queries = this.nameServer.getQueries();
+		long collections = getCollections();
+		long collectionTime = getCollectionTime();
+
+		Sampler sampler = new Sampler();
+		sampler.start();
+		LoadDriver.Report report;
+		try {
+			report = new LoadDriver(validator, threads).run(mailAddresses, validations);
+		}
+		finally {
+			sampler.interrupt();
+			sampler.join();
+		}
+
+		return new Measurement(report, this.mta.getConnections() - connections, sampler.peakConnections,
+				this.nameServer.getQueries() - queries, sampler.peakDescriptors, getOpenDescriptors(),
+				getCollections() - collections, getCollectionTime() - collectionTime);
+	}
+
+	/**
+	 * Creates a mix of mail addresses for the domains of the
+	 * <code>loopback.zone</code>: valid and unknown recipients of accepting
+	 * MTAs, rejected, catch all, greylisted and slow recipients and unknown
+	 * domains.
+	 * 
+	 * @param count
+	 *            The number of mail addresses
+	 * @return The mail addresses
+	 */
+	public static List<String> createMailAddresses(int count) {
+		List<String> mailAddresses = new ArrayList<String>(count);
+		for (int i = 0; i < count; ++i) {
+			switch (i % 10) {
+			case 5:
+				mailAddresses.add("unknown" + i + "@accept.example.com");
+				break;
+			case 6:
+				mailAddresses.add("user" + i + "@reject.example.com");
+				break;
+			case 7:
+				mailAddresses.add("user" + i + "@domain" + i % 10 + ".catchall.example.com");
+				break;
+			case 8:
+				mailAddresses.add("user" + i + "@greylist.example.com");
+				break;
+			case 9:
+				mailAddresses.add(i % 20 == 9 ? "user" + i + "@slow.example.com" : "user" + i + "@missing" + i + ".example.com");
+				break;
+			default:
+				mailAddresses.add("user" + i + "@domain" + i % 100 + ".accept.example.com");
+			}
+		}
+		return mailAddresses;
+	}
+
+	private ExecutorService track(ExecutorService executor) {
+		this.executors.add(executor);
+		return executor;
+	}
+
+	private static long getCollections() {
+		long collections = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			collections += Math.max(0, collector.getCollectionCount());
+		}
+		return collections;
+	}
+
+	private static long getCollectionTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, collector.getCollectionTime());
+		}
+		return time;
+	}
+
+	/**
+	 * Returns the number of open file descriptors of the process.
+	 * 
+	 * @return The number of open file descriptors or <code>-1</code> if the
+	 *         platform does not tell
+	 */
+	private static long getOpenDescriptors() {
+		OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+		if (system instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			return ((com.sun.management.UnixOperatingSystemMXBean) system).getOpenFileDescriptorCount();
+		}
+		return -1;
+	}
+
+	/**
+	 * The thread sampling the peaks of the open connections and file
+	 * descriptors during a run
+	 */
+	private final class Sampler extends Thread {
+
+		private volatile int peakConnections = 0;
+
+		private volatile long peakDescriptors = -1;
+
+		private Sampler() {
+			super("jaev-loopback-sampler");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					this.peakConnections = Math.max(this.peakConnections, LoopbackHarness.this.mta.getOpenConnections());
+					this.peakDescriptors = Math.max(this.peakDescriptors, getOpenDescriptors());
+					Thread.sleep(50);
+				}
+			}
+			catch (InterruptedException e) {
+				// the run is over
+			}
+		}
+	}
+
+	/**
+	 * The measurement of a load run
+	 */
+	public static final class Measurement {
+
+		private final LoadDriver.Report report;
+
+		private final long connections;
+
+		private final int peakConnections;
+
+		private final long queries;
+
+		private final long peakDescriptors;
+
+		private final long openDescriptors;
+
+		private final long collections;
+
+		private final long collectionTime;
+
+		private Measurement(LoadDriver.Report report, long connections, int peakConnections, long queries,
+				long peakDescriptors, long openDescriptors, long collections, long collectionTime) {
+			this.report = report;
+			this.connections = connections;
+			this.peakConnections = peakConnections;
+			this.queries = queries;
+			this.peakDescriptors = peakDescriptors;
+			this.openDescriptors = openDescriptors;
+			this.collections = collections;
+			this.collectionTime = collectionTime;
+		}
+
+		public LoadDriver.Report getReport() {
+			return this.report;
+		}
+
+		/**
+		 * Returns the number of connections the MTA accepted during the run.
+		 * 
+		 * @return The number of connections
+		 */
+		public long getConnections() {
+			return this.connections;
+		}
+
+		public int getPeakConnections() {
+			return this.peakConnections;
+		}
+
+		/**
+		 * Returns the number of queries the name server answered during the
+		 * run.
+		 * 
+		 * @return The number of queries
+		 */
+		public long getQueries() {
+			return this.queries;
+		}
+
+		public long getPeakDescriptors() {
+			return this.peakDescriptors;
+		}
+
+		/**
+		 * Returns the number of open file descriptors after the run, which
+		 * grows with leaked sockets.
+		 * 
+		 * @return The number of open file descriptors
+		 */
+		public long getOpenDescriptors() {
+			return this.openDescriptors;
+		}
+
+		public long getCollections() {
+			return this.collections;
+		}
+
+		public long getCollectionTime() {
+			return this.collectionTime;
+		}
+
+		@Override
+		public String toString() {
+			return this.report + String.format("%n%d SMTP connections (peak %d open), %d DNS queries, "
+					+ "file descriptors peak %d / after %d, %d GCs in %d ms", this.connections, this.peakConnections,
+					this.queries, this.peakDescriptors, this.openDescriptors, this.collections, this.collectionTime);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int validations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		long timeout = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+		LoopbackHarness harness = new LoopbackHarness(LoopbackHarness.class.getResource("loopback.zone"), 42);
+		harness.getMta().script("reject.example.com", LoopbackMta.Behaviour.REJECT).script("catchall.example.com",
+				LoopbackMta.Behaviour.CATCH_ALL).script("greylist.example.com", LoopbackMta.Behaviour.GREYLIST).script(
+				"slow.example.com", LoopbackMta.Behaviour.ACCEPT, mixture(logNormal(50, 0.7), 0.01, uniform(2000, 8000)));
+		harness.start();
+		try {
+			List<String> mailAddresses = createMailAddresses(10000);
+			for (Build build : Build.values()) {
+				Validator validator = harness.createValidator(build, timeout, SECONDS, threads);
+
+				System.out.println(build + ":");
+				System.out.println(harness.measure(validator, mailAddresses, validations, threads));
+			}
+		}
+		finally {
+			harness.stop();
+		}
+	}
+}
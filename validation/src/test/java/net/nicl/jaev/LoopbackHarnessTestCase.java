@@ -0,0 +1,105 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.dns.ResouceRecord;
+import net.nicl.jaev.dns.ResolverException;
+import net.nicl.jaev.dns.SimpleResolver;
+import net.nicl.jaev.smtp.LoopbackMta;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.dns.DnsResultCode.DOMAIN_NAME_NOT_FOUND;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public final class LoopbackHarnessTestCase {
+
+	private LoopbackHarness harness;
+
+	@Before
+	public void start() throws Exception {
+		this.harness = new LoopbackHarness(LoopbackHarness.class.getResource("loopback.zone"), 42);
+		this.harness.getMta().script("reject.example.com", LoopbackMta.Behaviour.REJECT).script("catchall.example.com",
+				LoopbackMta.Behaviour.CATCH_ALL).script("greylist.example.com", LoopbackMta.Behaviour.GREYLIST);
+		this.harness.start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		this.harness.stop();
+	}
+
+	@Test
+	public void testNameServer() throws Exception {
+		SimpleResolver resolver = this.harness.getNameServer().createResolver(1, 2, SECONDS);
+
+		List<ResouceRecord> records = resolver.resolve("x.y.accept.example.com", ResouceRecord.Type.MX);
+		assertThat(records.size(), is(1));
+		assertThat(records.get(0).getValue(), is("127.0.0.1"));
+		assertThat(resolver.resolve("alias.example.com", ResouceRecord.Type.CNAME).get(0).getValue(), is("accept.example.com"));
+		assertThat(resolver.resolve("direct.example.com", ResouceRecord.Type.MX).isEmpty(), is(true));
+
+		try {
+			resolver.resolve("missing.example.com", ResouceRecord.Type.MX);
+			fail("The domain must not be found.");
+		}
+		catch (ResolverException e) {
+			assertThat(e.getResultCode(), is((ResultCode) DOMAIN_NAME_NOT_FOUND));
+		}
+		assertThat(this.harness.getNameServer().getNameErrors(), is(1L));
+	}
+
+	@Test
+	public void testBehaviours() throws Exception {
+		Validator validator = this.harness.createValidator(LoopbackHarness.Build.BASIC, 2, SECONDS, 1);
+
+		assertThat(validator.validate("user@accept.example.com").getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.validate("unknown@accept.example.com").getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(validator.validate("user@reject.example.com").getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(validator.validate("unknown@catchall.example.com").getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.validate("user@greylist.example.com").getResultCode(), is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertThat(validator.validate("user@greylist.example.com").getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.validate("user@direct.example.com").getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.validate("user@alias.example.com").getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(validator.validate("user@missing.example.com").getResultCode(), is((ResultCode) DOMAIN_NAME_NOT_FOUND));
+		assertThat(this.harness.getMta().getRecipients(), is(8L));
+	}
+
+	@Test
+	public void testMeasure() throws Exception {
+		List<String> mailAddresses = LoopbackHarness.createMailAddresses(20);
+
+		for (LoopbackHarness.Build build : LoopbackHarness.Build.values()) {
+			Validator validator = this.harness.createValidator(build, 2, SECONDS, 4);
+			LoopbackHarness.Measurement measurement = this.harness.measure(validator, mailAddresses, 40, 4);
+
+			assertThat(build + ": " + measurement.getReport().getResultCodes(), measurement.getReport()
+					.getResultCodes().get(ADDRESS_VALID.toString()) > 0, is(true));
+			assertThat(measurement.getConnections() > 0, is(true));
+			assertThat(measurement.getQueries() > 0, is(true));
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public final class LruMapTestCase {
+
+	@Test
+	public void testEviction() {
+		LruMap<String, Integer> map = new LruMap<String, Integer>(2);
+		map.put("a.example.com", 1);
+		map.put("b.example.com", 2);
+		// the access makes b the least recently used entry
+		assertThat(map.get("a.example.com"), is(1));
+		map.put("c.example.com", 3);
+
+		assertThat(map.size(), is(2));
+		assertThat(map.get("b.example.com"), is(nullValue()));
+		assertThat(map.get("a.example.com"), is(1));
+		assertThat(map.get("c.example.com"), is(3));
+	}
+
+	@Test
+	public void testAtomicOperations() {
+		LruMap<String, Integer> map = new LruMap<String, Integer>(10);
+
+		assertThat(map.putIfAbsent("example.com", 1), is(nullValue()));
+		assertThat(map.putIfAbsent("example.com", 2), is(1));
+		assertThat(map.replace("example.com", 2, 3), is(false));
+		assertThat(map.replace("example.com", 1, 3), is(true));
+		assertThat(map.replace("example.org", 1), is(nullValue()));
+		assertThat(map.containsKey("example.org"), is(false));
+		assertThat(map.remove("example.com", 1), is(false));
+		assertThat(map.remove("example.com", 3), is(true));
+		assertThat(map.isEmpty(), is(true));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshot() {
+		LruMap<String, Integer> map = new LruMap<String, Integer>(10);
+		map.put("example.com", 1);
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			// the snapshot does not change while the map does
+			map.remove(entry.getKey());
+			assertThat(entry.getValue(), is(1));
+		}
+		assertThat(map.isEmpty(), is(true));
+
+		map.entrySet().clear();
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev;
+
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.AccountQuery;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.ValidatorResultCode.VALIDATION_TIMED_OUT;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class TimeoutCapableValidatorTestCase {
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+	private final BlockingQueue<Result> results = new ArrayBlockingQueue<Result>(10);
+
+	private final ResultFuture.Callback callback = new ResultFuture.Callback() {
+
+		@Override
+		public void completed(Result result) {
+			TimeoutCapableValidatorTestCase.this.results.add(result);
+		}
+
+		@Override
+		public void failed(Throwable cause) {
+			throw new AssertionError(cause);
+		}
+	};
+
+	@After
+	public void tearDown() {
+		this.executorService.shutdownNow();
+	}
+
+	@Test
+	public void testValidateAsync() throws Exception {
+		AsyncValidator validator = create(new SleepingValidator(0, null));
+
+		ResultFuture future = validator.validateAsync("jaev@googlecode.com");
+		future.addCallback(this.callback);
+
+		assertThat(this.results.poll(5, SECONDS).getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertTrue(future.isDone());
+		assertThat(future.get().getResultCode(), is((ResultCode) ADDRESS_VALID));
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		CountDownLatch interrupted = new CountDownLatch(1);
+		AsyncValidator validator = create(new SleepingValidator(10000, interrupted));
+
+		long start = System.currentTimeMillis();
+		validator.validateAsync("jaev@googlecode.com").addCallback(this.callback);
+		assertTrue("The caller was blocked.", System.currentTimeMillis() - start < 1000);
+
+		assertThat(this.results.poll(5, SECONDS).getResultCode(), is((ResultCode) VALIDATION_TIMED_OUT));
+		assertTrue("The expired validation was not cancelled.", interrupted.await(5, SECONDS));
+
+		// the synchronous validation waits for the expiry
+		assertThat(validator.validate("jaev@googlecode.com").getResultCode(), is((ResultCode) VALIDATION_TIMED_OUT));
+	}
+
+	@Test
+	public void testExpiryCallbackThread() throws Exception {
+		AsyncValidator validator = create(new SleepingValidator(10000, new CountDownLatch(1)));
+		final BlockingQueue<String> threads = new ArrayBlockingQueue<String>(1);
+
+		validator.validateAsync("jaev@googlecode.com").addCallback(new ResultFuture.Callback() {
+
+			@Override
+			public void completed(Result result) {
+				threads.add(Thread.currentThread().getName());
+			}
+
+			@Override
+			public void failed(Throwable cause) {
+				throw new AssertionError(cause);
+			}
+		});
+
+		// the callback of the expiry is notified by the executor service, not by the timer
+		String thread = threads.poll(5, SECONDS);
+		assertTrue("The callback was not notified.", thread != null);
+		assertThat(thread.equals("jaev-result-timeout"), is(false));
+	}
+
+	private TimeoutCapableValidator create(Validator validator) {
+		return new TimeoutCapableValidator(validator, new LinkedBlockingQueue<Runnable>(), this.executorService, 100,
+				MILLISECONDS);
+	}
+
+	/**
+	 * Validator stand-in which sleeps before it returns a valid result
+	 */
+	private final class SleepingValidator extends AbstractValidator {
+
+		private final long sleep;
+
+		private final CountDownLatch interrupted;
+
+		private SleepingValidator(long sleep, CountDownLatch interrupted) {
+			super(TimeoutCapableValidatorTestCase.this.addressFactory);
+			this.sleep = sleep;
+			this.interrupted = interrupted;
+		}
+
+		@Override
+		public Result validate(MailAddress mailAddress) {
+			try {
+				Thread.sleep(this.sleep);
+			}
+			catch (InterruptedException e) {
+				this.interrupted.countDown();
+			}
+
+			return Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress);
+		}
+
+		@Override
+		public Resolver getResolver() {
+			return null;
+		}
+
+		@Override
+		public AccountQuery getAccountQuery() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import java.util.Collections;
+import java.util.List;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.dns.DnsResultCode.DOMAIN_NAME_NOT_FOUND;
+import static net.nicl.jaev.dns.ResouceRecord.Type.MX;
+
+/**
+ * A resolver which answers without a DNS: every domain has a single MX record
+ * pointing to the same host, except the domains of the <code>.invalid</code>
+ * top level domain, which are not found.
+ * 
+ * @author Niclas Meier
+ */
+public class FakeResolver implements Resolver {
+
+	/** The host of the MX records */
+	private final String mxHost;
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param mxHost
+	 *            The host (or IP address) of the MX records
+	 */
+	public FakeResolver(String mxHost) {
+		this.mxHost = notBlank(mxHost, "mxHost");
+	}
+
+	@Override
+	public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType) throws ResolverException {
+		if (domainName.toLowerCase().endsWith(".invalid")) {
+			throw new ResolverException(DOMAIN_NAME_NOT_FOUND, domainName, recordType);
+		}
+		if (recordType != MX) {
+			return Collections.emptyList();
+		}
+
+		return Collections.<ResouceRecord> singletonList(new FakeResouceRecord(recordType, this.mxHost));
+	}
+
+	/**
+	 * The resource records of the fake resolver
+	 */
+	private static final class FakeResouceRecord implements ResouceRecord {
+
+		private static final long serialVersionUID = 2416402658283461905L;
+
+		private final Type type;
+
+		private final String value;
+
+		private FakeResouceRecord(Type type, String value) {
+			this.type = type;
+			this.value = value;
+		}
+
+		public Type getType() {
+			return this.type;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+
+		@Override
+		public String toString() {
+			return this.type + ":" + this.value;
+		}
+	}
+}
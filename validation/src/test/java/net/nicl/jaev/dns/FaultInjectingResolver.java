@@ -0,0 +1,151 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import net.nicl.jaev.LatencyDistribution;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+import static net.nicl.jaev.dns.DnsResultCode.DNS_TIMEOUT;
+import static net.nicl.jaev.dns.DnsResultCode.GENERAL_DNS_ERROR;
+
+/**
+ * <p>
+ * A <code>Resolver</code> which wraps another resolver (i.e. a <code>SimpleResolver</code> or a
+ * <code>FakeResolver</code>) and injects latencies, lost queries and server failures. A latency which exceeds the
+ * timeout and a lost query wait for the timeout and fail with <code>DNS_TIMEOUT</code>; a server failure (i.e.
+ * <code>SERVFAIL</code>) fails with <code>GENERAL_DNS_ERROR</code>.
+ * </p>
+ * <p>
+ * The faults are drawn from a seeded random source, so a run can be repeated.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class FaultInjectingResolver implements Resolver {
+
+	/** The wrapped resolver */
+	private final Resolver resolver;
+
+	/** The timeout of a query in milliseconds */
+	private final long timeout;
+
+	private final Random random;
+
+	private volatile LatencyDistribution latency = LatencyDistribution.NONE;
+
+	private volatile double lossRate = 0;
+
+	private volatile double failureRate = 0;
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param resolver
+	 *            The wrapped resolver
+	 * @param timeout
+	 *            The timeout of a query
+	 * @param unit
+	 *            The time unit of the timeout
+	 * @param seed
+	 *            The seed of the random source
+	 */
+	public FaultInjectingResolver(Resolver resolver, long timeout, TimeUnit unit, long seed) {
+		this.resolver = notNull(resolver, "resolver");
+		this.timeout = notNull(unit, "unit").toMillis(timeout);
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Delays every query.
+	 * 
+	 * @param latency
+	 *            The distribution of the delay
+	 * @return This resolver
+	 */
+	public FaultInjectingResolver withLatency(LatencyDistribution latency) {
+		this.latency = notNull(latency, "latency");
+		return this;
+	}
+
+	/**
+	 * Loses queries, so they time out.
+	 * 
+	 * @param probability
+	 *            The probability a query is lost
+	 * @return This resolver
+	 */
+	public FaultInjectingResolver withLosses(double probability) {
+		this.lossRate = probability;
+		return this;
+	}
+
+	/**
+	 * Fails queries like a failing name server.
+	 * 
+	 * @param probability
+	 *            The probability a query fails
+	 * @return This resolver
+	 */
+	public FaultInjectingResolver withFailures(double probability) {
+		this.failureRate = probability;
+		return this;
+	}
+
+	@Override
+	public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType) throws ResolverException {
+		long delay = this.random.nextDouble() < this.lossRate ? Long.MAX_VALUE : this.latency.sample(this.random);
+
+		try {
+			if (delay >= this.timeout) {
+				Thread.sleep(this.timeout);
+				this.timeouts.incrementAndGet();
+				throw new ResolverException(DNS_TIMEOUT, domainName, recordType);
+			}
+			else if (delay > 0) {
+				Thread.sleep(delay);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResolverException(DNS_TIMEOUT, e, domainName, recordType);
+		}
+
+		if (this.random.nextDouble() < this.failureRate) {
+			this.failures.incrementAndGet();
+			throw new ResolverException(GENERAL_DNS_ERROR, domainName, recordType);
+		}
+
+		return this.resolver.resolve(domainName, recordType);
+	}
+
+	public long getTimeouts() {
+		return this.timeouts.get();
+	}
+
+	public long getFailures() {
+		return this.failures.get();
+	}
+}
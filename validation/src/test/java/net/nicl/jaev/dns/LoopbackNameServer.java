@@ -0,0 +1,412 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * An authoritative name server on the loopback interface which answers UDP queries from a zone file, so the
+ * <code>SimpleResolver</code> can be tested without the internet. The zone file is a subset of the master file format
+ * with absolute names, one record per line:
+ * </p>
+ * 
+ * <pre>
+ * $TTL 3600
+ * ; name                  [ttl] [IN] type   data
+ * accept.example.com.                 MX     10 127.0.0.1
+ * *.accept.example.com.               MX     10 127.0.0.1
+ * alias.example.com.      60    IN    CNAME  accept.example.com.
+ * </pre>
+ * 
+ * <p>
+ * The server supports <code>A</code>, <code>AAAA</code>, <code>MX</code>, <code>CNAME</code>, <code>NS</code>,
+ * <code>PTR</code> and <code>TXT</code> records and wildcard names. A name without records is answered with
+ * <code>NXDOMAIN</code>, a name without records of the queried type with an empty answer.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class LoopbackNameServer {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(LoopbackNameServer.class);
+
+	/** The record types by their name */
+	private static final Map<String, Integer> TYPES = new HashMap<String, Integer>();
+
+	static {
+		TYPES.put("A", 1);
+		TYPES.put("NS", 2);
+		TYPES.put("CNAME", 5);
+		TYPES.put("PTR", 12);
+		TYPES.put("MX", 15);
+		TYPES.put("TXT", 16);
+		TYPES.put("AAAA", 28);
+	}
+
+	private static final int NO_ERROR = 0;
+
+	private static final int FORMAT_ERROR = 1;
+
+	private static final int NAME_ERROR = 3;
+
+	private static final int NOT_IMPLEMENTED = 4;
+
+	/** The records by their lower case name without the trailing dot */
+	private final Map<String, List<Record>> zone;
+
+	private final DatagramSocket socket;
+
+	private final Thread receiver;
+
+	private final AtomicLong queries = new AtomicLong();
+
+	private final AtomicLong nameErrors = new AtomicLong();
+
+	/**
+	 * Default constructor, binds the server to an ephemeral port of the
+	 * loopback interface.
+	 * 
+	 * @param zoneFile
+	 *            The zone file
+	 * @throws IOException
+	 *             If the zone file could not be read or the socket could not
+	 *             be bound
+	 */
+	public LoopbackNameServer(URL zoneFile) throws IOException {
+		this.zone = parse(notNull(zoneFile, "zoneFile"));
+		this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		this.receiver = new Thread("jaev-loopback-dns") {
+
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+		this.receiver.setDaemon(true);
+	}
+
+	/**
+	 * Starts to answer queries.
+	 * 
+	 * @return This server
+	 */
+	public LoopbackNameServer start() {
+		this.receiver.start();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Serving " + this.zone.size() + " names on " + getAddress() + ".");
+		}
+		return this;
+	}
+
+	/**
+	 * Stops the server and closes its socket.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the receiver
+	 */
+	public void stop() throws InterruptedException {
+		this.socket.close();
+		this.receiver.join();
+	}
+
+	/**
+	 * Returns the address the server is bound to.
+	 * 
+	 * @return The socket address
+	 */
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) this.socket.getLocalSocketAddress();
+	}
+
+	/**
+	 * Creates a resolver which queries this server.
+	 * 
+	 * @param retries
+	 *            The number of retries
+	 * @param timeout
+	 *            The timeout of a lookup
+	 * @param unit
+	 *            The time unit of the timeout
+	 * @return The resolver
+	 */
+	public SimpleResolver createResolver(int retries, long timeout, TimeUnit unit) {
+		return new SimpleResolver(retries, timeout, unit, Collections.singletonList(getAddress()));
+	}
+
+	/**
+	 * Returns the number of queries answered.
+	 * 
+	 * @return The number of queries
+	 */
+	public long getQueries() {
+		return this.queries.get();
+	}
+
+	/**
+	 * Returns the number of queries answered with <code>NXDOMAIN</code>.
+	 * 
+	 * @return The number of name errors
+	 */
+	public long getNameErrors() {
+		return this.nameErrors.get();
+	}
+
+	private void receive() {
+		byte[] buffer = new byte[512];
+		while (!this.socket.isClosed()) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				this.socket.receive(packet);
+				byte[] response = answer(buffer, packet.getLength());
+				if (response != null) {
+					this.socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+				}
+			}
+			catch (SocketException e) {
+				// the socket was closed
+				LOG.trace("The name server socket is closed.", e);
+			}
+			catch (IOException e) {
+				LOG.warn("Unable to answer a query.", e);
+			}
+		}
+	}
+
+	/**
+	 * Answers a query with the records of the zone.
+	 * 
+	 * @param query
+	 *            The query message
+	 * @param length
+	 *            The length of the query
+	 * @return The response message or <code>null</code> if the query should
+	 *         be dropped
+	 */
+	byte[] answer(byte[] query, int length) throws IOException {
+		if (length < 12 || (query[2] & 0x80) != 0) {
+			// not a query
+			return null;
+		}
+		this.queries.incrementAndGet();
+
+		int flags = ((query[2] & 0xff) << 8) | (query[3] & 0xff);
+		int questions = ((query[4] & 0xff) << 8) | (query[5] & 0xff);
+
+		// parse the question
+		StringBuilder name = new StringBuilder();
+		int position = 12;
+		while (position < length && query[position] != 0) {
+			int label = query[position++] & 0xff;
+			if (label > 63 || position + label > length) {
+				return response(query, 12, flags, FORMAT_ERROR, Collections.<Record> emptyList());
+			}
+			if (name.length() > 0) {
+				name.append('.');
+			}
+			name.append(new String(query, position, label, "US-ASCII"));
+			position += label;
+		}
+		position += 5;
+		if (questions != 1 || position > length) {
+			return response(query, 12, flags, FORMAT_ERROR, Collections.<Record> emptyList());
+		}
+		if ((flags & 0x7800) != 0) {
+			return response(query, position, flags, NOT_IMPLEMENTED, Collections.<Record> emptyList());
+		}
+		int type = ((query[position - 4] & 0xff) << 8) | (query[position - 3] & 0xff);
+
+		List<Record> records = lookup(name.toString().toLowerCase());
+		if (records == null) {
+			this.nameErrors.incrementAndGet();
+			return response(query, position, flags, NAME_ERROR, Collections.<Record> emptyList());
+		}
+
+		List<Record> answers = new ArrayList<Record>(records.size());
+		for (Record record : records) {
+			if (record.type == type) {
+				answers.add(record);
+			}
+		}
+		return response(query, position, flags, NO_ERROR, answers);
+	}
+
+	private List<Record> lookup(String name) {
+		List<Record> records = this.zone.get(name);
+
+		// find the closest wildcard
+		for (int dot = name.indexOf('.'); records == null && dot >= 0; dot = name.indexOf('.', dot + 1)) {
+			records = this.zone.get("*" + name.substring(dot));
+		}
+		return records;
+	}
+
+	private static byte[] response(byte[] query, int questionEnd, int flags, int responseCode, List<Record> answers)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		// the header: QR, the opcode, AA, RD and RA
+		out.write(query, 0, 2);
+		out.writeShort(0x8000 | (flags & 0x7900) | 0x0400 | 0x0080 | responseCode);
+		out.writeShort(questionEnd > 12 ? 1 : 0);
+		out.writeShort(answers.size());
+		out.writeShort(0);
+		out.writeShort(0);
+		out.write(query, 12, questionEnd - 12);
+
+		for (Record record : answers) {
+			// a pointer to the name of the question
+			out.writeShort(0xc00c);
+			out.writeShort(record.type);
+			out.writeShort(1);
+			out.writeInt(record.ttl);
+			out.writeShort(record.data.length);
+			out.write(record.data);
+		}
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	private static Map<String, List<Record>> parse(URL zoneFile) throws IOException {
+		Map<String, List<Record>> zone = new HashMap<String, List<Record>>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(zoneFile.openStream(), "UTF-8"));
+		try {
+			int ttl = 3600;
+			String line;
+			for (int number = 1; (line = reader.readLine()) != null; ++number) {
+				int comment = line.indexOf(';');
+				String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+				if (fields[0].length() == 0) {
+					continue;
+				}
+				try {
+					if ("$TTL".equals(fields[0])) {
+						ttl = Integer.parseInt(fields[1]);
+						continue;
+					}
+					int field = 1;
+					int recordTtl = ttl;
+					if (fields[field].matches("\\d+")) {
+						recordTtl = Integer.parseInt(fields[field++]);
+					}
+					if ("IN".equalsIgnoreCase(fields[field])) {
+						++field;
+					}
+					String name = stripDot(fields[0].toLowerCase());
+					List<Record> records = zone.get(name);
+					if (records == null) {
+						records = new ArrayList<Record>();
+						zone.put(name, records);
+					}
+					records.add(new Record(fields[field].toUpperCase(), recordTtl, fields, field + 1));
+				}
+				catch (RuntimeException e) {
+					throw new IOException("Malformed record in line " + number + " of " + zoneFile + ": " + line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return zone;
+	}
+
+	private static String stripDot(String name) {
+		return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+	}
+
+	/**
+	 * A resource record of the zone
+	 */
+	private static final class Record {
+
+		private final int type;
+
+		private final int ttl;
+
+		/** The encoded data */
+		private final byte[] data;
+
+		private Record(String type, int ttl, String[] fields, int first) throws IOException {
+			Integer code = TYPES.get(type);
+			if (code == null) {
+				throw new IllegalArgumentException("Unsupported record type " + type);
+			}
+			this.type = code;
+			this.ttl = ttl;
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			if ("A".equals(type) || "AAAA".equals(type)) {
+				byte[] address = InetAddress.getByName(fields[first]).getAddress();
+				if (address.length != ("A".equals(type) ? 4 : 16)) {
+					throw new IllegalArgumentException("Wrong address family " + fields[first]);
+				}
+				out.write(address);
+			}
+			else if ("MX".equals(type)) {
+				out.writeShort(Integer.parseInt(fields[first]));
+				writeName(out, fields[first + 1]);
+			}
+			else if ("TXT".equals(type)) {
+				for (int i = first; i < fields.length; ++i) {
+					byte[] text = fields[i].replaceAll("^\"|\"$", "").getBytes("US-ASCII");
+					out.writeByte(text.length);
+					out.write(text);
+				}
+			}
+			else {
+				writeName(out, fields[first]);
+			}
+			out.flush();
+			this.data = bytes.toByteArray();
+		}
+
+		private static void writeName(DataOutputStream out, String name) throws IOException {
+			for (String label : stripDot(name).split("\\.")) {
+				out.writeByte(label.length());
+				out.writeBytes(label);
+			}
+			out.writeByte(0);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.nicl.jaev.dns;
+
+import net.nicl.jaev.LatencyDistribution;
+import net.nicl.jaev.ResultCode;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static net.nicl.jaev.dns.DnsResultCode.DOMAIN_NAME_NOT_FOUND;
+import static net.nicl.jaev.dns.DnsResultCode.GENERAL_DNS_ERROR;
+import static net.nicl.jaev.dns.ResouceRecord.Type.A;
+import static net.nicl.jaev.dns.ResouceRecord.Type.MX;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public final class ReplayResolverTestCase {
+
+	@Test
+	public void testReplay() throws Exception {
+		ByteArrayOutputStream recording = new ByteArrayOutputStream();
+		RecordingResolver recorder = new RecordingResolver(new FakeResolver("127.0.0.1"), recording);
+		recorder.resolve("example.com", MX);
+		recorder.resolve("example.com", A);
+		assertThat(resolveFailure(recorder, "unknown.invalid"), is((ResultCode) DOMAIN_NAME_NOT_FOUND));
+		recorder.close();
+
+		ReplayResolver resolver = new ReplayResolver(new ByteArrayInputStream(recording.toByteArray()));
+		for (int i = 0; i < 2; ++i) {
+			List<ResouceRecord> records = resolver.resolve("EXAMPLE.com", MX);
+			assertThat(records.size(), is(1));
+			assertThat(records.get(0).getType(), is(MX));
+			assertThat(records.get(0).getValue(), is("127.0.0.1"));
+			assertThat(resolver.resolve("example.com", A).isEmpty(), is(true));
+			assertThat(resolveFailure(resolver, "unknown.invalid"), is((ResultCode) DOMAIN_NAME_NOT_FOUND));
+		}
+
+		assertThat(resolver.getMisses(), is(0L));
+		assertThat(resolveFailure(resolver, "other.com"), is((ResultCode) GENERAL_DNS_ERROR));
+		assertThat(resolver.getMisses(), is(1L));
+	}
+
+	@Test
+	public void testTimings() throws Exception {
+		ByteArrayOutputStream recording = new ByteArrayOutputStream();
+		RecordingResolver recorder = new RecordingResolver(new FaultInjectingResolver(new FakeResolver("127.0.0.1"),
+				1, SECONDS, 42).withLatency(LatencyDistribution.fixed(100)), recording);
+		recorder.resolve("example.com", MX);
+		recorder.close();
+
+		long start = System.currentTimeMillis();
+		new ReplayResolver(new ByteArrayInputStream(recording.toByteArray())).resolve("example.com", MX);
+		assertThat(System.currentTimeMillis() - start < 90, is(true));
+
+		start = System.currentTimeMillis();
+		new ReplayResolver(new ByteArrayInputStream(recording.toByteArray()), 0.5).resolve("example.com", MX);
+		assertThat(System.currentTimeMillis() - start >= 50, is(true));
+	}
+
+	private static ResultCode resolveFailure(Resolver resolver, String domainName) {
+		try {
+			resolver.resolve(domainName, MX);
+			fail("The lookup of '" + domainName + "' must fail.");
+		}
+		catch (ResolverException e) {
+			return e.getResultCode();
+		}
+		return null;
+	}
+}
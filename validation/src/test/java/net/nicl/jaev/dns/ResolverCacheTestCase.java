@@ -24,6 +24,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -77,6 +78,27 @@ public class ResolverCacheTestCase {
 		assertThat(cacheEntry.getHitCount() == 1, is(true));
 	}
 
+	@Test
+	public void cacheHit() throws ResolverException {
+		final AtomicInteger lookups = new AtomicInteger();
+		Resolver countingResolver = new Resolver() {
+
+			public List<ResouceRecord> resolve(String domainName, ResouceRecord.Type recordType)
+					throws ResolverException {
+				lookups.incrementAndGet();
+				return new FakeResolver("mx.example.com").resolve(domainName, recordType);
+			}
+		};
+		Resolver cachingResolver = new CachingResolver(countingResolver, dnsCache);
+
+		List<ResouceRecord> records = cachingResolver.resolve("cached.example.com", ResouceRecord.Type.MX);
+		assertThat(cachingResolver.resolve("cached.example.com", ResouceRecord.Type.MX).get(0).getValue(), is(records
+				.get(0).getValue()));
+		assertThat(lookups.get(), is(1));
+		assertThat(dnsCache.get("cached.example.com").isRecordTypeCached(ResouceRecord.Type.MX), is(true));
+		assertThat(dnsCache.get("cached.example.com").isRecordTypeCached(ResouceRecord.Type.A), is(false));
+	}
+
 	@Test
 	@Ignore
 	public void failTimeout() {
@@ -87,5 +87,8 @@ public class StandardMappingTransatorTestCase {
 		assertThat(this.resultTranslator.translate(Result.create(MTA_DOES_NOT_ACCEPT_RECIEPIENT, INVALID, null)),
 				is("failed"));
 		assertThat(this.resultTranslator.translate(Result.create(MTA_SUSPECTS_SPAM, INVALID, null)), is("failed"));
+		assertThat(this.resultTranslator.translate(Result.create(MTA_ACCEPTS_ANY_RECIPIENT, INVALID, null)),
+				is("catch_all"));
+		assertThat(this.resultTranslator.translate(Result.create(MTA_DEFERS_RECIPIENT, INVALID, null)), is("deferred"));
 	}
 }
@@ -15,6 +15,7 @@ import org.junit.runner.RunWith;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
 
 import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
 import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
@@ -58,21 +59,21 @@ public final class AccountQueryTestCase {
 				will(returnValue(new Reply(SERVICE_READY, null)));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.HELO.particularise(fromAddress.getDomain()));
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
 				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.MAIL.particularise(fromAddress.toString()));
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
 				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.RECIPIENT_TO.particularise(mailAddress.toString()));
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
@@ -129,25 +130,25 @@ public final class AccountQueryTestCase {
 				will(returnValue(new Reply(SERVICE_READY, null)));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.HELO.particularise(fromAddress.getDomain()));
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
 				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.MAIL.particularise(fromAddress.toString()));
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
 				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.RECIPIENT_TO.particularise(mailAddress.toString()));
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
-				will(returnValue(new Reply(MAILBOX_UNAVAILABE, "")));
+				will(returnValue(new Reply(MAILBOX_NOT_AVAIABLE, "")));
 				inSequence(commandSequence);
 
 				oneOf(conversation).getMxAddress();
@@ -332,7 +333,7 @@ public final class AccountQueryTestCase {
 				will(returnValue(new Reply(SERVICE_READY, null)));
 				inSequence(commandSequence);
 
-				oneOf(conversation).say(Command.HELO.particularise(fromAddress.getDomain()));
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
 				inSequence(commandSequence);
 
 				oneOf(conversation).listen();
@@ -363,4 +364,215 @@ public final class AccountQueryTestCase {
 		assertFalse(result.getValidity().implies(ACCESSIBLE));
 	}
 
+	@Test
+	public void test_VERIFY_TRUSTED() throws Exception {
+		SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+		final MailAddress fromAddress = addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = addressFactory.create("jaev@googlecode.com");
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		VerifyCapabilities capabilities = new VerifyCapabilities(1, 1, TimeUnit.DAYS);
+		capabilities.compared(localhost, true);
+		BasicAccountQuery accountQuery = new BasicAccountQuery(conversationFactory, capabilities);
+
+		this.context.checking(new Expectations() {
+
+			{
+				allowing(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				oneOf(conversation).init(localhost, 25);
+				oneOf(conversation).start();
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(SERVICE_READY, null)));
+
+				// straight from the banner to VRFY, no HELO and MAIL FROM
+				oneOf(conversation).say(Command.VERIFY, mailAddress.toString());
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "jaev <jaev@googlecode.com>")));
+
+				allowing(conversation).getMxAddress();
+				will(returnValue(localhost));
+
+				allowing(conversation).isActive();
+				will(returnValue(true));
+
+				oneOf(conversation).say(Command.QUIT);
+				oneOf(conversation).end();
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertTrue(result.getValidity().implies(ACCESSIBLE));
+	}
+
+	@Test
+	public void test_VERIFY_FALLBACK() throws Exception {
+		SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+		final MailAddress fromAddress = addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = addressFactory.create("jaev@googlecode.com");
+		final Sequence commandSequence = this.context.sequence("command");
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		VerifyCapabilities capabilities = new VerifyCapabilities();
+		BasicAccountQuery accountQuery = new BasicAccountQuery(conversationFactory, capabilities);
+
+		this.context.checking(new Expectations() {
+
+			{
+				allowing(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				oneOf(conversation).init(localhost, 25);
+				inSequence(commandSequence);
+
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(SERVICE_READY, null)));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.VERIFY, mailAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(CANNOT_VERIFY_USER, "Cannot VRFY user, but will accept message")));
+				inSequence(commandSequence);
+
+				// the same connection continues with the RCPT TO sequence
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).getMxAddress();
+				will(returnValue(localhost));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+
+				oneOf(conversation).isActive();
+				will(returnValue(false));
+				inSequence(commandSequence);
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(capabilities.getCapability(localhost), is(VerifyCapabilities.Capability.UNSUPPORTED));
+	}
+
+	@Test
+	public void test_VERIFY_LEARN() throws Exception {
+		SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+		final MailAddress fromAddress = addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = addressFactory.create("jaev@googlecode.com");
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		VerifyCapabilities capabilities = new VerifyCapabilities();
+		BasicAccountQuery accountQuery = new BasicAccountQuery(conversationFactory, capabilities);
+
+		this.context.checking(new Expectations() {
+
+			{
+				allowing(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				oneOf(conversation).init(localhost, 25);
+				oneOf(conversation).start();
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(SERVICE_READY, null)));
+
+				// the MTA denies the address on VRFY but accepts it on RCPT TO
+				oneOf(conversation).say(Command.VERIFY, mailAddress.toString());
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(MAILBOX_NOT_AVAIABLE, "no such user")));
+
+				allowing(conversation).getMxAddress();
+				will(returnValue(localhost));
+
+				oneOf(conversation).isActive();
+				will(returnValue(true));
+
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
+
+				exactly(3).of(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+
+				oneOf(conversation).say(Command.QUIT);
+				oneOf(conversation).end();
+
+				oneOf(conversation).isActive();
+				will(returnValue(false));
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(capabilities.getCapability(localhost), is(VerifyCapabilities.Capability.UNSUPPORTED));
+	}
+
+	@Test
+	public void test_MTA_DEFERS_RECIPIENT() throws Exception {
+		SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+		final MailAddress fromAddress = addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = addressFactory.create("jaev@googlecode.com");
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(MAILBOX_UNAVAILABE, "4.7.1 Greylisted, please try again later")));
+
+				allowing(conversation).getMxAddress();
+				will(returnValue(localhost));
+
+				oneOf(conversation).say(Command.QUIT);
+				oneOf(conversation).end();
+			}
+		});
+
+		Result result = Idiom.RECIPIENT_TO.phrase(conversation, mailAddress, fromAddress);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertTrue(result.getValidity().implies(DOMAIN));
+		assertFalse(result.getValidity().implies(ACCOUNT));
+	}
+
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import org.hamcrest.Matcher;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_ACCEPTS_ANY_RECIPIENT;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public final class CatchAllDetectingAccountQueryTestCase {
+
+	private final Mockery context = new JUnit4Mockery();
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void test_CATCH_ALL() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress first = this.addressFactory.create("first@googlecode.com");
+		final MailAddress second = this.addressFactory.create("second@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		CatchAllDetectingAccountQuery accountQuery = new CatchAllDetectingAccountQuery(inner);
+
+		this.context.checking(new Expectations() {
+
+			{
+				@SuppressWarnings("unchecked")
+				Matcher<MailAddress> probe = not(anyOf(equal(first), equal(second)));
+				oneOf(inner).query(with(probe), with(equal(fromAddress)), with(equal(localhost)));
+				will(returnValue(Result.create(ADDRESS_VALID, ACCESSIBLE, null)));
+			}
+		});
+
+		Result result = accountQuery.query(first, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_ACCEPTS_ANY_RECIPIENT));
+		assertThat(result.getValidity(), is(DOMAIN));
+
+		result = accountQuery.query(second, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_ACCEPTS_ANY_RECIPIENT));
+		assertThat(accountQuery.isCatchAll("GoogleCode.com"), is(true));
+	}
+
+	@Test
+	public void test_NO_CATCH_ALL() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		CatchAllDetectingAccountQuery accountQuery = new CatchAllDetectingAccountQuery(inner);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(inner).query(with(not(equal(mailAddress))), with(equal(fromAddress)), with(equal(localhost)));
+				will(returnValue(Result.create(ADDRESS_UNKNOWN, DOMAIN, null)));
+
+				exactly(2).of(inner).query(mailAddress, fromAddress, localhost);
+				will(returnValue(Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress)));
+			}
+		});
+
+		assertThat(accountQuery.query(mailAddress, fromAddress, localhost).getResultCode(),
+				is((ResultCode) ADDRESS_VALID));
+		assertThat(accountQuery.query(mailAddress, fromAddress, localhost).getResultCode(),
+				is((ResultCode) ADDRESS_VALID));
+		assertThat(accountQuery.isCatchAll("googlecode.com"), is(false));
+	}
+
+	@Test
+	public void test_MTA_NOT_RESPONDING() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		CatchAllDetectingAccountQuery accountQuery = new CatchAllDetectingAccountQuery(inner);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(inner).query(with(not(equal(mailAddress))), with(equal(fromAddress)), with(equal(localhost)));
+				will(returnValue(Result.create(MTA_NOT_RESPONDING, DOMAIN, null, localhost)));
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_NOT_RESPONDING));
+		assertThat(result.getMailAddress(), is(mailAddress));
+		assertThat(accountQuery.isCatchAll("googlecode.com"), is(false));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.CircuitBreakingAccountQuery.State;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public final class CircuitBreakingAccountQueryTestCase {
+
+	private final Mockery context = new JUnit4Mockery();
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void testOpen() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		CircuitBreakingAccountQuery accountQuery = new CircuitBreakingAccountQuery(inner, 2, 1, MINUTES);
+
+		this.context.checking(new Expectations() {
+
+			{
+				exactly(2).of(inner).query(mailAddress, fromAddress, localhost);
+				will(returnValue(Result.create(MTA_NOT_RESPONDING, DOMAIN, mailAddress, localhost)));
+			}
+		});
+
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost), is(State.CLOSED));
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost), is(State.OPEN));
+
+		// the third query must not reach the inner query
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_NOT_RESPONDING));
+		assertThat(result.getValidity(), is(DOMAIN));
+		assertThat(accountQuery.getStates().get(localhost), is(State.OPEN));
+	}
+
+	@Test
+	public void testHalfOpen() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		CircuitBreakingAccountQuery accountQuery = new CircuitBreakingAccountQuery(inner, 1, 1, MILLISECONDS);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(inner).query(mailAddress, fromAddress, localhost);
+				will(returnValue(Result.create(MTA_NOT_RESPONDING, DOMAIN, mailAddress, localhost)));
+
+				oneOf(inner).query(mailAddress, fromAddress, localhost);
+				will(returnValue(Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress, localhost)));
+			}
+		});
+
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost), is(State.OPEN));
+
+		Thread.sleep(5);
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(accountQuery.getState(localhost), is(State.CLOSED));
+	}
+}
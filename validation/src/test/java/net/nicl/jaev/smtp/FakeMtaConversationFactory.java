@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * <p>
+ * A factory of in-memory conversations with a well behaved MTA. It greets, accepts <code>HELO</code>,
+ * <code>MAIL FROM</code>, <code>RSET</code> and <code>NOOP</code> and accepts every recipient except those whose
+ * local part starts with <code>unknown</code>, which are rejected with <code>550 5.1.1</code>. <code>VRFY</code> is
+ * answered with <code>252</code>.
+ * </p>
+ * <p>
+ * The conversations are the backend of the <code>FaultInjectingConversationFactory</code> when no real MTA should be
+ * involved.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class FakeMtaConversationFactory implements ConversationFactory {
+
+	@Override
+	public Conversation createConversation() {
+		return new FakeMtaConversation();
+	}
+
+	/**
+	 * The conversation with the fake MTA
+	 */
+	private static final class FakeMtaConversation implements Conversation {
+
+		private final Queue<Reply> replies = new LinkedList<Reply>();
+
+		private InetAddress mxAddress;
+
+		private boolean active = false;
+
+		public void init(InetAddress mxAddress, int port) {
+			this.mxAddress = mxAddress;
+			this.replies.clear();
+		}
+
+		public void start() throws IOException {
+			this.active = true;
+			this.replies.add(Reply.create("220", "fake.mta ESMTP ready"));
+		}
+
+		public void say(Command command) throws IOException {
+			checkActive();
+			if (command == Command.QUIT) {
+				this.replies.add(Reply.create("221", "2.0.0 Bye"));
+			}
+			else if (command == Command.RESET || command == Command.NOOP) {
+				this.replies.add(Reply.create("250", "2.0.0 OK"));
+			}
+			else {
+				this.replies.add(Reply.create("502", "5.5.2 Command not implemented"));
+			}
+		}
+
+		public void say(Command command, String parameter) throws IOException {
+			checkActive();
+			if (command == Command.RECIPIENT_TO) {
+				this.replies.add(parameter.startsWith("unknown") ? Reply.create("550", "5.1.1 User unknown") : Reply
+						.create("250", "2.1.5 OK"));
+			}
+			else if (command == Command.VERIFY) {
+				this.replies.add(Reply.create("252", "2.5.2 Cannot VRFY user"));
+			}
+			else {
+				this.replies.add(Reply.create("250", "2.1.0 OK"));
+			}
+		}
+
+		public Reply listen() throws IOException {
+			Reply reply = this.replies.poll();
+
+			return reply != null ? reply : Reply.EMPTY;
+		}
+
+		public void end() {
+			this.active = false;
+			this.replies.clear();
+		}
+
+		public InetAddress getMxAddress() {
+			return this.mxAddress;
+		}
+
+		public boolean isActive() {
+			return this.active;
+		}
+
+		private void checkActive() throws IOException {
+			if (!this.active) {
+				throw new IOException("The conversation is not started.");
+			}
+		}
+	}
+}
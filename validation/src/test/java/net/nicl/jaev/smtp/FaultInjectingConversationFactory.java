@@ -0,0 +1,351 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LatencyDistribution;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * A <code>ConversationFactory</code> which wraps the conversations of another factory (i.e. a
+ * <code>SocketChannelConversation.Factory</code> or a <code>FakeMtaConversationFactory</code>) and injects faults:
+ * latencies of the replies, banner tarpits, refused connections, connection resets, partial replies and injected
+ * <code>4xx</code>/<code>5xx</code> replies to particular commands.
+ * </p>
+ * <p>
+ * Like the <code>SocketChannelConversation</code> the conversation has a deadline: an injected delay which exceeds it
+ * waits until the deadline and throws a <code>SocketTimeoutException</code>. The faults are drawn from a seeded random
+ * source, so a run can be repeated.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class FaultInjectingConversationFactory implements ConversationFactory {
+
+	/** The factory of the wrapped conversations */
+	private final ConversationFactory conversationFactory;
+
+	/** The deadline of a conversation in milliseconds */
+	private final long timeout;
+
+	private final Random random;
+
+	private volatile LatencyDistribution latency = LatencyDistribution.NONE;
+
+	private volatile LatencyDistribution bannerDelay = LatencyDistribution.NONE;
+
+	private volatile double dropRate = 0;
+
+	private volatile double resetRate = 0;
+
+	private volatile double partialReplyRate = 0;
+
+	private final List<InjectedReply> injectedReplies = new CopyOnWriteArrayList<InjectedReply>();
+
+	private final AtomicLong drops = new AtomicLong();
+
+	private final AtomicLong resets = new AtomicLong();
+
+	private final AtomicLong partialReplies = new AtomicLong();
+
+	private final AtomicLong replies = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * Default constructor
+	 * 
+	 * @param conversationFactory
+	 *            The factory of the wrapped conversations
+	 * @param timeout
+	 *            The deadline of a conversation
+	 * @param unit
+	 *            The time unit of the deadline
+	 * @param seed
+	 *            The seed of the random source
+	 */
+	public FaultInjectingConversationFactory(ConversationFactory conversationFactory, long timeout, TimeUnit unit,
+			long seed) {
+		this.conversationFactory = notNull(conversationFactory, "conversationFactory");
+		this.timeout = notNull(unit, "unit").toMillis(timeout);
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Delays every reply.
+	 * 
+	 * @param latency
+	 *            The distribution of the delay
+	 * @return This factory
+	 */
+	public FaultInjectingConversationFactory withLatency(LatencyDistribution latency) {
+		this.latency = notNull(latency, "latency");
+		return this;
+	}
+
+	/**
+	 * Delays the banner in addition to the latency, i.e. a tarpit.
+	 * 
+	 * @param bannerDelay
+	 *            The distribution of the delay
+	 * @return This factory
+	 */
+	public FaultInjectingConversationFactory withBannerDelay(LatencyDistribution bannerDelay) {
+		this.bannerDelay = notNull(bannerDelay, "bannerDelay");
+		return this;
+	}
+
+	/**
+	 * Refuses connections.
+	 * 
+	 * @param probability
+	 *            The probability a connection is refused
+	 * @return This factory
+	 */
+	public FaultInjectingConversationFactory withDrops(double probability) {
+		this.dropRate = probability;
+		return this;
+	}
+
+	/**
+	 * Resets connections while waiting for a reply.
+	 * 
+	 * @param probability
+	 *            The probability of a reset per reply
+	 * @return This factory
+	 */
+	public FaultInjectingConversationFactory withResets(double probability) {
+		this.resetRate = probability;
+		return this;
+	}
+
+	/**
+	 * Cuts replies off within their first line, so the code or the text is
+	 * incomplete.
+	 * 
+	 * @param probability
+	 *            The probability of a partial reply
+	 * @return This factory
+	 */
+	public FaultInjectingConversationFactory withPartialReplies(double probability) {
+		this.partialReplyRate = probability;
+		return this;
+	}
+
+	/**
+	 * Replaces the reply to a command, i.e. <code>451 4.7.1</code> for
+	 * greylisting or <code>554 5.7.1</code> for a block list.
+	 * 
+	 * @param command
+	 *            The command prototype whose reply is replaced
+	 * @param probability
+	 *            The probability the reply is replaced
+	 * @param code
+	 *            The code of the injected reply
+	 * @param message
+	 *            The text of the injected reply
+	 * @return This factory
+	 */
+	public FaultInjectingConversationFactory withReply(Command command, double probability, String code,
+			String message) {
+		this.injectedReplies.add(new InjectedReply(notNull(command, "command"), probability, Reply.create(code,
+				message)));
+		return this;
+	}
+
+	@Override
+	public Conversation createConversation() {
+		return new FaultInjectingConversation(this.conversationFactory.createConversation());
+	}
+
+	public long getDrops() {
+		return this.drops.get();
+	}
+
+	public long getResets() {
+		return this.resets.get();
+	}
+
+	public long getPartialReplies() {
+		return this.partialReplies.get();
+	}
+
+	public long getInjectedReplies() {
+		return this.replies.get();
+	}
+
+	public long getTimeouts() {
+		return this.timeouts.get();
+	}
+
+	private boolean draw(double probability) {
+		return probability > 0 && this.random.nextDouble() < probability;
+	}
+
+	/**
+	 * A reply replacing the reply to a command
+	 */
+	private static final class InjectedReply {
+
+		private final Command command;
+
+		private final double probability;
+
+		private final Reply reply;
+
+		private InjectedReply(Command command, double probability, Reply reply) {
+			this.command = command;
+			this.probability = probability;
+			this.reply = reply;
+		}
+	}
+
+	/**
+	 * The conversation injecting the faults
+	 */
+	private final class FaultInjectingConversation implements Conversation {
+
+		private final Conversation conversation;
+
+		private long deadline = 0;
+
+		private boolean greeted = false;
+
+		private boolean reset = false;
+
+		private Command lastCommand = null;
+
+		private FaultInjectingConversation(Conversation conversation) {
+			this.conversation = conversation;
+		}
+
+		public void init(InetAddress mxAddress, int port) {
+			this.conversation.init(mxAddress, port);
+			this.deadline = System.currentTimeMillis() + FaultInjectingConversationFactory.this.timeout;
+			this.greeted = false;
+			this.reset = false;
+			this.lastCommand = null;
+		}
+
+		public void start() throws IOException {
+			if (draw(FaultInjectingConversationFactory.this.dropRate)) {
+				FaultInjectingConversationFactory.this.drops.incrementAndGet();
+				throw new ConnectException("Connection refused (injected)");
+			}
+			this.conversation.start();
+		}
+
+		public void say(Command command) throws IOException {
+			checkReset();
+			this.lastCommand = command;
+			this.conversation.say(command);
+		}
+
+		public void say(Command command, String parameter) throws IOException {
+			checkReset();
+			this.lastCommand = command;
+			this.conversation.say(command, parameter);
+		}
+
+		public Reply listen() throws IOException {
+			checkReset();
+			Random random = FaultInjectingConversationFactory.this.random;
+			long delay = FaultInjectingConversationFactory.this.latency.sample(random);
+			if (!this.greeted) {
+				delay += FaultInjectingConversationFactory.this.bannerDelay.sample(random);
+				this.greeted = true;
+			}
+			delay(delay);
+
+			if (draw(FaultInjectingConversationFactory.this.resetRate)) {
+				FaultInjectingConversationFactory.this.resets.incrementAndGet();
+				this.reset = true;
+				this.conversation.end();
+				throw new IOException("Connection reset by peer (injected)");
+			}
+
+			Reply reply = this.conversation.listen();
+
+			for (InjectedReply injected : FaultInjectingConversationFactory.this.injectedReplies) {
+				if (injected.command == this.lastCommand && draw(injected.probability)) {
+					FaultInjectingConversationFactory.this.replies.incrementAndGet();
+					reply = injected.reply;
+					break;
+				}
+			}
+
+			if (draw(FaultInjectingConversationFactory.this.partialReplyRate)) {
+				FaultInjectingConversationFactory.this.partialReplies.incrementAndGet();
+				// the connection breaks within the first line
+				String line = reply.getCode().getValue() + " " + (reply.getMessage() != null ? reply.getMessage() : "");
+				int length = random.nextInt(Math.max(1, line.length()));
+				reply = Reply.create(line.substring(0, Math.min(length, 3)), length > 4 ? line.substring(4, length)
+						: null);
+			}
+
+			return reply;
+		}
+
+		public void end() {
+			this.conversation.end();
+		}
+
+		public InetAddress getMxAddress() {
+			return this.conversation.getMxAddress();
+		}
+
+		public boolean isActive() {
+			return !this.reset && this.conversation.isActive();
+		}
+
+		private void checkReset() throws IOException {
+			if (this.reset) {
+				throw new IOException("Connection reset by peer (injected)");
+			}
+		}
+
+		private void delay(long delay) throws IOException {
+			long remaining = this.deadline - System.currentTimeMillis();
+			try {
+				if (delay >= remaining) {
+					Thread.sleep(Math.max(0, remaining));
+					FaultInjectingConversationFactory.this.timeouts.incrementAndGet();
+					throw new SocketTimeoutException("The conversation timed out (injected).");
+				}
+				else if (delay > 0) {
+					Thread.sleep(delay);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("The conversation was interrupted.");
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.ValidatorResultCode.GENERAL_VALIDATION_ERROR;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class HedgingAccountQueryTestCase {
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		this.executorService.shutdownNow();
+	}
+
+	@Test
+	public void testHedge() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final InetAddress slow = InetAddress.getByName("192.0.2.1");
+		final InetAddress fast = InetAddress.getByName("192.0.2.2");
+		final CountDownLatch cancelled = new CountDownLatch(1);
+
+		AccountQuery inner = new AccountQuery() {
+
+			@Override
+			public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+				if (slow.equals(mxAddress)) {
+					try {
+						Thread.sleep(10000);
+					}
+					catch (InterruptedException e) {
+						cancelled.countDown();
+					}
+					return Result.create(GENERAL_VALIDATION_ERROR, DOMAIN, mailAddress, mxAddress);
+				}
+				return Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress, mxAddress);
+			}
+		};
+
+		HedgingAccountQuery accountQuery = new HedgingAccountQuery(inner, this.executorService, 50, 50, MILLISECONDS);
+
+		long start = System.currentTimeMillis();
+		Result result = accountQuery.query(mailAddress, fromAddress, Arrays.asList(slow, fast));
+
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(result.getObjects()[0], is((Object) fast));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue("The slow query was not cancelled.", cancelled.await(5, SECONDS));
+	}
+
+	@Test
+	public void testFailFast() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final InetAddress broken = InetAddress.getByName("192.0.2.1");
+		final InetAddress working = InetAddress.getByName("192.0.2.2");
+
+		AccountQuery inner = new AccountQuery() {
+
+			@Override
+			public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+				if (broken.equals(mxAddress)) {
+					return Result.create(MTA_NOT_RESPONDING, DOMAIN, mailAddress, mxAddress);
+				}
+				return Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress, mxAddress);
+			}
+		};
+
+		HedgingAccountQuery accountQuery = new HedgingAccountQuery(inner, this.executorService, 10, 10, SECONDS);
+
+		long start = System.currentTimeMillis();
+		Result result = accountQuery.query(mailAddress, fromAddress, Arrays.asList(broken, working));
+
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertTrue("The failed query was hedged instead of retried.", System.currentTimeMillis() - start < 5000);
+		assertThat(accountQuery.getThreshold(SECONDS), is(10L));
+	}
+
+	@Test
+	public void testWrapped() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final InetAddress broken = InetAddress.getByName("192.0.2.1");
+		final InetAddress working = InetAddress.getByName("192.0.2.2");
+
+		AccountQuery inner = new AccountQuery() {
+
+			@Override
+			public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+				if (broken.equals(mxAddress)) {
+					return Result.create(MTA_NOT_RESPONDING, DOMAIN, mailAddress, mxAddress);
+				}
+				return Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress, mxAddress);
+			}
+		};
+
+		CircuitBreakingAccountQuery circuitBreaker = new CircuitBreakingAccountQuery(new HedgingAccountQuery(inner,
+				this.executorService, 10, 10, SECONDS), 1, 1, SECONDS);
+		AccountQuery accountQuery = new ThrottlingAccountQuery(circuitBreaker);
+		MxHealthTable healthTable = new MxHealthTable();
+
+		Result result = AccountQueries.query(accountQuery, mailAddress, fromAddress, Arrays.asList(broken, working),
+				healthTable);
+
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(healthTable.getHealth(broken).getSamples(), is(1L));
+		assertThat(healthTable.getHealth(working).getSamples(), is(1L));
+		assertThat(circuitBreaker.getState(broken), is(CircuitBreakingAccountQuery.State.OPEN));
+		assertThat(circuitBreaker.getState(working), is(CircuitBreakingAccountQuery.State.CLOSED));
+
+		// the open breaker skips the broken MTA
+		result = AccountQueries.query(accountQuery, mailAddress, fromAddress, Arrays.asList(broken, working),
+				healthTable);
+
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(healthTable.getHealth(broken).getSamples(), is(1L));
+		assertThat(healthTable.getHealth(working).getSamples(), is(2L));
+	}
+}
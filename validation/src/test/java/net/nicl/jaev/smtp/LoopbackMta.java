@@ -0,0 +1,453 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.LatencyDistribution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nicl.jaev.Check.notBlank;
+import static net.nicl.jaev.Check.notNull;
+
+/**
+ * <p>
+ * A fake MTA on the loopback interface which speaks SMTP over real sockets, so the whole validation pipeline can be
+ * tested without the internet. The behaviour is scripted per recipient domain (including its sub domains):
+ * </p>
+ * <ul>
+ * <li><code>ACCEPT</code> accepts every recipient except those whose local part starts with <code>unknown</code>, which
+ * are rejected with <code>550 5.1.1</code>. This is the behaviour of unscripted domains.</li>
+ * <li><code>REJECT</code> rejects every recipient with <code>550 5.1.1</code>.</li>
+ * <li><code>CATCH_ALL</code> accepts every recipient.</li>
+ * <li><code>GREYLIST</code> defers the first attempt for a recipient with <code>451 4.7.1</code> and behaves like
+ * <code>ACCEPT</code> afterwards.</li>
+ * </ul>
+ * <p>
+ * A script may delay the replies to the recipients of its domain. The MTA listens on an ephemeral port, the
+ * conversations of {@link #createConversationFactory(long)} connect to it instead of port 25.
+ * </p>
+ * 
+ * @author Niclas Meier
+ */
+public class LoopbackMta {
+
+	/** Logger */
+	private static final Logger LOG = LoggerFactory.getLogger(LoopbackMta.class);
+
+	/**
+	 * The scripted behaviour for the recipients of a domain
+	 */
+	public enum Behaviour {
+		ACCEPT, REJECT, CATCH_ALL, GREYLIST
+	}
+
+	private static final Script DEFAULT_SCRIPT = new Script(Behaviour.ACCEPT, LatencyDistribution.NONE);
+
+	/** The scripts by their lower case domain */
+	private final Map<String, Script> scripts = new ConcurrentHashMap<String, Script>();
+
+	/** The greylisted recipients which were deferred once */
+	private final Map<String, Boolean> greylist = new ConcurrentHashMap<String, Boolean>();
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService executor;
+
+	private final Thread acceptor;
+
+	private final AtomicLong seeds;
+
+	private final AtomicLong connections = new AtomicLong();
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	private final AtomicLong recipients = new AtomicLong();
+
+	/**
+	 * Default constructor, binds the MTA to an ephemeral port of the loopback
+	 * interface.
+	 * 
+	 * @param seed
+	 *            The seed of the random source of the latencies
+	 * @throws IOException
+	 *             If the socket could not be bound
+	 */
+	public LoopbackMta(long seed) throws IOException {
+		this.seeds = new AtomicLong(seed);
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.setReuseAddress(true);
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1024);
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "jaev-loopback-mta-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.acceptor = new Thread("jaev-loopback-mta") {
+
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		this.acceptor.setDaemon(true);
+	}
+
+	/**
+	 * Scripts the behaviour for the recipients of a domain and its sub
+	 * domains.
+	 * 
+	 * @param domain
+	 *            The domain
+	 * @param behaviour
+	 *            The behaviour
+	 * @return This MTA
+	 */
+	public LoopbackMta script(String domain, Behaviour behaviour) {
+		return script(domain, behaviour, LatencyDistribution.NONE);
+	}
+
+	/**
+	 * Scripts the behaviour for the recipients of a domain and its sub
+	 * domains.
+	 * 
+	 * @param domain
+	 *            The domain
+	 * @param behaviour
+	 *            The behaviour
+	 * @param latency
+	 *            The delay of the replies to the recipients
+	 * @return This MTA
+	 */
+	public LoopbackMta script(String domain, Behaviour behaviour, LatencyDistribution latency) {
+		this.scripts.put(notBlank(domain, "domain").toLowerCase(), new Script(notNull(behaviour, "behaviour"),
+				notNull(latency, "latency")));
+		return this;
+	}
+
+	/**
+	 * Starts to accept connections.
+	 * 
+	 * @return This MTA
+	 */
+	public LoopbackMta start() {
+		this.acceptor.start();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Listening on " + getAddress() + " with scripts for " + this.scripts.keySet() + ".");
+		}
+		return this;
+	}
+
+	/**
+	 * Stops the MTA, closes its socket and ends the open connections.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the acceptor
+	 */
+	public void stop() throws InterruptedException {
+		try {
+			this.serverSocket.close();
+		}
+		catch (IOException e) {
+			LOG.debug("Unable to close the server socket.", e);
+		}
+		this.acceptor.join();
+		this.executor.shutdownNow();
+		this.executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the address the MTA is bound to.
+	 * 
+	 * @return The socket address
+	 */
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) this.serverSocket.getLocalSocketAddress();
+	}
+
+	/**
+	 * Creates a factory of socket conversations which connect to this MTA
+	 * instead of port 25 of the MX address.
+	 * 
+	 * @param timeout
+	 *            The socket timeout in milliseconds
+	 * @return The conversation factory
+	 */
+	public ConversationFactory createConversationFactory(final long timeout) {
+		final int port = getAddress().getPort();
+
+		return new ConversationFactory() {
+
+			@Override
+			public Conversation createConversation() {
+				return new RedirectedConversation(new SocketChannelConversation(timeout), port);
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of connections accepted.
+	 * 
+	 * @return The number of connections
+	 */
+	public long getConnections() {
+		return this.connections.get();
+	}
+
+	/**
+	 * Returns the number of connections open at the moment.
+	 * 
+	 * @return The number of open connections
+	 */
+	public int getOpenConnections() {
+		return this.openConnections.get();
+	}
+
+	/**
+	 * Returns the number of recipients answered.
+	 * 
+	 * @return The number of recipients
+	 */
+	public long getRecipients() {
+		return this.recipients.get();
+	}
+
+	private void accept() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				final Socket socket = this.serverSocket.accept();
+				this.connections.incrementAndGet();
+				this.openConnections.incrementAndGet();
+
+				this.executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							converse(socket, new Random(LoopbackMta.this.seeds.getAndIncrement()));
+						}
+						catch (IOException e) {
+							LOG.trace("The conversation ended with an error.", e);
+						}
+						finally {
+							LoopbackMta.this.openConnections.decrementAndGet();
+							close(socket);
+						}
+					}
+				});
+			}
+			catch (SocketException e) {
+				// the socket was closed
+				LOG.trace("The MTA socket is closed.", e);
+			}
+			catch (IOException e) {
+				LOG.warn("Unable to accept a connection.", e);
+			}
+		}
+	}
+
+	private void converse(Socket socket, Random random) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+		OutputStream out = socket.getOutputStream();
+
+		reply(out, "220 loopback.mta ESMTP ready");
+		String line;
+		while ((line = in.readLine()) != null) {
+			String verb = (line.length() > 4 ? line.substring(0, 4) : line).toUpperCase();
+
+			if ("HELO".equals(verb) || "EHLO".equals(verb)) {
+				reply(out, "250 loopback.mta");
+			}
+			else if ("MAIL".equals(verb)) {
+				reply(out, "250 2.1.0 OK");
+			}
+			else if ("RCPT".equals(verb)) {
+				reply(out, recipient(line, random));
+			}
+			else if ("VRFY".equals(verb)) {
+				reply(out, "252 2.5.2 Cannot VRFY user");
+			}
+			else if ("RSET".equals(verb) || "NOOP".equals(verb)) {
+				reply(out, "250 2.0.0 OK");
+			}
+			else if ("QUIT".equals(verb)) {
+				reply(out, "221 2.0.0 Bye");
+				return;
+			}
+			else {
+				reply(out, "502 5.5.2 Command not implemented");
+			}
+		}
+	}
+
+	private String recipient(String line, Random random) throws IOException {
+		int start = line.indexOf('<');
+		int end = line.lastIndexOf('>');
+		int at = line.lastIndexOf('@');
+		if (start < 0 || end < at || at < start) {
+			return "501 5.1.3 Bad recipient address syntax";
+		}
+		this.recipients.incrementAndGet();
+
+		String recipient = line.substring(start + 1, end).toLowerCase();
+		Script script = findScript(line.substring(at + 1, end).toLowerCase());
+		delay(script.latency.sample(random));
+
+		switch (script.behaviour) {
+		case REJECT:
+			return "550 5.1.1 User unknown";
+		case CATCH_ALL:
+			return "250 2.1.5 OK";
+		case GREYLIST:
+			if (this.greylist.put(recipient, Boolean.TRUE) == null) {
+				return "451 4.7.1 Greylisted, please try again later";
+			}
+			// a retry is accepted
+			return accept(recipient);
+		default:
+			return accept(recipient);
+		}
+	}
+
+	private static String accept(String recipient) {
+		return recipient.startsWith("unknown") ? "550 5.1.1 User unknown" : "250 2.1.5 OK";
+	}
+
+	private Script findScript(String domain) {
+		for (String name = domain; name != null; name = name.indexOf('.') >= 0 ? name.substring(name.indexOf('.') + 1)
+				: null) {
+			Script script = this.scripts.get(name);
+			if (script != null) {
+				return script;
+			}
+		}
+		return DEFAULT_SCRIPT;
+	}
+
+	private static void delay(long delay) throws IOException {
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("The MTA was stopped.");
+			}
+		}
+	}
+
+	private static void reply(OutputStream out, String reply) throws IOException {
+		out.write((reply + "\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			LOG.trace("Unable to close a connection.", e);
+		}
+	}
+
+	/**
+	 * The behaviour and the latency scripted for a domain
+	 */
+	private static final class Script {
+
+		private final Behaviour behaviour;
+
+		private final LatencyDistribution latency;
+
+		private Script(Behaviour behaviour, LatencyDistribution latency) {
+			this.behaviour = behaviour;
+			this.latency = latency;
+		}
+	}
+
+	/**
+	 * A conversation which connects to the port of the MTA instead of the
+	 * requested port
+	 */
+	private static final class RedirectedConversation implements Conversation {
+
+		private final Conversation conversation;
+
+		private final int port;
+
+		private RedirectedConversation(Conversation conversation, int port) {
+			this.conversation = conversation;
+			this.port = port;
+		}
+
+		public void init(InetAddress mxAddress, int port) {
+			this.conversation.init(mxAddress, this.port);
+		}
+
+		public void start() throws IOException {
+			this.conversation.start();
+		}
+
+		public void say(Command command) throws IOException {
+			this.conversation.say(command);
+		}
+
+		public void say(Command command, String parameter) throws IOException {
+			this.conversation.say(command, parameter);
+		}
+
+		public Reply listen() throws IOException {
+			return this.conversation.listen();
+		}
+
+		public void end() {
+			this.conversation.end();
+		}
+
+		public InetAddress getMxAddress() {
+			return this.conversation.getMxAddress();
+		}
+
+		public boolean isActive() {
+			return this.conversation.isActive();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class MxHealthTableTestCase {
+
+	private static final Result VALID = Result.create(ADDRESS_VALID, ACCESSIBLE, null);
+
+	private static final Result UNKNOWN = Result.create(ADDRESS_UNKNOWN, DOMAIN, null);
+
+	private static final Result NOT_RESPONDING = Result.create(MTA_NOT_RESPONDING, DOMAIN, null);
+
+	@Test
+	public void testUnknownKeepsDnsOrder() throws Exception {
+		MxHealthTable table = new MxHealthTable();
+		List<InetAddress> mxAddresses = addresses("10.0.0.1", "10.0.0.2", "10.0.0.3");
+
+		assertThat(table.order("example.com", mxAddresses), is(mxAddresses));
+	}
+
+	@Test
+	public void testHealthyFirst() throws Exception {
+		MxHealthTable table = new MxHealthTable();
+		List<InetAddress> mxAddresses = addresses("10.0.0.1", "10.0.0.2", "10.0.0.3");
+
+		// the primary refuses connections, the secondary is slow, the third
+		// one is fast
+		for (int i = 0; i < 5; ++i) {
+			table.record("other.com", mxAddresses.get(0), NOT_RESPONDING, 3000, MILLISECONDS);
+			table.record("other.com", mxAddresses.get(1), UNKNOWN, 1500, MILLISECONDS);
+			table.record("other.com", mxAddresses.get(2), VALID, 40, MILLISECONDS);
+		}
+
+		assertThat(table.order("example.com", mxAddresses), is(addresses("10.0.0.3", "10.0.0.2", "10.0.0.1")));
+
+		MxHealthTable.Health health = table.getHealth(mxAddresses.get(0));
+		assertThat(health.getLastError(), is((ResultCode) MTA_NOT_RESPONDING));
+		assertTrue("The success rate is " + health.getSuccessRate(), health.getSuccessRate() < 0.01);
+		assertThat(table.getHealth(mxAddresses.get(2)).getLatency(MILLISECONDS), is(40L));
+		assertThat(table.getHealthTable().size(), is(3));
+	}
+
+	@Test
+	public void testUnknownBehindHealthy() throws Exception {
+		MxHealthTable table = new MxHealthTable();
+		List<InetAddress> mxAddresses = addresses("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4");
+
+		// the first and the third MTA are unknown, the fourth one refuses
+		// connections
+		for (int i = 0; i < 5; ++i) {
+			table.record("other.com", mxAddresses.get(1), VALID, 40, MILLISECONDS);
+			table.record("other.com", mxAddresses.get(3), NOT_RESPONDING, 3000, MILLISECONDS);
+		}
+
+		assertThat(table.order("example.com", mxAddresses), is(addresses("10.0.0.2", "10.0.0.1", "10.0.0.3",
+				"10.0.0.4")));
+	}
+
+	@Test
+	public void testSticky() throws Exception {
+		MxHealthTable table = new MxHealthTable();
+		List<InetAddress> mxAddresses = addresses("10.0.0.1", "10.0.0.2");
+
+		table.record("example.com", mxAddresses.get(0), UNKNOWN, 40, MILLISECONDS);
+		table.record("example.com", mxAddresses.get(1), VALID, 900, MILLISECONDS);
+
+		assertThat(table.getAuthoritative("EXAMPLE.com"), is(mxAddresses.get(1)));
+		assertThat(table.order("example.com", mxAddresses), is(addresses("10.0.0.2", "10.0.0.1")));
+		assertThat(table.order("other.com", mxAddresses), is(mxAddresses));
+
+		// an unhealthy MTA is not sticky
+		for (int i = 0; i < 5; ++i) {
+			table.record("other.com", mxAddresses.get(1), NOT_RESPONDING, 3000, MILLISECONDS);
+		}
+		assertThat(table.order("example.com", mxAddresses), is(mxAddresses));
+	}
+
+	private static List<InetAddress> addresses(String... addresses) throws Exception {
+		InetAddress[] result = new InetAddress[addresses.length];
+		for (int i = 0; i < addresses.length; ++i) {
+			result[i] = InetAddress.getByName(addresses[i]);
+		}
+
+		return Arrays.asList(result);
+	}
+}
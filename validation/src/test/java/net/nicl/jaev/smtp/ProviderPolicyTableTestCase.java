@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.BasicValidator;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.dns.ResouceRecord;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import net.nicl.jaev.smtp.ProviderPolicyTable.Policy;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCOUNT;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.dns.ResouceRecord.Type.MX;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JMock.class)
+public final class ProviderPolicyTableTestCase {
+
+	private final Mockery context = new JUnit4Mockery();
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void testLookup() throws Exception {
+		Map<String, Policy> domainPolicies = new HashMap<String, Policy>();
+		domainPolicies.put("Example.com", Policy.skip(ACCOUNT));
+		Map<String, Policy> mxPolicies = new HashMap<String, Policy>();
+		mxPolicies.put("*.google.com", Policy.DNS_ONLY);
+		mxPolicies.put("smtp.example.org", Policy.PROBE);
+		ProviderPolicyTable table = new ProviderPolicyTable(domainPolicies, mxPolicies);
+
+		assertThat(table.getPolicy("EXAMPLE.com").getValidity(), is(ACCOUNT));
+		assertThat(table.getPolicy("mail.example.com"), is(nullValue()));
+
+		InetAddress google = InetAddress.getByAddress("aspmx.l.google.com", new byte[] { 10, 0, 0, 1 });
+		InetAddress other = InetAddress.getByAddress("mx.example.org", new byte[] { 10, 0, 0, 2 });
+		InetAddress literal = InetAddress.getByAddress(new byte[] { 10, 0, 0, 3 });
+
+		assertThat(table.getPolicy("example.net", Arrays.asList(literal, other, google)), is(Policy.DNS_ONLY));
+		assertThat(table.getPolicy("example.net", Arrays.asList(literal, other)), is(nullValue()));
+		// the domain policy precedes the MTA policies
+		assertThat(table.getPolicy("example.com", Arrays.asList(google)).getAction(),
+				is(ProviderPolicyTable.Action.SKIP));
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		File file = File.createTempFile("provider-policies", ".txt");
+		file.deleteOnExit();
+		write(file, "# comment\ndomain\texample.com\tSKIP\tACCOUNT\nmx\t*.example.org\tDNS_ONLY\n");
+		file.setLastModified(System.currentTimeMillis() - 60000);
+
+		ProviderPolicyTable table = new ProviderPolicyTable(file.toURI().toURL(), 1, MILLISECONDS);
+		assertThat(table.getPolicy("example.com").getValidity(), is(ACCOUNT));
+		assertThat(table.getMxPolicies().get("*.example.org"), is(Policy.DNS_ONLY));
+
+		// an unmodified source is not read again
+		assertThat(table.reload(), is(false));
+
+		write(file, "domain\texample.com\tDNS_ONLY\n");
+		file.setLastModified(System.currentTimeMillis());
+		Thread.sleep(5);
+		// the lookup triggers the reload in the background and does not wait for it
+		awaitPolicy(table, "example.com", Policy.DNS_ONLY);
+		assertTrue("The MTA policies were not replaced.", table.getMxPolicies().isEmpty());
+
+		// a malformed source keeps the current policies
+		write(file, "domain\texample.com\tNEVER\n");
+		file.setLastModified(System.currentTimeMillis() + 60000);
+		assertThat(table.reload(), is(false));
+		assertThat(table.getPolicy("example.com"), is(Policy.DNS_ONLY));
+	}
+
+	@Test
+	public void testReloadWithoutModificationDate() throws Exception {
+		File file = File.createTempFile("provider-policies", ".txt");
+		file.deleteOnExit();
+		write(file, "domain\texample.com\tSKIP\tACCOUNT\n");
+		file.setLastModified(0);
+
+		ProviderPolicyTable table = new ProviderPolicyTable(file.toURI().toURL(), 0, MILLISECONDS);
+		assertThat(table.getPolicy("example.com").getValidity(), is(ACCOUNT));
+
+		// the unchanged content is not loaded again, the changed content is
+		assertThat(table.reload(), is(false));
+		write(file, "domain\texample.com\tDNS_ONLY\n");
+		file.setLastModified(0);
+		assertThat(table.reload(), is(true));
+		assertThat(table.getPolicy("example.com"), is(Policy.DNS_ONLY));
+	}
+
+	@Test
+	public void testValidatorSkipsQuery() throws Exception {
+		final Resolver resolver = this.context.mock(Resolver.class);
+		final ResouceRecord record = this.context.mock(ResouceRecord.class);
+		final AccountQuery accountQuery = this.context.mock(AccountQuery.class);
+
+		Map<String, Policy> domainPolicies = new HashMap<String, Policy>();
+		domainPolicies.put("example.com", Policy.skip(ACCOUNT));
+		Map<String, Policy> mxPolicies = Collections.singletonMap("localhost", Policy.DNS_ONLY);
+
+		BasicValidator validator = new BasicValidator(this.addressFactory, resolver, accountQuery,
+				this.addressFactory.create(defaultFromAddress()), null, new ProviderPolicyTable(domainPolicies,
+						mxPolicies));
+
+		this.context.checking(new Expectations() {
+
+			{
+				// the skipped domain is not resolved
+				one(resolver).resolve("googlecode.com", MX);
+				will(returnValue(Arrays.asList(record)));
+				allowing(record).getValue();
+				will(returnValue("localhost"));
+				never(accountQuery);
+			}
+		});
+
+		Result skipped = validator.validate("jaev@example.com");
+		assertThat(skipped.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(skipped.getValidity(), is(ACCOUNT));
+
+		Result dnsOnly = validator.validate("jaev@googlecode.com");
+		assertThat(dnsOnly.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(dnsOnly.getValidity(), is(DOMAIN));
+	}
+
+	private static void awaitPolicy(ProviderPolicyTable table, String domain, Policy policy)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (table.getPolicy(domain) != policy && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(table.getPolicy(domain), is(policy));
+	}
+
+	private static void write(File file, String content) throws Exception {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		}
+		finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.smtp.SmtpResultCode.IO_ERROR_DURING_MTA_CONVERSATION;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_NOT_RESPONDING;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public final class ReplayConversationFactoryTestCase {
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void testReplay() throws Exception {
+		InetAddress mx = InetAddress.getByName("127.0.0.1");
+		InetAddress greylisting = InetAddress.getByName("127.0.0.2");
+		InetAddress down = InetAddress.getByName("127.0.0.3");
+
+		// record the conversations with three MTAs
+		ByteArrayOutputStream recording = new ByteArrayOutputStream();
+		RecordingConversationFactory recorder = new RecordingConversationFactory(new RoutingConversationFactory(
+				new FakeMtaConversationFactory(), greylisting, new FaultInjectingConversationFactory(
+						new FakeMtaConversationFactory(), 1, TimeUnit.SECONDS, 42).withReply(Command.RECIPIENT_TO, 1,
+						"451", "4.7.1 Greylisted"), down, new FaultInjectingConversationFactory(
+						new FakeMtaConversationFactory(), 1, TimeUnit.SECONDS, 42).withDrops(1)), recording);
+		BasicAccountQuery accountQuery = new BasicAccountQuery(recorder);
+		assertThat(query(accountQuery, "user@example.com", mx), is((ResultCode) ADDRESS_VALID));
+		assertThat(query(accountQuery, "unknown@example.com", mx), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(query(accountQuery, "user@example.org", greylisting), is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertThat(query(accountQuery, "user@example.net", down), is((ResultCode) MTA_NOT_RESPONDING));
+		recorder.close();
+
+		// replay them in another order
+		ReplayConversationFactory replay = new ReplayConversationFactory(new ByteArrayInputStream(recording
+				.toByteArray()));
+		accountQuery = new BasicAccountQuery(replay);
+		for (int i = 0; i < 2; ++i) {
+			assertThat(query(accountQuery, "user@example.net", down), is((ResultCode) MTA_NOT_RESPONDING));
+			assertThat(query(accountQuery, "unknown@example.com", mx), is((ResultCode) ADDRESS_UNKNOWN));
+			assertThat(query(accountQuery, "user@example.org", greylisting), is((ResultCode) MTA_DEFERS_RECIPIENT));
+			assertThat(query(accountQuery, "user@example.com", mx), is((ResultCode) ADDRESS_VALID));
+		}
+		assertThat(replay.getMisses(), is(0L));
+
+		// neither the MTA nor the recipient are recorded
+		assertThat(query(accountQuery, "user@example.com", InetAddress.getByName("127.0.0.4")),
+				is((ResultCode) MTA_NOT_RESPONDING));
+		assertThat(query(accountQuery, "other@example.com", mx), is((ResultCode) IO_ERROR_DURING_MTA_CONVERSATION));
+		assertThat(replay.getMisses(), is(2L));
+	}
+
+	private ResultCode query(AccountQuery accountQuery, String mailAddress, InetAddress mx) throws Exception {
+		MailAddress fromAddress = this.addressFactory.create("jaev@example.com");
+
+		return accountQuery.query(this.addressFactory.create(mailAddress), fromAddress, mx).getResultCode();
+	}
+
+	/**
+	 * Routes the conversations with two MTAs to particular factories
+	 */
+	private static final class RoutingConversationFactory implements ConversationFactory {
+
+		private final ConversationFactory fallback;
+
+		private final InetAddress first;
+
+		private final ConversationFactory firstFactory;
+
+		private final InetAddress second;
+
+		private final ConversationFactory secondFactory;
+
+		private RoutingConversationFactory(ConversationFactory fallback, InetAddress first,
+				ConversationFactory firstFactory, InetAddress second, ConversationFactory secondFactory) {
+			this.fallback = fallback;
+			this.first = first;
+			this.firstFactory = firstFactory;
+			this.second = second;
+			this.secondFactory = secondFactory;
+		}
+
+		@Override
+		public Conversation createConversation() {
+			final Conversation[] conversations = { this.fallback.createConversation(),
+					this.firstFactory.createConversation(), this.secondFactory.createConversation() };
+
+			return new Conversation() {
+
+				private Conversation conversation = conversations[0];
+
+				public void init(InetAddress mxAddress, int port) {
+					this.conversation = conversations[mxAddress.equals(RoutingConversationFactory.this.first) ? 1
+							: mxAddress.equals(RoutingConversationFactory.this.second) ? 2 : 0];
+					this.conversation.init(mxAddress, port);
+				}
+
+				public void start() throws java.io.IOException {
+					this.conversation.start();
+				}
+
+				public void say(Command command) throws java.io.IOException {
+					this.conversation.say(command);
+				}
+
+				public void say(Command command, String parameter) throws java.io.IOException {
+					this.conversation.say(command, parameter);
+				}
+
+				public Reply listen() throws java.io.IOException {
+					return this.conversation.listen();
+				}
+
+				public void end() {
+					this.conversation.end();
+				}
+
+				public InetAddress getMxAddress() {
+					return this.conversation.getMxAddress();
+				}
+
+				public boolean isActive() {
+					return this.conversation.isActive();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.smtp.ReplyClassifier.Signal;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.smtp.Reply.Code.LOCAL_ERROR_IN_PROCESSING;
+import static net.nicl.jaev.smtp.Reply.Code.MAILBOX_NOT_AVAIABLE;
+import static net.nicl.jaev.smtp.Reply.Code.TRANSACTION_FAILED;
+import static net.nicl.jaev.smtp.ReplyClassifier.Signal.GREYLISTED;
+import static net.nicl.jaev.smtp.ReplyClassifier.Signal.POLICY;
+import static net.nicl.jaev.smtp.ReplyClassifier.Signal.RATE_LIMITED;
+import static net.nicl.jaev.smtp.ReplyClassifier.Signal.SPAM;
+import static net.nicl.jaev.smtp.ReplyClassifier.Signal.UNKNOWN_USER;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public final class ReplyClassifierTestCase {
+
+	private final ReplyClassifier classifier = new ReplyClassifier();
+
+	@Test
+	public void testDefaultPatterns() throws Exception {
+		// the block list precedes the policy code
+		assertThat(classify("550 5.7.1 Service unavailable; client host blocked using zen.SPAMHAUS.org"), is(SPAM));
+		assertThat(classify("421 4.7.0 Too many connections from your host"), is(RATE_LIMITED));
+		assertThat(classify("554 5.7.1 Relaying denied"), is(POLICY));
+		assertThat(classify("450 4.7.1 Greylisted, please try again later"), is(GREYLISTED));
+		assertThat(classify("550 5.1.1 The email account that you tried to reach does not exist"), is(UNKNOWN_USER));
+		assertThat(classify("553 sorry, no such user here"), is(UNKNOWN_USER));
+	}
+
+	@Test
+	public void testNoMatch() throws Exception {
+		assertThat(classify("250 2.1.5 OK"), is(nullValue()));
+		assertThat(classify(""), is(nullValue()));
+	}
+
+	@Test
+	public void testBoundaries() throws Exception {
+		// enhanced status codes within IP literals or longer codes
+		assertThat(classify("550 Rejected by [45.7.1.23]"), is(nullValue()));
+		assertThat(classify("450 Try [10.4.7.1] later"), is(nullValue()));
+		assertThat(classify("550 5.1.10 Recipient address rejected"), is(nullValue()));
+		assertThat(classify("550 5.1.1: user unknown"), is(UNKNOWN_USER));
+		assertThat(classify("550 #5.1.1 Recipient rejected"), is(UNKNOWN_USER));
+		// words containing a pattern
+		assertThat(classify("550 Dspfoo rejected"), is(nullValue()));
+		assertThat(classify("550 SPF check failed"), is(POLICY));
+		// the generic listing phrases are gone
+		assertThat(classify("550 User not listed in public Name & Address Book"), is(nullValue()));
+	}
+
+	@Test
+	public void testAnchoredPatterns() throws Exception {
+		Map<String, Signal> patterns = new LinkedHashMap<String, Signal>();
+		patterns.put("\\b1.2\\b", SPAM);
+		patterns.put("\\bab", POLICY);
+		patterns.put("cd\\b", GREYLISTED);
+		patterns.put("xab", RATE_LIMITED);
+		ReplyClassifier classifier = new ReplyClassifier(patterns);
+
+		assertThat(classifier.classify(bytes("1.2")), is(SPAM));
+		assertThat(classifier.classify(bytes("1.2.3 (1.2)")), is(SPAM));
+		assertThat(classifier.classify(bytes("1.2.3 11.2")), is(nullValue()));
+		assertThat(classifier.classify(bytes("AB")), is(POLICY));
+		assertThat(classifier.classify(bytes("cab abc")), is(POLICY));
+		// the unanchored pattern is found while the anchored suffix is not
+		assertThat(classifier.classify(bytes("xab")), is(RATE_LIMITED));
+		assertThat(classifier.classify(bytes("cd2 cde cd.")), is(GREYLISTED));
+		assertThat(classifier.classify(bytes("cd2 cde")), is(nullValue()));
+	}
+
+	@Test
+	public void testPreferred() throws Exception {
+		String text = "550 5.7.1 <info@example.com>: Recipient address rejected: user unknown (spamhaus)";
+		assertThat(classify(text), is(SPAM));
+		assertThat(this.classifier.classify(bytes(text), UNKNOWN_USER), is(UNKNOWN_USER));
+		// the preferred signal does not apply if it does not match
+		assertThat(this.classifier.classify(bytes("554 5.7.1 Relaying denied"), UNKNOWN_USER), is(POLICY));
+		assertThat(Idiom.RECIPIENT_TO.preferred(TRANSACTION_FAILED), is(UNKNOWN_USER));
+		assertThat(Idiom.RECIPIENT_TO.preferred(LOCAL_ERROR_IN_PROCESSING), is(nullValue()));
+		assertThat(Idiom.HELO.preferred(TRANSACTION_FAILED), is(nullValue()));
+	}
+
+	@Test
+	public void testOverlappingPatterns() throws Exception {
+		Map<String, Signal> patterns = new LinkedHashMap<String, Signal>();
+		patterns.put("unknown", UNKNOWN_USER);
+		patterns.put("known user", POLICY);
+		patterns.put("nope", GREYLISTED);
+		patterns.put("ope", RATE_LIMITED);
+		ReplyClassifier classifier = new ReplyClassifier(patterns);
+
+		// the suffix is found through the failure link of the longer pattern
+		assertThat(classifier.classify(bytes("UNKNOWN USER")), is(POLICY));
+		assertThat(classifier.classify(bytes("unknow")), is(nullValue()));
+		assertThat(classifier.classify(bytes("nnope")), is(RATE_LIMITED));
+		assertThat(classifier.classify(bytes("unknown")), is(UNKNOWN_USER));
+	}
+
+	@Test
+	public void testIdiom() throws Exception {
+		assertThat(Idiom.RECIPIENT_TO.signalled(UNKNOWN_USER, TRANSACTION_FAILED), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(Idiom.RECIPIENT_TO.signalled(GREYLISTED, LOCAL_ERROR_IN_PROCESSING),
+				is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertThat(Idiom.RECIPIENT_TO.signalled(GREYLISTED, MAILBOX_NOT_AVAIABLE), is(nullValue()));
+		assertThat(Idiom.VERIFY.signalled(POLICY, MAILBOX_NOT_AVAIABLE), is(nullValue()));
+	}
+
+	private Signal classify(String text) {
+		return this.classifier.classify(bytes(text));
+	}
+
+	private static byte[] bytes(String text) {
+		try {
+			return text.getBytes("US-ASCII");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
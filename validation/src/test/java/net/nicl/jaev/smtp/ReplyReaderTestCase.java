@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.nicl.jaev.smtp.Reply.Code.*;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ReplyReaderTestCase {
+
+	@Test
+	public void testSingleLine() throws IOException {
+		ReplyReader reader = new ReplyReader(16);
+		receive(reader, "220 mx.example.com ESMTP\r\n");
+
+		Reply reply = reader.poll();
+		assertThat(reply.getCode(), is(SERVICE_READY));
+		assertThat(reply.getMessage(), is("mx.example.com ESMTP"));
+		assertThat(reader.poll(), is(nullValue()));
+	}
+
+	@Test
+	public void testMultiLine() throws IOException {
+		ReplyReader reader = new ReplyReader(8);
+		receive(reader, "250-mx.example.com\r\n250-PIPELINING\r\n250 8BITMIME\r\n");
+
+		Reply reply = reader.poll();
+		assertThat(reply.getCode(), is(REQUESTED_MAIL_ACTION_OKAY));
+		assertThat(reply.getMessage(), is("mx.example.com\nPIPELINING\n8BITMIME"));
+	}
+
+	@Test
+	public void testFragmented() throws IOException {
+		ReplyReader reader = new ReplyReader(1024);
+		receive(reader, "550-5.1.1 The email acc");
+		assertThat(reader.poll(), is(nullValue()));
+		receive(reader, "ount does not exist\r\n550 5.1.1 Please try");
+		assertThat(reader.poll(), is(nullValue()));
+		receive(reader, "\r\n421 closing\r\n");
+
+		Reply reply = reader.poll();
+		assertThat(reply.getCode(), is(MAILBOX_NOT_AVAIABLE));
+		assertThat(reply.getMessage(), is("5.1.1 The email account does not exist\n5.1.1 Please try"));
+
+		reply = reader.poll();
+		assertThat(reply.getCode(), is(SERVICE_NOT_AVAILABLE));
+		assertThat(reply.getMessage(), is("closing"));
+	}
+
+	@Test
+	public void testSharedReply() throws Exception {
+		ReplyReader reader = new ReplyReader(64);
+		receive(reader, "550 5.1.1 User unknown\r\n");
+		final Reply reply = reader.poll();
+
+		// the message of a shared reply is created concurrently
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					if (!"5.1.1 User unknown".equals(reply.getMessage())) {
+						failures.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertThat(failures.get(), is(0));
+		assertThat(new String(reply.getText(), "US-ASCII"), is("5.1.1 User unknown"));
+	}
+
+	@Test
+	public void testCodes() throws IOException {
+		ReplyReader reader = new ReplyReader(64);
+		receive(reader, "250\n299 unknown\r\n");
+
+		assertThat(reader.poll().getCode(), is(REQUESTED_MAIL_ACTION_OKAY));
+		assertThat(reader.poll().getCode(), is(UNRECOGNIZED));
+	}
+
+	@Test
+	public void testGarbage() {
+		ReplyReader reader = new ReplyReader(64);
+		try {
+			receive(reader, "HTTP/1.1 400 Bad Request\r\n");
+			reader.poll();
+			fail("Garbage parsed as reply.");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void receive(ReplyReader reader, String data) throws IOException {
+		for (byte b : data.getBytes("US-ASCII")) {
+			reader.getReceiveBuffer().put(b);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_UNKNOWN;
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.Reply.Code.*;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_DEFERS_RECIPIENT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JMock.class)
+public final class SessionPoolTestCase {
+
+	private final Mockery context = new JUnit4Mockery();
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void testReuse() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final Sequence commandSequence = this.context.sequence("command");
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		SessionPool sessionPool = new SessionPool(4, 30, 5, SECONDS);
+		BasicAccountQuery accountQuery = new BasicAccountQuery(conversationFactory, null, sessionPool);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				allowing(conversation).isActive();
+				will(returnValue(true));
+
+				allowing(conversation).getMxAddress();
+				will(returnValue(localhost));
+
+				// the first query greets the MTA
+				oneOf(conversation).init(localhost, 25);
+				inSequence(commandSequence);
+
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(SERVICE_READY, null)));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RESET);
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				// the second query starts with MAIL FROM
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(MAILBOX_NOT_AVAIABLE, "")));
+				inSequence(commandSequence);
+
+				oneOf(conversation).say(Command.RESET);
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				// closing the pool ends the session
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(sessionPool.getIdleCount(), is(1));
+
+		result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_UNKNOWN));
+		assertThat(sessionPool.getHits(), is(1L));
+		assertThat(sessionPool.getMisses(), is(1L));
+
+		sessionPool.close();
+		assertThat(sessionPool.getIdleCount(), is(0));
+	}
+
+	@Test
+	public void testServiceNotAvailable() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		SessionPool sessionPool = new SessionPool();
+		BasicAccountQuery accountQuery = new BasicAccountQuery(conversationFactory, null, sessionPool);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				allowing(conversation).isActive();
+				will(returnValue(true));
+
+				allowing(conversation).getMxAddress();
+				will(returnValue(localhost));
+
+				oneOf(conversation).init(localhost, 25);
+				oneOf(conversation).start();
+				oneOf(conversation).say(Command.HELO, fromAddress.getDomain());
+				oneOf(conversation).say(Command.MAIL, fromAddress.toString());
+				oneOf(conversation).say(Command.RECIPIENT_TO, mailAddress.toString());
+
+				exactly(4).of(conversation).listen();
+				will(onConsecutiveCalls(returnValue(new Reply(SERVICE_READY, null)), returnValue(new Reply(
+						REQUESTED_MAIL_ACTION_OKAY, "")), returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")),
+						returnValue(new Reply(SERVICE_NOT_AVAILABLE, ""))));
+
+				// the MTA closes the connection, so no QUIT is said
+				oneOf(conversation).end();
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_DEFERS_RECIPIENT));
+		assertThat(sessionPool.getIdleCount(), is(0));
+	}
+
+	@Test
+	public void testHealthCheck() throws Exception {
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		SessionPool sessionPool = new SessionPool(4, 30000, 0, MILLISECONDS);
+
+		this.context.checking(new Expectations() {
+
+			{
+				allowing(conversation).isActive();
+				will(returnValue(true));
+
+				oneOf(conversation).start();
+
+				oneOf(conversation).say(Command.HELO, "example.com");
+				oneOf(conversation).say(Command.RESET);
+				oneOf(conversation).say(Command.NOOP);
+
+				exactly(3).of(conversation).listen();
+				will(onConsecutiveCalls(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")), returnValue(new Reply(
+						REQUESTED_MAIL_ACTION_OKAY, "")), returnValue(new Reply(SERVICE_NOT_AVAILABLE, ""))));
+
+				oneOf(conversation).end();
+			}
+		});
+
+		PooledConversation session = sessionPool.create(conversation, localhost, "example.com");
+		session.start();
+		session.say(Command.HELO, "example.com");
+		session.listen();
+		sessionPool.restore(session, true);
+		assertThat(sessionPool.getIdleCount(), is(1));
+
+		Thread.sleep(5);
+		assertThat(sessionPool.borrow(localhost, "example.com") == null, is(true));
+		assertThat(sessionPool.getEvictions(), is(1L));
+		assertThat(sessionPool.getIdleCount(), is(0));
+	}
+
+	@Test
+	public void testVerifiedSession() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final Sequence commandSequence = this.context.sequence("command");
+		final ConversationFactory conversationFactory = this.context.mock(ConversationFactory.class);
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		SessionPool sessionPool = new SessionPool(4, 30, 5, SECONDS);
+		VerifyCapabilities verifyCapabilities = new VerifyCapabilities(1, 1, SECONDS);
+		verifyCapabilities.compared(localhost, true);
+		BasicAccountQuery accountQuery = new BasicAccountQuery(conversationFactory, verifyCapabilities, sessionPool);
+
+		this.context.checking(new Expectations() {
+
+			{
+				oneOf(conversationFactory).createConversation();
+				will(returnValue(conversation));
+
+				allowing(conversation).isActive();
+				will(returnValue(true));
+
+				allowing(conversation).getMxAddress();
+				will(returnValue(localhost));
+
+				oneOf(conversation).init(localhost, 25);
+				inSequence(commandSequence);
+
+				oneOf(conversation).start();
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(SERVICE_READY, null)));
+				inSequence(commandSequence);
+
+				// the trusted VRFY answers without HELO
+				oneOf(conversation).say(Command.VERIFY, mailAddress.toString());
+				inSequence(commandSequence);
+
+				oneOf(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+				inSequence(commandSequence);
+
+				// so the session is closed instead of being kept
+				oneOf(conversation).say(Command.QUIT);
+				inSequence(commandSequence);
+
+				oneOf(conversation).end();
+				inSequence(commandSequence);
+			}
+		});
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) ADDRESS_VALID));
+		assertThat(sessionPool.getIdleCount(), is(0));
+	}
+
+	@Test
+	public void testSweep() throws Exception {
+		final Conversation conversation = this.context.mock(Conversation.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		SessionPool sessionPool = new SessionPool(4, 10, 10, MILLISECONDS);
+
+		this.context.checking(new Expectations() {
+
+			{
+				allowing(conversation).isActive();
+				will(returnValue(true));
+
+				oneOf(conversation).start();
+
+				oneOf(conversation).say(Command.HELO, "example.com");
+				oneOf(conversation).say(Command.RESET);
+
+				exactly(2).of(conversation).listen();
+				will(returnValue(new Reply(REQUESTED_MAIL_ACTION_OKAY, "")));
+
+				// the expired session is closed by the next borrow of any MTA
+				oneOf(conversation).say(Command.QUIT);
+				oneOf(conversation).end();
+			}
+		});
+
+		PooledConversation session = sessionPool.create(conversation, localhost, "example.com");
+		session.start();
+		session.say(Command.HELO, "example.com");
+		session.listen();
+		sessionPool.restore(session, true);
+		assertThat(sessionPool.getIdleCount(), is(1));
+
+		Thread.sleep(20);
+		assertThat(sessionPool.borrow(localhost, "example.org") == null, is(true));
+		assertThat(sessionPool.getEvictions(), is(1L));
+		assertThat(sessionPool.getIdleCount(), is(0));
+		// the empty queue is dropped
+		assertThat(sessionPool.getQueueCount(), is(0));
+	}
+}
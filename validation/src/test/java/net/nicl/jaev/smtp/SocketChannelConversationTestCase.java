@@ -0,0 +1,337 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.dns.Resolver;
+import net.nicl.jaev.dns.ResolverException;
+import net.nicl.jaev.dns.ResouceRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+
+import static net.nicl.jaev.smtp.Reply.Code.SERVICE_READY;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class SocketChannelConversationTestCase {
+
+	private ServerSocket serverSocket;
+
+	private final StringBuffer received = new StringBuffer();
+
+	@Before
+	public void setUp() throws IOException {
+		this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.serverSocket.close();
+	}
+
+	@Test
+	public void testBanner() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		Conversation conversation = new SocketChannelConversation(5000);
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			assertThat(conversation.listen().getCode(), is(SERVICE_READY));
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+	}
+
+	@Test
+	public void testCommands() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		Conversation conversation = new SocketChannelConversation(5000);
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			conversation.listen();
+			conversation.say(Command.HELO, "example.com");
+			conversation.say(Command.MAIL.particularise("jaev@example.com"));
+			conversation.say(Command.RECIPIENT_TO, "info@example.com");
+			conversation.say(Command.QUIT);
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+
+		assertThat(this.received.toString(), is("HELO example.com\r\nMAIL FROM:<jaev@example.com>\r\n"
+				+ "RCPT TO:<info@example.com>\r\nQUIT\r\n"));
+	}
+
+	@Test
+	public void testRace() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		AddressFamilyPreferences preferences = new AddressFamilyPreferences();
+		Conversation conversation = new SocketChannelConversation(5000, preferences);
+		// nothing listens on the IPv6 loopback, the IPv4 connection has to win
+		InetAddress ipv6 = InetAddress.getByAddress("localhost", InetAddress.getByName("::1").getAddress());
+		// the MX resolution returned both families
+		preferences.resolved("localhost", ipv6, InetAddress.getByName("127.0.0.1"));
+		conversation.init(ipv6, this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			assertThat(conversation.listen().getCode(), is(SERVICE_READY));
+			assertThat(preferences.prefersIpv6("localhost"), is(false));
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+	}
+
+	@Test
+	public void testNoRaceForUnknownHost() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		AddressFamilyPreferences preferences = new AddressFamilyPreferences();
+		Conversation conversation = new SocketChannelConversation(5000, preferences);
+		InetAddress ipv4 = InetAddress.getByAddress("localhost", InetAddress.getByName("127.0.0.1").getAddress());
+		conversation.init(ipv4, this.serverSocket.getLocalPort());
+		try {
+			// the lookup runs in the background, the MTA address is connected right away
+			conversation.start();
+			assertThat(conversation.listen().getCode(), is(SERVICE_READY));
+			assertThat(preferences.claimLookup("localhost"), is(false));
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+	}
+
+	@Test
+	public void testRaceWithResolver() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		final StringBuffer lookups = new StringBuffer();
+		Resolver resolver = new Resolver() {
+
+			@Override
+			public List<ResouceRecord> resolve(String domainName, final ResouceRecord.Type recordType)
+					throws ResolverException {
+				lookups.append(recordType).append(' ').append(domainName);
+				return Collections.<ResouceRecord> singletonList(new ResouceRecord() {
+
+					private static final long serialVersionUID = 1L;
+
+					public Type getType() {
+						return recordType;
+					}
+
+					public String getValue() {
+						return "127.0.0.1";
+					}
+				});
+			}
+		};
+		Conversation conversation = new SocketChannelConversation.Factory(5000, resolver).createConversation();
+		// the host is not known to the system resolver, so the IPv4 address has to come from the resolver
+		InetAddress ipv6 = InetAddress.getByAddress("mx.invalid", InetAddress.getByName("::1").getAddress());
+		conversation.init(ipv6, this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			assertThat(conversation.listen().getCode(), is(SERVICE_READY));
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+
+		assertThat(lookups.toString(), is("A mx.invalid"));
+	}
+
+	@Test
+	public void testSourceAddress() throws Exception {
+		Thread server = serve("421 too many connections from your address\r\n");
+		InetAddress source = this.serverSocket.getInetAddress();
+		SourceAddressPool pool = new SourceAddressPool(SourceAddressPool.Strategy.LEAST_LOADED, source);
+		Conversation conversation = new SocketChannelConversation.Factory(5000, pool).createConversation();
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			assertThat(pool.getUsage().get(source).getOpen(), is(1));
+			conversation.listen();
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+
+		assertThat(pool.getUsage().get(source).getOpen(), is(0));
+		assertThat(pool.getUsage().get(source).getConnections(), is(1L));
+		assertThat(pool.getUsage().get(source).getThrottles(), is(1L));
+	}
+
+	@Test
+	public void testTranscript() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		TranscriptRecorder recorder = new TranscriptRecorder(16, true);
+		SocketChannelConversation conversation = new SocketChannelConversation(5000, new AddressFamilyPreferences(),
+				null, recorder);
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			conversation.listen();
+			conversation.say(Command.HELO, "example.com");
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+
+		String[] lines = conversation.getTranscript().split("\n");
+		assertThat(lines.length, is(3));
+		assertTrue(lines[0], lines[0].matches("#1 \\+\\d+ms --- connected to .*"));
+		assertTrue(lines[1], lines[1].endsWith("<<< 220 localhost ESMTP"));
+		assertTrue(lines[2], lines[2].endsWith(">>> HELO example.com"));
+	}
+
+	@Test
+	public void testContinueTranscript() throws Exception {
+		Thread server = serve("220 localhost ESMTP\r\n");
+		TranscriptRecorder recorder = new TranscriptRecorder(16, true);
+		SocketChannelConversation conversation = new SocketChannelConversation(5000, new AddressFamilyPreferences(),
+				null, recorder);
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		try {
+			conversation.start();
+			conversation.listen();
+			conversation.say(Command.RECIPIENT_TO, "first@example.com");
+
+			// the next borrower of a pooled session
+			conversation.continueTranscript();
+			conversation.say(Command.RECIPIENT_TO, "second@example.com");
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+
+		String[] lines = conversation.getTranscript().split("\n");
+		assertThat(lines.length, is(2));
+		assertTrue(lines[0], lines[0].matches("#2 \\+\\d+ms --- continuing the session with .*"));
+		assertTrue(lines[1], lines[1].endsWith(">>> RCPT TO:<second@example.com>"));
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		Thread server = serve(null);
+		Conversation conversation = new SocketChannelConversation(200);
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		long start = System.currentTimeMillis();
+		try {
+			conversation.start();
+			conversation.listen();
+			fail("The silent server did not cause a timeout.");
+		}
+		catch (SocketTimeoutException e) {
+			long duration = System.currentTimeMillis() - start;
+			assertTrue("The timeout took " + duration + " ms.", duration >= 150 && duration < 2000);
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		Thread server = serve(null);
+		Conversation conversation = new SocketChannelConversation(5000);
+		conversation.init(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort());
+		final Thread client = Thread.currentThread();
+		try {
+			conversation.start();
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(100);
+					}
+					catch (InterruptedException e) {
+						// ignore
+					}
+					client.interrupt();
+				}
+			}.start();
+			conversation.listen();
+			fail("The interrupt did not cancel the conversation.");
+		}
+		catch (InterruptedIOException e) {
+			// the channel stays open to say QUIT
+			assertTrue(conversation.isActive());
+			conversation.say(Command.QUIT);
+		}
+		finally {
+			conversation.end();
+			server.join();
+		}
+
+		assertThat(this.received.toString(), is("QUIT\r\n"));
+	}
+
+	private Thread serve(final String reply) {
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					Socket socket = SocketChannelConversationTestCase.this.serverSocket.accept();
+					try {
+						if (reply != null) {
+							OutputStream out = socket.getOutputStream();
+							out.write(reply.getBytes("US-ASCII"));
+							out.flush();
+						}
+						// record until the client closes the connection
+						int c;
+						while ((c = socket.getInputStream().read()) >= 0) {
+							SocketChannelConversationTestCase.this.received.append((char) c);
+						}
+					}
+					finally {
+						socket.close();
+					}
+				}
+				catch (IOException e) {
+					// the test will fail on the client side
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+}
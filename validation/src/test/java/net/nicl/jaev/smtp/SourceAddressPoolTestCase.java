@@ -0,0 +1,119 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.smtp.SourceAddressPool.Strategy;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public final class SourceAddressPoolTestCase {
+
+	private final InetAddress mxAddress = address("192.0.2.25");
+
+	private final InetAddress first = address("198.51.100.1");
+
+	private final InetAddress second = address("198.51.100.2");
+
+	@Test
+	public void testRoundRobin() {
+		SourceAddressPool pool = new SourceAddressPool(Strategy.ROUND_ROBIN, this.first, this.second);
+
+		assertThat(pool.acquire(this.mxAddress), is(this.first));
+		assertThat(pool.acquire(this.mxAddress), is(this.second));
+		assertThat(pool.acquire(this.mxAddress), is(this.first));
+		assertThat(pool.getUsage().get(this.first).getConnections(), is(2L));
+		assertThat(pool.getUsage().get(this.second).getOpen(), is(1));
+	}
+
+	@Test
+	public void testLeastLoaded() {
+		SourceAddressPool pool = new SourceAddressPool(Strategy.LEAST_LOADED, this.first, this.second);
+
+		assertThat(pool.acquire(this.mxAddress), is(this.first));
+		assertThat(pool.acquire(this.mxAddress), is(this.second));
+		pool.release(this.first);
+		assertThat(pool.acquire(this.mxAddress), is(this.first));
+		pool.release(this.second);
+
+		// the throttled address is avoided although it is less loaded
+		pool.throttled(this.second, this.mxAddress);
+		assertThat(pool.acquire(this.mxAddress), is(this.first));
+		assertThat(pool.getUsage().get(this.first).getOpen(), is(2));
+		assertThat(pool.getUsage().get(this.second).getThrottles(), is(1L));
+	}
+
+	@Test
+	public void testThrottledProvider() {
+		SourceAddressPool pool = new SourceAddressPool(Strategy.ROUND_ROBIN, this.first, this.second);
+		InetAddress mx1 = address("mx1.example.com", "192.0.2.1");
+		InetAddress mx2 = address("mx2.example.com", "192.0.2.2");
+		InetAddress other = address("mx.example.org", "192.0.2.3");
+
+		// the throttle of one MTA applies to the other MTAs of the provider
+		pool.throttled(this.first, mx1);
+		assertThat(pool.acquire(mx2), is(this.second));
+		assertThat(pool.acquire(mx1), is(this.second));
+		// but not to other providers
+		assertThat(pool.acquire(other), is(this.first));
+		assertThat(pool.acquire(other), is(this.second));
+
+		// if every address is throttled the turn is kept
+		pool.throttled(this.second, mx2);
+		assertThat(pool.acquire(mx1), is(this.first));
+		assertThat(pool.acquire(mx1), is(this.second));
+	}
+
+	@Test
+	public void testProvider() {
+		assertThat(SourceAddressPool.getProvider(address("mx1.mail.example.com", "192.0.2.1")), is("example.com"));
+		assertThat(SourceAddressPool.getProvider(address("MX.Example.co.uk.", "192.0.2.1")), is("example.co.uk"));
+		assertThat(SourceAddressPool.getProvider(address("mx.gmx.de", "192.0.2.1")), is("gmx.de"));
+		assertThat(SourceAddressPool.getProvider(address("localhost", "127.0.0.1")), is("localhost"));
+		assertThat(SourceAddressPool.getProvider(this.mxAddress), is("192.0.2.25"));
+	}
+
+	@Test
+	public void testFamily() {
+		SourceAddressPool pool = new SourceAddressPool(Strategy.ROUND_ROBIN, this.first);
+
+		assertThat(pool.acquire(address("2001:db8::25")), is(nullValue()));
+		assertThat(pool.getUsage().get(this.first).getConnections(), is(0L));
+	}
+
+	private static InetAddress address(String host, String literal) {
+		try {
+			return InetAddress.getByAddress(host, address(literal).getAddress());
+		}
+		catch (java.net.UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static InetAddress address(String literal) {
+		try {
+			return InetAddress.getByName(literal);
+		}
+		catch (java.net.UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
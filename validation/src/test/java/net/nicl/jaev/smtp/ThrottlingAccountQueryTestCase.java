@@ -0,0 +1,155 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.Validity.DOMAIN;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_SUSPECTS_SPAM;
+import static net.nicl.jaev.smtp.SmtpResultCode.MTA_THROTTLED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JMock.class)
+public final class ThrottlingAccountQueryTestCase {
+
+	private final Mockery context = new JUnit4Mockery();
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	@Test
+	public void testDecrease() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		// the provider is the domain of the MTA host name
+		final InetAddress localhost = InetAddress.getByAddress("mx1.GoogleCode.com", InetAddress.getLocalHost()
+				.getAddress());
+
+		ThrottlingAccountQuery accountQuery = new ThrottlingAccountQuery(inner, 8, 1, 32, 0.5, 1, 0, MINUTES);
+
+		this.context.checking(new Expectations() {
+
+			{
+				exactly(2).of(inner).query(mailAddress, fromAddress, localhost);
+				will(returnValue(Result.create(MTA_SUSPECTS_SPAM, DOMAIN, mailAddress, localhost)));
+			}
+		});
+
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost).getLimit(), is(4));
+		assertThat(accountQuery.getState("GOOGLECODE.com").getLimit(), is(4));
+		assertThat(accountQuery.getState(localhost).getLastSignal(), is((ResultCode) MTA_SUSPECTS_SPAM));
+
+		// the second signal within the cool down does not cut the limit again
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getMxStates().get(localhost).getLimit(), is(4));
+		assertThat(accountQuery.getProviderStates().get("googlecode.com").getInFlight(), is(0));
+	}
+
+	@Test
+	public void testIncrease() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final AccountQuery inner = this.context.mock(AccountQuery.class);
+		final InetAddress localhost = InetAddress.getLocalHost();
+
+		ThrottlingAccountQuery accountQuery = new ThrottlingAccountQuery(inner, 2, 1, 3, 0.5, 1, 0, MINUTES);
+
+		this.context.checking(new Expectations() {
+
+			{
+				exactly(5).of(inner).query(mailAddress, fromAddress, localhost);
+				will(returnValue(Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress, localhost)));
+			}
+		});
+
+		// 2 + 1/2 + 1/2.5 = 2.9
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost).getLimit(), is(2));
+
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost).getLimit(), is(3));
+
+		// bounded by the maximum limit
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(accountQuery.getState(localhost).getLimit(), is(3));
+	}
+
+	@Test
+	public void testThrottled() throws Exception {
+		final MailAddress fromAddress = this.addressFactory.create(defaultFromAddress());
+		final MailAddress mailAddress = this.addressFactory.create("jaev@googlecode.com");
+		final InetAddress localhost = InetAddress.getLocalHost();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final ThrottlingAccountQuery accountQuery = new ThrottlingAccountQuery(new AccountQuery() {
+
+			@Override
+			public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+				started.countDown();
+				try {
+					release.await(5, SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress, mxAddress);
+			}
+		}, 1, 1, 1, 0.5, 1, 50, MILLISECONDS);
+
+		Thread blocking = new Thread() {
+
+			@Override
+			public void run() {
+				accountQuery.query(mailAddress, fromAddress, localhost);
+			}
+		};
+		blocking.start();
+		assertTrue("The first query did not start.", started.await(5, SECONDS));
+		assertThat(accountQuery.getState(localhost).getInFlight(), is(1));
+
+		Result result = accountQuery.query(mailAddress, fromAddress, localhost);
+		assertThat(result.getResultCode(), is((ResultCode) MTA_THROTTLED));
+
+		release.countDown();
+		blocking.join(5000);
+		assertThat(accountQuery.getState(localhost).getInFlight(), is(0));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import net.nicl.jaev.MailAddress;
+import net.nicl.jaev.Result;
+import net.nicl.jaev.ResultCode;
+import net.nicl.jaev.mail.MailParseException;
+import net.nicl.jaev.mail.SimpleMailAddressFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.nicl.jaev.ValidatorResultCode.ADDRESS_VALID;
+import static net.nicl.jaev.Validity.ACCESSIBLE;
+import static net.nicl.jaev.integration.Initialiser.defaultFromAddress;
+import static net.nicl.jaev.smtp.SmtpResultCode.TIMEOUT_DURING_MTA_CONVERSATION;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class TimeoutCapableAccountQueryProxyTestCase {
+
+	private final SimpleMailAddressFactory addressFactory = new SimpleMailAddressFactory();
+
+	private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		this.executorService.shutdownNow();
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		SleepingBatchQuery batchQuery = new SleepingBatchQuery(0);
+		TimeoutCapableAccountQueryProxy proxy = new TimeoutCapableAccountQueryProxy(batchQuery, this.executorService,
+				1, SECONDS);
+
+		List<Result> results = proxy.query(mailAddresses(3), this.addressFactory.create(defaultFromAddress()),
+				InetAddress.getByName("192.0.2.25"), 2);
+
+		assertThat(results.size(), is(3));
+		assertThat(results.get(2).getResultCode(), is((ResultCode) ADDRESS_VALID));
+	}
+
+	@Test
+	public void testBatchExpires() throws Exception {
+		SleepingBatchQuery batchQuery = new SleepingBatchQuery(10000);
+		TimeoutCapableAccountQueryProxy proxy = new TimeoutCapableAccountQueryProxy(batchQuery, this.executorService,
+				100, MILLISECONDS);
+
+		// two transactions of two recipients are granted twice the timeout, not once per address
+		long start = System.currentTimeMillis();
+		List<Result> results = proxy.query(mailAddresses(4), this.addressFactory.create(defaultFromAddress()),
+				InetAddress.getByName("192.0.2.25"), 2);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("The session expired after " + elapsed + " ms.", elapsed >= 150 && elapsed < 350);
+		assertThat(results.size(), is(4));
+		for (Result result : results) {
+			assertThat(result.getResultCode(), is((ResultCode) TIMEOUT_DURING_MTA_CONVERSATION));
+		}
+		assertTrue("The expired session was not cancelled.", batchQuery.interrupted.await(5, SECONDS));
+	}
+
+	private List<MailAddress> mailAddresses(int count) throws MailParseException {
+		List<MailAddress> mailAddresses = new ArrayList<MailAddress>(count);
+		for (int i = 0; i < count; ++i) {
+			mailAddresses.add(this.addressFactory.create("user" + i + "@example.com"));
+		}
+
+		return mailAddresses;
+	}
+
+	/**
+	 * Batch query stand-in which sleeps before it answers every address as valid
+	 */
+	private static final class SleepingBatchQuery implements BatchAccountQuery {
+
+		private final long sleep;
+
+		private final CountDownLatch interrupted = new CountDownLatch(1);
+
+		private SleepingBatchQuery(long sleep) {
+			this.sleep = sleep;
+		}
+
+		@Override
+		public Result query(MailAddress mailAddress, MailAddress fromAddress, InetAddress mxAddress) {
+			return query(Arrays.asList(mailAddress), fromAddress, mxAddress, 1).get(0);
+		}
+
+		@Override
+		public List<Result> query(List<MailAddress> mailAddresses, MailAddress fromAddress, InetAddress mxAddress,
+				int recipientLimit) {
+			try {
+				Thread.sleep(this.sleep);
+			}
+			catch (InterruptedException e) {
+				this.interrupted.countDown();
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (MailAddress mailAddress : mailAddresses) {
+				results.add(Result.create(ADDRESS_VALID, ACCESSIBLE, mailAddress));
+			}
+
+			return results;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 - Niclas Meier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.nicl.jaev.smtp;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public final class TranscriptRecorderTestCase {
+
+	@Test
+	public void testRing() {
+		TranscriptRecorder recorder = new TranscriptRecorder(3, false);
+		assertThat(recorder.getCapacity(), is(4));
+
+		int first = recorder.nextConversation();
+		int second = recorder.nextConversation();
+		for (int i = 0; i < 6; ++i) {
+			recorder.event(i % 2 == 0 ? first : second, "event " + i);
+		}
+
+		// the two oldest records are overwritten
+		assertThat(recorder.dump().split("\n").length, is(4));
+		assertTrue(recorder.dump(first).endsWith("--- event 4\n"));
+		assertThat(recorder.dump(second).split("\n").length, is(2));
+	}
+}